@@ -17,6 +17,7 @@ import net.spals.appbuilder.filestore.core.FileStorePlugin;
 import net.spals.appbuilder.graph.model.ServiceGraphFormat;
 import net.spals.appbuilder.keystore.core.KeyStore;
 import net.spals.appbuilder.keystore.core.KeyStorePlugin;
+import net.spals.appbuilder.mapstore.core.AsyncMapStore;
 import net.spals.appbuilder.mapstore.core.MapStore;
 import net.spals.appbuilder.mapstore.core.MapStoreIndex;
 import net.spals.appbuilder.mapstore.core.MapStoreIndexPlugin;
@@ -139,12 +140,14 @@ public class SampleGenericWorkerAppFTest {
     public void testMapStoreInjection() {
         final Injector serviceInjector = sampleApp.getServiceInjector();
         assertThat(serviceInjector.getInstance(MapStore.class), notNullValue());
+        assertThat(serviceInjector.getInstance(AsyncMapStore.class), notNullValue());
 
         final TypeLiteral<Map<String, MapStorePlugin>> mapStorePluginMapKey =
             new TypeLiteral<Map<String, MapStorePlugin>>(){};
         final Map<String, MapStorePlugin> mapStorePluginMap =
             serviceInjector.getInstance(Key.get(mapStorePluginMapKey));
-        assertThat(mapStorePluginMap, aMapWithSize(1));
+        assertThat(mapStorePluginMap, aMapWithSize(2));
+        assertThat(mapStorePluginMap, hasKey("inMemory"));
         assertThat(mapStorePluginMap, hasKey("mapDB"));
     }
 
@@ -153,7 +153,8 @@ public class SampleDropwizardWebAppFTest {
             new TypeLiteral<Map<String, MapStorePlugin>>(){};
         final Map<String, MapStorePlugin> mapStorePluginMap =
             serviceInjector.getInstance(Key.get(mapStorePluginMapKey));
-        assertThat(mapStorePluginMap, aMapWithSize(1));
+        assertThat(mapStorePluginMap, aMapWithSize(2));
+        assertThat(mapStorePluginMap, hasKey("inMemory"));
         assertThat(mapStorePluginMap, hasKey("mapDB"));
     }
 
@@ -66,9 +66,10 @@ class PluginsFinatraWebAppFTest {
 
     val mapStorePluginMapKey = new TypeLiteral[java.util.Map[String, MapStorePlugin]](){}
     val mapStorePluginMap = serviceInjector.getInstance(Key.get(mapStorePluginMapKey))
-    assertThat(mapStorePluginMap, Matchers.aMapWithSize[String, MapStorePlugin](4))
+    assertThat(mapStorePluginMap, Matchers.aMapWithSize[String, MapStorePlugin](5))
     assertThat(mapStorePluginMap, hasKey("cassandra"))
     assertThat(mapStorePluginMap, hasKey("dynamoDB"))
+    assertThat(mapStorePluginMap, hasKey("inMemory"))
     assertThat(mapStorePluginMap, hasKey("mapDB"))
     assertThat(mapStorePluginMap, hasKey("mongoDB"))
   }
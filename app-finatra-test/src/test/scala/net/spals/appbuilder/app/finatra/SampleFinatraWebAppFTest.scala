@@ -123,7 +123,8 @@ class SampleFinatraWebAppFTest {
 
     val mapStorePluginMapKey = new TypeLiteral[java.util.Map[String, MapStorePlugin]](){}
     val mapStorePluginMap = serviceInjector.getInstance(Key.get(mapStorePluginMapKey))
-    assertThat(mapStorePluginMap, Matchers.aMapWithSize[String, MapStorePlugin](1))
+    assertThat(mapStorePluginMap, Matchers.aMapWithSize[String, MapStorePlugin](2))
+    assertThat(mapStorePluginMap, hasKey("inMemory"))
     assertThat(mapStorePluginMap, hasKey("mapDB"))
   }
 
@@ -0,0 +1,83 @@
+package net.spals.appbuilder.mapstore.cassandra
+
+import com.datastax.driver.core.policies._
+import com.datastax.driver.core.{ConsistencyLevel, HostDistance}
+import com.typesafe.config.ConfigException
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.{instanceOf, is}
+import org.testng.annotations.Test
+
+/**
+  * Unit tests for [[CassandraClusterInitializerProvider]].
+  *
+  * @author tkral
+  */
+class CassandraClusterInitializerProviderTest {
+
+  @Test def testDefaultPolicies() {
+    val policies = initializerProvider().get().getConfiguration.getPolicies
+
+    assertThat(policies.getLoadBalancingPolicy, instanceOf[LoadBalancingPolicy](classOf[TokenAwarePolicy]))
+    assertThat(policies.getSpeculativeExecutionPolicy,
+      instanceOf[SpeculativeExecutionPolicy](classOf[NoSpeculativeExecutionPolicy]))
+  }
+
+  @Test def testPoolingOptions() {
+    val provider = initializerProvider()
+    provider.coreConnectionsPerHost = 2
+    provider.maxConnectionsPerHost = 4
+    provider.maxRequestsPerConnection = 2048
+
+    val poolingOptions = provider.get().getConfiguration.getPoolingOptions
+    assertThat(poolingOptions.getCoreConnectionsPerHost(HostDistance.LOCAL), is(2))
+    assertThat(poolingOptions.getMaxConnectionsPerHost(HostDistance.LOCAL), is(4))
+    assertThat(poolingOptions.getMaxRequestsPerConnection(HostDistance.LOCAL), is(2048))
+  }
+
+  @Test(expectedExceptions = Array(classOf[ConfigException.BadValue]))
+  def testPoolingOptionsCoreAboveMax() {
+    val provider = initializerProvider()
+    provider.coreConnectionsPerHost = 2
+    provider.get()
+  }
+
+  @Test def testLoadBalancingPolicyNotTokenAware() {
+    val provider = initializerProvider()
+    provider.tokenAware = false
+
+    assertThat(provider.get().getConfiguration.getPolicies.getLoadBalancingPolicy,
+      instanceOf[LoadBalancingPolicy](classOf[DCAwareRoundRobinPolicy]))
+  }
+
+  @Test def testQueryOptions() {
+    val provider = initializerProvider()
+    provider.consistencyLevel = "local_quorum"
+    provider.fetchSize = 100
+
+    val queryOptions = provider.get().getConfiguration.getQueryOptions
+    assertThat(queryOptions.getConsistencyLevel, is(ConsistencyLevel.LOCAL_QUORUM))
+    assertThat(queryOptions.getFetchSize, is(100))
+  }
+
+  @Test(expectedExceptions = Array(classOf[ConfigException.BadValue]))
+  def testQueryOptionsUnknownConsistencyLevel() {
+    val provider = initializerProvider()
+    provider.consistencyLevel = "mostly"
+    provider.get()
+  }
+
+  @Test def testSpeculativeExecutionPolicy() {
+    val provider = initializerProvider()
+    provider.speculativeExecutionDelayMs = 50L
+
+    assertThat(provider.get().getConfiguration.getPolicies.getSpeculativeExecutionPolicy,
+      instanceOf[SpeculativeExecutionPolicy](classOf[ConstantSpeculativeExecutionPolicy]))
+  }
+
+  private def initializerProvider(): CassandraClusterInitializerProvider = {
+    val provider = new CassandraClusterInitializerProvider()
+    provider.clusterName = "CassandraClusterInitializerProviderTest"
+    provider.hosts = "127.0.0.1"
+    provider
+  }
+}
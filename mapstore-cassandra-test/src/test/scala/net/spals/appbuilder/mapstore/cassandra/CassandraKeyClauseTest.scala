@@ -7,9 +7,11 @@ import net.spals.appbuilder.mapstore.core.model.TwoValueMapRangeKey.between
 import net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey._
 import net.spals.appbuilder.mapstore.core.model.{MapRangeKey, MapStoreKey, MultiValueMapRangeKey}
 import org.hamcrest.MatcherAssert.assertThat
-import org.hamcrest.Matchers.hasToString
+import org.hamcrest.Matchers.{contains, hasToString, is}
 import org.testng.annotations.{DataProvider, Test}
 
+import scala.collection.JavaConverters._
+
 /**
   * Unit tests for [[CassandraKeyClause]].
   *
@@ -22,34 +24,38 @@ class CassandraKeyClauseTest {
     val hashClause = CassandraKeyClause(key).hashClause
     val queryBuilder = QueryBuilder.select().all().from("myTable").where(hashClause)
 
-    assertThat(queryBuilder,
-      hasToString[Select.Where]("SELECT * FROM myTable WHERE myHashField='myHashValue';"))
+    assertThat(queryBuilder, hasToString[Select.Where]("SELECT * FROM myTable WHERE myHashField=?;"))
+    assertThat(CassandraKeyClause(key).values.asJava, contains[AnyRef]("myHashValue"))
   }
 
   @DataProvider def rangeClausesProvider(): Array[Array[AnyRef]] = {
     Array(
       // All and none range key operators do not produce a range clause
-      Array(all(), ""),
-      Array(none(), ""),
+      Array(all(), "", List()),
+      Array(none(), "", List()),
       // Cases: Single value operators
-      Array(equalTo[String]("myRangeValue"), " AND myRangeField='myRangeValue'"),
-      Array(greaterThan[String]("myRangeValue"), " AND myRangeField>'myRangeValue'"),
-      Array(greaterThanOrEqualTo[String]("myRangeValue"), " AND myRangeField>='myRangeValue'"),
-      Array(lessThan[String]("myRangeValue"), " AND myRangeField<'myRangeValue'"),
-      Array(lessThanOrEqualTo[String]("myRangeValue"), " AND myRangeField<='myRangeValue'"),
-      Array(like("myRangeValue"), " AND myRangeField LIKE '%myRangeValue%'"),
-      Array(startsWith("myRangeValue"), " AND myRangeField LIKE 'myRangeValue%'"),
+      Array(equalTo[String]("myRangeValue"), " AND myRangeField=?", List("myRangeValue")),
+      Array(greaterThan[String]("myRangeValue"), " AND myRangeField>?", List("myRangeValue")),
+      Array(greaterThanOrEqualTo[String]("myRangeValue"), " AND myRangeField>=?", List("myRangeValue")),
+      Array(lessThan[String]("myRangeValue"), " AND myRangeField<?", List("myRangeValue")),
+      Array(lessThanOrEqualTo[String]("myRangeValue"), " AND myRangeField<=?", List("myRangeValue")),
+      Array(like("myRangeValue"), " AND myRangeField LIKE ?", List("%myRangeValue%")),
+      Array(startsWith("myRangeValue"), " AND myRangeField LIKE ?", List("myRangeValue%")),
       // Cases: Two value operators
       Array(between[String]("myRangeValue1", "myRangeValue10"),
-        " AND myRangeField>='myRangeValue1' AND myRangeField<='myRangeValue10'")//,
+        " AND myRangeField>=? AND myRangeField<=?", List("myRangeValue1", "myRangeValue10")),
       // Cases: Multi value operators
-//      Array(in[String]("myRangeValue1", List("myRangeValue2"): _*),
-//        " AND myRangeField IN ('myRangeValue1','myRangeValue2')")
+      Array(in[String]("myRangeValue1", "myRangeValue2"),
+        " AND myRangeField IN ?", List(java.util.Arrays.asList("myRangeValue1", "myRangeValue2")))
     )
   }
 
   @Test(dataProvider = "rangeClausesProvider")
-  def testRangeClauses(rangeKey: MapRangeKey[String], expectedRangeClause: String) {
+  def testRangeClauses(
+    rangeKey: MapRangeKey[String],
+    expectedRangeClause: String,
+    expectedRangeValues: List[AnyRef]
+  ) {
     val key = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
       .setRange("myRangeField", rangeKey).build
     val hashClause = CassandraKeyClause(key).hashClause
@@ -59,6 +65,7 @@ class CassandraKeyClauseTest {
     rangeClauses.foreach(queryBuilder.and(_))
 
     assertThat(queryBuilder,
-      hasToString[Select.Where](s"SELECT * FROM myTable WHERE myHashField='myHashValue'$expectedRangeClause;"))
+      hasToString[Select.Where](s"SELECT * FROM myTable WHERE myHashField=?$expectedRangeClause;"))
+    assertThat(CassandraKeyClause(key).values, is(("myHashValue" :: expectedRangeValues).asInstanceOf[List[AnyRef]]))
   }
 }
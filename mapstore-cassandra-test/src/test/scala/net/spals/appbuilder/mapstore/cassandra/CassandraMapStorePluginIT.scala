@@ -1,19 +1,23 @@
 package net.spals.appbuilder.mapstore.cassandra
 
 import java.util.Optional
+import java.util.stream.Collectors
 
 import io.opentracing.mock.{MockSpan, MockTracer}
 import net.spals.appbuilder.mapstore.cassandra.CassandraSpanMatcher.cassandraSpan
+import net.spals.appbuilder.mapstore.core.MapStorePluginBatchContract.assertBatchItems
 import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.defaultOptions
 import net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.{equalTo => range_equalTo, greaterThan => range_greaterThan, greaterThanOrEqualTo => range_greaterThanOrEqualTo, lessThan => range_lessThan, lessThanOrEqualTo => range_lessThanOrEqualTo}
 import net.spals.appbuilder.mapstore.core.model.TwoValueMapRangeKey.between
 import net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey.all
-import net.spals.appbuilder.mapstore.core.model.{MapStoreKey, MapStoreTableKey}
+import net.spals.appbuilder.mapstore.core.model.{MapQueryOptions, MapStoreKey, MapStoreTableKey}
 import org.hamcrest.MatcherAssert.assertThat
 import org.hamcrest.Matchers._
+import org.slf4j.LoggerFactory
 import org.testng.annotations._
 
 import scala.collection.JavaConverters._
+import scala.compat.java8.OptionConverters._
 
 /**
   * Integration tests for [[CassandraMapStorePlugin]].
@@ -21,6 +25,7 @@ import scala.collection.JavaConverters._
   * @author tkral
   */
 class CassandraMapStorePluginIT {
+  private val LOGGER = LoggerFactory.getLogger(classOf[CassandraMapStorePluginIT])
 
   private lazy val clusterInitializer = {
     val initializerProvider = new CassandraClusterInitializerProvider()
@@ -37,7 +42,7 @@ class CassandraMapStorePluginIT {
   }
 
   private val applicationName = "CassandraMapStorePluginIT"
-  private lazy val mapStorePlugin = new CassandraMapStorePlugin(applicationName, cluster)
+  private lazy val mapStorePlugin = new CassandraMapStorePlugin(applicationName, cluster, cassandraTracer)
 
   private val hashTableName = "hashTable"
   private val hashTableKey = new MapStoreTableKey.Builder()
@@ -50,9 +55,20 @@ class CassandraMapStorePluginIT {
     .setRange("myRangeField", classOf[String])
     .build()
 
+  private val typedTableName = "typedTable"
+  private val typedTableKey = new MapStoreTableKey.Builder()
+    .setHash("myHashField", classOf[String])
+    .setRange("myRangeField", classOf[String])
+    .addAttribute("intKey", classOf[java.lang.Integer])
+    .addAttribute("doubleKey", classOf[java.lang.Double])
+    .addAttribute("stringKey", classOf[String])
+    .addAttribute("dateKey", classOf[java.util.Date])
+    .build()
+
   @BeforeClass def createTables() {
     mapStorePlugin.createTable(hashTableName, hashTableKey)
     mapStorePlugin.createTable(rangeTableName, rangeTableKey)
+    mapStorePlugin.createTable(typedTableName, typedTableKey)
   }
 
   @BeforeMethod def resetTracer() {
@@ -62,6 +78,7 @@ class CassandraMapStorePluginIT {
   @AfterClass(alwaysRun = true) def dropTables() {
     mapStorePlugin.dropTable(hashTableName)
     mapStorePlugin.dropTable(rangeTableName)
+    mapStorePlugin.dropTable(typedTableName)
     mapStorePlugin.close()
   }
 
@@ -141,11 +158,11 @@ class CassandraMapStorePluginIT {
     payload: Map[String, AnyRef],
     expectedResult: Map[String, AnyRef]
   ) {
-    assertThat(mapStorePlugin.putItem(tableName, storeKey, payload.asJava), is(expectedResult.asJava))
+    assertThat(mapStorePlugin.putItem(tableName, storeKey, payload.asJava),
+      is(writtenItem(storeKey, expectedResult).asJava))
     assertThat(mapStorePlugin.getItem(tableName, storeKey), is(Optional.of(expectedResult.asJava)))
     assertThat(cassandraTracer.finishedSpans(), contains[MockSpan](
       cassandraSpan(applicationName.toLowerCase, "INSERT"),
-      cassandraSpan(applicationName.toLowerCase, "SELECT"),
       cassandraSpan(applicationName.toLowerCase, "SELECT")
     ))
   }
@@ -168,7 +185,8 @@ class CassandraMapStorePluginIT {
     val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
       .setRange("myRangeField", range_equalTo[String]("myRangeValue1")).build
 
-    assertThat(mapStorePlugin.updateItem(rangeTableName, storeKey, payload.asJava), is(expectedResult.asJava))
+    assertThat(mapStorePlugin.updateItem(rangeTableName, storeKey, payload.asJava),
+      is(writtenItem(storeKey, expectedResult).asJava))
     assertThat(mapStorePlugin.getItem(rangeTableName, storeKey), is(Optional.of(expectedResult.asJava)))
     assertThat(cassandraTracer.finishedSpans(), contains[MockSpan](
       cassandraSpan(applicationName.toLowerCase, "UPDATE"),
@@ -234,6 +252,47 @@ class CassandraMapStorePluginIT {
     ))
   }
 
+  @Test(groups = Array("get"), dependsOnGroups = Array("put"/*, "update"*/))
+  def testGetItemsPage() {
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+      .setRange("myRangeField", all()).build
+    val options = new MapQueryOptions.Builder().setPageSize(2).build
+
+    val page1 = mapStorePlugin.getItemsPage(rangeTableName, storeKey, options)
+    assertThat(page1.getItems, contains[java.util.Map[String, AnyRef]](result(1).asJava, result(2).asJava))
+
+    val page2 = mapStorePlugin.getItemsPage(rangeTableName, storeKey,
+      new MapQueryOptions.Builder().mergeFrom(options).setContinuationToken(page1.getContinuationToken).build)
+    assertThat(page2.getItems, contains[java.util.Map[String, AnyRef]](result(3).asJava, result(4).asJava))
+  }
+
+  @Test(groups = Array("get"), dependsOnGroups = Array("put"/*, "update"*/))
+  def testGetItemConsistencyLevel() {
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+      .setRange("myRangeField", range_equalTo[String]("myRangeValue1")).build
+    val options = new MapQueryOptions.Builder().setConsistencyLevel("one").build
+
+    assertThat(mapStorePlugin.getItem(rangeTableName, storeKey, options), is(Optional.of(result(1).asJava)))
+  }
+
+  @Test(groups = Array("get"), dependsOnGroups = Array("put"/*, "update"*/),
+    expectedExceptions = Array(classOf[IllegalArgumentException]))
+  def testGetItemUnknownConsistencyLevel() {
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+      .setRange("myRangeField", range_equalTo[String]("myRangeValue1")).build
+    mapStorePlugin.getItem(rangeTableName, storeKey, new MapQueryOptions.Builder().setConsistencyLevel("mostly").build)
+  }
+
+  @Test(dataProvider = "getItemsProvider", groups = Array("get"), dependsOnGroups = Array("put"/*, "update"*/))
+  def testStreamItems(
+    storeKey: MapStoreKey,
+    expectedResults: List[Map[String, AnyRef]]
+  ) {
+    val options = new MapQueryOptions.Builder().setPageSize(1).build
+    assertThat(mapStorePlugin.streamItems(rangeTableName, storeKey, options).collect(Collectors.toList()),
+      contains[java.util.Map[String, AnyRef]](expectedResults.map(_.asJava): _*))
+  }
+
   @Test(groups = Array("delete"), dependsOnGroups = Array("get"))
   def testDeleteItem() {
     val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
@@ -248,7 +307,214 @@ class CassandraMapStorePluginIT {
     ))
   }
 
+  @Test(
+    groups = Array("batch"),
+    dependsOnGroups = Array("delete")
+  )
+  def testBatchItems() {
+    assertBatchItems(mapStorePlugin, hashTableName, "myHashField", 100)
+  }
+
+  @Test(
+    groups = Array("async"),
+    dependsOnGroups = Array("batch")
+  )
+  def testAsyncItems() {
+    val asyncPlugin = mapStorePlugin.asyncPlugin().get()
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myAsyncHashValue").build
+
+    val parentSpan = cassandraTracer.buildSpan("asyncParent").startActive()
+    val putItem = asyncPlugin.putItem(hashTableName, storeKey, Map[String, AnyRef]("key" -> "value").asJava)
+    // The parent span should be active again when the continuation runs
+    val continuationSpan = putItem.thenApply[AnyRef](new java.util.function.Function[java.util.Map[String, AnyRef], AnyRef] {
+      override def apply(item: java.util.Map[String, AnyRef]): AnyRef = cassandraTracer.activeSpan()
+    })
+    assertThat(continuationSpan.join(), notNullValue())
+    parentSpan.deactivate()
+
+    val expectedItem = Map[String, AnyRef]("myhashfield" -> "myAsyncHashValue", "key" -> "value")
+    assertThat(putItem.join(), is(writtenItem(storeKey, expectedItem).asJava))
+    assertThat(asyncPlugin.getItem(hashTableName, storeKey).join(), is(Optional.of(expectedItem.asJava)))
+
+    asyncPlugin.deleteItem(hashTableName, storeKey).join()
+    assertThat(asyncPlugin.getItem(hashTableName, storeKey).join(), is(Optional.empty[java.util.Map[String, AnyRef]]()))
+  }
+
+  @Test(groups = Array("typed"))
+  def testTypedPutItem() {
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+      .setRange("myRangeField", range_equalTo[String]("myRangeValue1")).build
+    // Numbers are converted to the declared column types
+    val payload = Map[String, AnyRef]("intKey" -> Long.box(1L), "doubleKey" -> Double.box(2.5d))
+
+    // NOTE: Cassandra attribute names are case insensitive
+    val expectedResult = Map[String, AnyRef]("myhashfield" -> "myHashValue", "myrangefield" -> "myRangeValue1",
+      "intkey" -> Long.box(1L), "doublekey" -> Double.box(2.5d))
+    assertThat(mapStorePlugin.putItem(typedTableName, storeKey, payload.asJava),
+      is(writtenItem(storeKey, expectedResult).asJava))
+    assertThat(mapStorePlugin.getItem(typedTableName, storeKey), is(Optional.of(
+      (expectedResult + ("intkey" -> Int.box(1))).asJava)))
+  }
+
+  @Test(groups = Array("typed"), expectedExceptions = Array(classOf[IllegalArgumentException]))
+  def testTypedPutItemUndeclared() {
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+      .setRange("myRangeField", range_equalTo[String]("myRangeValue2")).build
+    mapStorePlugin.putItem(typedTableName, storeKey, Map[String, AnyRef]("undeclaredKey" -> "value").asJava)
+  }
+
+  @Test(groups = Array("typed"))
+  def testTypedDateItem() {
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+      .setRange("myRangeField", range_equalTo[String]("myRangeValue3")).build
+    val dateValue = new java.util.Date(1500000000123L)
+
+    val expectedResult = Map[String, AnyRef]("myhashfield" -> "myHashValue", "myrangefield" -> "myRangeValue3",
+      "datekey" -> dateValue)
+    assertThat(mapStorePlugin.putItem(typedTableName, storeKey, Map[String, AnyRef]("dateKey" -> dateValue).asJava),
+      is(writtenItem(storeKey, expectedResult).asJava))
+    // The date keeps its time of day (down to the millisecond)
+    assertThat(mapStorePlugin.getItem(typedTableName, storeKey), is(Optional.of(expectedResult.asJava)))
+
+    mapStorePlugin.deleteItem(typedTableName, storeKey)
+  }
+
+  @Test(groups = Array("typed"))
+  def testTypedInsertStatement() {
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+      .setRange("myRangeField", range_equalTo[String]("myRangeValue4")).build
+    val insert = mapStorePlugin.insertStatement(typedTableName, storeKey,
+      Map[String, AnyRef]("intkey" -> Int.box(1)).asJava)
+
+    // Absent attributes aren't bound (as null), which would write tombstones
+    assertThat(insert.preparedStatement().getVariables.asList().asScala.map(_.getName).asJava,
+      contains("myhashfield", "myrangefield", "intkey"))
+  }
+
+  @Test(groups = Array("typed"))
+  def testTypedColumnsCached() {
+    assertThat(mapStorePlugin.typedColumns(typedTableName).get,
+      sameInstance(mapStorePlugin.typedColumns(typedTableName).get))
+  }
+
+  @Test(groups = Array("typed"), dependsOnMethods = Array("testTypedPutItem"))
+  def testTypedUpdateItem() {
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+      .setRange("myRangeField", range_equalTo[String]("myRangeValue1")).build
+    val payload = Map[String, AnyRef]("stringKey" -> "value", "doubleKey" -> "")
+
+    val expectedResult = Map[String, AnyRef]("myhashfield" -> "myHashValue", "myrangefield" -> "myRangeValue1",
+      "intkey" -> Int.box(1), "stringkey" -> "value")
+    assertThat(mapStorePlugin.updateItem(typedTableName, storeKey, payload.asJava),
+      is(writtenItem(storeKey, expectedResult).asJava))
+    assertThat(mapStorePlugin.getItem(typedTableName, storeKey), is(Optional.of(expectedResult.asJava)))
+  }
+
+  @Test(groups = Array("typed"), dependsOnMethods = Array("testTypedUpdateItem"))
+  def testTypedProjection() {
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+      .setRange("myRangeField", range_equalTo[String]("myRangeValue1")).build
+    val options = new MapQueryOptions.Builder().addProjection("intKey").build
+
+    assertThat(mapStorePlugin.getItem(typedTableName, storeKey, options),
+      is(Optional.of(Map[String, AnyRef]("intkey" -> Int.box(1)).asJava)))
+  }
+
+  @Test(groups = Array("typed"), dependsOnMethods = Array("testTypedProjection"))
+  def testTypedCreateTableAddsColumns() {
+    val migratedTableKey = new MapStoreTableKey.Builder().mergeFrom(typedTableKey)
+      .addAttribute("longKey", classOf[java.lang.Long])
+      .build()
+    assertThat(mapStorePlugin.createTable(typedTableName, migratedTableKey), is(true))
+
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+      .setRange("myRangeField", range_equalTo[String]("myRangeValue1")).build
+    mapStorePlugin.updateItem(typedTableName, storeKey, Map[String, AnyRef]("longKey" -> Int.box(3)).asJava)
+    assertThat(mapStorePlugin.getItem(typedTableName, storeKey).get().get("longkey"), is[AnyRef](Long.box(3L)))
+  }
+
+  @Test(groups = Array("typed"), dependsOnMethods = Array("testTypedCreateTableAddsColumns"))
+  def testTypedUpdateItemWithoutRead() {
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+      .setRange("myRangeField", range_equalTo[String]("myRangeValue1")).build
+    mapStorePlugin.updateReadsItem = false
+    try {
+      // Only the key and the updated attributes are returned
+      assertThat(mapStorePlugin.updateItem(typedTableName, storeKey, Map[String, AnyRef]("longKey" -> Int.box(4)).asJava),
+        is(Map[String, AnyRef]("myHashField" -> "myHashValue", "myRangeField" -> "myRangeValue1",
+          "longkey" -> Int.box(4)).asJava))
+      assertThat(cassandraTracer.finishedSpans(), contains[MockSpan](
+        cassandraSpan(applicationName.toLowerCase, "UPDATE")
+      ))
+    } finally {
+      mapStorePlugin.updateReadsItem = true
+    }
+    assertThat(mapStorePlugin.getItem(typedTableName, storeKey).get().get("longkey"), is[AnyRef](Long.box(4L)))
+  }
+
+  /**
+    * Compares the latency and size of map tables
+    * against typed tables holding the same items.
+    */
+  @Test(groups = Array("benchmark"), dependsOnGroups = Array("async", "typed"))
+  def testTableModeBenchmark() {
+    val itemCount = 500
+    val attributeCount = 10
+    val benchmarkTables = Map(
+      "mapBenchmarkTable" -> hashTableKey,
+      "typedBenchmarkTable" -> (1 to attributeCount).foldLeft(new MapStoreTableKey.Builder().mergeFrom(hashTableKey))(
+        (tableKeyBuilder, i) => tableKeyBuilder.addAttribute(s"attribute$i", classOf[java.lang.Long])).build())
+
+    benchmarkTables.foreach(benchmarkTable => {
+      val (tableName, tableKey) = benchmarkTable
+      mapStorePlugin.createTable(tableName, tableKey)
+      try {
+        val keys = (1 to itemCount).map(i => new MapStoreKey.Builder().setHash("myHashField", s"myHashValue$i").build)
+        val payloads = keys.map(key => (1 to attributeCount)
+          .map(i => s"attribute$i" -> Long.box(key.getHashValue.hashCode.toLong * i).asInstanceOf[AnyRef]).toMap)
+
+        val putStart = System.nanoTime()
+        keys.zip(payloads).foreach(item => mapStorePlugin.putItem(tableName, item._1, item._2.asJava))
+        logLatency(s"$tableName putItem", itemCount, putStart)
+
+        val getStart = System.nanoTime()
+        keys.foreach(key => assertThat(mapStorePlugin.getItem(tableName, key).isPresent, is(true)))
+        logLatency(s"$tableName getItem", itemCount, getStart)
+
+        val updateStart = System.nanoTime()
+        keys.foreach(key => mapStorePlugin.updateItem(tableName, key,
+          Map[String, AnyRef]("attribute1" -> Long.box(0L)).asJava))
+        logLatency(s"$tableName updateItem", itemCount, updateStart)
+
+        // NOTE: This is the serialized size of every stored cell value (map
+        // keys included), which tracks the on-disk size of the data. Use
+        // nodetool tablestats for the full on-disk size of each table.
+        val rows = mapStorePlugin.session.execute(s"SELECT * FROM $tableName").all().asScala
+        val rowBytes = rows.map(row => row.getColumnDefinitions.asList().asScala.indices
+          .flatMap(i => Option(row.getBytesUnsafe(i))).map(_.remaining().toLong).sum).sum
+        LOGGER.info(s"$tableName size: $rowBytes bytes (${rowBytes / itemCount} bytes/item)")
+      } finally {
+        mapStorePlugin.dropTable(tableName)
+      }
+    })
+  }
+
+  /**
+    * The given (read) item as it's returned from a write, which
+    * keeps the key names of the given key.
+    */
+  private def writtenItem(storeKey: MapStoreKey, item: Map[String, AnyRef]): Map[String, AnyRef] = {
+    val keyFields = storeKey.getHashField :: storeKey.getRangeField.asScala.toList
+    keyFields.foldLeft(item)((written, keyField) =>
+      written - keyField.toLowerCase + (keyField -> item(keyField.toLowerCase)))
+  }
+
   private def result(i: Int): Map[String, AnyRef] = {
     Map("myhashfield" -> "myHashValue", "myrangefield" -> s"myRangeValue$i", "key" -> "value")
   }
+
+  private def logLatency(operation: String, count: Int, startNanos: Long): Unit = {
+    val elapsedMicros = (System.nanoTime() - startNanos) / 1000L
+    LOGGER.info(s"$operation: $count items in ${elapsedMicros / 1000L}ms (${elapsedMicros / count}us/item)")
+  }
 }
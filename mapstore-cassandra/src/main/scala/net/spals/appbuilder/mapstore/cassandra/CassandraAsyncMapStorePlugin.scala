@@ -0,0 +1,246 @@
+package net.spals.appbuilder.mapstore.cassandra
+
+import java.util.Optional
+import java.util.concurrent.CompletableFuture
+
+import com.datastax.driver.core.{ResultSet, Row, Statement}
+import com.google.common.util.concurrent.{FutureCallback, Futures, ListenableFuture, MoreExecutors}
+import io.opentracing.Tracer
+import net.spals.appbuilder.mapstore.core.AsyncMapStorePlugin
+import net.spals.appbuilder.mapstore.core.MapStorePlugin.stripKey
+import net.spals.appbuilder.mapstore.core.model.{MapItemPage, MapQueryOptions, MapStoreKey}
+
+import scala.collection.JavaConverters._
+import scala.compat.java8.FunctionConverters._
+import scala.compat.java8.OptionConverters._
+
+/**
+  * Implementation of [[AsyncMapStorePlugin]] which uses the
+  * non-blocking execution of the Apache Cassandra driver.
+  *
+  * The span which is active when a call is made is re-activated
+  * around the completion of the returned future, so that any
+  * dependent stages are traced as part of the original request.
+  *
+  * @author tkral
+  */
+private[cassandra] class CassandraAsyncMapStorePlugin(
+  storePlugin: CassandraMapStorePlugin,
+  tracer: Tracer
+) extends AsyncMapStorePlugin {
+
+  override def batchDeleteItems(
+    tableName: String,
+    keys: java.util.Collection[MapStoreKey]
+  ): CompletableFuture[Void] = {
+    val deletes = keys.asScala.toList.map(key => (key.getHashValue, storePlugin.deleteStatement(tableName, key)))
+    val batchFutures = storePlugin.unloggedBatches(deletes).map(batch => execute(batch))
+    CompletableFuture.allOf(batchFutures: _*)
+  }
+
+  override def batchGetItems(
+    tableName: String,
+    keys: java.util.Collection[MapStoreKey]
+  ): CompletableFuture[java.util.List[java.util.Map[String, AnyRef]]] = {
+    val itemFutures = keys.asScala.toList
+      .map(key => execute(storePlugin.selectStatement(tableName, key)).thenApply[Option[Row]](
+        asJavaFunction((resultSet: ResultSet) => Option(resultSet.one()))))
+    sequence(itemFutures).thenApply[java.util.List[java.util.Map[String, AnyRef]]](
+      asJavaFunction((rows: List[Option[Row]]) => rows.flatten.map(storePlugin.rowMapper()).asJava))
+  }
+
+  override def batchPutItems(
+    tableName: String,
+    items: java.util.Map[MapStoreKey, java.util.Map[String, AnyRef]]
+  ): CompletableFuture[java.util.List[java.util.Map[String, AnyRef]]] = {
+    val payloads = items.asScala.toList.map(item => {
+      stripKey(item._1, item._2)
+      (item._1, storePlugin.normalizePayload(tableName, item._2))
+    })
+    val inserts = payloads.map(item => (item._1.getHashValue, storePlugin.insertStatement(tableName, item._1, item._2)))
+    val batchFutures = storePlugin.unloggedBatches(inserts).map(batch => execute(batch))
+
+    CompletableFuture.allOf(batchFutures: _*).thenApply[java.util.List[java.util.Map[String, AnyRef]]](
+      asJavaFunction((_: Void) => payloads.map(item => storePlugin.createItem(item._1, item._2)).asJava))
+  }
+
+  override def deleteItem(
+    tableName: String,
+    key: MapStoreKey
+  ): CompletableFuture[Void] = {
+    execute(storePlugin.deleteStatement(tableName, key))
+      .thenApply[Void](asJavaFunction((_: ResultSet) => null))
+  }
+
+  override def getAllItems(tableName: String): CompletableFuture[java.util.List[java.util.Map[String, AnyRef]]] = {
+    execute(storePlugin.allItemsStatement(tableName, MapQueryOptions.defaultOptions()))
+      .thenCompose[java.util.List[java.util.Map[String, AnyRef]]](
+        asJavaFunction((resultSet: ResultSet) => readAll(tableName, resultSet, MapQueryOptions.defaultOptions())))
+  }
+
+  override def getAllItemsPage(
+    tableName: String,
+    options: MapQueryOptions
+  ): CompletableFuture[MapItemPage] = {
+    val statement = storePlugin.pagedStatement(storePlugin.allItemsStatement(tableName, options), options)
+    toCompletableFuture(storePlugin.session.executeAsync(statement))
+      .thenApply[MapItemPage](asJavaFunction((resultSet: ResultSet) =>
+        storePlugin.createItemPage(tableName, resultSet, options)))
+  }
+
+  override def getItem(
+    tableName: String,
+    key: MapStoreKey
+  ): CompletableFuture[Optional[java.util.Map[String, AnyRef]]] = {
+    execute(storePlugin.selectStatement(tableName, key))
+      .thenApply[Optional[java.util.Map[String, AnyRef]]](
+        asJavaFunction((resultSet: ResultSet) => Option(resultSet.one()).map(storePlugin.rowMapper()).asJava))
+  }
+
+  override def getItem(
+    tableName: String,
+    key: MapStoreKey,
+    options: MapQueryOptions
+  ): CompletableFuture[Optional[java.util.Map[String, AnyRef]]] = {
+    execute(storePlugin.selectStatement(tableName, key, options))
+      .thenApply[Optional[java.util.Map[String, AnyRef]]](asJavaFunction((resultSet: ResultSet) =>
+        Option(resultSet.one()).flatMap(storePlugin.rowMapper(tableName, options)).asJava))
+  }
+
+  override def getItems(
+    tableName: String,
+    key: MapStoreKey,
+    options: MapQueryOptions
+  ): CompletableFuture[java.util.List[java.util.Map[String, AnyRef]]] = {
+    execute(storePlugin.itemsStatement(tableName, key, options))
+      .thenCompose[java.util.List[java.util.Map[String, AnyRef]]](
+        asJavaFunction((resultSet: ResultSet) => readAll(tableName, resultSet, options)))
+  }
+
+  override def getItemsPage(
+    tableName: String,
+    key: MapStoreKey,
+    options: MapQueryOptions
+  ): CompletableFuture[MapItemPage] = {
+    val statement = storePlugin.pagedStatement(storePlugin.itemsStatement(tableName, key, options), options)
+    toCompletableFuture(storePlugin.session.executeAsync(statement))
+      .thenApply[MapItemPage](asJavaFunction((resultSet: ResultSet) =>
+        storePlugin.createItemPage(tableName, resultSet, options)))
+  }
+
+  override def putItem(
+    tableName: String,
+    key: MapStoreKey,
+    payload: java.util.Map[String, AnyRef]
+  ): CompletableFuture[java.util.Map[String, AnyRef]] = {
+    stripKey(key, payload)
+    val tablePayload = storePlugin.normalizePayload(tableName, payload)
+
+    execute(storePlugin.insertStatement(tableName, key, tablePayload))
+      .thenApply[java.util.Map[String, AnyRef]](
+        asJavaFunction((_: ResultSet) => storePlugin.createItem(key, tablePayload)))
+  }
+
+  override def supportsUpsert(): Boolean = true
+
+  override def updateItem(
+    tableName: String,
+    key: MapStoreKey,
+    payload: java.util.Map[String, AnyRef]
+  ): CompletableFuture[java.util.Map[String, AnyRef]] = {
+    stripKey(key, payload)
+    val tablePayload = storePlugin.normalizePayload(tableName, payload)
+    tablePayload.isEmpty match {
+      // There's nothing to update, but a missing item still needs to be created
+      case true => getItem(tableName, key).thenCompose[java.util.Map[String, AnyRef]](
+        asJavaFunction((item: Optional[java.util.Map[String, AnyRef]]) => item.asScala
+          .map(currentItem => CompletableFuture.completedFuture(currentItem))
+          .getOrElse(putItem(tableName, key, tablePayload))))
+      case false if storePlugin.updateReadsItem => {
+        val update = storePlugin.updateStatement(tableName, key, tablePayload)
+        // Read the current row alongside the write. See CassandraMapStorePlugin.mergeItem.
+        val currentItem = getItem(tableName, key)
+
+        execute(update).thenCombine[Optional[java.util.Map[String, AnyRef]], java.util.Map[String, AnyRef]](
+          currentItem, asJavaBiFunction((_: ResultSet, item: Optional[java.util.Map[String, AnyRef]]) =>
+            storePlugin.mergeItem(key, item.asScala, tablePayload)))
+      }
+      case false => execute(storePlugin.updateStatement(tableName, key, tablePayload))
+        .thenApply[java.util.Map[String, AnyRef]](asJavaFunction((_: ResultSet) =>
+          storePlugin.mergeItem(key, None, tablePayload)))
+    }
+  }
+
+  private def execute(statement: Statement): CompletableFuture[ResultSet] =
+    toCompletableFuture(storePlugin.session.executeAsync(statement))
+
+  /**
+    * Reads every row of the given result set, fetching
+    * subsequent pages without blocking.
+    */
+  private def readAll(
+    tableName: String,
+    resultSet: ResultSet,
+    options: MapQueryOptions
+  ): CompletableFuture[java.util.List[java.util.Map[String, AnyRef]]] = {
+    // Rows accumulate across pages, so each page costs only its own rows
+    val rows = new java.util.ArrayList[java.util.Map[String, AnyRef]]()
+    val projectedRowMapper = storePlugin.rowMapper(tableName, options)
+
+    // Filtered reads are limited here rather than by the statement (see CassandraMapStorePlugin.statementLimit)
+    val limit = (options.getFilters.isEmpty, options.getLimit.asScala) match {
+      case (false, Some(filterLimit)) => filterLimit.intValue
+      case _ => Int.MaxValue
+    }
+
+    def readAvailable(availableResultSet: ResultSet): CompletableFuture[java.util.List[java.util.Map[String, AnyRef]]] = {
+      while (rows.size < limit && availableResultSet.getAvailableWithoutFetching > 0) {
+        projectedRowMapper.apply(availableResultSet.one()).foreach(row => rows.add(row))
+      }
+      if (availableResultSet.isFullyFetched || rows.size >= limit) {
+        CompletableFuture.completedFuture[java.util.List[java.util.Map[String, AnyRef]]](rows)
+      } else {
+        toCompletableFuture(availableResultSet.fetchMoreResults())
+          .thenCompose[java.util.List[java.util.Map[String, AnyRef]]](asJavaFunction(readAvailable _))
+      }
+    }
+
+    readAvailable(resultSet)
+  }
+
+  private def sequence[T](futures: List[CompletableFuture[T]]): CompletableFuture[List[T]] = {
+    CompletableFuture.allOf(futures: _*)
+      .thenApply[List[T]](asJavaFunction((_: Void) => futures.map(_.join())))
+  }
+
+  /**
+    * Adapts a driver [[ListenableFuture]] to a [[CompletableFuture]],
+    * carrying the caller's active span over to the completion.
+    */
+  private[cassandra] def toCompletableFuture[T](listenableFuture: ListenableFuture[T]): CompletableFuture[T] = {
+    val completableFuture = new CompletableFuture[T]()
+    val continuation = Option(tracer.activeSpan()).map(_.capture())
+
+    Futures.addCallback(listenableFuture, new FutureCallback[T] {
+      override def onSuccess(result: T): Unit = {
+        val activeSpan = continuation.map(_.activate())
+        try {
+          completableFuture.complete(result)
+        } finally {
+          activeSpan.foreach(_.deactivate())
+        }
+      }
+
+      override def onFailure(t: Throwable): Unit = {
+        val activeSpan = continuation.map(_.activate())
+        try {
+          completableFuture.completeExceptionally(t)
+        } finally {
+          activeSpan.foreach(_.deactivate())
+        }
+      }
+    }, MoreExecutors.directExecutor())
+
+    completableFuture
+  }
+}
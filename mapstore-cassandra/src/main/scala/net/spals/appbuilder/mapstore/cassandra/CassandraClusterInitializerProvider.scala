@@ -4,18 +4,38 @@ import javax.validation.constraints.{Max, Min, NotNull}
 
 import com.datastax.driver.core.Cluster.Initializer
 import com.datastax.driver.core.Host.StateListener
-import com.datastax.driver.core.{Cluster, Host, ProtocolOptions}
+import com.datastax.driver.core._
+import com.datastax.driver.core.policies.{ConstantSpeculativeExecutionPolicy, DCAwareRoundRobinPolicy,
+  LoadBalancingPolicy, TokenAwarePolicy}
 import com.google.inject.Provider
 import com.netflix.governator.annotations
+import com.typesafe.config.ConfigException
 import net.spals.appbuilder.annotations.service.{AutoBindProvider, AutoBindSingleton}
 import org.slf4j.LoggerFactory
 
 import scala.collection.JavaConverters._
+import scala.util.Try
 
 /**
   * Cassandra cluster initializer which reads
   * from the appbuilder service configuration.
   *
+  * Driver tuning:
+  *  - core/maxConnectionsPerHost, maxRequestsPerConnection:
+  *    the connection pool to each host in the local data center.
+  *  - localDataCenter, usedHostsPerRemoteDataCenter: requests go
+  *    to hosts in the local data center, falling back to the given
+  *    number of hosts in each remote data center. The local data
+  *    center defaults to that of the first contact point.
+  *  - tokenAware: send each request straight to a replica of its
+  *    partition, rather than through a coordinator.
+  *  - consistencyLevel, fetchSize: defaults for every request.
+  *  - speculativeExecutionDelayMs / maxSpeculativeExecutions: when
+  *    a host takes longer than the delay to respond, send the same
+  *    request to the next host as well and use the first response.
+  *    This trades extra load for lower tail latency. A delay of 0
+  *    disables speculative execution.
+  *
   * @author tkral
   */
 @AutoBindProvider
@@ -40,11 +60,95 @@ private[cassandra] class CassandraClusterInitializerProvider
   @volatile
   private[cassandra] var port: Int = ProtocolOptions.DEFAULT_PORT
 
+  @Min(1L)
+  @annotations.Configuration("mapStore.cassandra.coreConnectionsPerHost")
+  @volatile
+  private[cassandra] var coreConnectionsPerHost: Int = 1
+
+  @Min(1L)
+  @annotations.Configuration("mapStore.cassandra.maxConnectionsPerHost")
+  @volatile
+  private[cassandra] var maxConnectionsPerHost: Int = 1
+
+  @Min(1L)
+  @Max(32768L)
+  @annotations.Configuration("mapStore.cassandra.maxRequestsPerConnection")
+  @volatile
+  private[cassandra] var maxRequestsPerConnection: Int = 1024
+
+  @annotations.Configuration("mapStore.cassandra.localDataCenter")
+  @volatile
+  private[cassandra] var localDataCenter: String = null
+
+  @Min(0L)
+  @annotations.Configuration("mapStore.cassandra.usedHostsPerRemoteDataCenter")
+  @volatile
+  private[cassandra] var usedHostsPerRemoteDataCenter: Int = 0
+
+  @annotations.Configuration("mapStore.cassandra.tokenAware")
+  @volatile
+  private[cassandra] var tokenAware: Boolean = true
+
+  @annotations.Configuration("mapStore.cassandra.consistencyLevel")
+  @volatile
+  private[cassandra] var consistencyLevel: String = QueryOptions.DEFAULT_CONSISTENCY_LEVEL.name
+
+  @Min(1L)
+  @annotations.Configuration("mapStore.cassandra.fetchSize")
+  @volatile
+  private[cassandra] var fetchSize: Int = QueryOptions.DEFAULT_FETCH_SIZE
+
+  @Min(0L)
+  @annotations.Configuration("mapStore.cassandra.speculativeExecutionDelayMs")
+  @volatile
+  private[cassandra] var speculativeExecutionDelayMs: Long = 0L
+
+  @Min(1L)
+  @annotations.Configuration("mapStore.cassandra.maxSpeculativeExecutions")
+  @volatile
+  private[cassandra] var maxSpeculativeExecutions: Int = 2
+
   override def get(): Initializer = {
-    Cluster.builder()
+    if (coreConnectionsPerHost > maxConnectionsPerHost) {
+      throw new ConfigException.BadValue("mapStore.cassandra.coreConnectionsPerHost",
+        s"Core connections ($coreConnectionsPerHost) cannot exceed max connections ($maxConnectionsPerHost)")
+    }
+    val poolingOptions = new PoolingOptions()
+      .setConnectionsPerHost(HostDistance.LOCAL, coreConnectionsPerHost, maxConnectionsPerHost)
+      .setMaxRequestsPerConnection(HostDistance.LOCAL, maxRequestsPerConnection)
+
+    val defaultConsistencyLevel = Try(ConsistencyLevel.valueOf(consistencyLevel.toUpperCase))
+      .getOrElse(throw new ConfigException.BadValue("mapStore.cassandra.consistencyLevel",
+        s"Unknown Cassandra consistency level: $consistencyLevel"))
+    val queryOptions = new QueryOptions()
+      .setConsistencyLevel(defaultConsistencyLevel)
+      .setFetchSize(fetchSize)
+
+    val clusterBuilder = Cluster.builder()
       .withClusterName(clusterName)
       .addContactPoints(hosts.split(","): _*).withPort(port)
+      .withPoolingOptions(poolingOptions)
+      .withLoadBalancingPolicy(loadBalancingPolicy)
+      .withQueryOptions(queryOptions)
       .withInitialListeners(List(this.asInstanceOf[StateListener]).asJavaCollection)
+
+    speculativeExecutionDelayMs match {
+      case 0L => clusterBuilder
+      case delayMs => clusterBuilder.withSpeculativeExecutionPolicy(
+        new ConstantSpeculativeExecutionPolicy(delayMs, maxSpeculativeExecutions))
+    }
+  }
+
+  private def loadBalancingPolicy: LoadBalancingPolicy = {
+    val dataCenterPolicyBuilder = DCAwareRoundRobinPolicy.builder()
+      .withUsedHostsPerRemoteDc(usedHostsPerRemoteDataCenter)
+    Option(localDataCenter).foreach(dataCenterPolicyBuilder.withLocalDc)
+    val dataCenterPolicy = dataCenterPolicyBuilder.build()
+
+    tokenAware match {
+      case true => new TokenAwarePolicy(dataCenterPolicy)
+      case false => dataCenterPolicy
+    }
   }
 
   override def onAdd(host: Host): Unit =
@@ -12,29 +12,52 @@ import scala.compat.java8.OptionConverters._
   * Translation object between [[MapStoreKey]]s and
   * Cassandra query [[Clause]]s
   *
+  * All clauses use bind markers in place of values so
+  * that the statements which hold them can be prepared
+  * once and reused for any key with the same shape.
+  * The values to bind are given by [[values]].
+  *
   * @author tkral
   */
 private[cassandra] case class CassandraKeyClause(key: MapStoreKey) {
 
-  def hashClause: Clause = QueryBuilder.eq(key.getHashField, key.getHashValue)
+  def hashClause: Clause = QueryBuilder.eq(key.getHashField, QueryBuilder.bindMarker())
+
+  def rangeClauses: List[Clause] = rangeConditions.map(_._1)
+
+  /**
+    * The values to bind to the hash clause
+    * and range clauses, in order.
+    */
+  def values: List[AnyRef] = key.getHashValue :: rangeConditions.map(_._2)
 
-  def rangeClauses: List[Clause] = {
+  private lazy val rangeConditions: List[(Clause, AnyRef)] = {
     (key.getRangeField.asScala, key.getRangeKey.getOperator, key.getRangeKey.getValue) match {
-      case (None, _, _) => List.empty[Clause]
-      case (_, Standard.ALL, _) => List.empty[Clause]
-      case (_, Standard.NONE, _) => List.empty[Clause]
+      case (None, _, _) => List.empty[(Clause, AnyRef)]
+      case (_, Standard.ALL, _) => List.empty[(Clause, AnyRef)]
+      case (_, Standard.NONE, _) => List.empty[(Clause, AnyRef)]
       case (Some(rField), Standard.BETWEEN, rValue) =>
-        List(QueryBuilder.gte(rField, rValue.asInstanceOf[TwoValueHolder[_]].getValue1),
-          QueryBuilder.lte(rField, rValue.asInstanceOf[TwoValueHolder[_]].getValue2))
-      case (Some(rField), Standard.EQUAL_TO, rValue) => List(QueryBuilder.eq(rField, rValue))
-      case (Some(rField), Standard.GREATER_THAN, rValue) => List(QueryBuilder.gt(rField, rValue))
-      case (Some(rField), Standard.GREATER_THAN_OR_EQUAL_TO, rValue) => List(QueryBuilder.gte(rField, rValue))
-      case (Some(rField), Standard.LESS_THAN, rValue) => List(QueryBuilder.lt(rField, rValue))
-      case (Some(rField), Standard.LESS_THAN_OR_EQUAL_TO, rValue) => List(QueryBuilder.lte(rField, rValue))
+        List((QueryBuilder.gte(rField, QueryBuilder.bindMarker()),
+          rValue.asInstanceOf[TwoValueHolder[_]].getValue1.asInstanceOf[AnyRef]),
+          (QueryBuilder.lte(rField, QueryBuilder.bindMarker()),
+            rValue.asInstanceOf[TwoValueHolder[_]].getValue2.asInstanceOf[AnyRef]))
+      case (Some(rField), Standard.EQUAL_TO, rValue) =>
+        List((QueryBuilder.eq(rField, QueryBuilder.bindMarker()), rValue.asInstanceOf[AnyRef]))
+      case (Some(rField), Standard.GREATER_THAN, rValue) =>
+        List((QueryBuilder.gt(rField, QueryBuilder.bindMarker()), rValue.asInstanceOf[AnyRef]))
+      case (Some(rField), Standard.GREATER_THAN_OR_EQUAL_TO, rValue) =>
+        List((QueryBuilder.gte(rField, QueryBuilder.bindMarker()), rValue.asInstanceOf[AnyRef]))
+      case (Some(rField), Standard.LESS_THAN, rValue) =>
+        List((QueryBuilder.lt(rField, QueryBuilder.bindMarker()), rValue.asInstanceOf[AnyRef]))
+      case (Some(rField), Standard.LESS_THAN_OR_EQUAL_TO, rValue) =>
+        List((QueryBuilder.lte(rField, QueryBuilder.bindMarker()), rValue.asInstanceOf[AnyRef]))
+      // A single bind marker takes the whole list of IN values
       case (Some(rField), Extended.IN, rValue) =>
-        List(QueryBuilder.in(rField, rValue.asInstanceOf[ListValueHolder[_]].getValues))
-      case (Some(rField), Extended.LIKE, rValue) => List(QueryBuilder.like(rField, s"%$rValue%"))
-      case (Some(rField), Extended.STARTS_WITH, rValue) => List(QueryBuilder.like(rField, s"$rValue%"))
+        List((QueryBuilder.in(rField, QueryBuilder.bindMarker()), rValue.asInstanceOf[ListValueHolder[_]].getValues))
+      case (Some(rField), Extended.LIKE, rValue) =>
+        List((QueryBuilder.like(rField, QueryBuilder.bindMarker()), s"%$rValue%"))
+      case (Some(rField), Extended.STARTS_WITH, rValue) =>
+        List((QueryBuilder.like(rField, QueryBuilder.bindMarker()), s"$rValue%"))
       case (_, operator, _) =>
         throw new IllegalArgumentException(s"Cassandra cannot support the operator $operator")
     }
@@ -1,39 +1,70 @@
 package net.spals.appbuilder.mapstore.cassandra
 
 import java.io.Closeable
-import java.util.{Date, Optional, UUID}
+import java.util.concurrent.{ConcurrentHashMap, Semaphore}
+import java.util.stream.{Stream, StreamSupport}
+import java.util.{Date, Optional, Spliterator, Spliterators, UUID}
 import javax.annotation.PreDestroy
 import javax.validation.constraints.Min
 
 import com.datastax.driver.core._
-import com.datastax.driver.core.querybuilder.QueryBuilder
+import com.datastax.driver.core.querybuilder.{QueryBuilder, Select}
 import com.datastax.driver.core.schemabuilder.SchemaBuilder
+import com.google.common.util.concurrent.MoreExecutors
 import com.google.inject.Inject
 import com.netflix.governator.annotations
+import com.typesafe.config.ConfigException
+import io.opentracing.Tracer
 import net.spals.appbuilder.annotations.config.ApplicationName
 import net.spals.appbuilder.annotations.service.AutoBindInMap
-import net.spals.appbuilder.mapstore.core.MapStorePlugin
-import net.spals.appbuilder.mapstore.core.MapStorePlugin.stripKey
-import net.spals.appbuilder.mapstore.core.model.{MapQueryOptions, MapStoreKey, MapStoreTableKey}
+import net.spals.appbuilder.mapstore.core.{AsyncMapStorePlugin, MapStorePlugin}
+import net.spals.appbuilder.mapstore.core.MapStorePlugin.{aggregateOptions, matchesFilters, projectItem, stripKey}
+import net.spals.appbuilder.mapstore.core.model.{MapItemPage, MapQueryOptions, MapStoreKey, MapStoreTableKey}
 
 import scala.collection.JavaConverters._
+import scala.compat.java8.FunctionConverters._
 import scala.compat.java8.OptionConverters._
+import scala.util.Try
 
 /**
   * Implementation of [[MapStorePlugin]] which uses Apache Cassandra.
   *
-  * NOTE: This uses a schema-less map to hold all row state such
-  * that Cassandra is used as a true key-value store. Some consider
-  * this an anti-pattern of Cassandra and CQL.
+  * Tables come in two modes:
+  *  - map tables (the default) hold all non-key state in a
+  *    schema-less payload map such that Cassandra is used as a
+  *    true key-value store. Some consider this an anti-pattern
+  *    of Cassandra and CQL: all values are stored as strings and
+  *    every read pulls the whole map.
+  *  - typed tables are created when the table key declares
+  *    attribute types. Each attribute gets its own column with a
+  *    native CQL type, so values keep their types and reads can
+  *    select single columns. Attributes which were not declared
+  *    are rejected. Like all unquoted CQL identifiers, attribute
+  *    names are case insensitive and are returned in lowercase.
+  *    Puts only write the attributes in their payload, as writing
+  *    an absent attribute as null leaves a tombstone. So a put
+  *    keeps any attribute which an earlier write set and which
+  *    is absent from its payload. Delete an item to clear it.
   *
-  * TODO: Strongly-typed CassandraStore.
+  * Items returned from writes keep the caller's key names, but
+  * items which are read hold Cassandra's (lowercase) column names.
+  * Updates read the current row alongside their write, so that
+  * they return the full item. With
+  * mapStore.cassandra.updateReadsItem = false, updates skip that
+  * read and return only the key and the updated attributes.
+  *
+  * Reads and writes use the cluster's default consistency level
+  * unless a read or write consistency level is configured here.
+  * Reads may also select a consistency level per query (see
+  * [[MapQueryOptions.getConsistencyLevel]]).
   *
   * @author tkral
   */
 @AutoBindInMap(baseClass = classOf[MapStorePlugin], key = "cassandra")
 private[cassandra] class CassandraMapStorePlugin @Inject() (
   @ApplicationName applicationName: String,
-  cluster: Cluster
+  cluster: Cluster,
+  tracer: Tracer
 ) extends MapStorePlugin {
 
   @annotations.Configuration("mapStore.cassandra.keyspace")
@@ -47,9 +78,38 @@ private[cassandra] class CassandraMapStorePlugin @Inject() (
 
   private[cassandra] val replicationStrategy: String = "SimpleStrategy"
 
+  @annotations.Configuration("mapStore.cassandra.readConsistencyLevel")
+  @volatile
+  private[cassandra] var readConsistencyLevel: String = null
+
+  @annotations.Configuration("mapStore.cassandra.writeConsistencyLevel")
+  @volatile
+  private[cassandra] var writeConsistencyLevel: String = null
+
+  @annotations.Configuration("mapStore.cassandra.updateReadsItem")
+  @volatile
+  private[cassandra] var updateReadsItem: Boolean = true
+
   private lazy val codecRegistry = new CodecRegistry()
+  // Statements are prepared once per shape (see CassandraStatementKey)
+  // and then only their values are sent with each request
+  private val preparedStatements = new ConcurrentHashMap[CassandraStatementKey, PreparedStatement]()
+  // The columns of each existing table (see typedColumns)
+  private val tableColumns = new ConcurrentHashMap[String, Map[String, DataType]]()
   private lazy val keyspace = Option(configuredKeyspace).getOrElse(applicationName)
-  private lazy val session = {
+  private lazy val readConsistency = Option(readConsistencyLevel).map(levelName => loadConsistencyLevel(levelName,
+    new ConfigException.BadValue("mapStore.cassandra.readConsistencyLevel", s"Unknown consistency level: $levelName")))
+  private lazy val writeConsistency = Option(writeConsistencyLevel).map(levelName => loadConsistencyLevel(levelName,
+    new ConfigException.BadValue("mapStore.cassandra.writeConsistencyLevel", s"Unknown consistency level: $levelName")))
+  private lazy val asyncStorePlugin = new CassandraAsyncMapStorePlugin(this, tracer)
+  // The pooling options are only filled in once the cluster
+  // is initialized (i.e. once the session is connected)
+  private lazy val batchPermits = {
+    val poolingOptions = session.getCluster.getConfiguration.getPoolingOptions
+    new Semaphore(math.max(poolingOptions.getMaxRequestsPerConnection(HostDistance.LOCAL) *
+      poolingOptions.getMaxConnectionsPerHost(HostDistance.LOCAL), 1))
+  }
+  private[cassandra] lazy val session = {
     val replicationOptions = Map[String, AnyRef]("replication_factor" -> Int.box(replicationFactor),
       "class" -> replicationStrategy)
     val createKeyspace = SchemaBuilder.createKeyspace(keyspace).ifNotExists().`with`().durableWrites(true)
@@ -67,75 +127,171 @@ private[cassandra] class CassandraMapStorePlugin @Inject() (
     cluster.close()
   }
 
+  override def asyncPlugin(): Optional[AsyncMapStorePlugin] = Optional.of(asyncStorePlugin)
+
   override def createTable(
     tableName: String,
     tableKey: MapStoreTableKey
   ): Boolean = {
+    val attributeTypes = tableKey.getAttributeTypes.asScala.toMap
+    if (attributeTypes.keys.exists(_.equalsIgnoreCase("payload"))) {
+      throw new IllegalArgumentException(s"Cassandra table $tableName cannot declare a payload attribute")
+    }
+
     val schemaBuilder = SchemaBuilder.createTable(tableName).ifNotExists()
       .addPartitionKey(tableKey.getHashField, loadDataType(tableKey.getHashFieldType))
     tableKey.getRangeField.asScala
       .foreach(schemaBuilder.addClusteringColumn(_, loadDataType(tableKey.getRangeFieldType.get())))
-    schemaBuilder.addColumn("payload", DataType.map(DataType.varchar(), DataType.varchar()))
+    attributeTypes.isEmpty match {
+      case true => schemaBuilder.addColumn("payload", DataType.map(DataType.varchar(), DataType.varchar()))
+      case false =>
+        attributeTypes.foreach(attribute => schemaBuilder.addColumn(attribute._1, loadDataType(attribute._2)))
+    }
 
+    // The table's columns may change, so they're read again from the cluster
+    tableColumns.remove(tableName)
     try {
-      session.execute(schemaBuilder.toString).wasApplied()
+      session.execute(schemaBuilder.toString).wasApplied() && addColumns(tableName, attributeTypes)
     } catch {
       case _: RuntimeException => false
+    } finally {
+      tableColumns.remove(tableName)
+    }
+  }
+
+  /**
+    * Adds a column for each declared attribute which is
+    * missing from an existing typed table. This is how
+    * typed tables are migrated.
+    */
+  private def addColumns(
+    tableName: String,
+    attributeTypes: Map[String, Class[_]]
+  ): Boolean = {
+    typedColumns(tableName) match {
+      case Some(columns) => attributeTypes.filterKeys(attribute => !columns.contains(attribute.toLowerCase))
+        .forall(attribute => {
+          val alterTable = SchemaBuilder.alterTable(tableName)
+            .addColumn(attribute._1).`type`(loadDataType(attribute._2))
+          session.execute(alterTable.toString).wasApplied()
+        })
+      // A map table cannot be migrated to a typed table in place
+      case None => attributeTypes.isEmpty
     }
   }
 
   override def dropTable(tableName: String): Boolean = {
     val schemaBuilder = SchemaBuilder.dropTable(tableName).ifExists()
 
-    session.execute(schemaBuilder.toString).wasApplied()
+    try {
+      session.execute(schemaBuilder.toString).wasApplied()
+    } finally {
+      tableColumns.remove(tableName)
+    }
+  }
+
+  override def batchDeleteItems(
+    tableName: String,
+    keys: java.util.Collection[MapStoreKey]
+  ): Unit = {
+    val deletes = keys.asScala.toList.map(key => (key.getHashValue, deleteStatement(tableName, key)))
+    executeUnloggedBatches(deletes)
+  }
+
+  override def batchGetItems(
+    tableName: String,
+    keys: java.util.Collection[MapStoreKey]
+  ): java.util.List[java.util.Map[String, AnyRef]] = {
+    // Fan out the single-partition reads asynchronously and then gather the results
+    val resultFutures = executeBounded(keys.asScala.toList.map(key => selectStatement(tableName, key)))
+    resultFutures.flatMap(resultFuture => Option(resultFuture.getUninterruptibly.one()))
+      .map(rowMapper()).asJava
+  }
+
+  override def batchPutItems(
+    tableName: String,
+    items: java.util.Map[MapStoreKey, java.util.Map[String, AnyRef]]
+  ): java.util.List[java.util.Map[String, AnyRef]] = {
+    val payloads = items.asScala.toList.map(item => {
+      stripKey(item._1, item._2)
+      (item._1, normalizePayload(tableName, item._2))
+    })
+    val inserts = payloads.map(item => (item._1.getHashValue, insertStatement(tableName, item._1, item._2)))
+    executeUnloggedBatches(inserts)
+
+    payloads.map(item => createItem(item._1, item._2)).asJava
+  }
+
+  override def countItems(
+    tableName: String,
+    key: MapStoreKey,
+    options: MapQueryOptions
+  ): Long = {
+    options.getFilters.isEmpty match {
+      case true => session.execute(countStatement(tableName, key, options)).one().getLong(0)
+      // Filters are evaluated after rows are read (see statementLimit)
+      case false =>
+        val items = streamItems(tableName, key, aggregateOptions(options).addProjection(key.getHashField).build())
+        try {
+          items.count()
+        } finally {
+          items.close()
+        }
+    }
   }
 
   override def deleteItem(
     tableName: String,
     key: MapStoreKey
   ): Unit = {
-    val keyClause = CassandraKeyClause(key)
-    val queryBuilder = QueryBuilder.delete().from(tableName).where(keyClause.hashClause)
-    keyClause.rangeClauses.foreach(queryBuilder.and(_))
-
-    session.execute(queryBuilder.toString)
+    session.execute(deleteStatement(tableName, key))
   }
 
   override def getAllItems(tableName: String): java.util.List[java.util.Map[String, AnyRef]] = {
-    val queryBuilder = QueryBuilder.select().all().from(tableName)
-    val results = session.execute(queryBuilder.toString).all().asScala
+    val results = session.execute(allItemsStatement(tableName, MapQueryOptions.defaultOptions())).all().asScala
     results.map(rowMapper()).toList.asJava
   }
 
+  override def getAllItemsPage(
+    tableName: String,
+    options: MapQueryOptions
+  ): MapItemPage = {
+    readPage(tableName, pagedStatement(allItemsStatement(tableName, options), options), options)
+  }
+
   override def getItem(
     tableName: String,
     key: MapStoreKey
   ): Optional[java.util.Map[String, AnyRef]] = {
-    val keyClause = CassandraKeyClause(key)
-    val queryBuilder = QueryBuilder.select().all().from(tableName).where(keyClause.hashClause)
-    keyClause.rangeClauses.foreach(queryBuilder.and(_))
-
-    val result = session.execute(queryBuilder.toString).one()
+    val result = session.execute(selectStatement(tableName, key)).one()
     Option(result).map(rowMapper()).asJava
   }
 
+  override def getItem(
+    tableName: String,
+    key: MapStoreKey,
+    options: MapQueryOptions
+  ): Optional[java.util.Map[String, AnyRef]] = {
+    val result = session.execute(selectStatement(tableName, key, options)).one()
+    Option(result).flatMap(rowMapper(tableName, options)).asJava
+  }
+
   override def getItems(
     tableName: String,
     key: MapStoreKey,
     options: MapQueryOptions
   ): java.util.List[java.util.Map[String, AnyRef]] = {
-    val keyClause = CassandraKeyClause(key)
-    val queryBuilder = QueryBuilder.select().all().from(tableName).where(keyClause.hashClause)
-    keyClause.rangeClauses.foreach(queryBuilder.and(_))
-
-    key.getRangeField.asScala.map(rangeField => options.getOrder match {
-      case MapQueryOptions.Order.ASC => QueryBuilder.asc(rangeField)
-      case MapQueryOptions.Order.DESC => QueryBuilder.desc(rangeField)
-    }).foreach(queryBuilder.orderBy(_))
-    options.getLimit.asScala.foreach(queryBuilder.limit(_))
+    val projectedRowMapper = rowMapper(tableName, options)
+    val results = session.execute(itemsStatement(tableName, key, options)).iterator().asScala
+    limitItems(results.flatMap(row => projectedRowMapper(row)), options).toList.asJava
+  }
 
-    val results = session.execute(queryBuilder.toString).all().asScala
-    results.map(rowMapper()).toList.asJava
+  override def getItemsPage(
+    tableName: String,
+    key: MapStoreKey,
+    options: MapQueryOptions
+  ): MapItemPage = {
+    readPage(tableName, pagedStatement(itemsStatement(tableName, key, options), options), options)
   }
 
   override def putItem(
@@ -144,40 +300,577 @@ private[cassandra] class CassandraMapStorePlugin @Inject() (
     payload: java.util.Map[String, AnyRef]
   ): java.util.Map[String, AnyRef] = {
     stripKey(key, payload)
+    val tablePayload = normalizePayload(tableName, payload)
+
+    // The written columns are exactly the key plus payload, so there's no need to read them back
+    session.execute(insertStatement(tableName, key, tablePayload))
+    createItem(key, tablePayload)
+  }
+
+  override def streamAllItems(
+    tableName: String,
+    options: MapQueryOptions
+  ): Stream[java.util.Map[String, AnyRef]] = {
+    streamRows(tableName, pagedStatement(allItemsStatement(tableName, options), options), options)
+  }
+
+  override def streamItems(
+    tableName: String,
+    key: MapStoreKey,
+    options: MapQueryOptions
+  ): Stream[java.util.Map[String, AnyRef]] = {
+    streamRows(tableName, pagedStatement(itemsStatement(tableName, key, options), options), options)
+  }
+
+  override def supportsUpsert(): Boolean = true
+
+  override def updateItem(
+    tableName: String,
+    key: MapStoreKey,
+    payload: java.util.Map[String, AnyRef]
+  ): java.util.Map[String, AnyRef] = {
+    stripKey(key, payload)
+    val tablePayload = normalizePayload(tableName, payload)
+    tablePayload.isEmpty match {
+      // There's nothing to update, but a missing item still needs to be created
+      case true => getItem(tableName, key).asScala.getOrElse(putItem(tableName, key, tablePayload))
+      case false if updateReadsItem => {
+        val update = updateStatement(tableName, key, tablePayload)
+        // Read the current row alongside the write. See mergeItem.
+        val currentRow = session.executeAsync(selectStatement(tableName, key))
+        session.execute(update)
+
+        mergeItem(key, Option(currentRow.getUninterruptibly.one()).map(rowMapper()), tablePayload)
+      }
+      case false => {
+        session.execute(updateStatement(tableName, key, tablePayload))
+        mergeItem(key, None, tablePayload)
+      }
+    }
+  }
+
+  private[cassandra] def allItemsStatement(
+    tableName: String,
+    options: MapQueryOptions
+  ): BoundStatement = {
+    val statementKey = CassandraStatementKey(tableName, "selectAll", selectColumns(tableName, options),
+      statementLimit(options).isDefined)
+    val statement = bind(prepare(statementKey, {
+      val queryBuilder = selection(tableName, options).from(tableName)
+      statementLimit(options).foreach(_ => queryBuilder.limit(QueryBuilder.bindMarker()))
+      queryBuilder
+    }), statementLimit(options).toList)
+    readStatement(statement, options)
+  }
+
+  /**
+    * Binds the given values to the given statement.
+    *
+    * Bound values are serialized by the codec of their column,
+    * so numbers are first converted to the column's exact type.
+    * (CQL literals used to get this conversion for free.)
+    */
+  private[cassandra] def bind(
+    preparedStatement: PreparedStatement,
+    values: Seq[AnyRef]
+  ): BoundStatement = {
+    val variables = preparedStatement.getVariables
+    preparedStatement.bind(values.zipWithIndex.map(value => convertValue(variables.getType(value._2), value._1)): _*)
+  }
+
+  private[cassandra] def convertValue(
+    dataType: DataType,
+    value: AnyRef
+  ): AnyRef = {
+    (dataType.getName, value) match {
+      case (DataType.Name.BIGINT, n: java.lang.Number) => Long.box(n.longValue)
+      case (DataType.Name.INT, n: java.lang.Number) => Int.box(n.intValue)
+      case (DataType.Name.SMALLINT, n: java.lang.Number) => Short.box(n.shortValue)
+      case (DataType.Name.TINYINT, n: java.lang.Number) => Byte.box(n.byteValue)
+      case (DataType.Name.DOUBLE, n: java.lang.Number) => Double.box(n.doubleValue)
+      case (DataType.Name.FLOAT, n: java.lang.Number) => Float.box(n.floatValue)
+      // Map tables store all values as strings
+      case (DataType.Name.VARCHAR | DataType.Name.TEXT, v) if v != null && !v.isInstanceOf[String] =>
+        v.toString
+      case (DataType.Name.LIST, values: java.util.List[_]) =>
+        values.asScala.map(v => convertValue(dataType.getTypeArguments.get(0), v.asInstanceOf[AnyRef])).asJava
+      case (DataType.Name.MAP, values: java.util.Map[_, _]) =>
+        values.asScala.map(entry => convertValue(dataType.getTypeArguments.get(0), entry._1.asInstanceOf[AnyRef]) ->
+          convertValue(dataType.getTypeArguments.get(1), entry._2.asInstanceOf[AnyRef])).asJava
+      case _ => value
+    }
+  }
+
+  /**
+    * Creates the item which is returned from a write,
+    * which keeps the caller's key names.
+    */
+  private[cassandra] def createItem(
+    key: MapStoreKey,
+    payload: java.util.Map[String, AnyRef]
+  ): java.util.Map[String, AnyRef] = {
+    val keyMap = Map[String, AnyRef](key.getHashField -> key.getHashValue) ++
+      key.getRangeField.asScala.map(rangeField => rangeField -> key.getRangeKey.getValue.asInstanceOf[AnyRef])
+    (payload.asScala ++ keyMap).asJava
+  }
+
+  /**
+    * Merges an update payload into the current item (if any).
+    * Like any other written item, the merged item keeps the
+    * caller's key names (see createItem).
+    *
+    * This gives the same result whether the current item was
+    * read before or after the update was applied, so the read
+    * and the write can run concurrently.
+    */
+  private[cassandra] def mergeItem(
+    key: MapStoreKey,
+    currentItem: Option[java.util.Map[String, AnyRef]],
+    payload: java.util.Map[String, AnyRef]
+  ): java.util.Map[String, AnyRef] = {
+    val keyItem = createItem(key, java.util.Collections.emptyMap[String, AnyRef]())
+    val item = new java.util.HashMap[String, AnyRef](currentItem.getOrElse(keyItem))
+    // The current item holds the key under its (lowercase) column names
+    keyItem.keySet.asScala.foreach(keyField => item.remove(keyField.toLowerCase))
+    item.putAll(keyItem)
+    payload.asScala.foreach(field => field._2 match {
+      case null | "" => item.remove(field._1)
+      case value => item.put(field._1, value)
+    })
+    item
+  }
 
+  private[cassandra] def countStatement(
+    tableName: String,
+    key: MapStoreKey,
+    options: MapQueryOptions
+  ): BoundStatement = {
+    val keyClause = CassandraKeyClause(key)
+    val statementKey = CassandraStatementKey(tableName, "count", key.getRangeKey.getOperator)
+    val statement = bind(prepare(statementKey, {
+      val queryBuilder = QueryBuilder.select().countAll().from(tableName).where(keyClause.hashClause)
+      keyClause.rangeClauses.foreach(queryBuilder.and(_))
+      queryBuilder
+    }), keyClause.values)
+    readStatement(statement, options)
+  }
+
+  private[cassandra] def deleteStatement(
+    tableName: String,
+    key: MapStoreKey
+  ): BoundStatement = {
+    val keyClause = CassandraKeyClause(key)
+    val statementKey = CassandraStatementKey(tableName, "delete", key.getRangeKey.getOperator)
+    val statement = bind(prepare(statementKey, {
+      val queryBuilder = QueryBuilder.delete().from(tableName).where(keyClause.hashClause)
+      keyClause.rangeClauses.foreach(queryBuilder.and(_))
+      queryBuilder
+    }), keyClause.values)
+    writeStatement(statement)
+  }
+
+  private[cassandra] def insertStatement(
+    tableName: String,
+    key: MapStoreKey,
+    payload: java.util.Map[String, AnyRef]
+  ): BoundStatement = {
     val keyFields = key.getRangeField.asScala.map(rangeField => List(key.getHashField, rangeField))
       .getOrElse(List(key.getHashField))
     val keyValues: List[AnyRef] = key.getRangeField.asScala
       .map(rangeField => List(key.getHashValue, key.getRangeKey.getValue.asInstanceOf[AnyRef]))
       .getOrElse(List[AnyRef](key.getHashValue))
 
-    val queryBuilder = QueryBuilder.insertInto(tableName).values(keyFields.asJava, keyValues.asJava)
-      .value("payload", payload)
-    session.execute(queryBuilder.toString)
-    getItem(tableName, key).get()
+    val statement = typedColumns(tableName) match {
+      case Some(_) => {
+        // Only the attributes in the payload are written, as binding
+        // an absent attribute as null would write a tombstone for it
+        val keyColumns = keyFields.map(_.toLowerCase)
+        val attributeColumns = payload.keySet.asScala.filterNot(keyColumns.contains).toList.sorted
+        val statementKey = CassandraStatementKey(tableName, "insert", key.getRangeKey.getOperator, attributeColumns)
+        bind(prepare(statementKey, {
+          val insertColumns = keyFields ++ attributeColumns
+          QueryBuilder.insertInto(tableName)
+            .values(insertColumns.asJava, insertColumns.map(_ => QueryBuilder.bindMarker().asInstanceOf[AnyRef]).asJava)
+        }), keyValues ++ attributeColumns.map(column => payload.get(column)))
+      }
+      case None => {
+        val statementKey = CassandraStatementKey(tableName, "insert", key.getRangeKey.getOperator)
+        bind(prepare(statementKey, {
+          QueryBuilder.insertInto(tableName)
+            .values(keyFields.asJava, keyFields.map(_ => QueryBuilder.bindMarker().asInstanceOf[AnyRef]).asJava)
+            .value("payload", QueryBuilder.bindMarker())
+        }), keyValues :+ payload)
+      }
+    }
+    writeStatement(statement)
   }
 
-  override def updateItem(
+  private[cassandra] def itemsStatement(
     tableName: String,
     key: MapStoreKey,
+    options: MapQueryOptions
+  ): BoundStatement = {
+    val keyClause = CassandraKeyClause(key)
+    val statementKey = CassandraStatementKey(tableName, "selectItems", key.getRangeKey.getOperator,
+      selectColumns(tableName, options), options.getOrder, statementLimit(options).isDefined)
+    val statement = bind(prepare(statementKey, {
+      val queryBuilder = selection(tableName, options).from(tableName).where(keyClause.hashClause)
+      keyClause.rangeClauses.foreach(queryBuilder.and(_))
+
+      key.getRangeField.asScala.map(rangeField => options.getOrder match {
+        case MapQueryOptions.Order.ASC => QueryBuilder.asc(rangeField)
+        case MapQueryOptions.Order.DESC => QueryBuilder.desc(rangeField)
+      }).foreach(queryBuilder.orderBy(_))
+      statementLimit(options).foreach(_ => queryBuilder.limit(QueryBuilder.bindMarker()))
+      queryBuilder
+    }), keyClause.values ++ statementLimit(options).toList)
+    readStatement(statement, options)
+  }
+
+  private def loadConsistencyLevel(
+    levelName: String,
+    unknownLevel: => RuntimeException
+  ): ConsistencyLevel = {
+    Try(ConsistencyLevel.valueOf(levelName.toUpperCase)).getOrElse(throw unknownLevel)
+  }
+
+  /**
+    * Sets the consistency level of a read: the level selected
+    * in the query options, or else the configured read level.
+    */
+  private def readStatement(
+    statement: BoundStatement,
+    options: MapQueryOptions
+  ): BoundStatement = {
+    options.getConsistencyLevel.asScala
+      .map(levelName => loadConsistencyLevel(levelName,
+        new IllegalArgumentException(s"Unknown Cassandra consistency level: $levelName")))
+      .orElse(readConsistency)
+      .foreach(statement.setConsistencyLevel)
+    statement
+  }
+
+  private def writeStatement(statement: BoundStatement): BoundStatement = {
+    writeConsistency.foreach(statement.setConsistencyLevel)
+    statement
+  }
+
+  /**
+    * Sets the page size (fetch size) and paging state
+    * carried in the given query options on the given statement.
+    */
+  private[cassandra] def pagedStatement(
+    statement: BoundStatement,
+    options: MapQueryOptions
+  ): Statement = {
+    options.getPageSize.asScala.foreach(pageSize => statement.setFetchSize(pageSize))
+    options.getContinuationToken.asScala.foreach(token => {
+      val pagingState = try {
+        PagingState.fromString(token)
+      } catch {
+        case e: RuntimeException =>
+          throw new IllegalArgumentException(s"Invalid Cassandra continuation token: $token", e)
+      }
+      statement.setPagingState(pagingState)
+    })
+    statement
+  }
+
+  /**
+    * Reads only the rows which have already been fetched
+    * for the first page of the given statement.
+    */
+  private def readPage(
+    tableName: String,
+    statement: Statement,
+    options: MapQueryOptions
+  ): MapItemPage = {
+    createItemPage(tableName, session.execute(statement), options)
+  }
+
+  private[cassandra] def createItemPage(
+    tableName: String,
+    resultSet: ResultSet,
+    options: MapQueryOptions
+  ): MapItemPage = {
+    val pageBuilder = new MapItemPage.Builder()
+    val projectedRowMapper = rowMapper(tableName, options)
+
+    val pageRows = (1 to resultSet.getAvailableWithoutFetching).iterator.map(_ => resultSet.one())
+    limitItems(pageRows.flatMap(row => projectedRowMapper(row)), options).foreach(item => pageBuilder.addItems(item))
+    Option(resultSet.getExecutionInfo.getPagingState)
+      .foreach(pagingState => pageBuilder.setContinuationToken(pagingState.toString))
+    pageBuilder.build()
+  }
+
+  /**
+    * Prepares the given statement, unless a statement of
+    * the same shape has already been prepared.
+    */
+  private[cassandra] def prepare(
+    statementKey: CassandraStatementKey,
+    statement: => RegularStatement
+  ): PreparedStatement = {
+    // All of these statements are idempotent (updates only ever set values),
+    // so they are safe to retry and to execute speculatively
+    preparedStatements.computeIfAbsent(statementKey,
+      asJavaFunction((_: CassandraStatementKey) => session.prepare(statement).setIdempotent(true)))
+  }
+
+  private[cassandra] def selectStatement(
+    tableName: String,
+    key: MapStoreKey
+  ): BoundStatement = selectStatement(tableName, key, MapQueryOptions.defaultOptions())
+
+  private[cassandra] def selectStatement(
+    tableName: String,
+    key: MapStoreKey,
+    options: MapQueryOptions
+  ): BoundStatement = {
+    val keyClause = CassandraKeyClause(key)
+    val statementKey = CassandraStatementKey(tableName, "select", key.getRangeKey.getOperator,
+      selectColumns(tableName, options))
+    val statement = bind(prepare(statementKey, {
+      val queryBuilder = selection(tableName, options).from(tableName).where(keyClause.hashClause)
+      keyClause.rangeClauses.foreach(queryBuilder.and(_))
+      queryBuilder
+    }), keyClause.values)
+    readStatement(statement, options)
+  }
+
+  /**
+    * The columns to select for the given query options.
+    *
+    * Typed tables select their columns by name, so only the
+    * projected and filtered columns (if any) are read. Naming
+    * the columns also means that a new prepared statement is
+    * used once a column is added. Map tables select every column
+    * and project items after they are read (see [[rowMapper]]).
+    */
+  private[cassandra] def selectColumns(
+    tableName: String,
+    options: MapQueryOptions
+  ): Option[List[String]] = {
+    val projection = options.getProjection.asScala.map(_.toLowerCase)
+    val filterColumns = options.getFilters.asScala.map(_.getField.toLowerCase)
+    typedColumns(tableName)
+      .map(_.keys.toList.sorted.filter(column =>
+        projection.isEmpty || projection.contains(column) || filterColumns.contains(column)))
+      .filter(_.nonEmpty)
+  }
+
+  /**
+    * The limit to put on a read statement.
+    *
+    * Cassandra can only select rows by their key columns (short
+    * of ALLOW FILTERING, which scans whole partitions server side),
+    * so the filters in the query options are evaluated after rows
+    * are read (see [[rowMapper]]). Filtered reads are limited after
+    * they're filtered rather than by the statement.
+    */
+  private[cassandra] def statementLimit(options: MapQueryOptions): Option[Integer] = {
+    options.getFilters.isEmpty match {
+      case true => options.getLimit.asScala
+      case false => Option.empty[Integer]
+    }
+  }
+
+  /**
+    * Limits filtered reads (see [[statementLimit]]).
+    */
+  private[cassandra] def limitItems(
+    items: Iterator[java.util.Map[String, AnyRef]],
+    options: MapQueryOptions
+  ): Iterator[java.util.Map[String, AnyRef]] = {
+    (options.getFilters.isEmpty, options.getLimit.asScala) match {
+      case (false, Some(limit)) => items.take(limit)
+      case _ => items
+    }
+  }
+
+  private def selection(
+    tableName: String,
+    options: MapQueryOptions
+  ): Select.Builder = {
+    selectColumns(tableName, options) match {
+      case Some(columns) => QueryBuilder.select(columns: _*)
+      case None => QueryBuilder.select().all()
+    }
+  }
+
+  /**
+    * Maps the given payload onto the columns of the given
+    * table. For typed tables, attribute names are converted
+    * to their (lowercase) column names and any attribute
+    * without a column is rejected. Map table payloads are
+    * returned as is.
+    */
+  private[cassandra] def normalizePayload(
+    tableName: String,
     payload: java.util.Map[String, AnyRef]
   ): java.util.Map[String, AnyRef] = {
+    typedColumns(tableName) match {
+      case Some(columns) => {
+        val tablePayload = new java.util.HashMap[String, AnyRef]()
+        payload.asScala.foreach(entry => tablePayload.put(entry._1.toLowerCase, entry._2))
+        // Another instance may have added columns since they were cached
+        val currentColumns = tablePayload.keySet.asScala.forall(columns.contains) match {
+          case true => columns
+          case false => {
+            tableColumns.remove(tableName)
+            typedColumns(tableName).getOrElse(columns)
+          }
+        }
+        val unknownAttributes = tablePayload.keySet.asScala.filterNot(currentColumns.contains)
+        if (unknownAttributes.nonEmpty) {
+          throw new IllegalArgumentException(
+            s"Cassandra table $tableName has no columns for attributes: ${unknownAttributes.mkString(", ")}")
+        }
+        tablePayload
+      }
+      case None => payload
+    }
+  }
+
+  /**
+    * The columns (and their types) of the given table if it
+    * is a typed table, or None if it is a map table.
+    *
+    * NOTE: The columns are read from the driver's schema metadata
+    * once per table and then cached, as every statement needs them.
+    * The cache is cleared when this instance creates or drops the
+    * table, and when a payload names a column which isn't cached
+    * (e.g. because another instance added it).
+    */
+  private[cassandra] def typedColumns(tableName: String): Option[Map[String, DataType]] = {
+    val columns = Option(tableColumns.get(tableName)).orElse {
+      val metadataColumns = Option(session.getCluster.getMetadata.getKeyspace(keyspace))
+        .flatMap(keyspaceMetadata => Option(keyspaceMetadata.getTable(tableName)))
+        .map(_.getColumns.asScala.map(column => column.getName -> column.getType).toMap)
+      // A missing table isn't cached, as it may still be created
+      metadataColumns.foreach(tableColumns.put(tableName, _))
+      metadataColumns
+    }
+    // Map tables hold all non-key state in the payload column
+    columns.filterNot(_.contains("payload"))
+  }
+
+  /**
+    * Executes the given statements as unlogged batches.
+    *
+    * Statements are grouped by partition (hash value) so that
+    * each batch is handled by a single replica set. The batches
+    * themselves are executed concurrently (see executeBounded).
+    */
+  private def executeUnloggedBatches(statements: Iterable[(AnyRef, Statement)]): Unit = {
+    val batchFutures = executeBounded(unloggedBatches(statements))
+    batchFutures.foreach(_.getUninterruptibly)
+  }
+
+  /**
+    * Executes the given statements asynchronously, but waits
+    * for a permit before each one. Permits are shared by all
+    * batch calls and are sized to the requests which the
+    * connection pool of a local host can hold, so that a large
+    * batch can't overrun the pool (which the driver would
+    * reject with a BusyPoolException).
+    */
+  private def executeBounded(statements: List[Statement]): List[ResultSetFuture] = {
+    statements.map(statement => {
+      batchPermits.acquireUninterruptibly()
+      val resultFuture = try {
+        session.executeAsync(statement)
+      } catch {
+        case e: RuntimeException =>
+          batchPermits.release()
+          throw e
+      }
+      resultFuture.addListener(new Runnable {
+        override def run(): Unit = batchPermits.release()
+      }, MoreExecutors.directExecutor())
+      resultFuture
+    })
+  }
+
+  private[cassandra] def unloggedBatches(statements: Iterable[(AnyRef, Statement)]): List[BatchStatement] = {
+    statements.groupBy(_._1).values
+      .map(partitionStatements => {
+        val batch = new BatchStatement(BatchStatement.Type.UNLOGGED)
+        partitionStatements.foreach(partitionStatement => batch.add(partitionStatement._2))
+        // Batches ignore the consistency levels of their statements
+        writeConsistency.foreach(batch.setConsistencyLevel)
+        batch
+      })
+      .toList
+  }
+
+  private[cassandra] def updateStatement(
+    tableName: String,
+    key: MapStoreKey,
+    payload: java.util.Map[String, AnyRef]
+  ): BoundStatement = {
     val keyClause = CassandraKeyClause(key)
-    val queryBuilder = QueryBuilder.update(tableName).where(keyClause.hashClause)
-    keyClause.rangeClauses.foreach(queryBuilder.and(_))
 
+    // Cassandra updates are upserts, so this writes
+    // only the changed attributes of the item.
+    // Null or empty values delete their attribute.
     stripKey(key, payload)
-    val assignments = payload.asScala.map(entry => QueryBuilder.set(entry._1, entry._2))
-    assignments.foreach(queryBuilder.`with`(_))
+    val entries: List[(String, AnyRef)] = payload.asScala.toList.map(entry => entry._2 match {
+      case null | "" => (entry._1, null)
+      case value => (entry._1, value)
+    })
 
-    rowMapper().apply(session.execute(queryBuilder.toString).one())
+    val statement = typedColumns(tableName) match {
+      case Some(_) => {
+        val sortedEntries = entries.sortBy(_._1)
+        val statementKey = CassandraStatementKey(tableName, "update", key.getRangeKey.getOperator,
+          sortedEntries.map(_._1))
+        bind(prepare(statementKey, {
+          val queryBuilder = QueryBuilder.update(tableName)
+          sortedEntries.foreach(entry => queryBuilder.`with`(QueryBuilder.set(entry._1, QueryBuilder.bindMarker())))
+          val whereBuilder = queryBuilder.where(keyClause.hashClause)
+          keyClause.rangeClauses.foreach(whereBuilder.and(_))
+          whereBuilder
+        }), sortedEntries.map(_._2) ++ keyClause.values)
+      }
+      case None => {
+        val statementKey = CassandraStatementKey(tableName, "update", key.getRangeKey.getOperator, payload.size)
+        bind(prepare(statementKey, {
+          val queryBuilder = QueryBuilder.update(tableName)
+          (1 to payload.size).foreach(_ =>
+            queryBuilder.`with`(QueryBuilder.put("payload", QueryBuilder.bindMarker(), QueryBuilder.bindMarker())))
+          val whereBuilder = queryBuilder.where(keyClause.hashClause)
+          keyClause.rangeClauses.foreach(whereBuilder.and(_))
+          whereBuilder
+        }), entries.flatMap(entry => List[AnyRef](entry._1, entry._2)) ++ keyClause.values)
+      }
+    }
+    writeStatement(statement)
+  }
+
+  /**
+    * Lazily streams the rows of the given statement.
+    * The driver fetches each page on demand as the
+    * result set is iterated.
+    */
+  private def streamRows(
+    tableName: String,
+    statement: Statement,
+    options: MapQueryOptions
+  ): Stream[java.util.Map[String, AnyRef]] = {
+    val resultSet = session.execute(statement)
+    val projectedRowMapper = rowMapper(tableName, options)
+    val items = limitItems(resultSet.iterator().asScala.flatMap(row => projectedRowMapper(row)), options)
+    StreamSupport.stream(Spliterators.spliteratorUnknownSize(items.asJava, Spliterator.ORDERED), false)
   }
 
   private[cassandra] def loadDataType(fieldType: Class[_]): DataType = {
     fieldType match {
       case fType if fType.equals(classOf[Boolean]) || fType.equals(classOf[java.lang.Boolean]) => DataType.cboolean()
       case fType if fType.equals(classOf[Byte]) || fType.equals(classOf[java.lang.Byte]) => DataType.tinyint()
-      case fType if fType.equals(classOf[Date]) => DataType.date()
+      // CQL dates have no time of day and are bound as LocalDates, so
+      // java.util.Dates (with millisecond precision) are timestamps
+      case fType if fType.equals(classOf[Date]) => DataType.timestamp()
       case fType if fType.equals(classOf[Double]) || fType.equals(classOf[java.lang.Double]) => DataType.cdouble()
       case fType if fType.equals(classOf[Float]) || fType.equals(classOf[java.lang.Float]) => DataType.cfloat()
       case fType if fType.equals(classOf[Int]) || fType.equals(classOf[java.lang.Integer]) => DataType.cint()
@@ -190,17 +883,54 @@ private[cassandra] class CassandraMapStorePlugin @Inject() (
   }
 
   private[cassandra] def rowMapper(): Row => java.util.Map[String, AnyRef] = {
-    row => {
-      val cols = row.getColumnDefinitions.asList().asScala
-      val rowMap = cols
-        .map(col => (col.getName, row.get(col.getName, codecRegistry.codecFor(col.getType))))
-        .toMap[String, AnyRef]
-      val rowMMap = collection.mutable.Map(rowMap.toSeq: _*)
+    // Codecs are looked up once per set of column definitions
+    // (i.e. once per result set), rather than once per cell.
+    var columnCodecs: Option[(ColumnDefinitions, IndexedSeq[(String, TypeCodec[AnyRef])])] = None
 
-      val payloadMap = rowMMap.remove("payload").map(_.asInstanceOf[java.util.Map[String, AnyRef]].asScala)
-      val keyMap = rowMMap.toMap[String, AnyRef]
+    row => {
+      val columnDefinitions = row.getColumnDefinitions
+      val codecs = columnCodecs.filter(_._1 eq columnDefinitions).map(_._2).getOrElse {
+        val newCodecs = columnDefinitions.asList().asScala.toIndexedSeq
+          .map(col => (col.getName, codecRegistry.codecFor[AnyRef](col.getType)))
+        columnCodecs = Option((columnDefinitions, newCodecs))
+        newCodecs
+      }
 
-      payloadMap.map(_ ++ keyMap).getOrElse(keyMap).asJava
+      val item = new java.util.HashMap[String, AnyRef]()
+      // Key columns take precedence over payload entries of the same name
+      val payloadIndex = codecs.indexWhere(_._1 == "payload")
+      if (payloadIndex >= 0) {
+        Option(row.get(payloadIndex, codecs(payloadIndex)._2))
+          .foreach(payload => item.putAll(payload.asInstanceOf[java.util.Map[String, AnyRef]]))
+      }
+      // Typed tables leave absent attributes as null columns
+      codecs.indices.filterNot(i => i == payloadIndex || row.isNull(i))
+        .foreach(i => item.put(codecs(i)._1, row.get(i, codecs(i)._2)))
+      item
     }
   }
+
+  /**
+    * Maps the rows which match the filters (if any) down
+    * to the projected fields (if any).
+    *
+    * Typed table reads only select the projected columns (see
+    * [[selectColumns]]). However, Cassandra 3 cannot select
+    * individual map elements (e.g. payload['field']), so map
+    * table payloads are projected after they are read, as are
+    * typed rows which also hold filtered columns.
+    */
+  private[cassandra] def rowMapper(
+    tableName: String,
+    options: MapQueryOptions
+  ): Row => Option[java.util.Map[String, AnyRef]] = {
+    val itemMapper = rowMapper()
+    val projectAfterRead = !options.getProjection.isEmpty &&
+      (!options.getFilters.isEmpty || selectColumns(tableName, options).isEmpty)
+
+    row => Option(itemMapper(row)).filter(item => matchesFilters(item, options)).map(item => projectAfterRead match {
+      case true => projectItem(item, options)
+      case false => item
+    })
+  }
 }
@@ -0,0 +1,22 @@
+package net.spals.appbuilder.mapstore.cassandra
+
+import com.datastax.driver.core.PreparedStatement
+
+/**
+  * The shape of a Cassandra statement: everything about
+  * the statement other than its bound values. Statements
+  * with the same shape share a [[PreparedStatement]].
+  *
+  * @param tableName The table which the statement runs against
+  * @param operation The name of the statement's operation
+  * @param shape Anything else which changes the statement
+  *              (e.g. the range operator, the order or
+  *              whether a limit is set)
+  *
+  * @author tkral
+  */
+private[cassandra] case class CassandraStatementKey(
+  tableName: String,
+  operation: String,
+  shape: Any*
+)
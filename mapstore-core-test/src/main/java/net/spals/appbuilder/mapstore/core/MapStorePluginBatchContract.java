@@ -0,0 +1,62 @@
+package net.spals.appbuilder.mapstore.core;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * The batch contract which every {@link MapStorePlugin} must meet,
+ * shared by the tests of each plugin.
+ *
+ * The batch items are written to a table with a single String
+ * hash field, which must not already hold any of the batch items.
+ *
+ * @author tkral
+ */
+public final class MapStorePluginBatchContract {
+
+    private MapStorePluginBatchContract() {  }
+
+    public static void assertBatchItems(
+        final MapStorePlugin storePlugin,
+        final String tableName,
+        final String hashField,
+        final int batchSize
+    ) {
+        final List<MapStoreKey> batchKeys = IntStream.rangeClosed(1, batchSize)
+            .mapToObj(i -> new MapStoreKey.Builder().setHash(hashField, "myBatchHashValue" + i).build())
+            .collect(Collectors.toList());
+        final Map<MapStoreKey, Map<String, Object>> batchItems = IntStream.rangeClosed(1, batchSize).boxed()
+            .collect(Collectors.toMap(i -> batchKeys.get(i - 1),
+                i -> Maps.newHashMap(ImmutableMap.<String, Object>of("key", "value" + i))));
+        final Set<Object> batchValues = IntStream.rangeClosed(1, batchSize)
+            .mapToObj(i -> "value" + i).collect(Collectors.toSet());
+
+        assertThat(storePlugin.batchPutItems(tableName, batchItems), hasSize(batchSize));
+
+        // Missing keys are omitted and duplicate keys are allowed
+        final MapStoreKey missingKey = new MapStoreKey.Builder().setHash(hashField, "myMissingHashValue").build();
+        final List<MapStoreKey> getKeys = ImmutableList.<MapStoreKey>builder()
+            .addAll(batchKeys).add(batchKeys.get(0)).add(missingKey).build();
+        assertThat(batchValues(storePlugin.batchGetItems(tableName, getKeys)), is(batchValues));
+
+        storePlugin.batchDeleteItems(tableName, getKeys);
+        assertThat(storePlugin.batchGetItems(tableName, batchKeys), empty());
+    }
+
+    private static Set<Object> batchValues(final List<Map<String, Object>> items) {
+        return items.stream().map(item -> item.get("key")).collect(Collectors.toSet());
+    }
+}
@@ -0,0 +1,130 @@
+package net.spals.appbuilder.mapstore.core;
+
+import com.google.common.collect.Maps;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+import net.spals.appbuilder.mapstore.core.model.MapStoreTableKey;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+
+import static net.spals.appbuilder.mapstore.core.model.MapQueryOptions.defaultOptions;
+import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.equalTo;
+import static net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey.all;
+
+/**
+ * A minimal throughput benchmark for {@link MapStorePlugin}s,
+ * shared by the benchmarks of each plugin.
+ *
+ * Every plugin runs the same workload against a table with a
+ * String hash field and an Integer range field: concurrent puts
+ * of every item, concurrent point reads of every item (in a
+ * scattered order) and concurrent range reads of every hash
+ * value. The workload is run once to warm up, then timed. Each
+ * run creates its own tables, which are left in the store.
+ *
+ * This is not a JMH benchmark, so numbers are only comparable
+ * between plugins which were run on the same machine.
+ *
+ * @author tkral
+ */
+public final class MapStorePluginBenchmark {
+
+    private static final int HASH_VALUE_COUNT = 100;
+
+    private MapStorePluginBenchmark() {  }
+
+    /**
+     * Runs the workload and returns its throughput as a single line,
+     * labelled with the given name.
+     */
+    public static String run(
+        final String name,
+        final MapStorePlugin storePlugin,
+        final int threadCount,
+        final int itemCount
+    ) {
+        final ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+        try {
+            runWorkload(storePlugin, executorService, threadCount, itemCount, name + "WarmUp");
+            final double[] opsPerSecond =
+                runWorkload(storePlugin, executorService, threadCount, itemCount, name + "Benchmark");
+
+            return String.format("%-32s %,12.0f puts/s %,12.0f gets/s %,10.0f scans/s",
+                name, opsPerSecond[0], opsPerSecond[1], opsPerSecond[2]);
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    private static double[] runWorkload(
+        final MapStorePlugin storePlugin,
+        final ExecutorService executorService,
+        final int threadCount,
+        final int itemCount,
+        final String tableName
+    ) {
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder()
+            .setHash("myHashField", String.class)
+            .setRange("myRangeField", Integer.class)
+            .build();
+        storePlugin.createTable(tableName, tableKey);
+
+        final double putsPerSecond = time(executorService, threadCount, itemCount, i -> {
+            final Map<String, Object> payload = Maps.newHashMap();
+            payload.put("myValue", "value" + i);
+            storePlugin.putItem(tableName, itemKey(i), payload);
+        });
+        // Read in a scattered order, so that reads don't follow the write order
+        final double getsPerSecond = time(executorService, threadCount, itemCount,
+            i -> storePlugin.getItem(tableName, itemKey((int) ((i * 7919L) % itemCount))));
+        final double scansPerSecond = time(executorService, threadCount, HASH_VALUE_COUNT,
+            i -> storePlugin.getItems(tableName, new MapStoreKey.Builder()
+                .setHash("myHashField", "myHashValue" + i)
+                .setRange("myRangeField", all()).build(), defaultOptions()));
+
+        return new double[] {putsPerSecond, getsPerSecond, scansPerSecond};
+    }
+
+    private static MapStoreKey itemKey(final int i) {
+        return new MapStoreKey.Builder()
+            .setHash("myHashField", "myHashValue" + (i % HASH_VALUE_COUNT))
+            .setRange("myRangeField", equalTo(i / HASH_VALUE_COUNT))
+            .build();
+    }
+
+    private static double time(
+        final ExecutorService executorService,
+        final int threadCount,
+        final int opCount,
+        final IntConsumer op
+    ) {
+        final long startNanos = System.nanoTime();
+        final List<Future<?>> threadFutures = new ArrayList<>(threadCount);
+        for (int thread = 0; thread < threadCount; thread++) {
+            final int firstOp = thread;
+            threadFutures.add(executorService.submit(() -> {
+                for (int i = firstOp; i < opCount; i += threadCount) {
+                    op.accept(i);
+                }
+            }));
+        }
+
+        for (final Future<?> threadFuture : threadFutures) {
+            try {
+                threadFuture.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        return opCount / ((System.nanoTime() - startNanos) / 1e9d);
+    }
+}
@@ -0,0 +1,284 @@
+package net.spals.appbuilder.mapstore.core;
+
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigFactory;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.googlecode.catchexception.CatchException.verifyException;
+import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.equalTo;
+import static net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey.all;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link CachingMapStorePlugin}
+ *
+ * @author tkral
+ */
+public class CachingMapStorePluginTest {
+
+    private static final Config CACHE_CONFIG = ConfigFactory.parseMap(ImmutableMap.of(
+        "mapStore.cache.myTable.maxSize", 10,
+        "mapStore.cache.myTable.ttl", "1 minute"));
+
+    private final MapStoreKey hashKey = new MapStoreKey.Builder()
+        .setHash("myHashField", "myHashValue")
+        .setRange("myRangeField", equalTo("myRangeValue"))
+        .build();
+    private final MapStoreKey rangeKey = new MapStoreKey.Builder()
+        .setHash("myHashField", "myHashValue")
+        .setRange("myRangeField", all())
+        .build();
+
+    @Test
+    public void testDecorateNoConfig() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final DefaultMapStoreCache storeCache = new DefaultMapStoreCache(ConfigFactory.empty());
+
+        assertThat(storeCache.decorate(storePlugin), sameInstance(storePlugin));
+        assertThat(storeCache.getCacheStats().isEmpty(), is(true));
+    }
+
+    @Test
+    public void testIllegalMaxSize() {
+        final Config cacheConfig = ConfigFactory.parseMap(ImmutableMap.of("mapStore.cache.myTable.maxSize", 0));
+        verifyException(() -> new DefaultMapStoreCache(cacheConfig), ConfigException.BadValue.class);
+    }
+
+    @Test
+    public void testGetItemCached() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final Map<String, Object> item = ImmutableMap.of("key", "value");
+        when(storePlugin.getItem(anyString(), any(MapStoreKey.class))).thenReturn(Optional.of(item));
+
+        final DefaultMapStoreCache storeCache = new DefaultMapStoreCache(CACHE_CONFIG);
+        final MapStorePlugin cachingPlugin = storeCache.decorate(storePlugin);
+
+        assertThat(cachingPlugin.getItem("myTable", hashKey), is(Optional.of(item)));
+        assertThat(cachingPlugin.getItem("myTable", hashKey), is(Optional.of(item)));
+        verify(storePlugin, times(1)).getItem("myTable", hashKey);
+
+        final CacheStats cacheStats = storeCache.getCacheStats().get("myTable");
+        assertThat(cacheStats.hitCount(), is(1L));
+        assertThat(cacheStats.missCount(), is(1L));
+    }
+
+    @Test
+    public void testGetItemProjected() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final Map<String, Object> item = ImmutableMap.of("key", "value", "otherKey", "otherValue");
+        when(storePlugin.getItem(anyString(), any(MapStoreKey.class))).thenReturn(Optional.of(item));
+        when(storePlugin.getItem(anyString(), any(MapStoreKey.class), any(MapQueryOptions.class)))
+            .thenReturn(Optional.of(ImmutableMap.of("key", "value")));
+
+        final DefaultMapStoreCache storeCache = new DefaultMapStoreCache(CACHE_CONFIG);
+        final MapStorePlugin cachingPlugin = storeCache.decorate(storePlugin);
+        final MapQueryOptions projectedOptions = new MapQueryOptions.Builder().addProjection("key").build();
+
+        // Uncached items are projected by the delegate
+        assertThat(cachingPlugin.getItem("myTable", hashKey, projectedOptions),
+            is(Optional.of(ImmutableMap.of("key", "value"))));
+        verify(storePlugin).getItem("myTable", hashKey, projectedOptions);
+
+        // Cached items are projected from the cache
+        cachingPlugin.getItem("myTable", hashKey);
+        assertThat(cachingPlugin.getItem("myTable", hashKey, projectedOptions),
+            is(Optional.of(ImmutableMap.of("key", "value"))));
+        verify(storePlugin, times(1)).getItem("myTable", hashKey, projectedOptions);
+    }
+
+    @Test
+    public void testGetItemUncachedTable() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        when(storePlugin.getItem(anyString(), any(MapStoreKey.class))).thenReturn(Optional.empty());
+
+        final DefaultMapStoreCache storeCache = new DefaultMapStoreCache(CACHE_CONFIG);
+        final MapStorePlugin cachingPlugin = storeCache.decorate(storePlugin);
+
+        cachingPlugin.getItem("myOtherTable", hashKey);
+        cachingPlugin.getItem("myOtherTable", hashKey);
+        verify(storePlugin, times(2)).getItem("myOtherTable", hashKey);
+        assertThat(storeCache.getCacheStats(), not(hasKey("myOtherTable")));
+    }
+
+    @Test
+    public void testGetItemsCached() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final List<Map<String, Object>> items = ImmutableList.of(ImmutableMap.of("key", "value"));
+        when(storePlugin.getItems(anyString(), any(MapStoreKey.class), any(MapQueryOptions.class))).thenReturn(items);
+
+        final DefaultMapStoreCache storeCache = new DefaultMapStoreCache(CACHE_CONFIG);
+        final MapStorePlugin cachingPlugin = storeCache.decorate(storePlugin);
+        final MapQueryOptions ascOptions = MapQueryOptions.defaultOptions();
+        final MapQueryOptions descOptions = new MapQueryOptions.Builder().setOrder(MapQueryOptions.Order.DESC).build();
+
+        assertThat(cachingPlugin.getItems("myTable", rangeKey, ascOptions), is(items));
+        assertThat(cachingPlugin.getItems("myTable", rangeKey, ascOptions), is(items));
+        // Different query options are cached under a different key
+        assertThat(cachingPlugin.getItems("myTable", rangeKey, descOptions), is(items));
+        verify(storePlugin, times(1)).getItems("myTable", rangeKey, ascOptions);
+        verify(storePlugin, times(1)).getItems("myTable", rangeKey, descOptions);
+    }
+
+    @Test
+    public void testWriteInvalidates() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final Map<String, Object> payload = Collections.singletonMap("key", "value");
+        when(storePlugin.getItem(anyString(), any(MapStoreKey.class))).thenReturn(Optional.empty());
+        when(storePlugin.getItems(anyString(), any(MapStoreKey.class), any(MapQueryOptions.class)))
+            .thenReturn(Collections.emptyList());
+
+        final DefaultMapStoreCache storeCache = new DefaultMapStoreCache(CACHE_CONFIG);
+        final MapStorePlugin cachingPlugin = storeCache.decorate(storePlugin);
+
+        cachingPlugin.getItem("myTable", hashKey);
+        cachingPlugin.getItems("myTable", rangeKey, MapQueryOptions.defaultOptions());
+        cachingPlugin.putItem("myTable", hashKey, payload);
+        cachingPlugin.getItem("myTable", hashKey);
+        cachingPlugin.getItems("myTable", rangeKey, MapQueryOptions.defaultOptions());
+
+        // Both the item and the range results within its partition are re-read
+        verify(storePlugin, times(2)).getItem("myTable", hashKey);
+        verify(storePlugin, times(2)).getItems("myTable", rangeKey, MapQueryOptions.defaultOptions());
+    }
+
+    @Test
+    public void testBatchGetItemsPartiallyCached() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final Map<String, Object> item = ImmutableMap.of("key", "value");
+        final MapStoreKey otherKey = new MapStoreKey.Builder()
+            .setHash("myHashField", "myHashValue")
+            .setRange("myRangeField", equalTo("myOtherRangeValue"))
+            .build();
+        when(storePlugin.getItem(anyString(), any(MapStoreKey.class))).thenReturn(Optional.of(item));
+        when(storePlugin.batchGetItems(anyString(), any())).thenReturn(ImmutableList.of(item));
+
+        final DefaultMapStoreCache storeCache = new DefaultMapStoreCache(CACHE_CONFIG);
+        final MapStorePlugin cachingPlugin = storeCache.decorate(storePlugin);
+
+        cachingPlugin.getItem("myTable", hashKey);
+        assertThat(cachingPlugin.batchGetItems("myTable", ImmutableList.of(hashKey, otherKey)),
+            is(ImmutableList.of(item, item)));
+        verify(storePlugin).batchGetItems("myTable", ImmutableList.of(otherKey));
+    }
+
+    @Test
+    public void testBatchGetItemsFillsCache() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final Map<String, Object> item = ImmutableMap.of("myHashField", "myHashValue",
+            "myRangeField", "myRangeValue", "key", "value");
+        final MapStoreKey missingKey = new MapStoreKey.Builder()
+            .setHash("myHashField", "myHashValue")
+            .setRange("myRangeField", equalTo("myMissingRangeValue"))
+            .build();
+        when(storePlugin.batchGetItems(anyString(), any())).thenReturn(ImmutableList.of(item));
+
+        final DefaultMapStoreCache storeCache = new DefaultMapStoreCache(CACHE_CONFIG);
+        final MapStorePlugin cachingPlugin = storeCache.decorate(storePlugin);
+
+        assertThat(cachingPlugin.batchGetItems("myTable", ImmutableList.of(hashKey, missingKey)),
+            is(ImmutableList.of(item)));
+        // Both the found item and the missing key are served out of the cache
+        assertThat(cachingPlugin.getItem("myTable", hashKey), is(Optional.of(item)));
+        assertThat(cachingPlugin.getItem("myTable", missingKey), is(Optional.empty()));
+        verify(storePlugin, never()).getItem(anyString(), any(MapStoreKey.class));
+    }
+
+    @Test
+    public void testBatchGetItemsUnmatchedItem() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final Map<String, Object> item = ImmutableMap.of("key", "value");
+        when(storePlugin.getItem(anyString(), any(MapStoreKey.class))).thenReturn(Optional.of(item));
+        when(storePlugin.batchGetItems(anyString(), any())).thenReturn(ImmutableList.of(item));
+
+        final DefaultMapStoreCache storeCache = new DefaultMapStoreCache(CACHE_CONFIG);
+        final MapStorePlugin cachingPlugin = storeCache.decorate(storePlugin);
+
+        // An item without its key values can't be matched, so its key isn't cached as missing
+        cachingPlugin.batchGetItems("myTable", ImmutableList.of(hashKey));
+        assertThat(cachingPlugin.getItem("myTable", hashKey), is(Optional.of(item)));
+        verify(storePlugin).getItem("myTable", hashKey);
+    }
+
+    @Test
+    public void testStaleHitCountedAsMiss() {
+        final DefaultMapStoreCache.TableCache tableCache = new DefaultMapStoreCache.TableCache("myTable",
+            CACHE_CONFIG.getConfig("mapStore.cache.myTable"));
+        final long readSequence = tableCache.readSequence();
+        tableCache.invalidate(hashKey);
+        tableCache.putItem(hashKey, readSequence, Optional.of(ImmutableMap.of("key", "value")));
+
+        assertThat(tableCache.getItem(hashKey), is(Optional.empty()));
+        assertThat(tableCache.stats().hitCount(), is(0L));
+        assertThat(tableCache.stats().missCount(), is(1L));
+    }
+
+    @Test
+    public void testWriteDuringReadNotCached() throws Exception {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final Map<String, Object> oldItem = ImmutableMap.of("key", "oldValue");
+        final Map<String, Object> newItem = ImmutableMap.of("key", "newValue");
+        final CountDownLatch readStarted = new CountDownLatch(2);
+        final CountDownLatch writeDone = new CountDownLatch(1);
+        // The first reads block until the write is done, and then return the old value
+        when(storePlugin.getItem(anyString(), any(MapStoreKey.class))).thenAnswer(invocation -> {
+            readStarted.countDown();
+            writeDone.await(10L, TimeUnit.SECONDS);
+            return Optional.of(oldItem);
+        }).thenReturn(Optional.of(newItem));
+        when(storePlugin.getItems(anyString(), any(MapStoreKey.class), any(MapQueryOptions.class)))
+            .thenAnswer(invocation -> {
+                readStarted.countDown();
+                writeDone.await(10L, TimeUnit.SECONDS);
+                return ImmutableList.of(oldItem);
+            }).thenReturn(ImmutableList.of(newItem));
+
+        final DefaultMapStoreCache storeCache = new DefaultMapStoreCache(CACHE_CONFIG);
+        final MapStorePlugin cachingPlugin = storeCache.decorate(storePlugin);
+        final ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            final Future<Optional<Map<String, Object>>> staleItem = executorService.submit(() ->
+                cachingPlugin.getItem("myTable", hashKey));
+            final Future<List<Map<String, Object>>> staleItems = executorService.submit(() ->
+                cachingPlugin.getItems("myTable", rangeKey, MapQueryOptions.defaultOptions()));
+            readStarted.await(10L, TimeUnit.SECONDS);
+            cachingPlugin.putItem("myTable", hashKey, newItem);
+            writeDone.countDown();
+
+            assertThat(staleItem.get(), is(Optional.of(oldItem)));
+            assertThat(staleItems.get(), is(ImmutableList.of(oldItem)));
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        // The values read before the write are never served after it
+        assertThat(cachingPlugin.getItem("myTable", hashKey), is(Optional.of(newItem)));
+        assertThat(cachingPlugin.getItems("myTable", rangeKey, MapQueryOptions.defaultOptions()),
+            is(ImmutableList.of(newItem)));
+        assertThat(cachingPlugin.getItem("myTable", hashKey), is(Optional.of(newItem)));
+        verify(storePlugin, times(2)).getItem("myTable", hashKey);
+        verify(storePlugin, times(2)).getItems("myTable", rangeKey, MapQueryOptions.defaultOptions());
+    }
+}
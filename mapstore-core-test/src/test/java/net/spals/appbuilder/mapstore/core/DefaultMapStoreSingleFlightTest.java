@@ -0,0 +1,219 @@
+package net.spals.appbuilder.mapstore.core;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import static com.googlecode.catchexception.CatchException.catchException;
+import static com.googlecode.catchexception.CatchException.caughtException;
+import static com.googlecode.catchexception.CatchException.verifyException;
+import static net.spals.appbuilder.mapstore.core.model.MapQueryOptions.defaultOptions;
+import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.equalTo;
+import static net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey.all;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+/**
+ * Unit tests for {@link DefaultMapStoreSingleFlight}
+ *
+ * @author tkral
+ */
+public class DefaultMapStoreSingleFlightTest {
+
+    private final MapStoreKey key = new MapStoreKey.Builder()
+        .setHash("myHashField", "myHashValue")
+        .setRange("myRangeField", equalTo("myRangeValue"))
+        .build();
+    private final MapStoreKey rangeKey = new MapStoreKey.Builder()
+        .setHash("myHashField", "myHashValue")
+        .setRange("myRangeField", all())
+        .build();
+    private final Map<String, Object> item = ImmutableMap.of("key", "value");
+
+    private final ExecutorService executorService = Executors.newCachedThreadPool();
+
+    @AfterMethod
+    void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void testGetItemCoalesced() throws Exception {
+        final DefaultMapStoreSingleFlight singleFlight = new DefaultMapStoreSingleFlight();
+        final BlockingRead<Optional<Map<String, Object>>> read = new BlockingRead<>(() -> Optional.of(item));
+
+        final Future<Optional<Map<String, Object>>> leader = executorService.submit(() ->
+            singleFlight.getItem("myTable", key, defaultOptions(), read));
+        read.awaitStarted();
+        final Future<Optional<Map<String, Object>>> follower = executorService.submit(() ->
+            singleFlight.getItem("myTable", key, defaultOptions(), read));
+        awaitCount(singleFlight::getCoalescedGetItemCount, 1L);
+        read.release();
+
+        assertThat(leader.get(), is(Optional.of(item)));
+        assertThat(follower.get(), is(Optional.of(item)));
+        // Each call gets its own copy of the shared item
+        assertThat(follower.get().get(), not(sameInstance(leader.get().get())));
+        assertThat(read.getCallCount(), is(1));
+    }
+
+    @Test
+    public void testGetItemsCoalesced() throws Exception {
+        final DefaultMapStoreSingleFlight singleFlight = new DefaultMapStoreSingleFlight();
+        final BlockingRead<List<Map<String, Object>>> read = new BlockingRead<>(() -> ImmutableList.of(item));
+
+        final Future<List<Map<String, Object>>> leader = executorService.submit(() ->
+            singleFlight.getItems("myTable", rangeKey, defaultOptions(), read));
+        read.awaitStarted();
+        final Future<List<Map<String, Object>>> follower = executorService.submit(() ->
+            singleFlight.getItems("myTable", rangeKey, defaultOptions(), read));
+        awaitCount(singleFlight::getCoalescedGetItemsCount, 1L);
+        read.release();
+
+        assertThat(leader.get(), is(ImmutableList.of(item)));
+        assertThat(follower.get(), is(ImmutableList.of(item)));
+        assertThat(read.getCallCount(), is(1));
+    }
+
+    @Test
+    public void testDifferentOptionsNotCoalesced() throws Exception {
+        final DefaultMapStoreSingleFlight singleFlight = new DefaultMapStoreSingleFlight();
+        final BlockingRead<List<Map<String, Object>>> read = new BlockingRead<>(() -> ImmutableList.of(item));
+
+        final Future<List<Map<String, Object>>> leader = executorService.submit(() ->
+            singleFlight.getItems("myTable", rangeKey, defaultOptions(), read));
+        read.awaitStarted();
+        final MapQueryOptions options = new MapQueryOptions.Builder().setLimit(1).build();
+        assertThat(singleFlight.getItems("myTable", rangeKey, options, () -> ImmutableList.of()),
+            is(ImmutableList.of()));
+        read.release();
+
+        assertThat(leader.get(), is(ImmutableList.of(item)));
+        assertThat(singleFlight.getCoalescedGetItemsCount(), is(0L));
+    }
+
+    @Test
+    public void testCoalescedFailure() throws Exception {
+        final DefaultMapStoreSingleFlight singleFlight = new DefaultMapStoreSingleFlight();
+        final BlockingRead<Optional<Map<String, Object>>> read = new BlockingRead<>(() -> {
+            throw new IllegalStateException();
+        });
+
+        final Future<Optional<Map<String, Object>>> leader = executorService.submit(() ->
+            singleFlight.getItem("myTable", key, defaultOptions(), read));
+        read.awaitStarted();
+        final Future<Optional<Map<String, Object>>> follower = executorService.submit(() ->
+            singleFlight.getItem("myTable", key, defaultOptions(), read));
+        awaitCount(singleFlight::getCoalescedGetItemCount, 1L);
+        read.release();
+
+        // The shared failure is thrown to every call
+        verifyException(leader::get, ExecutionException.class);
+        catchException(follower::get);
+        assertThat(caughtException().getCause(), instanceOf(IllegalStateException.class));
+        assertThat(read.getCallCount(), is(1));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        final DefaultMapStoreSingleFlight singleFlight = new DefaultMapStoreSingleFlight();
+        final BlockingRead<Optional<Map<String, Object>>> read = new BlockingRead<>(() -> Optional.of(item));
+
+        final Future<Optional<Map<String, Object>>> leader = executorService.submit(() ->
+            singleFlight.getItem("myTable", key, defaultOptions(), read));
+        read.awaitStarted();
+
+        // Reads after a write never share a read which started before it
+        singleFlight.invalidate("myTable");
+        assertThat(singleFlight.getItem("myTable", key, defaultOptions(), Optional::empty), is(Optional.empty()));
+        read.release();
+
+        assertThat(leader.get(), is(Optional.of(item)));
+        assertThat(singleFlight.getCoalescedGetItemCount(), is(0L));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        final DefaultMapStoreSingleFlight singleFlight = new DefaultMapStoreSingleFlight();
+        singleFlight.enabled = false;
+        final BlockingRead<Optional<Map<String, Object>>> read = new BlockingRead<>(() -> Optional.of(item));
+
+        final Future<Optional<Map<String, Object>>> leader = executorService.submit(() ->
+            singleFlight.getItem("myTable", key, defaultOptions(), read));
+        read.awaitStarted();
+        assertThat(singleFlight.getItem("myTable", key, defaultOptions(), Optional::empty), is(Optional.empty()));
+        read.release();
+
+        assertThat(leader.get(), is(Optional.of(item)));
+        assertThat(singleFlight.getCoalescedGetItemCount(), is(0L));
+    }
+
+    private static void awaitCount(
+        final LongSupplier count,
+        final long expectedCount
+    ) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10L);
+        while (count.getAsLong() < expectedCount && System.nanoTime() < deadline) {
+            Thread.sleep(1L);
+        }
+        assertThat(count.getAsLong(), is(expectedCount));
+    }
+
+    /**
+     * A read which blocks until it is released.
+     */
+    private static class BlockingRead<T> implements Supplier<T> {
+
+        private final Supplier<T> result;
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+        private final AtomicInteger callCount = new AtomicInteger();
+
+        BlockingRead(final Supplier<T> result) {
+            this.result = result;
+        }
+
+        @Override
+        public T get() {
+            callCount.incrementAndGet();
+            started.countDown();
+            try {
+                released.await(10L, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return result.get();
+        }
+
+        void awaitStarted() throws InterruptedException {
+            started.await(10L, TimeUnit.SECONDS);
+        }
+
+        void release() {
+            released.countDown();
+        }
+
+        int getCallCount() {
+            return callCount.get();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package net.spals.appbuilder.mapstore.core;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
+import net.spals.appbuilder.mapstore.core.AsyncMapStoreProvider.DelegatingAsyncMapStore;
+import net.spals.appbuilder.mapstore.core.AsyncMapStoreProvider.ExecutorAsyncMapStorePlugin;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.Order;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.googlecode.catchexception.CatchException.verifyException;
+import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.greaterThan;
+import static net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey.max;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link DelegatingAsyncMapStore}
+ *
+ * @author tkral
+ */
+public class DelegatingAsyncMapStoreTest {
+
+    @Test
+    public void testGetMaxItem() {
+        final AsyncMapStorePlugin storePlugin = mock(AsyncMapStorePlugin.class);
+        final Map<String, Object> maxItem = ImmutableMap.of("myRangeField", 2);
+        when(storePlugin.getItems(anyString(), any(MapStoreKey.class), any(MapQueryOptions.class)))
+            .thenReturn(CompletableFuture.completedFuture(ImmutableList.of(maxItem)));
+
+        final DelegatingAsyncMapStore asyncMapStore = new DelegatingAsyncMapStore(storePlugin);
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+            .setRange("myRangeField", max()).build();
+
+        assertThat(asyncMapStore.getItem("myTable", storeKey).join(), is(Optional.of(maxItem)));
+        verify(storePlugin).getItems(eq("myTable"), any(MapStoreKey.class),
+            eq(new MapQueryOptions.Builder().setOrder(Order.DESC).setLimit(1).build()));
+    }
+
+    @Test
+    public void testGetItemsIllegalKey() {
+        final DelegatingAsyncMapStore asyncMapStore = new DelegatingAsyncMapStore(mock(AsyncMapStorePlugin.class));
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+            .setRange("myRangeField", max()).build();
+
+        verifyException(() -> asyncMapStore.getItems("myTable", storeKey, MapQueryOptions.defaultOptions()),
+            IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testPutItemIllegalKey() {
+        final AsyncMapStorePlugin storePlugin = mock(AsyncMapStorePlugin.class);
+        final DelegatingAsyncMapStore asyncMapStore = new DelegatingAsyncMapStore(storePlugin);
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+            .setRange("myRangeField", greaterThan(1)).build();
+
+        // Validation happens on the caller's thread, before any future is created
+        verifyException(() -> asyncMapStore.putItem("myTable", storeKey, Collections.singletonMap("key", "value")),
+            IllegalArgumentException.class);
+        verifyZeroInteractions(storePlugin);
+    }
+
+    @Test
+    public void testUpdateItemAbsent() {
+        final AsyncMapStorePlugin storePlugin = mock(AsyncMapStorePlugin.class);
+        final Map<String, Object> payload = Collections.singletonMap("key", "value");
+        when(storePlugin.getItem(anyString(), any(MapStoreKey.class)))
+            .thenReturn(CompletableFuture.completedFuture(Optional.empty()));
+        when(storePlugin.putItem(anyString(), any(MapStoreKey.class), any()))
+            .thenReturn(CompletableFuture.completedFuture(payload));
+
+        final DelegatingAsyncMapStore asyncMapStore = new DelegatingAsyncMapStore(storePlugin);
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+
+        assertThat(asyncMapStore.updateItem("myTable", storeKey, payload).join(), is(payload));
+        verify(storePlugin).putItem(eq("myTable"), eq(storeKey), eq(payload));
+        verify(storePlugin, never()).updateItem(anyString(), any(MapStoreKey.class), any());
+    }
+
+    @Test
+    public void testUpdateItemPresent() {
+        final AsyncMapStorePlugin storePlugin = mock(AsyncMapStorePlugin.class);
+        final Map<String, Object> payload = Collections.singletonMap("key", "value");
+        when(storePlugin.getItem(anyString(), any(MapStoreKey.class)))
+            .thenReturn(CompletableFuture.completedFuture(Optional.of(payload)));
+        when(storePlugin.updateItem(anyString(), any(MapStoreKey.class), any()))
+            .thenReturn(CompletableFuture.completedFuture(payload));
+
+        final DelegatingAsyncMapStore asyncMapStore = new DelegatingAsyncMapStore(storePlugin);
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+
+        assertThat(asyncMapStore.updateItem("myTable", storeKey, payload).join(), is(payload));
+        verify(storePlugin).updateItem(eq("myTable"), eq(storeKey), eq(payload));
+        verify(storePlugin, never()).putItem(anyString(), any(MapStoreKey.class), any());
+    }
+
+    @Test
+    public void testUpdateItemNativeUpsert() {
+        final AsyncMapStorePlugin storePlugin = mock(AsyncMapStorePlugin.class);
+        final Map<String, Object> payload = Collections.singletonMap("key", "value");
+        when(storePlugin.supportsUpsert()).thenReturn(true);
+        when(storePlugin.updateItem(anyString(), any(MapStoreKey.class), any()))
+            .thenReturn(CompletableFuture.completedFuture(payload));
+
+        final DelegatingAsyncMapStore asyncMapStore = new DelegatingAsyncMapStore(storePlugin);
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+
+        assertThat(asyncMapStore.updateItem("myTable", storeKey, payload).join(), is(payload));
+        verify(storePlugin, never()).getItem(anyString(), any(MapStoreKey.class));
+    }
+
+    @Test
+    public void testWriteEndsSingleFlight() throws Exception {
+        final AsyncMapStorePlugin storePlugin = mock(AsyncMapStorePlugin.class);
+        final Map<String, Object> payload = Collections.singletonMap("key", "value");
+        final CompletableFuture<Map<String, Object>> putItem = new CompletableFuture<>();
+        when(storePlugin.putItem(anyString(), any(MapStoreKey.class), any())).thenReturn(putItem);
+
+        final DefaultMapStoreSingleFlight singleFlight = new DefaultMapStoreSingleFlight();
+        final DelegatingAsyncMapStore asyncMapStore = new DelegatingAsyncMapStore(storePlugin, singleFlight);
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+
+        // A synchronous read which starts before the asynchronous write
+        final CountDownLatch readStarted = new CountDownLatch(1);
+        final CountDownLatch readReleased = new CountDownLatch(1);
+        final ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Optional<Map<String, Object>>> staleRead = executorService.submit(() ->
+                singleFlight.getItem("myTable", storeKey, MapQueryOptions.defaultOptions(), () -> {
+                    readStarted.countDown();
+                    Uninterruptibles.awaitUninterruptibly(readReleased, 10L, TimeUnit.SECONDS);
+                    return Optional.empty();
+                }));
+            readStarted.await(10L, TimeUnit.SECONDS);
+
+            final CompletableFuture<Map<String, Object>> write = asyncMapStore.putItem("myTable", storeKey, payload);
+            putItem.complete(payload);
+            assertThat(write.join(), is(payload));
+
+            // Reads after the write don't share the read which started before it
+            assertThat(singleFlight.getItem("myTable", storeKey, MapQueryOptions.defaultOptions(),
+                () -> Optional.of(payload)), is(Optional.of(payload)));
+            readReleased.countDown();
+            assertThat(staleRead.get(), is(Optional.empty()));
+            assertThat(singleFlight.getCoalescedGetItemCount(), is(0L));
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testExecutorPlugin() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        final List<Map<String, Object>> items = ImmutableList.of(ImmutableMap.of("key", "value"));
+        when(storePlugin.getAllItems(anyString())).thenReturn(items);
+
+        final ExecutorAsyncMapStorePlugin asyncStorePlugin =
+            new ExecutorAsyncMapStorePlugin(storePlugin, MoreExecutors.newDirectExecutorService());
+
+        assertThat(asyncStorePlugin.getAllItems("myTable").join(), is(items));
+        verify(storePlugin).getAllItems(eq("myTable"));
+    }
+}
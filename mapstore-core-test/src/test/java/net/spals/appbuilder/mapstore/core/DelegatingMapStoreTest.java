@@ -1,5 +1,6 @@
 package net.spals.appbuilder.mapstore.core;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import net.spals.appbuilder.mapstore.core.MapStoreProvider.DelegatingMapStore;
 import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
@@ -108,6 +109,30 @@ public class DelegatingMapStoreTest {
         verifyException(() -> delegatingMapStore.checkSingleItemKey(key), IllegalArgumentException.class);
     }
 
+    @DataProvider
+    Object[][] checkMultiItemKeyIllegalProvider() {
+        return new Object[][] {
+            {
+                new MapStoreKey.Builder()
+                    .setHash("myHashField", "myHashValue")
+                    .setRange("myRangeField", max())
+                    .build()
+            },
+            {
+                new MapStoreKey.Builder()
+                    .setHash("myHashField", "myHashValue")
+                    .setRange("myRangeField", min())
+                    .build()
+            },
+        };
+    }
+
+    @Test(dataProvider = "checkMultiItemKeyIllegalProvider")
+    public void testCheckMultiItemKeyIllegal(final MapStoreKey key) {
+        final DelegatingMapStore delegatingMapStore = new DelegatingMapStore(mock(MapStorePlugin.class));
+        verifyException(() -> delegatingMapStore.checkMultiItemKey("getItems", key), IllegalArgumentException.class);
+    }
+
     @DataProvider
     Object[][] checkWriteItemProvider() {
         return new Object[][] {
@@ -157,6 +182,58 @@ public class DelegatingMapStoreTest {
         verifyException(() -> delegatingMapStore.checkWriteItem(key, payload), IllegalArgumentException.class);
     }
 
+    @Test
+    public void testBatchDeleteItems() {
+        final MapStorePlugin pluginDelegate = mock(MapStorePlugin.class);
+        final MapStore delegatingMapStore = new DelegatingMapStore(pluginDelegate);
+
+        final List<MapStoreKey> keys = ImmutableList.of(new MapStoreKey.Builder()
+            .setHash("myHashField", "myHashValue")
+            .setRange("myRangeField", equalTo("myRangeValue"))
+            .build());
+        delegatingMapStore.batchDeleteItems("myTable", keys);
+
+        verify(pluginDelegate).batchDeleteItems(eq("myTable"), same(keys));
+    }
+
+    @Test
+    public void testBatchGetItemsIllegalKey() {
+        final MapStore delegatingMapStore = new DelegatingMapStore(mock(MapStorePlugin.class));
+
+        final List<MapStoreKey> keys = ImmutableList.of(new MapStoreKey.Builder()
+            .setHash("myHashField", "myHashValue")
+            .setRange("myRangeField", greaterThan(1L))
+            .build());
+        verifyException(() -> delegatingMapStore.batchGetItems("myTable", keys), IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testBatchPutItems() {
+        final MapStorePlugin pluginDelegate = mock(MapStorePlugin.class);
+        final MapStore delegatingMapStore = new DelegatingMapStore(pluginDelegate);
+
+        final MapStoreKey key = new MapStoreKey.Builder()
+            .setHash("myHashField", "myHashValue")
+            .setRange("myRangeField", equalTo("myRangeValue"))
+            .build();
+        final Map<MapStoreKey, Map<String, Object>> items = ImmutableMap.of(key, ImmutableMap.of("key", "value"));
+        delegatingMapStore.batchPutItems("myTable", items);
+
+        verify(pluginDelegate).batchPutItems(eq("myTable"), same(items));
+    }
+
+    @Test
+    public void testBatchPutItemsIllegalPayload() {
+        final MapStore delegatingMapStore = new DelegatingMapStore(mock(MapStorePlugin.class));
+
+        final MapStoreKey key = new MapStoreKey.Builder()
+            .setHash("myHashField", "myHashValue")
+            .build();
+        final Map<MapStoreKey, Map<String, Object>> items =
+            Collections.singletonMap(key, Collections.singletonMap("key", ""));
+        verifyException(() -> delegatingMapStore.batchPutItems("myTable", items), IllegalArgumentException.class);
+    }
+
     @Test
     public void testCreateTable() {
         final MapStorePlugin pluginDelegate = mock(MapStorePlugin.class);
@@ -235,6 +312,41 @@ public class DelegatingMapStoreTest {
         verify(pluginDelegate).getItem(same(tableName), same(tableKey));
     }
 
+    @Test
+    public void testGetItemProjected() {
+        final MapStorePlugin pluginDelegate = mock(MapStorePlugin.class);
+        final MapStore delegatingMapStore = new DelegatingMapStore(pluginDelegate);
+
+        final String tableName = "myTable";
+        final MapStoreKey tableKey = new MapStoreKey.Builder()
+            .setHash("myHashField", "myHashValue")
+            .setRange("myRangeField", equalTo("myRangeValue"))
+            .build();
+        final MapQueryOptions options = new MapQueryOptions.Builder().addProjection("myField").build();
+        delegatingMapStore.getItem(tableName, tableKey, options);
+
+        verify(pluginDelegate).getItem(same(tableName), same(tableKey), same(options));
+    }
+
+    @Test
+    public void testGetMaxItemProjected() {
+        final MapStorePlugin pluginDelegate = mock(MapStorePlugin.class);
+        when(pluginDelegate.getItems(anyString(), any(MapStoreKey.class), any(MapQueryOptions.class)))
+            .thenReturn(Collections.emptyList());
+        final MapStore delegatingMapStore = new DelegatingMapStore(pluginDelegate);
+
+        final String tableName = "myTable";
+        final MapStoreKey tableKey = new MapStoreKey.Builder()
+            .setHash("myHashField", "myHashValue")
+            .setRange("myRangeField", max())
+            .build();
+        delegatingMapStore.getItem(tableName, tableKey, new MapQueryOptions.Builder().addProjection("myField").build());
+
+        final MapQueryOptions expectedQueryOptions = new MapQueryOptions.Builder()
+            .setOrder(Order.DESC).setLimit(1).addProjection("myField").build();
+        verify(pluginDelegate).getItems(same(tableName), any(MapStoreKey.class), eq(expectedQueryOptions));
+    }
+
     @Test
     public void testGetItemIllegalKey() {
         final MapStore delegatingMapStore = new DelegatingMapStore(mock(MapStorePlugin.class));
@@ -247,6 +359,51 @@ public class DelegatingMapStoreTest {
         verifyException(() -> delegatingMapStore.getItem(tableName, tableKey), IllegalArgumentException.class);
     }
 
+    @Test
+    public void testGetItemsPage() {
+        final MapStorePlugin pluginDelegate = mock(MapStorePlugin.class);
+        final MapStore delegatingMapStore = new DelegatingMapStore(pluginDelegate);
+
+        final String tableName = "myTable";
+        final MapStoreKey tableKey = new MapStoreKey.Builder()
+            .setHash("myHashField", "myHashValue")
+            .setRange("myRangeField", greaterThan(1L))
+            .build();
+        final MapQueryOptions options = new MapQueryOptions.Builder()
+            .setPageSize(10)
+            .setContinuationToken("myToken")
+            .build();
+        delegatingMapStore.getItemsPage(tableName, tableKey, options);
+
+        verify(pluginDelegate).getItemsPage(same(tableName), same(tableKey), same(options));
+    }
+
+    @Test
+    public void testMultiGetItemsIllegalKey() {
+        final MapStore delegatingMapStore = new DelegatingMapStore(mock(MapStorePlugin.class));
+
+        final String tableName = "myTable";
+        final MapStoreKey tableKey = new MapStoreKey.Builder()
+            .setHash("myHashField", "myHashValue")
+            .setRange("myRangeField", max())
+            .build();
+        verifyException(() -> delegatingMapStore.multiGetItems(tableName, ImmutableList.of(tableKey),
+            MapQueryOptions.defaultOptions()), IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testStreamItemsIllegalKey() {
+        final MapStore delegatingMapStore = new DelegatingMapStore(mock(MapStorePlugin.class));
+
+        final String tableName = "myTable";
+        final MapStoreKey tableKey = new MapStoreKey.Builder()
+            .setHash("myHashField", "myHashValue")
+            .setRange("myRangeField", max())
+            .build();
+        verifyException(() -> delegatingMapStore.streamItems(tableName, tableKey, MapQueryOptions.defaultOptions()),
+            IllegalArgumentException.class);
+    }
+
     @DataProvider
     Object[][] getMaxItemProvider() {
         return new Object[][] {
@@ -366,4 +523,21 @@ public class DelegatingMapStoreTest {
         // When item is present, then updateItem runs updateItem
         verify(pluginDelegate).updateItem(eq("myTable"), same(key), same(payload));
     }
+
+    @Test
+    public void testUpdateItemNativeUpsert() {
+        final MapStorePlugin pluginDelegate = mock(MapStorePlugin.class);
+        when(pluginDelegate.supportsUpsert()).thenReturn(true);
+        final MapStore delegatingMapStore = new DelegatingMapStore(pluginDelegate);
+
+        final MapStoreKey key = new MapStoreKey.Builder()
+            .setHash("myHashField", "myHashValue")
+            .setRange("myRangeField", equalTo("myRangeValue"))
+            .build();
+        final Map<String, Object> payload = ImmutableMap.of("myHashField", "myHashValue", "myRangeField", "myRangeValue");
+        delegatingMapStore.updateItem("myTable", key, payload);
+        // Native upserts skip the existence check
+        verify(pluginDelegate).updateItem(eq("myTable"), same(key), same(payload));
+        verify(pluginDelegate, never()).getItem(anyString(), any(MapStoreKey.class));
+    }
 }
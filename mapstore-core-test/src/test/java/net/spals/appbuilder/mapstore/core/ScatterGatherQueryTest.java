@@ -0,0 +1,161 @@
+package net.spals.appbuilder.mapstore.core;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.MoreExecutors;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.Order;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static net.spals.appbuilder.mapstore.core.MapStorePlugin.offsetPage;
+import static net.spals.appbuilder.mapstore.core.MapStorePlugin.projectItem;
+import static net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey.all;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link ScatterGatherQuery}.
+ *
+ * @author tkral
+ */
+public class ScatterGatherQueryTest {
+
+    // Partitions "a", "b" and "c" hold the range keys 0, 3, 6, ..., 1, 4, 7, ... and 2, 5, 8, ...
+    private static final List<String> PARTITIONS = ImmutableList.of("a", "b", "c");
+
+    private ExecutorService executorService;
+
+    @BeforeClass
+    void classSetup() {
+        executorService = Executors.newFixedThreadPool(2);
+    }
+
+    @AfterClass
+    void classTearDown() {
+        executorService.shutdown();
+    }
+
+    @DataProvider
+    Object[][] getItemsProvider() {
+        return new Object[][] {
+            {new MapQueryOptions.Builder().build(), rangeValues(0, 30)},
+            {new MapQueryOptions.Builder().setLimit(4).build(), rangeValues(0, 4)},
+            {new MapQueryOptions.Builder().setOrder(Order.DESC).setLimit(4).build(),
+                ImmutableList.of(29, 28, 27, 26)},
+            // Page sizes smaller than the limit are merged across pages
+            {new MapQueryOptions.Builder().setLimit(7).setPageSize(2).build(), rangeValues(0, 7)},
+        };
+    }
+
+    @Test(dataProvider = "getItemsProvider")
+    public void testGetItems(
+        final MapQueryOptions options,
+        final List<Integer> expectedRangeValues
+    ) {
+        final ScatterGatherQuery query = new ScatterGatherQuery(partitionedStorePlugin(), executorService);
+        final List<Map<String, Object>> items = query.getItems("myTable", partitionKeys(), options);
+
+        assertThat(items.stream().map(item -> item.get("myRangeField")).collect(Collectors.toList()),
+            is(expectedRangeValues));
+    }
+
+    @Test
+    public void testGetItemsProjection() {
+        final ScatterGatherQuery query = new ScatterGatherQuery(partitionedStorePlugin(), executorService);
+        final List<Map<String, Object>> items = query.getItems("myTable", partitionKeys(),
+            new MapQueryOptions.Builder().addProjection("myPartition").setLimit(3).build());
+
+        // The range field is read to merge items, but isn't returned
+        assertThat(items, contains(ImmutableMap.of("myPartition", "a"), ImmutableMap.of("myPartition", "b"),
+            ImmutableMap.of("myPartition", "c")));
+    }
+
+    @Test
+    public void testGetItemsEarlyStop() {
+        final MapStorePlugin storePlugin = partitionedStorePlugin();
+        // Run page fetches on the calling thread so that none of them can be cancelled
+        final ScatterGatherQuery query = new ScatterGatherQuery(storePlugin,
+            MoreExecutors.newDirectExecutorService());
+        query.getItems("myTable", partitionKeys(),
+            new MapQueryOptions.Builder().setLimit(2).setPageSize(1).build());
+
+        // Each partition's first page and its prefetched second page, plus the
+        // third page of partition "a" which is prefetched once item 0 is merged.
+        // The other 23 pages are never read.
+        verify(storePlugin, times(7)).getItemsPage(anyString(), any(MapStoreKey.class),
+            any(MapQueryOptions.class));
+    }
+
+    @Test
+    public void testGetItemsNoKeys() {
+        final ScatterGatherQuery query = new ScatterGatherQuery(partitionedStorePlugin(), executorService);
+        assertThat(query.getItems("myTable", ImmutableList.of(), MapQueryOptions.defaultOptions()), empty());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testGetItemsMismatchedKeys() {
+        final ScatterGatherQuery query = new ScatterGatherQuery(partitionedStorePlugin(), executorService);
+        query.getItems("myTable", ImmutableList.of(
+            new MapStoreKey.Builder().setHash("myHashField", "a").setRange("myRangeField", all()).build(),
+            new MapStoreKey.Builder().setHash("otherHashField", "b").setRange("myRangeField", all()).build()
+        ), MapQueryOptions.defaultOptions());
+    }
+
+    private static List<MapStoreKey> partitionKeys() {
+        return PARTITIONS.stream()
+            .map(partition -> new MapStoreKey.Builder()
+                .setHash("myHashField", partition)
+                .setRange("myRangeField", all())
+                .build())
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * A plugin which pages through the items of each partition in memory.
+     */
+    private static MapStorePlugin partitionedStorePlugin() {
+        final MapStorePlugin storePlugin = mock(MapStorePlugin.class);
+        when(storePlugin.getItemsPage(anyString(), any(MapStoreKey.class), any(MapQueryOptions.class)))
+            .thenAnswer(invocation -> {
+                final MapStoreKey key = invocation.getArgument(1);
+                final MapQueryOptions options = invocation.getArgument(2);
+
+                final int partition = PARTITIONS.indexOf((String) key.getHashValue());
+                final List<Map<String, Object>> items = new ArrayList<>();
+                for (int i = partition; i < 30; i += PARTITIONS.size()) {
+                    items.add(projectItem(ImmutableMap.of("myHashField", key.getHashValue(), "myRangeField", i,
+                        "myPartition", key.getHashValue()), options));
+                }
+                if (options.getOrder() == Order.DESC) {
+                    Collections.reverse(items);
+                }
+                return offsetPage(items, options);
+            });
+        return storePlugin;
+    }
+
+    private static List<Integer> rangeValues(final int from, final int to) {
+        return IntStream.range(from, to).boxed().collect(Collectors.toList());
+    }
+}
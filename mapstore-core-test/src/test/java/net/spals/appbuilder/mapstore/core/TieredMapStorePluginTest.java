@@ -0,0 +1,515 @@
+package net.spals.appbuilder.mapstore.core;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.inject.Provider;
+import com.typesafe.config.ConfigException;
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mockito.InOrder;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static com.googlecode.catchexception.CatchException.verifyException;
+import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.equalTo;
+import static net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey.all;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link TieredMapStorePlugin}
+ * and {@link DefaultMapStoreWriteBehind}.
+ *
+ * @author tkral
+ */
+public class TieredMapStorePluginTest {
+
+    private final MapStoreKey key = new MapStoreKey.Builder()
+        .setHash("myHashField", "myHashValue")
+        .setRange("myRangeField", equalTo(1))
+        .build();
+    private final MapStoreKey rangeKey = new MapStoreKey.Builder()
+        .setHash("myHashField", "myHashValue")
+        .setRange("myRangeField", all())
+        .build();
+    private final Map<String, Object> item = ImmutableMap.of("myHashField", "myHashValue",
+        "myRangeField", 1, "key", "value");
+
+    @DataProvider
+    Object[][] tieredSystemProvider() {
+        return new Object[][] {
+            {"tiered(mapDB, dynamoDB)", true},
+            {"tiered(mapDB,cassandra)", true},
+            {"mapDB", false},
+            {"tiered(mapDB)", false},
+            {null, false},
+        };
+    }
+
+    @Test(dataProvider = "tieredSystemProvider")
+    public void testIsTiered(
+        final String storeSystem,
+        final boolean expectedTiered
+    ) {
+        assertThat(DefaultMapStoreWriteBehind.isTiered(storeSystem), is(expectedTiered));
+    }
+
+    @Test
+    public void testIllegalBatchSize() {
+        final DefaultMapStoreWriteBehind storeWriteBehind = writeBehind(ImmutableMap.of(
+            "mapDB", mock(MapStorePlugin.class), "dynamoDB", mock(MapStorePlugin.class)));
+        storeWriteBehind.batchSize = 0;
+
+        verifyException(() -> storeWriteBehind.getTieredPlugin("tiered(mapDB, dynamoDB)"),
+            ConfigException.BadValue.class);
+    }
+
+    @Test
+    public void testMissingTierPlugin() {
+        final DefaultMapStoreWriteBehind storeWriteBehind =
+            writeBehind(ImmutableMap.of("mapDB", mock(MapStorePlugin.class)));
+
+        verifyException(() -> storeWriteBehind.getTieredPlugin("tiered(mapDB, dynamoDB)"),
+            ConfigException.BadValue.class);
+    }
+
+    @DataProvider
+    Object[][] durableProvider() {
+        return new Object[][] {
+            {false, false, false},
+            {false, true, false},
+            {true, false, false},
+            {true, true, true},
+        };
+    }
+
+    @Test(dataProvider = "durableProvider")
+    public void testIsDurable(
+        final boolean fileBacked,
+        final boolean transactions,
+        final boolean expectedDurable
+    ) throws IOException {
+        final File storeFile = File.createTempFile("mapDB", ".db");
+        storeFile.delete();
+        storeFile.deleteOnExit();
+
+        final DBMaker.Maker dbMaker = fileBacked ? DBMaker.fileDB(storeFile) : DBMaker.memoryDB();
+        final DB mapDB = (transactions ? dbMaker.transactionEnable() : dbMaker).make();
+        try {
+            assertThat(DefaultMapStoreWriteBehind.isDurable(mapDB), is(expectedDurable));
+        } finally {
+            mapDB.close();
+        }
+    }
+
+    @Test
+    public void testVolatileWriteLog() {
+        final DefaultMapStoreWriteBehind storeWriteBehind = writeBehind(ImmutableMap.of(
+            "mapDB", mock(MapStorePlugin.class), "dynamoDB", mock(MapStorePlugin.class)));
+
+        verifyException(() -> storeWriteBehind.getTieredPlugin("tiered(mapDB, dynamoDB)"),
+            ConfigException.BadValue.class);
+    }
+
+    @Test
+    public void testAllowVolatileWriteLog() {
+        final ExecutorServiceFactory executorServiceFactory = mock(ExecutorServiceFactory.class);
+        when(executorServiceFactory.createSingleThreadScheduledExecutor(any()))
+            .thenReturn(mock(ScheduledExecutorService.class));
+        final DefaultMapStoreWriteBehind storeWriteBehind = writeBehind(executorServiceFactory, ImmutableMap.of(
+            "mapDB", mock(MapStorePlugin.class), "dynamoDB", mock(MapStorePlugin.class)));
+        storeWriteBehind.allowVolatileWriteLog = true;
+
+        assertThat(storeWriteBehind.getTieredPlugin("tiered(mapDB, dynamoDB)"),
+            instanceOf(TieredMapStorePlugin.class));
+    }
+
+    @DataProvider
+    Object[][] illegalLocalTierProvider() {
+        return new Object[][] {
+            {"tiered(inMemory, dynamoDB)", 1},
+            {"tiered(cassandra, dynamoDB)", 1},
+            {"tiered(mapDB, dynamoDB)", 2},
+        };
+    }
+
+    @Test(dataProvider = "illegalLocalTierProvider")
+    public void testIllegalLocalTier(
+        final String storeSystem,
+        final int mapDBShardCount
+    ) {
+        final DefaultMapStoreWriteBehind storeWriteBehind = writeBehind(ImmutableMap.of(
+            "mapDB", mock(MapStorePlugin.class), "inMemory", mock(MapStorePlugin.class),
+            "cassandra", mock(MapStorePlugin.class), "dynamoDB", mock(MapStorePlugin.class)));
+        storeWriteBehind.allowVolatileWriteLog = true;
+        storeWriteBehind.mapDBShardCount = mapDBShardCount;
+
+        // The write log must live next to the local items
+        verifyException(() -> storeWriteBehind.getTieredPlugin(storeSystem), ConfigException.BadValue.class);
+    }
+
+    @Test
+    public void testNoTieredPlugin() {
+        final DefaultMapStoreWriteBehind storeWriteBehind = writeBehind(ImmutableMap.of());
+
+        assertThat(storeWriteBehind.getPendingWriteCount(), is(0L));
+        assertThat(storeWriteBehind.getWriteLagMs(), is(0L));
+    }
+
+    @Test
+    public void testWriteLogEntry() {
+        final Object[] logEntry = TieredMapStorePlugin.logEntry("myTable", key, Optional.of(item));
+        assertThat(TieredMapStorePlugin.writeKey(logEntry), is(Maps.immutableEntry("myTable", key)));
+        assertThat(TieredMapStorePlugin.writeItem(logEntry), is(Optional.of(item)));
+
+        final MapStoreKey hashKey = new MapStoreKey.Builder().setHash("myHashField", 1L).build();
+        final Object[] tombstone = TieredMapStorePlugin.logEntry("myTable", hashKey, Optional.empty());
+        assertThat(TieredMapStorePlugin.writeKey(tombstone), is(Maps.immutableEntry("myTable", hashKey)));
+        assertThat(TieredMapStorePlugin.writeItem(tombstone), is(Optional.empty()));
+    }
+
+    @Test
+    public void testPutItemWritesBehind() {
+        final MapStorePlugin localPlugin = mock(MapStorePlugin.class);
+        final MapStorePlugin remotePlugin = mock(MapStorePlugin.class);
+        final ConcurrentNavigableMap<Long, Object[]> writeLog = new ConcurrentSkipListMap<>();
+        when(localPlugin.putItem("myTable", key, ImmutableMap.of("key", "value"))).thenReturn(item);
+        final TieredMapStorePlugin tieredPlugin = new TieredMapStorePlugin(localPlugin, remotePlugin, writeLog, 25);
+
+        assertThat(tieredPlugin.putItem("myTable", key, ImmutableMap.of("key", "value")), is(item));
+        verifyZeroInteractions(remotePlugin);
+        assertThat(tieredPlugin.getPendingWriteCount(), is(1L));
+        assertThat(tieredPlugin.getWriteLagMs(), greaterThanOrEqualTo(0L));
+
+        tieredPlugin.flush();
+
+        verify(remotePlugin).batchPutItems("myTable", ImmutableMap.of(key, item));
+        // Flushed items are evicted from the local plugin
+        verify(localPlugin).deleteItem("myTable", key);
+        assertThat(tieredPlugin.getPendingWriteCount(), is(0L));
+        assertThat(tieredPlugin.getFlushedWriteCount(), is(1L));
+        assertThat(writeLog.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testCoalesceWrites() {
+        final MapStorePlugin localPlugin = mock(MapStorePlugin.class);
+        final MapStorePlugin remotePlugin = mock(MapStorePlugin.class);
+        final ConcurrentNavigableMap<Long, Object[]> writeLog = new ConcurrentSkipListMap<>();
+        when(localPlugin.putItem(eq("myTable"), eq(key), anyMap())).thenAnswer(invocation -> invocation.getArgument(2));
+        final TieredMapStorePlugin tieredPlugin = new TieredMapStorePlugin(localPlugin, remotePlugin, writeLog, 25);
+
+        tieredPlugin.putItem("myTable", key, ImmutableMap.of("key", "value1"));
+        tieredPlugin.putItem("myTable", key, ImmutableMap.of("key", "value2"));
+        tieredPlugin.putItem("myTable", key, item);
+        assertThat(writeLog.size(), is(1));
+
+        tieredPlugin.flush();
+
+        // Only the latest value is flushed
+        verify(remotePlugin, times(1)).batchPutItems("myTable", ImmutableMap.of(key, item));
+        assertThat(tieredPlugin.getFlushedWriteCount(), is(1L));
+    }
+
+    @Test
+    public void testDeleteItemWritesBehind() {
+        final MapStorePlugin localPlugin = mock(MapStorePlugin.class);
+        final MapStorePlugin remotePlugin = mock(MapStorePlugin.class);
+        when(localPlugin.getItem(anyString(), any(MapStoreKey.class))).thenReturn(Optional.empty());
+        final TieredMapStorePlugin tieredPlugin =
+            new TieredMapStorePlugin(localPlugin, remotePlugin, new ConcurrentSkipListMap<>(), 25);
+
+        tieredPlugin.deleteItem("myTable", key);
+        // A pending delete is never read from the remote plugin
+        assertThat(tieredPlugin.getItem("myTable", key), is(Optional.empty()));
+        verifyZeroInteractions(remotePlugin);
+
+        tieredPlugin.flush();
+        verify(remotePlugin).batchDeleteItems("myTable", ImmutableList.of(key));
+    }
+
+    @Test
+    public void testFlushBatchSize() {
+        final MapStorePlugin localPlugin = mock(MapStorePlugin.class);
+        final MapStorePlugin remotePlugin = mock(MapStorePlugin.class);
+        when(localPlugin.putItem(anyString(), any(MapStoreKey.class), anyMap())).thenReturn(item);
+        final TieredMapStorePlugin tieredPlugin =
+            new TieredMapStorePlugin(localPlugin, remotePlugin, new ConcurrentSkipListMap<>(), 2);
+
+        for (int i = 0; i < 3; i++) {
+            tieredPlugin.putItem("myTable", new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", equalTo(i)).build(), ImmutableMap.of("key", "value"));
+        }
+        tieredPlugin.flush();
+
+        verify(remotePlugin, times(2)).batchPutItems(eq("myTable"), anyMap());
+        assertThat(tieredPlugin.getFlushedWriteCount(), is(3L));
+    }
+
+    @Test
+    public void testFailedFlush() {
+        final MapStorePlugin localPlugin = mock(MapStorePlugin.class);
+        final MapStorePlugin remotePlugin = mock(MapStorePlugin.class);
+        when(localPlugin.putItem(anyString(), any(MapStoreKey.class), anyMap())).thenReturn(item);
+        when(remotePlugin.batchPutItems(anyString(), anyMap())).thenThrow(new IllegalStateException());
+        final TieredMapStorePlugin tieredPlugin =
+            new TieredMapStorePlugin(localPlugin, remotePlugin, new ConcurrentSkipListMap<>(), 25);
+
+        tieredPlugin.putItem("myTable", key, ImmutableMap.of("key", "value"));
+        tieredPlugin.flush();
+
+        // Failed writes stay pending (and local) until the next flush
+        assertThat(tieredPlugin.getFailedFlushCount(), is(1L));
+        assertThat(tieredPlugin.getPendingWriteCount(), is(1L));
+        verify(localPlugin, never()).deleteItem(anyString(), any(MapStoreKey.class));
+    }
+
+    @Test
+    public void testRecoverWriteLog() {
+        final ConcurrentNavigableMap<Long, Object[]> writeLog = new ConcurrentSkipListMap<>();
+        final MapStoreKey otherKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+            .setRange("myRangeField", equalTo(2)).build();
+        writeLog.put(0L, TieredMapStorePlugin.logEntry("myTable", key, Optional.empty()));
+        writeLog.put(1L, TieredMapStorePlugin.logEntry("myTable", otherKey, Optional.empty()));
+        // A crash may leave a superseded write in the log
+        writeLog.put(2L, TieredMapStorePlugin.logEntry("myTable", key, Optional.of(item)));
+
+        final MapStorePlugin localPlugin = mock(MapStorePlugin.class);
+        final MapStorePlugin remotePlugin = mock(MapStorePlugin.class);
+        final TieredMapStorePlugin tieredPlugin = new TieredMapStorePlugin(localPlugin, remotePlugin, writeLog, 25);
+
+        assertThat(tieredPlugin.getPendingWriteCount(), is(2L));
+        assertThat(writeLog.keySet(), contains(1L, 2L));
+
+        tieredPlugin.deleteItem("myTable", otherKey);
+        assertThat(writeLog.keySet(), contains(2L, 3L));
+
+        // The recovered writes are flushed from the write log alone
+        tieredPlugin.flush();
+        verify(remotePlugin).batchPutItems("myTable", ImmutableMap.of(key, item));
+        verify(remotePlugin).batchDeleteItems("myTable", ImmutableList.of(otherKey));
+        verify(localPlugin, never()).getItem(anyString(), any(MapStoreKey.class));
+    }
+
+    @Test
+    public void testFlushMissingLocalItem() {
+        final MapStorePlugin localPlugin = mock(MapStorePlugin.class);
+        final MapStorePlugin remotePlugin = mock(MapStorePlugin.class);
+        when(localPlugin.putItem(anyString(), any(MapStoreKey.class), anyMap())).thenReturn(item);
+        when(localPlugin.getItem(anyString(), any(MapStoreKey.class))).thenReturn(Optional.empty());
+        final TieredMapStorePlugin tieredPlugin =
+            new TieredMapStorePlugin(localPlugin, remotePlugin, new ConcurrentSkipListMap<>(), 25);
+
+        tieredPlugin.putItem("myTable", key, ImmutableMap.of("key", "value"));
+        tieredPlugin.flush();
+
+        // An item which is missing locally is never mistaken for a delete
+        verify(remotePlugin).batchPutItems("myTable", ImmutableMap.of(key, item));
+        verify(remotePlugin, never()).batchDeleteItems(anyString(), any());
+    }
+
+    @Test
+    public void testWriteTogether() {
+        final MapStorePlugin localPlugin = mock(MapStorePlugin.class);
+        final ConcurrentNavigableMap<Long, Object[]> writeLog = new ConcurrentSkipListMap<>();
+        final List<Integer> writeLogSizes = new ArrayList<>();
+        when(localPlugin.putItem(anyString(), any(MapStoreKey.class), anyMap())).thenReturn(item);
+        final TieredMapStorePlugin tieredPlugin = new TieredMapStorePlugin(localPlugin, mock(MapStorePlugin.class),
+            writeLog, writes -> {
+                writes.run();
+                writeLogSizes.add(writeLog.size());
+            }, 25);
+
+        tieredPlugin.putItem("myTable", key, ImmutableMap.of("key", "value"));
+        tieredPlugin.flush();
+
+        // The local write and its write log entry are made together, as are the eviction and its removal
+        assertThat(writeLogSizes, contains(1, 0));
+        final InOrder inOrder = inOrder(localPlugin);
+        inOrder.verify(localPlugin).putItem("myTable", key, ImmutableMap.of("key", "value"));
+        inOrder.verify(localPlugin).deleteItem("myTable", key);
+    }
+
+    @Test
+    public void testRecoverMapDBWriteLog() {
+        final DB mapDB = DBMaker.memoryDB().make();
+        DefaultMapStoreWriteBehind.openWriteLog(mapDB)
+            .put(0L, TieredMapStorePlugin.logEntry("myTable", key, Optional.of(item)));
+
+        final ConcurrentNavigableMap<Long, Object[]> writeLog = DefaultMapStoreWriteBehind.openWriteLog(mapDB);
+        final TieredMapStorePlugin tieredPlugin = new TieredMapStorePlugin(mock(MapStorePlugin.class),
+            mock(MapStorePlugin.class), writeLog, 25);
+        assertThat(tieredPlugin.getPendingWriteCount(), is(1L));
+        assertThat(TieredMapStorePlugin.writeItem(writeLog.get(0L)), is(Optional.of(item)));
+    }
+
+    @Test
+    public void testGetItemLocalFirst() {
+        final MapStorePlugin localPlugin = mock(MapStorePlugin.class);
+        final MapStorePlugin remotePlugin = mock(MapStorePlugin.class);
+        when(localPlugin.getItem("myTable", key)).thenReturn(Optional.of(item));
+        final TieredMapStorePlugin tieredPlugin =
+            new TieredMapStorePlugin(localPlugin, remotePlugin, new ConcurrentSkipListMap<>(), 25);
+
+        assertThat(tieredPlugin.getItem("myTable", key), is(Optional.of(item)));
+        verifyZeroInteractions(remotePlugin);
+    }
+
+    @Test
+    public void testGetItemRemote() {
+        final MapStorePlugin localPlugin = mock(MapStorePlugin.class);
+        final MapStorePlugin remotePlugin = mock(MapStorePlugin.class);
+        when(localPlugin.getItem("myTable", key)).thenReturn(Optional.empty());
+        when(remotePlugin.getItem("myTable", key)).thenReturn(Optional.of(item));
+        final TieredMapStorePlugin tieredPlugin =
+            new TieredMapStorePlugin(localPlugin, remotePlugin, new ConcurrentSkipListMap<>(), 25);
+
+        assertThat(tieredPlugin.getItem("myTable", key), is(Optional.of(item)));
+    }
+
+    @Test
+    public void testUpdateItemFillsLocalItem() {
+        final MapStorePlugin localPlugin = mock(MapStorePlugin.class);
+        final MapStorePlugin remotePlugin = mock(MapStorePlugin.class);
+        when(localPlugin.getItem("myTable", key)).thenReturn(Optional.empty());
+        when(remotePlugin.getItem("myTable", key)).thenReturn(Optional.of(item));
+        when(localPlugin.updateItem(anyString(), any(MapStoreKey.class), anyMap())).thenReturn(item);
+        final TieredMapStorePlugin tieredPlugin =
+            new TieredMapStorePlugin(localPlugin, remotePlugin, new ConcurrentSkipListMap<>(), 25);
+
+        tieredPlugin.updateItem("myTable", key, ImmutableMap.of("otherKey", "otherValue"));
+
+        // The remote item is copied locally, so that the update doesn't drop its fields
+        verify(localPlugin).putItem("myTable", key, item);
+        verify(localPlugin).updateItem("myTable", key, ImmutableMap.of("otherKey", "otherValue"));
+        verify(remotePlugin, never()).updateItem(anyString(), any(MapStoreKey.class), any());
+    }
+
+    @Test
+    public void testUpdatePendingItem() {
+        final MapStorePlugin localPlugin = mock(MapStorePlugin.class);
+        final MapStorePlugin remotePlugin = mock(MapStorePlugin.class);
+        when(localPlugin.putItem(anyString(), any(MapStoreKey.class), anyMap())).thenReturn(item);
+        when(localPlugin.updateItem(anyString(), any(MapStoreKey.class), anyMap())).thenReturn(item);
+        final TieredMapStorePlugin tieredPlugin =
+            new TieredMapStorePlugin(localPlugin, remotePlugin, new ConcurrentSkipListMap<>(), 25);
+
+        tieredPlugin.putItem("myTable", key, ImmutableMap.of("key", "value"));
+        tieredPlugin.updateItem("myTable", key, ImmutableMap.of("otherKey", "otherValue"));
+
+        // A pending item is already local, so the remote item isn't read
+        verify(remotePlugin, never()).getItem(anyString(), any(MapStoreKey.class));
+    }
+
+    @Test
+    public void testGetItemsFlushesPendingWrites() {
+        final MapStorePlugin localPlugin = mock(MapStorePlugin.class);
+        final MapStorePlugin remotePlugin = mock(MapStorePlugin.class);
+        when(localPlugin.putItem(anyString(), any(MapStoreKey.class), anyMap())).thenReturn(item);
+        when(remotePlugin.getItems(anyString(), any(MapStoreKey.class), any(MapQueryOptions.class)))
+            .thenReturn(ImmutableList.of(item));
+        final TieredMapStorePlugin tieredPlugin =
+            new TieredMapStorePlugin(localPlugin, remotePlugin, new ConcurrentSkipListMap<>(), 25);
+
+        tieredPlugin.putItem("myTable", key, ImmutableMap.of("key", "value"));
+        assertThat(tieredPlugin.getItems("myTable", rangeKey, MapQueryOptions.defaultOptions()),
+            is(ImmutableList.of(item)));
+
+        // The pending write is flushed before the remote plugin is read, so the read sees it
+        final InOrder inOrder = inOrder(remotePlugin);
+        inOrder.verify(remotePlugin).batchPutItems("myTable", ImmutableMap.of(key, item));
+        inOrder.verify(remotePlugin).getItems("myTable", rangeKey, MapQueryOptions.defaultOptions());
+        assertThat(tieredPlugin.getPendingWriteCount(), is(0L));
+    }
+
+    @Test
+    public void testCountItemsNoPendingWrites() {
+        final MapStorePlugin localPlugin = mock(MapStorePlugin.class);
+        final MapStorePlugin remotePlugin = mock(MapStorePlugin.class);
+        when(localPlugin.putItem(anyString(), any(MapStoreKey.class), anyMap())).thenReturn(item);
+        when(remotePlugin.countItems(anyString(), any(MapStoreKey.class), any(MapQueryOptions.class)))
+            .thenReturn(1L);
+        final TieredMapStorePlugin tieredPlugin =
+            new TieredMapStorePlugin(localPlugin, remotePlugin, new ConcurrentSkipListMap<>(), 25);
+
+        // Writes to other tables aren't flushed
+        tieredPlugin.putItem("myOtherTable", key, ImmutableMap.of("key", "value"));
+        assertThat(tieredPlugin.countItems("myTable", rangeKey, MapQueryOptions.defaultOptions()), is(1L));
+        verify(remotePlugin, never()).batchPutItems(anyString(), anyMap());
+        assertThat(tieredPlugin.getPendingWriteCount(), is(1L));
+    }
+
+    @Test
+    public void testStreamItemsFailedFlush() {
+        final MapStorePlugin localPlugin = mock(MapStorePlugin.class);
+        final MapStorePlugin remotePlugin = mock(MapStorePlugin.class);
+        when(localPlugin.putItem(anyString(), any(MapStoreKey.class), anyMap())).thenReturn(item);
+        when(remotePlugin.batchPutItems(anyString(), anyMap())).thenThrow(new IllegalStateException());
+        final TieredMapStorePlugin tieredPlugin =
+            new TieredMapStorePlugin(localPlugin, remotePlugin, new ConcurrentSkipListMap<>(), 25);
+
+        tieredPlugin.putItem("myTable", key, ImmutableMap.of("key", "value"));
+
+        // A read which can't see the pending writes fails, rather than missing them
+        verifyException(() -> tieredPlugin.streamItems("myTable", rangeKey, MapQueryOptions.defaultOptions()),
+            IllegalStateException.class);
+        verify(remotePlugin, never()).streamItems(anyString(), any(MapStoreKey.class), any(MapQueryOptions.class));
+        assertThat(tieredPlugin.getFailedFlushCount(), is(1L));
+        assertThat(tieredPlugin.getPendingWriteCount(), is(1L));
+    }
+
+    @Test
+    public void testBatchGetItems() {
+        final MapStorePlugin localPlugin = mock(MapStorePlugin.class);
+        final MapStorePlugin remotePlugin = mock(MapStorePlugin.class);
+        final MapStoreKey otherKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+            .setRange("myRangeField", equalTo(2)).build();
+        final Map<String, Object> otherItem = ImmutableMap.of("myHashField", "myHashValue",
+            "myRangeField", 2, "key", "value");
+        when(localPlugin.batchGetItems(anyString(), any())).thenReturn(ImmutableList.of(item));
+        when(remotePlugin.batchGetItems(anyString(), any())).thenReturn(ImmutableList.of(otherItem));
+        final TieredMapStorePlugin tieredPlugin =
+            new TieredMapStorePlugin(localPlugin, remotePlugin, new ConcurrentSkipListMap<>(), 25);
+
+        // Only the keys which aren't found locally are read remotely
+        assertThat(tieredPlugin.batchGetItems("myTable", ImmutableList.of(key, otherKey)),
+            contains(item, otherItem));
+        verify(remotePlugin).batchGetItems("myTable", ImmutableList.of(otherKey));
+    }
+
+    private static DefaultMapStoreWriteBehind writeBehind(final Map<String, MapStorePlugin> storePluginMap) {
+        return writeBehind(mock(ExecutorServiceFactory.class), storePluginMap);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static DefaultMapStoreWriteBehind writeBehind(
+        final ExecutorServiceFactory executorServiceFactory,
+        final Map<String, MapStorePlugin> storePluginMap
+    ) {
+        final Provider<DB> mapDBProvider = mock(Provider.class);
+        when(mapDBProvider.get()).thenReturn(DBMaker.memoryDB().make());
+        return new DefaultMapStoreWriteBehind(executorServiceFactory, mapDBProvider, storePluginMap);
+    }
+}
@@ -1,5 +1,6 @@
 package net.spals.appbuilder.mapstore.core.mapdb;
 
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory;
 import net.spals.appbuilder.mapstore.core.model.MapStoreIndexName;
 import net.spals.appbuilder.mapstore.core.model.MapStoreTableKey;
 import org.mapdb.DB;
@@ -14,6 +15,7 @@ import static net.spals.appbuilder.mapstore.core.mapdb.MapDBIndexMetadata.*;
 import static net.spals.appbuilder.mapstore.core.model.MapStoreIndexName.indexName;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.mock;
 
 /**
  * Unit tests for {@link MapDBIndexMetadata}.
@@ -55,7 +57,7 @@ public class MapDBIndexMetadataTest {
 
     @Test
     public void testFindIndexMetadataFromIndexNameMissing() {
-        final DB mapDB = new MapDBProvider().get();
+        final DB mapDB = new MapDBProvider(mock(ExecutorServiceFactory.class)).get();
 
         catchException(() -> findIndexMetadata(mapDB, MapStoreIndexName.fromString("table.index")));
         assertThat(caughtException(), instanceOf(IllegalArgumentException.class));
@@ -66,7 +68,7 @@ public class MapDBIndexMetadataTest {
         final MapDBIndexMetadata expectedIndexMetadata,
         final String metadataStr
     ) {
-        final DB mapDB = new MapDBProvider().get();
+        final DB mapDB = new MapDBProvider(mock(ExecutorServiceFactory.class)).get();
         mapDB.treeMap(metadataStr).createOrOpen();
 
         final MapDBIndexMetadata indexMetadata = findIndexMetadata(mapDB, MapStoreIndexName.fromString("table.index"));
@@ -75,7 +77,7 @@ public class MapDBIndexMetadataTest {
 
     @Test
     public void testFindIndexMetadataFromTableNameMissing() {
-        final DB mapDB = new MapDBProvider().get();
+        final DB mapDB = new MapDBProvider(mock(ExecutorServiceFactory.class)).get();
 
         final Set<MapDBIndexMetadata> indexMetadatas = findIndexMetadata(mapDB, "table");
         assertThat(indexMetadatas, emptyCollectionOf(MapDBIndexMetadata.class));
@@ -83,7 +85,7 @@ public class MapDBIndexMetadataTest {
 
     @Test
     public void testFindIndexMetadataFromTableName() {
-        final DB mapDB = new MapDBProvider().get();
+        final DB mapDB = new MapDBProvider(mock(ExecutorServiceFactory.class)).get();
 
         final MapStoreIndexName indexName1 = indexName("table", "index1");
         final MapDBIndexMetadata indexMetadata1 = indexMetadata(indexName1,
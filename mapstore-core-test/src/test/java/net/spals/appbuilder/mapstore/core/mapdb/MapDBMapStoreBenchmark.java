@@ -0,0 +1,156 @@
+package net.spals.appbuilder.mapstore.core.mapdb;
+
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory;
+import net.spals.appbuilder.mapstore.core.MapStorePlugin;
+import net.spals.appbuilder.mapstore.core.MapStorePluginBenchmark;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Executors;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Throughput benchmarks for {@link MapDBMapStorePlugin}
+ * (see {@link MapStorePluginBenchmark}).
+ *
+ * This is run by hand (it's not a test), e.g.:
+ *
+ * mvn -pl mapstore-core-test test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=net.spals.appbuilder.mapstore.core.mapdb.MapDBMapStoreBenchmark
+ *
+ * @author tkral
+ */
+public class MapDBMapStoreBenchmark {
+
+    private static final int THREAD_COUNT = 4;
+    private static final int ITEM_COUNT = 20000;
+
+    public static void main(final String[] args) throws IOException {
+        benchmarkStorage();
+        benchmarkHandles();
+        benchmarkShards();
+    }
+
+    /**
+     * Compares the storage settings of {@link MapDBProvider}. The
+     * memory line is the counterpart of the InMemoryMapStoreBenchmark.
+     */
+    private static void benchmarkStorage() throws IOException {
+        benchmarkStorage("memory", memoryDBProvider());
+
+        final MapDBProvider memoryDirectDBProvider = memoryDBProvider();
+        memoryDirectDBProvider.memoryDirect = true;
+        benchmarkStorage("memoryDirect", memoryDirectDBProvider);
+
+        benchmarkStorage("file", fileDBProvider());
+
+        final MapDBProvider fileMmapDBProvider = fileDBProvider();
+        fileMmapDBProvider.fileMmap = true;
+        benchmarkStorage("fileMmap", fileMmapDBProvider);
+
+        final MapDBProvider transactionsDBProvider = fileDBProvider();
+        transactionsDBProvider.transactions = true;
+        benchmarkStorage("file+transactions", transactionsDBProvider);
+
+        final MapDBProvider fileMmapTransactionsDBProvider = fileDBProvider();
+        fileMmapTransactionsDBProvider.fileMmap = true;
+        fileMmapTransactionsDBProvider.transactions = true;
+        benchmarkStorage("fileMmap+transactions", fileMmapTransactionsDBProvider);
+    }
+
+    private static void benchmarkStorage(
+        final String storageName,
+        final MapDBProvider dbProvider
+    ) {
+        final DB mapDB = dbProvider.get();
+        try {
+            System.out.println(MapStorePluginBenchmark.run("storage=" + storageName,
+                new MapDBMapStorePlugin(mapDB), THREAD_COUNT, ITEM_COUNT));
+        } finally {
+            mapDB.close();
+        }
+    }
+
+    /**
+     * Compares cached table handles with a handle which is discarded
+     * before every call, so that each call re-opens the table and
+     * re-attaches its indexes (as every call did before handles were
+     * cached).
+     */
+    private static void benchmarkHandles() {
+        final DB mapDB = DBMaker.memoryDB().make();
+        try {
+            final MapDBMapStorePlugin storePlugin = new MapDBMapStorePlugin(mapDB);
+            System.out.println(MapStorePluginBenchmark.run("handles=cached",
+                storePlugin, THREAD_COUNT, ITEM_COUNT));
+
+            final MapStorePlugin uncachedStorePlugin = (MapStorePlugin) Proxy.newProxyInstance(
+                MapStorePlugin.class.getClassLoader(), new Class<?>[] {MapStorePlugin.class},
+                (proxy, method, args) -> {
+                    if (args != null && args.length > 0 && args[0] instanceof String) {
+                        storePlugin.invalidateTableHandle((String) args[0]);
+                    }
+                    try {
+                        return method.invoke(storePlugin, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+            System.out.println(MapStorePluginBenchmark.run("handles=uncached",
+                uncachedStorePlugin, THREAD_COUNT, ITEM_COUNT));
+        } finally {
+            mapDB.close();
+        }
+    }
+
+    /**
+     * Compares shard counts for a file store with transactions,
+     * which is where a single DB's locks and commits are shared
+     * by the most work.
+     */
+    private static void benchmarkShards() throws IOException {
+        for (final int shardCount : new int[] {1, 2, 4}) {
+            final MapDBProvider dbProvider = fileDBProvider();
+            dbProvider.transactions = true;
+            final MapDBShardsProvider shardsProvider = new MapDBShardsProvider(dbProvider.get(), dbProvider);
+            shardsProvider.shardCount = shardCount;
+
+            final MapDBShards shards = shardsProvider.get();
+            try {
+                System.out.println(MapStorePluginBenchmark.run("shards=" + shardCount,
+                    new MapDBMapStorePlugin(shards), THREAD_COUNT, ITEM_COUNT));
+            } finally {
+                shards.getAll().forEach(DB::close);
+            }
+        }
+    }
+
+    private static MapDBProvider fileDBProvider() throws IOException {
+        final File storeFile = File.createTempFile("mapDB", ".db");
+        storeFile.delete();
+        storeFile.deleteOnExit();
+
+        final MapDBProvider dbProvider = memoryDBProvider();
+        dbProvider.storeFilePath = storeFile.getAbsolutePath();
+        return dbProvider;
+    }
+
+    private static MapDBProvider memoryDBProvider() {
+        final ExecutorServiceFactory executorServiceFactory = mock(ExecutorServiceFactory.class);
+        when(executorServiceFactory.createSingleThreadScheduledExecutor(any())).thenAnswer(invocation ->
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable);
+                thread.setDaemon(true);
+                return thread;
+            }));
+
+        return new MapDBProvider(executorServiceFactory);
+    }
+}
@@ -1,24 +1,39 @@
 package net.spals.appbuilder.mapstore.core.mapdb;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.typesafe.config.ConfigException;
 import net.spals.appbuilder.mapstore.core.MapStoreIndexPlugin;
 import net.spals.appbuilder.mapstore.core.MapStorePlugin;
+import net.spals.appbuilder.mapstore.core.mapdb.MapDBMapStoreIndexPlugin.MapDBBackfillIndexListener;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.Order;
 import net.spals.appbuilder.mapstore.core.model.MapStoreIndexName;
 import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
 import net.spals.appbuilder.mapstore.core.model.MapStoreTableKey;
+import org.mapdb.BTreeMap;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+import static com.googlecode.catchexception.CatchException.verifyException;
 import static net.spals.appbuilder.mapstore.core.mapdb.MapDBIndexMetadata.findIndexMetadata;
 import static net.spals.appbuilder.mapstore.core.mapdb.MapDBIndexMetadata.indexMetadata;
+import static net.spals.appbuilder.mapstore.core.mapdb.MapDBMapStorePlugin.createKeySerializer;
 import static net.spals.appbuilder.mapstore.core.model.MapQueryOptions.defaultOptions;
 import static net.spals.appbuilder.mapstore.core.model.MapStoreIndexName.indexName;
+import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.equalTo;
+import static net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey.all;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
 
@@ -110,6 +125,176 @@ public class MapDBMapStoreIndexPluginTest {
         assertThat(indexItem.get(), is(ImmutableMap.of("tableHashField", "table", "indexHashField", "index")));
     }
 
+    @Test
+    public void testFillRangeIndexAfterCreate() {
+        final DB mapDB = DBMaker.memoryDB().make();
+        final MapStorePlugin storePlugin = new MapDBMapStorePlugin(mapDB);
+        final MapStoreIndexPlugin storeIndexPlugin = new MapDBMapStoreIndexPlugin(mapDB, storePlugin);
+
+        storePlugin.createTable(INDEX_NAME.getTableName(), HASH_RANGE_TABLE_KEY);
+        for (int i = 3; i > 0; i--) {
+            final MapStoreKey tableItemKey = new MapStoreKey.Builder().setHash("tableHashField", "table")
+                .setRange("tableRangeField", equalTo(i)).build();
+            storePlugin.putItem(INDEX_NAME.getTableName(), tableItemKey,
+                ImmutableMap.of("indexHashField", "index", "indexRangeField", 10 - i));
+        }
+
+        storeIndexPlugin.createIndex(INDEX_NAME, HASH_RANGE_INDEX_KEY);
+
+        final MapStoreKey indexItemKey = new MapStoreKey.Builder().setHash("indexHashField", "index")
+            .setRange("indexRangeField", all()).build();
+        final List<Map<String, Object>> indexItems = storeIndexPlugin.getItems(INDEX_NAME, indexItemKey, defaultOptions());
+        assertThat(indexItems.stream().map(item -> item.get("indexRangeField")).collect(Collectors.toList()),
+            contains(7, 8, 9));
+    }
+
+    @DataProvider
+    Object[][] bulkLoadLimitProvider() {
+        return new Object[][] {
+            {0},
+            {1},
+            {1000000},
+        };
+    }
+
+    @Test(dataProvider = "bulkLoadLimitProvider")
+    public void testFillIndexBeyondBulkLoadLimit(final int bulkLoadLimit) {
+        final DB mapDB = DBMaker.memoryDB().make();
+        final MapStorePlugin storePlugin = new MapDBMapStorePlugin(mapDB);
+        final MapDBMapStoreIndexPlugin storeIndexPlugin = new MapDBMapStoreIndexPlugin(mapDB, storePlugin);
+        storeIndexPlugin.bulkLoadLimit = bulkLoadLimit;
+
+        storePlugin.createTable(INDEX_NAME.getTableName(), HASH_RANGE_TABLE_KEY);
+        for (int i = 5; i > 0; i--) {
+            final MapStoreKey tableItemKey = new MapStoreKey.Builder().setHash("tableHashField", "table")
+                .setRange("tableRangeField", equalTo(i)).build();
+            storePlugin.putItem(INDEX_NAME.getTableName(), tableItemKey,
+                ImmutableMap.of("indexHashField", "index", "indexRangeField", 10 - i));
+        }
+
+        storeIndexPlugin.createIndex(INDEX_NAME, HASH_RANGE_INDEX_KEY);
+
+        final MapStoreKey indexItemKey = new MapStoreKey.Builder().setHash("indexHashField", "index")
+            .setRange("indexRangeField", all()).build();
+        final List<Map<String, Object>> indexItems = storeIndexPlugin.getItems(INDEX_NAME, indexItemKey, defaultOptions());
+        assertThat(indexItems.stream().map(item -> item.get("indexRangeField")).collect(Collectors.toList()),
+            contains(5, 6, 7, 8, 9));
+    }
+
+    @Test
+    public void testIllegalBulkLoadLimit() {
+        final DB mapDB = DBMaker.memoryDB().make();
+        final MapDBMapStoreIndexPlugin storeIndexPlugin =
+            new MapDBMapStoreIndexPlugin(mapDB, new MapDBMapStorePlugin(mapDB));
+        storeIndexPlugin.bulkLoadLimit = -1;
+
+        verifyException(() -> storeIndexPlugin.createIndex(INDEX_NAME, HASH_ONLY_INDEX_KEY),
+            ConfigException.BadValue.class);
+    }
+
+    @Test(dataProvider = "bulkLoadLimitProvider")
+    public void testFillIndexDuplicateKeys(final int bulkLoadLimit) {
+        final DB mapDB = DBMaker.memoryDB().make();
+        final MapStorePlugin storePlugin = new MapDBMapStorePlugin(mapDB);
+        final MapDBMapStoreIndexPlugin storeIndexPlugin = new MapDBMapStoreIndexPlugin(mapDB, storePlugin);
+        storeIndexPlugin.bulkLoadLimit = bulkLoadLimit;
+
+        storePlugin.createTable(INDEX_NAME.getTableName(), HASH_ONLY_TABLE_KEY);
+        storePlugin.putItem(INDEX_NAME.getTableName(), new MapStoreKey.Builder().setHash("tableHashField", "table1")
+            .build(), ImmutableMap.of("indexHashField", "index"));
+        storePlugin.putItem(INDEX_NAME.getTableName(), new MapStoreKey.Builder().setHash("tableHashField", "table2")
+            .build(), ImmutableMap.of("indexHashField", "index"));
+
+        storeIndexPlugin.createIndex(INDEX_NAME, HASH_ONLY_INDEX_KEY);
+
+        // As with sequential puts, the last value in table order wins
+        final MapStoreKey indexItemKey = new MapStoreKey.Builder().setHash("indexHashField", "index").build();
+        assertThat(storeIndexPlugin.getItem(INDEX_NAME, indexItemKey),
+            is(Optional.of(ImmutableMap.of("tableHashField", "table2", "indexHashField", "index"))));
+    }
+
+    @Test
+    public void testShardedRangeIndex() {
+        final MapDBShards shards = new MapDBShards(ImmutableList.of(DBMaker.memoryDB().make(),
+            DBMaker.memoryDB().make(), DBMaker.memoryDB().make()));
+        final MapStorePlugin storePlugin = new MapDBMapStorePlugin(shards);
+        final MapStoreIndexPlugin storeIndexPlugin = new MapDBMapStoreIndexPlugin(shards, storePlugin);
+
+        storePlugin.createTable(INDEX_NAME.getTableName(), HASH_ONLY_TABLE_KEY);
+        final Consumer<Integer> putItem = i -> storePlugin.putItem(INDEX_NAME.getTableName(),
+            new MapStoreKey.Builder().setHash("tableHashField", "table" + i).build(),
+            ImmutableMap.of("indexHashField", "index", "indexRangeField", i));
+
+        // Each shard backfills, and then maintains, the index entries of its own items
+        IntStream.of(4, 0, 2).boxed().forEach(putItem);
+        storeIndexPlugin.createIndex(INDEX_NAME, HASH_RANGE_INDEX_KEY);
+        IntStream.of(5, 1, 3).boxed().forEach(putItem);
+
+        shards.getAll().forEach(mapDB -> assertThat(findIndexMetadata(mapDB, "myTable"),
+            contains(indexMetadata(INDEX_NAME, HASH_RANGE_INDEX_KEY))));
+
+        final MapStoreKey indexItemKey = new MapStoreKey.Builder().setHash("indexHashField", "index")
+            .setRange("indexRangeField", all()).build();
+        final List<Map<String, Object>> indexItems = storeIndexPlugin.getItems(INDEX_NAME, indexItemKey,
+            new MapQueryOptions.Builder().setOrder(Order.DESC).build());
+        assertThat(indexItems.stream().map(item -> item.get("indexRangeField")).collect(Collectors.toList()),
+            contains(5, 4, 3, 2, 1, 0));
+
+        final MapStoreKey indexItemEqualKey = new MapStoreKey.Builder().setHash("indexHashField", "index")
+            .setRange("indexRangeField", equalTo(3)).build();
+        assertThat(storeIndexPlugin.getItem(INDEX_NAME, indexItemEqualKey).map(item -> item.get("tableHashField")),
+            is(Optional.of("table3")));
+    }
+
+    @Test
+    public void testBackfillListenerReplay() {
+        final DB mapDB = DBMaker.memoryDB().make();
+        final MapDBIndexMetadata indexMetadata = indexMetadata(INDEX_NAME, HASH_ONLY_INDEX_KEY);
+        final MapDBBackfillIndexListener backfillListener = new MapDBBackfillIndexListener(indexMetadata);
+        final BTreeMap<Object[], byte[]> index = mapDB.treeMap(indexMetadata.toString())
+            .keySerializer(createKeySerializer(String.class, Optional.empty()))
+            .valueSerializer(Serializer.BYTE_ARRAY)
+            .create();
+
+        final byte[] value1 = "{\"indexHashField\":\"index1\"}".getBytes();
+        final byte[] value2 = "{\"indexHashField\":\"index2\"}".getBytes();
+        backfillListener.modify(new Object[]{"table1"}, null, value1, false);
+        assertThat(index.isEmpty(), is(true));
+
+        assertThat(backfillListener.replay(index), is(1));
+        assertThat(backfillListener.isReplayed(), is(true));
+        assertThat(index.get(new Object[]{"index1"}), is(value1));
+
+        // Writes after the replay go directly to the index
+        backfillListener.modify(new Object[]{"table2"}, null, value2, false);
+        backfillListener.modify(new Object[]{"table1"}, value1, null, false);
+        assertThat(index.size(), is(1));
+        assertThat(index.get(new Object[]{"index2"}), is(value2));
+    }
+
+    @Test
+    public void testPutItemAfterCreate() {
+        final DB mapDB = DBMaker.memoryDB().make();
+        final MapStorePlugin storePlugin = new MapDBMapStorePlugin(mapDB);
+        final MapStoreIndexPlugin storeIndexPlugin = new MapDBMapStoreIndexPlugin(mapDB, storePlugin);
+
+        storePlugin.createTable(INDEX_NAME.getTableName(), HASH_ONLY_TABLE_KEY);
+
+        // Open the table before the index exists
+        final MapStoreKey tableItemKey1 = new MapStoreKey.Builder().setHash("tableHashField", "table1").build();
+        storePlugin.putItem(INDEX_NAME.getTableName(), tableItemKey1, ImmutableMap.of("indexHashField", "index1"));
+
+        storeIndexPlugin.createIndex(INDEX_NAME, HASH_ONLY_INDEX_KEY);
+
+        final MapStoreKey tableItemKey2 = new MapStoreKey.Builder().setHash("tableHashField", "table2").build();
+        storePlugin.putItem(INDEX_NAME.getTableName(), tableItemKey2, ImmutableMap.of("indexHashField", "index2"));
+
+        final MapStoreKey indexItemKey = new MapStoreKey.Builder().setHash("indexHashField", "index2").build();
+        final Optional<Map<String, Object>> indexItem = storeIndexPlugin.getItem(INDEX_NAME, indexItemKey);
+        assertThat(indexItem, not(Optional.empty()));
+        assertThat(indexItem.get(), is(ImmutableMap.of("tableHashField", "table2", "indexHashField", "index2")));
+    }
+
     @Test
     public void testGetItem() {
         final DB mapDB = DBMaker.memoryDB().make();
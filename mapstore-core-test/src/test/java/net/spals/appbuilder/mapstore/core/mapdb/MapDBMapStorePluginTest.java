@@ -2,23 +2,41 @@ package net.spals.appbuilder.mapstore.core.mapdb;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.typesafe.config.ConfigException;
 import net.spals.appbuilder.mapstore.core.MapStorePlugin;
+import net.spals.appbuilder.mapstore.core.model.MapAggregate;
+import net.spals.appbuilder.mapstore.core.model.MapItemPage;
+import net.spals.appbuilder.mapstore.core.model.MapQueryFilter;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.Order;
 import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
 import net.spals.appbuilder.mapstore.core.model.MapStoreTableKey;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
+import org.mapdb.HTreeMap;
+import org.mapdb.Serializer;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
 import java.io.IOException;
+import java.math.BigDecimal;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+import static com.googlecode.catchexception.CatchException.verifyException;
 import static net.spals.appbuilder.mapstore.core.model.MapQueryOptions.defaultOptions;
 import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.equalTo;
 import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.greaterThan;
@@ -49,6 +67,65 @@ public class MapDBMapStorePluginTest {
         storePlugin.deleteItem("myTable", key);
     }
 
+    @Test
+    public void testBatchDeleteItems() {
+        final Function<Integer, MapStoreKey> keyFunction = i -> new MapStoreKey.Builder()
+                .setHash("myHashField", "myHashValue").setRange("myRangeField", equalTo(i)).build();
+
+        final MapStorePlugin storePlugin = new MapDBMapStorePlugin(DBMaker.memoryDB().make());
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setRange("myRangeField", Integer.class).build();
+        storePlugin.createTable("myTable", tableKey);
+
+        storePlugin.putItem("myTable", keyFunction.apply(1), ImmutableMap.of("key", "value"));
+        storePlugin.putItem("myTable", keyFunction.apply(2), ImmutableMap.of("key", "value"));
+        // Include a key which doesn't exist to verify idempotency
+        storePlugin.batchDeleteItems("myTable",
+                ImmutableList.of(keyFunction.apply(1), keyFunction.apply(2), keyFunction.apply(3)));
+
+        assertThat(storePlugin.getAllItems("myTable"), empty());
+    }
+
+    @Test
+    public void testBatchGetItems() {
+        final Function<Integer, MapStoreKey> keyFunction = i -> new MapStoreKey.Builder()
+                .setHash("myHashField", "myHashValue").setRange("myRangeField", equalTo(i)).build();
+        final Function<Integer, Map<String, Object>> result = i -> ImmutableMap.of("myHashField", "myHashValue",
+                "myRangeField", i, "key", "value");
+
+        final MapStorePlugin storePlugin = new MapDBMapStorePlugin(DBMaker.memoryDB().make());
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setRange("myRangeField", Integer.class).build();
+        storePlugin.createTable("myTable", tableKey);
+
+        storePlugin.putItem("myTable", keyFunction.apply(1), ImmutableMap.of("key", "value"));
+        storePlugin.putItem("myTable", keyFunction.apply(2), ImmutableMap.of("key", "value"));
+
+        assertThat(storePlugin.batchGetItems("myTable",
+                ImmutableList.of(keyFunction.apply(1), keyFunction.apply(2), keyFunction.apply(3))),
+            containsInAnyOrder(result.apply(1), result.apply(2)));
+    }
+
+    @Test
+    public void testBatchPutItems() {
+        final Function<Integer, MapStoreKey> keyFunction = i -> new MapStoreKey.Builder()
+                .setHash("myHashField", "myHashValue").setRange("myRangeField", equalTo(i)).build();
+        final Function<Integer, Map<String, Object>> result = i -> ImmutableMap.of("myHashField", "myHashValue",
+                "myRangeField", i, "key", "value");
+
+        final MapStorePlugin storePlugin = new MapDBMapStorePlugin(DBMaker.memoryDB().make());
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setRange("myRangeField", Integer.class).build();
+        storePlugin.createTable("myTable", tableKey);
+
+        final Map<MapStoreKey, Map<String, Object>> items = ImmutableMap.of(
+                keyFunction.apply(1), ImmutableMap.of("key", "value"),
+                keyFunction.apply(2), ImmutableMap.of("key", "value"));
+
+        assertThat(storePlugin.batchPutItems("myTable", items), contains(result.apply(1), result.apply(2)));
+        assertThat(storePlugin.getAllItems("myTable"), contains(result.apply(1), result.apply(2)));
+    }
+
     @DataProvider
     Object[][] emptyGetProvider() {
         return new Object[][] {
@@ -160,6 +237,23 @@ public class MapDBMapStorePluginTest {
         assertThat(storePlugin.getItem("myTable", storeKey), is(Optional.of(expectedResult)));
     }
 
+    @Test
+    public void testUpdateItemUpsert() {
+        final MapStorePlugin storePlugin = new MapDBMapStorePlugin(DBMaker.memoryDB().make());
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setRange("myRangeField", String.class).build();
+        storePlugin.createTable("myTable", tableKey);
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", equalTo("myRangeValue")).build();
+
+        final Map<String, Object> expectedResult =
+            ImmutableMap.of("myHashField", "myHashValue", "myRangeField", "myRangeValue", "key", "value");
+        assertThat(storePlugin.supportsUpsert(), is(true));
+        assertThat(storePlugin.updateItem("myTable", storeKey, new HashMap<>(ImmutableMap.of("key", "value",
+            "emptyKey", ""))), is(expectedResult));
+        assertThat(storePlugin.getItem("myTable", storeKey), is(Optional.of(expectedResult)));
+    }
+
     @DataProvider
     Object[][] getItemsProvider() {
         final Function<Integer, Map<String, Object>> result = i -> ImmutableMap.of("myHashField", "myHashValue",
@@ -218,4 +312,516 @@ public class MapDBMapStorePluginTest {
         assertThat(storePlugin.getItems("myTable", storeKey, defaultOptions()),
                 contains(expectedResults.stream().toArray()));
     }
+
+    @Test
+    public void testGetItemsOtherHashValue() {
+        final MapStorePlugin storePlugin = new MapDBMapStorePlugin(DBMaker.memoryDB().make());
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setRange("myRangeField", Integer.class).build();
+        storePlugin.createTable("myTable", tableKey);
+
+        storePlugin.putItem("myTable", new MapStoreKey.Builder().setHash("myHashField", "a")
+                .setRange("myRangeField", equalTo(1)).build(), ImmutableMap.of("key", "value"));
+        storePlugin.putItem("myTable", new MapStoreKey.Builder().setHash("myHashField", "c")
+                .setRange("myRangeField", equalTo(1)).build(), ImmutableMap.of("key", "value"));
+
+        // Range scans must never cross into neighboring hash values
+        assertThat(storePlugin.getItems("myTable", new MapStoreKey.Builder().setHash("myHashField", "b")
+                .setRange("myRangeField", lessThan(2)).build(), defaultOptions()), empty());
+        assertThat(storePlugin.getItems("myTable", new MapStoreKey.Builder().setHash("myHashField", "b")
+                .setRange("myRangeField", greaterThan(0)).build(), defaultOptions()), empty());
+    }
+
+    @Test
+    public void testGetItemsOrderAndLimit() {
+        final Function<Integer, MapStoreKey> keyFunction = i -> new MapStoreKey.Builder()
+                .setHash("myHashField", "myHashValue").setRange("myRangeField", equalTo(i)).build();
+        final Function<Integer, Map<String, Object>> result = i -> ImmutableMap.of("myHashField", "myHashValue",
+                "myRangeField", i, "key", "value");
+
+        final MapStorePlugin storePlugin = new MapDBMapStorePlugin(DBMaker.memoryDB().make());
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setRange("myRangeField", Integer.class).build();
+        storePlugin.createTable("myTable", tableKey);
+        for (int i = 1; i <= 5; i++) {
+            storePlugin.putItem("myTable", keyFunction.apply(i), ImmutableMap.of("key", "value"));
+        }
+
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", greaterThan(1)).build();
+        assertThat(storePlugin.getItems("myTable", storeKey,
+                new MapQueryOptions.Builder().setOrder(Order.ASC).setLimit(2).build()),
+                contains(result.apply(2), result.apply(3)));
+        assertThat(storePlugin.getItems("myTable", storeKey,
+                new MapQueryOptions.Builder().setOrder(Order.DESC).setLimit(2).build()),
+                contains(result.apply(5), result.apply(4)));
+    }
+
+    @Test
+    public void testProjection() {
+        final MapStorePlugin storePlugin = new MapDBMapStorePlugin(DBMaker.memoryDB().make());
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setRange("myRangeField", Integer.class).build();
+        storePlugin.createTable("myTable", tableKey);
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", equalTo(1)).build();
+        storePlugin.putItem("myTable", storeKey, ImmutableMap.of("key", "value", "otherKey", "otherValue"));
+
+        final MapQueryOptions projectedOptions = new MapQueryOptions.Builder()
+                .addProjection("myRangeField", "key").build();
+        assertThat(storePlugin.getItem("myTable", storeKey, projectedOptions),
+                is(Optional.of(ImmutableMap.of("myRangeField", 1, "key", "value"))));
+        assertThat(storePlugin.getItems("myTable", new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", all()).build(), projectedOptions),
+                contains(ImmutableMap.of("myRangeField", 1, "key", "value")));
+    }
+
+    @Test
+    public void testFilters() {
+        final Function<Integer, MapStoreKey> keyFunction = i -> new MapStoreKey.Builder()
+                .setHash("myHashField", "myHashValue").setRange("myRangeField", equalTo(i)).build();
+
+        final MapStorePlugin storePlugin = new MapDBMapStorePlugin(DBMaker.memoryDB().make());
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setRange("myRangeField", Integer.class).build();
+        storePlugin.createTable("myTable", tableKey);
+        for (int i = 1; i <= 5; i++) {
+            storePlugin.putItem("myTable", keyFunction.apply(i), ImmutableMap.of("key", i % 2 == 0 ? "even" : "odd"));
+        }
+
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", all()).build();
+        final MapQueryOptions options = new MapQueryOptions.Builder()
+                .addFilters(MapQueryFilter.equalTo("key", "odd"))
+                .addProjection("myRangeField")
+                .setLimit(2)
+                .build();
+
+        // Filter fields need not be projected and the limit only counts matching items
+        assertThat(storePlugin.getItems("myTable", storeKey, options),
+                contains(ImmutableMap.of("myRangeField", 1), ImmutableMap.of("myRangeField", 3)));
+        assertThat(storePlugin.getItem("myTable", keyFunction.apply(1), options),
+                is(Optional.of(ImmutableMap.of("myRangeField", 1))));
+        assertThat(storePlugin.getItem("myTable", keyFunction.apply(2), options), is(Optional.empty()));
+    }
+
+    @Test
+    public void testFiltersGetItemsPage() {
+        final Function<Integer, MapStoreKey> keyFunction = i -> new MapStoreKey.Builder()
+                .setHash("myHashField", "myHashValue").setRange("myRangeField", equalTo(i)).build();
+
+        final MapStorePlugin storePlugin = new MapDBMapStorePlugin(DBMaker.memoryDB().make());
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setRange("myRangeField", Integer.class).build();
+        storePlugin.createTable("myTable", tableKey);
+        for (int i = 1; i <= 5; i++) {
+            storePlugin.putItem("myTable", keyFunction.apply(i), ImmutableMap.of("key", i % 2 == 0 ? "even" : "odd"));
+        }
+
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", all()).build();
+        final MapQueryOptions options = new MapQueryOptions.Builder()
+                .addFilters(MapQueryFilter.equalTo("key", "odd"))
+                .addProjection("myRangeField")
+                .setPageSize(2)
+                .build();
+
+        final MapItemPage page1 = storePlugin.getItemsPage("myTable", storeKey, options);
+        assertThat(page1.getItems(), contains(ImmutableMap.of("myRangeField", 1), ImmutableMap.of("myRangeField", 3)));
+
+        final MapItemPage page2 = storePlugin.getItemsPage("myTable", storeKey, new MapQueryOptions.Builder()
+                .mergeFrom(options).setContinuationToken(page1.getContinuationToken()).build());
+        assertThat(page2.getItems(), contains(ImmutableMap.of("myRangeField", 5)));
+        assertThat(page2.getContinuationToken(), is(Optional.empty()));
+    }
+
+    @Test
+    public void testCountItems() {
+        final Function<Integer, MapStoreKey> keyFunction = i -> new MapStoreKey.Builder()
+                .setHash("myHashField", "myHashValue").setRange("myRangeField", equalTo(i)).build();
+
+        final MapStorePlugin storePlugin = new MapDBMapStorePlugin(DBMaker.memoryDB().make());
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setRange("myRangeField", Integer.class).build();
+        storePlugin.createTable("myTable", tableKey);
+        for (int i = 1; i <= 5; i++) {
+            storePlugin.putItem("myTable", keyFunction.apply(i), ImmutableMap.of("key", i % 2 == 0 ? "even" : "odd"));
+        }
+
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", greaterThan(1)).build();
+        assertThat(storePlugin.countItems("myTable", storeKey, defaultOptions()), is(4L));
+        // Limits are ignored
+        assertThat(storePlugin.countItems("myTable", storeKey, new MapQueryOptions.Builder().setLimit(1).build()),
+                is(4L));
+        assertThat(storePlugin.countItems("myTable", storeKey, new MapQueryOptions.Builder()
+                .addFilters(MapQueryFilter.equalTo("key", "odd")).build()), is(2L));
+    }
+
+    @Test
+    public void testAggregateItems() {
+        final Function<Integer, MapStoreKey> keyFunction = i -> new MapStoreKey.Builder()
+                .setHash("myHashField", "myHashValue").setRange("myRangeField", equalTo(i)).build();
+
+        final MapStorePlugin storePlugin = new MapDBMapStorePlugin(DBMaker.memoryDB().make());
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setRange("myRangeField", Integer.class).build();
+        storePlugin.createTable("myTable", tableKey);
+        for (int i = 1; i <= 5; i++) {
+            storePlugin.putItem("myTable", keyFunction.apply(i), ImmutableMap.of("size", i * 10));
+        }
+
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", lessThan(4)).build();
+        assertThat(storePlugin.aggregateItems("myTable", storeKey, MapAggregate.sum("size"), defaultOptions()),
+                is(Optional.of(new BigDecimal(60))));
+        assertThat(storePlugin.aggregateItems("myTable", storeKey, MapAggregate.max("size"), defaultOptions()),
+                is(Optional.of(new BigDecimal(30))));
+        assertThat(storePlugin.aggregateItems("myTable", storeKey, MapAggregate.min("size"), new MapQueryOptions.Builder()
+                .addFilters(MapQueryFilter.greaterThan("size", 10)).build()), is(Optional.of(new BigDecimal(20))));
+    }
+
+    @Test
+    public void testGetItemsPage() {
+        final Function<Integer, MapStoreKey> keyFunction = i -> new MapStoreKey.Builder()
+                .setHash("myHashField", "myHashValue").setRange("myRangeField", equalTo(i)).build();
+        final Function<Integer, Map<String, Object>> result = i -> ImmutableMap.of("myHashField", "myHashValue",
+                "myRangeField", i, "key", "value");
+
+        final MapStorePlugin storePlugin = new MapDBMapStorePlugin(DBMaker.memoryDB().make());
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setRange("myRangeField", Integer.class).build();
+        storePlugin.createTable("myTable", tableKey);
+        for (int i = 1; i <= 5; i++) {
+            storePlugin.putItem("myTable", keyFunction.apply(i), ImmutableMap.of("key", "value"));
+        }
+
+        final MapStoreKey storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+                .setRange("myRangeField", all()).build();
+        final MapQueryOptions options = new MapQueryOptions.Builder().setOrder(Order.DESC).setPageSize(2).build();
+
+        final MapItemPage page1 = storePlugin.getItemsPage("myTable", storeKey, options);
+        assertThat(page1.getItems(), contains(result.apply(5), result.apply(4)));
+        assertThat(page1.getContinuationToken().isPresent(), is(true));
+
+        final MapItemPage page2 = storePlugin.getItemsPage("myTable", storeKey, new MapQueryOptions.Builder()
+                .mergeFrom(options).setContinuationToken(page1.getContinuationToken()).build());
+        assertThat(page2.getItems(), contains(result.apply(3), result.apply(2)));
+
+        final MapItemPage page3 = storePlugin.getItemsPage("myTable", storeKey, new MapQueryOptions.Builder()
+                .mergeFrom(options).setContinuationToken(page2.getContinuationToken()).build());
+        assertThat(page3.getItems(), contains(result.apply(1)));
+        assertThat(page3.getContinuationToken(), is(Optional.empty()));
+    }
+
+    @Test(dataProvider = "getItemsProvider")
+    public void testStreamItems(
+        final MapStoreKey storeKey,
+        final List<Map<String, Object>> expectedResults
+    ) {
+        final Function<Integer, MapStoreKey> keyFunction = i -> new MapStoreKey.Builder()
+                .setHash("myHashField", "myHashValue").setRange("myRangeField", equalTo(i)).build();
+
+        final MapStorePlugin storePlugin = new MapDBMapStorePlugin(DBMaker.memoryDB().make());
+        final Map<String, Object> payload = ImmutableMap.of("key", "value");
+
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+                .setRange("myRangeField", Integer.class).build();
+        storePlugin.createTable("myTable", tableKey);
+
+        storePlugin.putItem("myTable", keyFunction.apply(1), payload);
+        storePlugin.putItem("myTable", keyFunction.apply(2), payload);
+        storePlugin.putItem("myTable", keyFunction.apply(3), payload);
+        storePlugin.putItem("myTable", keyFunction.apply(4), payload);
+
+        final MapQueryOptions options = new MapQueryOptions.Builder().setPageSize(1).build();
+        assertThat(storePlugin.streamItems("myTable", storeKey, options).collect(Collectors.toList()),
+                contains(expectedResults.stream().toArray()));
+    }
+
+    @Test
+    public void testStreamAllItemsLimit() {
+        final MapStorePlugin storePlugin = new MapDBMapStorePlugin(DBMaker.memoryDB().make());
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class).build();
+        storePlugin.createTable("myTable", tableKey);
+        for (int i = 0; i < 10; i++) {
+            storePlugin.putItem("myTable", new MapStoreKey.Builder().setHash("myHashField", "myHashValue" + i).build(),
+                    ImmutableMap.of("key", "value"));
+        }
+
+        final MapQueryOptions options = new MapQueryOptions.Builder().setLimit(3).build();
+        assertThat(storePlugin.streamAllItems("myTable", options).count(), is(3L));
+    }
+
+    @Test
+    public void testGetTableCached() {
+        final MapDBMapStorePlugin storePlugin = new MapDBMapStorePlugin(DBMaker.memoryDB().make());
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class).build();
+        storePlugin.createTable("myTable", tableKey);
+
+        final MapStoreKey key = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+        assertThat(storePlugin.getTable("myTable", key), sameInstance(storePlugin.getTable("myTable", key)));
+    }
+
+    @Test
+    public void testReopenedTableKeySerializer() throws IOException {
+        final Path dbDir = Files.createTempDirectory(MapDBMapStorePluginTest.class.getSimpleName());
+        final String dbFilePath = dbDir.resolve(UUID.randomUUID() + ".db").toString();
+
+        final DB createDB = DBMaker.fileDB(dbFilePath).make();
+        new MapDBMapStorePlugin(createDB).createTable("myTable", new MapStoreTableKey.Builder()
+            .setHash("myHashField", String.class).setRange("myRangeField", Integer.class).build());
+        createDB.close();
+
+        // MapDB doesn't record tuple key serializers, so a re-opened table must
+        // use its recorded key types, whichever key it is first opened with
+        final DB writeDB = DBMaker.fileDB(dbFilePath).make();
+        final MapStorePlugin writeStorePlugin = new MapDBMapStorePlugin(writeDB);
+        assertThat(writeStorePlugin.getItems("myTable", new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+            .setRange("myRangeField", all()).build(), defaultOptions()), empty());
+
+        final MapStoreKey key = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+            .setRange("myRangeField", equalTo(1)).build();
+        writeStorePlugin.putItem("myTable", key, ImmutableMap.of("key", "value"));
+        final Map<String, Object> expectedItem =
+            ImmutableMap.of("myHashField", "myHashValue", "myRangeField", 1, "key", "value");
+        assertThat(writeStorePlugin.getItem("myTable", key), is(Optional.of(expectedItem)));
+        writeDB.close();
+
+        // ...or when it's read without a key at all
+        final DB readDB = DBMaker.fileDB(dbFilePath).make();
+        assertThat(new MapDBMapStorePlugin(readDB).getAllItems("myTable"), contains(expectedItem));
+        readDB.close();
+    }
+
+    @DataProvider
+    Object[][] tableStorageProvider() {
+        final MapStoreTableKey hashTableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class).build();
+        final MapStoreTableKey rangeTableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+            .setRange("myRangeField", String.class).build();
+        return new Object[][] {
+            {false, hashTableKey, false},
+            {true, hashTableKey, true},
+            {true, rangeTableKey, false},
+        };
+    }
+
+    @Test(dataProvider = "tableStorageProvider")
+    public void testTableStorage(
+        final boolean hashTableEnabled,
+        final MapStoreTableKey tableKey,
+        final boolean expectedHashTable
+    ) {
+        final DB mapDB = DBMaker.memoryDB().make();
+        final MapDBMapStorePlugin storePlugin = new MapDBMapStorePlugin(mapDB);
+        storePlugin.hashTableEnabled = hashTableEnabled;
+        storePlugin.createTable("myTable", tableKey);
+
+        assertThat(MapDBTable.isHashTable(mapDB, "myTable"), is(expectedHashTable));
+    }
+
+    @Test
+    public void testHashTableSettings() {
+        final MapDBMapStorePlugin storePlugin = new MapDBMapStorePlugin(DBMaker.memoryDB().make());
+        storePlugin.hashTableEnabled = true;
+        storePlugin.hashTableSegments = 16;
+        storePlugin.hashTableExpireAfterWriteMs = 60000L;
+        storePlugin.createTable("myTable",
+            new MapStoreTableKey.Builder().setHash("myHashField", String.class).build());
+
+        final MapStoreKey key = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+        final HTreeMap<?, ?> table = (HTreeMap<?, ?>) storePlugin.getTable("myTable", key).getMap();
+        assertThat(table.getConcShift(), is(4));
+        assertThat(table.getExpireCreateTTL(), is(60000L));
+        assertThat(table.getExpireUpdateTTL(), is(60000L));
+    }
+
+    @Test
+    public void testIllegalHashTableSegments() {
+        final MapDBMapStorePlugin storePlugin = new MapDBMapStorePlugin(DBMaker.memoryDB().make());
+        storePlugin.hashTableSegments = 0;
+
+        verifyException(() -> storePlugin.createTable("myTable",
+            new MapStoreTableKey.Builder().setHash("myHashField", String.class).build()),
+            ConfigException.BadValue.class);
+    }
+
+    @DataProvider
+    Object[][] hashTableSystemProvider() {
+        return new Object[][] {
+            {"mapDB", false},
+            {"tiered(mapDB, dynamoDB)", true},
+        };
+    }
+
+    @Test(dataProvider = "hashTableSystemProvider")
+    public void testHashTableSystem(final String storeSystem, final boolean allowed) {
+        final MapDBMapStorePlugin storePlugin = new MapDBMapStorePlugin(DBMaker.memoryDB().make());
+        storePlugin.storeSystem = storeSystem;
+        storePlugin.hashTableEnabled = true;
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class).build();
+
+        // A MapDB system serves paged reads, which hash tables can't
+        if (allowed) {
+            assertThat(storePlugin.createTable("myTable", tableKey), is(true));
+        } else {
+            verifyException(() -> storePlugin.createTable("myTable", tableKey), ConfigException.BadValue.class);
+        }
+    }
+
+    @Test
+    public void testExistingTreeTable() {
+        final DB mapDB = DBMaker.memoryDB().make();
+        // A hash-only table created before hash tables were used
+        mapDB.treeMap("myTable")
+            .keySerializer(MapDBMapStorePlugin.createKeySerializer(String.class, Optional.empty()))
+            .valueSerializer(Serializer.BYTE_ARRAY)
+            .create();
+
+        final MapDBMapStorePlugin storePlugin = new MapDBMapStorePlugin(mapDB);
+        storePlugin.hashTableEnabled = true;
+        storePlugin.createTable("myTable",
+            new MapStoreTableKey.Builder().setHash("myHashField", String.class).build());
+        final MapStoreKey key = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+        storePlugin.putItem("myTable", key, ImmutableMap.of("key", "value"));
+
+        assertThat(MapDBTable.isHashTable(mapDB, "myTable"), is(false));
+        assertThat(storePlugin.getItem("myTable", key),
+            is(Optional.of(ImmutableMap.of("myHashField", "myHashValue", "key", "value"))));
+    }
+
+    @Test
+    public void testHashTableGetAllItems() {
+        final MapDBMapStorePlugin storePlugin = new MapDBMapStorePlugin(shards(3));
+        storePlugin.hashTableEnabled = true;
+        storePlugin.createTable("myTable",
+            new MapStoreTableKey.Builder().setHash("myHashField", Integer.class).build());
+        for (int i = 0; i < 10; i++) {
+            storePlugin.putItem("myTable", new MapStoreKey.Builder().setHash("myHashField", i).build(),
+                ImmutableMap.of("key", "value"));
+        }
+
+        // Hash tables are read whole in no particular order
+        assertThat(storePlugin.getAllItems("myTable").stream().map(item -> item.get("myHashField"))
+            .collect(Collectors.toList()), containsInAnyOrder(0, 1, 2, 3, 4, 5, 6, 7, 8, 9));
+        assertThat(storePlugin.streamAllItems("myTable", new MapQueryOptions.Builder().setLimit(4).build())
+            .count(), is(4L));
+    }
+
+    @Test
+    public void testHashTableGetAllItemsPage() {
+        final MapDBMapStorePlugin storePlugin = new MapDBMapStorePlugin(DBMaker.memoryDB().make());
+        storePlugin.hashTableEnabled = true;
+        storePlugin.createTable("myTable",
+            new MapStoreTableKey.Builder().setHash("myHashField", Integer.class).build());
+
+        // Hash tables are unordered, so they can't be paged
+        verifyException(() -> storePlugin.getAllItemsPage("myTable",
+            new MapQueryOptions.Builder().setPageSize(6).build()), IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testShardedPutItem() {
+        final List<DB> shardDBs = ImmutableList.of(DBMaker.memoryDB().make(), DBMaker.memoryDB().make(),
+            DBMaker.memoryDB().make());
+        final MapDBShards shards = new MapDBShards(shardDBs);
+        final MapDBMapStorePlugin storePlugin = new MapDBMapStorePlugin(shards);
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class).build();
+        storePlugin.createTable("myTable", tableKey);
+
+        final MapStoreKey key = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build();
+        storePlugin.putItem("myTable", key, ImmutableMap.of("key", "value"));
+
+        // The item is only written to the shard of its hash key
+        final int shard = shards.shardIndex("myHashValue");
+        for (int i = 0; i < shardDBs.size(); i++) {
+            assertThat(((Map<?, ?>) shardDBs.get(i).get("myTable")).size(), is(i == shard ? 1 : 0));
+        }
+        assertThat(storePlugin.getItem("myTable", key),
+            is(Optional.of(ImmutableMap.of("myHashField", "myHashValue", "key", "value"))));
+    }
+
+    @Test
+    public void testShardedBatchPutItems() {
+        final MapStorePlugin storePlugin = new MapDBMapStorePlugin(shards(3));
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class).build();
+        storePlugin.createTable("myTable", tableKey);
+
+        final Map<MapStoreKey, Map<String, Object>> items = new LinkedHashMap<>();
+        for (int i = 9; i >= 0; i--) {
+            items.put(new MapStoreKey.Builder().setHash("myHashField", "myHashValue" + i).build(),
+                ImmutableMap.of("key", i));
+        }
+        storePlugin.batchPutItems("myTable", items);
+
+        assertThat(storePlugin.batchGetItems("myTable", items.keySet()).stream()
+            .map(item -> item.get("key")).collect(Collectors.toList()), contains(9, 8, 7, 6, 5, 4, 3, 2, 1, 0));
+        storePlugin.batchDeleteItems("myTable", items.keySet());
+        assertThat(storePlugin.getAllItems("myTable"), empty());
+    }
+
+    @DataProvider
+    Object[][] shardedScanProvider() {
+        return new Object[][] {
+            {Order.ASC, ImmutableList.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9)},
+            {Order.DESC, ImmutableList.of(9, 8, 7, 6, 5, 4, 3, 2, 1, 0)},
+        };
+    }
+
+    @Test(dataProvider = "shardedScanProvider")
+    public void testShardedGetAllItemsPage(
+        final Order order,
+        final List<Integer> expectedHashValues
+    ) {
+        final MapStorePlugin storePlugin = new MapDBMapStorePlugin(shards(3));
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", Integer.class).build();
+        storePlugin.createTable("myTable", tableKey);
+        for (int i = 0; i < 10; i++) {
+            storePlugin.putItem("myTable", new MapStoreKey.Builder().setHash("myHashField", i).build(),
+                ImmutableMap.of("key", "value"));
+        }
+
+        // All shards are merged in key order, across pages
+        final List<Object> hashValues = new ArrayList<>();
+        MapQueryOptions options = new MapQueryOptions.Builder().setOrder(order).setPageSize(4).build();
+        MapItemPage page;
+        do {
+            page = storePlugin.getAllItemsPage("myTable", options);
+            page.getItems().forEach(item -> hashValues.add(item.get("myHashField")));
+            options = new MapQueryOptions.Builder().mergeFrom(options)
+                .setContinuationToken(page.getContinuationToken()).build();
+        } while (page.getContinuationToken().isPresent());
+
+        assertThat(hashValues, is(expectedHashValues));
+        assertThat(storePlugin.streamAllItems("myTable", new MapQueryOptions.Builder().setOrder(order).build())
+            .map(item -> item.get("myHashField")).collect(Collectors.toList()), is(expectedHashValues));
+    }
+
+    @Test
+    public void testShardedConcurrentPutItems() throws InterruptedException {
+        final MapStorePlugin storePlugin = new MapDBMapStorePlugin(shards(4));
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder().setHash("myHashField", String.class)
+            .setRange("myRangeField", Integer.class).build();
+        storePlugin.createTable("myTable", tableKey);
+
+        final ExecutorService executorService = Executors.newFixedThreadPool(4);
+        for (int i = 0; i < 8; i++) {
+            final String hashValue = "myHashValue" + i;
+            executorService.submit(() -> IntStream.range(0, 100).forEach(j -> storePlugin.putItem("myTable",
+                new MapStoreKey.Builder().setHash("myHashField", hashValue).setRange("myRangeField", equalTo(j))
+                    .build(), ImmutableMap.of("key", "value"))));
+        }
+        executorService.shutdown();
+        assertThat(executorService.awaitTermination(10L, TimeUnit.SECONDS), is(true));
+
+        assertThat(storePlugin.getAllItems("myTable"), hasSize(800));
+        assertThat(storePlugin.countItems("myTable", new MapStoreKey.Builder().setHash("myHashField", "myHashValue0")
+            .setRange("myRangeField", all()).build(), defaultOptions()), is(100L));
+    }
+
+    private static MapDBShards shards(final int shardCount) {
+        return new MapDBShards(IntStream.range(0, shardCount)
+            .mapToObj(shard -> DBMaker.memoryDB().make())
+            .collect(Collectors.toList()));
+    }
 }
@@ -0,0 +1,124 @@
+package net.spals.appbuilder.mapstore.core.mapdb;
+
+import com.typesafe.config.ConfigException;
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory;
+import org.mapdb.DB;
+import org.mapdb.Serializer;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.googlecode.catchexception.CatchException.verifyException;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link MapDBProvider}.
+ *
+ * @author tkral
+ */
+public class MapDBProviderTest {
+
+    @Test
+    public void testMemoryDB() {
+        final ExecutorServiceFactory executorServiceFactory = mock(ExecutorServiceFactory.class);
+        final MapDBProvider dbProvider = new MapDBProvider(executorServiceFactory);
+
+        final DB mapDB = dbProvider.get();
+        assertThat(mapDB.isClosed(), is(false));
+        verifyZeroInteractions(executorServiceFactory);
+    }
+
+    @Test
+    public void testMemoryDirectDB() {
+        final MapDBProvider dbProvider = new MapDBProvider(mock(ExecutorServiceFactory.class));
+        dbProvider.memoryDirect = true;
+        dbProvider.concurrencyScale = 4;
+
+        final DB mapDB = dbProvider.get();
+        final Map<String, String> map = mapDB.hashMap("myMap", Serializer.STRING, Serializer.STRING).createOrOpen();
+        map.put("key", "value");
+        assertThat(map.get("key"), is("value"));
+    }
+
+    @Test
+    public void testFileMmapDB() throws IOException {
+        final File storeFile = File.createTempFile("mapDB", ".db");
+        storeFile.delete();
+        storeFile.deleteOnExit();
+
+        final MapDBProvider dbProvider = new MapDBProvider(mock(ExecutorServiceFactory.class));
+        dbProvider.storeFilePath = storeFile.getAbsolutePath();
+        dbProvider.fileMmap = true;
+        dbProvider.allocateStartSize = 1024L * 1024L;
+        dbProvider.allocateIncrement = 1024L * 1024L;
+
+        final DB mapDB = dbProvider.get();
+        mapDB.hashMap("myMap", Serializer.STRING, Serializer.STRING).createOrOpen().put("key", "value");
+        mapDB.close();
+
+        final DB reopenedDB = dbProvider.get();
+        assertThat(reopenedDB.hashMap("myMap", Serializer.STRING, Serializer.STRING).createOrOpen().get("key"),
+            is("value"));
+        reopenedDB.close();
+    }
+
+    @Test
+    public void testTransactionsScheduleCommit() {
+        final ExecutorServiceFactory executorServiceFactory = mock(ExecutorServiceFactory.class);
+        final ScheduledExecutorService executorService = mock(ScheduledExecutorService.class);
+        when(executorServiceFactory.createSingleThreadScheduledExecutor(any(ExecutorServiceFactory.Key.class)))
+            .thenReturn(executorService);
+
+        final MapDBProvider dbProvider = new MapDBProvider(executorServiceFactory);
+        dbProvider.transactions = true;
+        dbProvider.commitIntervalMs = 500L;
+
+        dbProvider.get();
+        verify(executorService).scheduleWithFixedDelay(any(Runnable.class), eq(500L), eq(500L),
+            eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testTransactionsCommitOnCloseOnly() {
+        final ExecutorServiceFactory executorServiceFactory = mock(ExecutorServiceFactory.class);
+        final MapDBProvider dbProvider = new MapDBProvider(executorServiceFactory);
+        dbProvider.transactions = true;
+        dbProvider.commitIntervalMs = 0L;
+
+        dbProvider.get();
+        verifyZeroInteractions(executorServiceFactory);
+    }
+
+    @Test
+    public void testCommitClosedDB() {
+        final DB mapDB = new MapDBProvider(mock(ExecutorServiceFactory.class)).get();
+        mapDB.close();
+        // Must be a no-op
+        MapDBProvider.commit(mapDB);
+    }
+
+    @Test
+    public void testIllegalConcurrencyScale() {
+        final MapDBProvider dbProvider = new MapDBProvider(mock(ExecutorServiceFactory.class));
+        dbProvider.concurrencyScale = -1;
+
+        verifyException(dbProvider::get, ConfigException.BadValue.class);
+    }
+
+    @Test
+    public void testIllegalCommitInterval() {
+        final MapDBProvider dbProvider = new MapDBProvider(mock(ExecutorServiceFactory.class));
+        dbProvider.transactions = true;
+        dbProvider.commitIntervalMs = -1L;
+
+        verifyException(dbProvider::get, ConfigException.BadValue.class);
+    }
+}
@@ -0,0 +1,89 @@
+package net.spals.appbuilder.mapstore.core.mapdb;
+
+import com.typesafe.config.ConfigException;
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static com.googlecode.catchexception.CatchException.verifyException;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Unit tests for {@link MapDBShardsProvider}.
+ *
+ * @author tkral
+ */
+public class MapDBShardsProviderTest {
+
+    @Test
+    public void testSingleShard() {
+        final DB mapDB = DBMaker.memoryDB().make();
+        final MapDBShardsProvider shardsProvider =
+            new MapDBShardsProvider(mapDB, new MapDBProvider(mock(ExecutorServiceFactory.class)));
+
+        final MapDBShards shards = shardsProvider.get();
+        assertThat(shards.size(), is(1));
+        assertThat(shards.getPrimary(), sameInstance(mapDB));
+    }
+
+    @Test
+    public void testFileShards() throws IOException {
+        final File storeFile = File.createTempFile("mapDB", ".db");
+        storeFile.delete();
+        storeFile.deleteOnExit();
+
+        final MapDBProvider dbProvider = new MapDBProvider(mock(ExecutorServiceFactory.class));
+        dbProvider.storeFilePath = storeFile.getAbsolutePath();
+        final DB mapDB = dbProvider.get();
+
+        final MapDBShardsProvider shardsProvider = new MapDBShardsProvider(mapDB, dbProvider);
+        shardsProvider.shardCount = 3;
+
+        final MapDBShards shards = shardsProvider.get();
+        assertThat(shards.size(), is(3));
+        assertThat(shards.getPrimary(), sameInstance(mapDB));
+        // Each additional shard has its own file
+        for (int shard = 1; shard < 3; shard++) {
+            final File shardFile = new File(storeFile.getAbsolutePath() + "." + shard);
+            shardFile.deleteOnExit();
+            assertThat(shardFile.exists(), is(true));
+        }
+        shards.getAll().forEach(DB::close);
+    }
+
+    @Test
+    public void testChangedShardCount() throws IOException {
+        final File storeFile = File.createTempFile("mapDB", ".db");
+        storeFile.delete();
+        storeFile.deleteOnExit();
+        new File(storeFile.getAbsolutePath() + ".1").deleteOnExit();
+
+        final MapDBProvider dbProvider = new MapDBProvider(mock(ExecutorServiceFactory.class));
+        dbProvider.storeFilePath = storeFile.getAbsolutePath();
+        final MapDBShardsProvider shardsProvider = new MapDBShardsProvider(dbProvider.get(), dbProvider);
+        shardsProvider.shardCount = 2;
+        shardsProvider.get().getAll().forEach(DB::close);
+
+        // Reopening with another count would route existing items to the wrong shards
+        final DB mapDB = dbProvider.get();
+        final MapDBShardsProvider reopenedShardsProvider = new MapDBShardsProvider(mapDB, dbProvider);
+        verifyException(reopenedShardsProvider::get, ConfigException.BadValue.class);
+        mapDB.close();
+    }
+
+    @Test
+    public void testIllegalShardCount() {
+        final MapDBShardsProvider shardsProvider = new MapDBShardsProvider(DBMaker.memoryDB().make(),
+            new MapDBProvider(mock(ExecutorServiceFactory.class)));
+        shardsProvider.shardCount = 0;
+
+        verifyException(shardsProvider::get, ConfigException.BadValue.class);
+    }
+}
@@ -0,0 +1,89 @@
+package net.spals.appbuilder.mapstore.core.mapdb;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.typesafe.config.ConfigException;
+import org.mapdb.BTreeMap;
+import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static com.googlecode.catchexception.CatchException.verifyException;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * Unit tests for {@link MapDBValueFormat}.
+ *
+ * @author tkral
+ */
+public class MapDBValueFormatTest {
+
+    private static final Map<String, Object> VALUE = ImmutableMap.of(
+        "myHashField", "myHashValue",
+        "myRangeField", 1,
+        "myListField", ImmutableList.of("a", "b"));
+
+    @DataProvider
+    Object[][] valueFormatProvider() {
+        return new Object[][] {
+            {MapDBValueFormat.JSON},
+            {MapDBValueFormat.SMILE},
+        };
+    }
+
+    @Test(dataProvider = "valueFormatProvider")
+    public void testRoundTrip(final MapDBValueFormat valueFormat) {
+        final byte[] encodedValue = valueFormat.encode(VALUE);
+
+        assertThat(valueFormat.isEncoded(encodedValue), is(true));
+        assertThat(MapDBValueFormat.decode(encodedValue), is(VALUE));
+    }
+
+    @Test(dataProvider = "valueFormatProvider")
+    public void testDecodeFields(final MapDBValueFormat valueFormat) {
+        final byte[] encodedValue = valueFormat.encode(VALUE);
+
+        assertThat(MapDBValueFormat.decode(encodedValue, ImmutableSet.of("myRangeField", "myMissingField")),
+            is(ImmutableMap.of("myRangeField", 1)));
+        assertThat(MapDBValueFormat.decode(encodedValue, ImmutableSet.of("myListField")),
+            is(ImmutableMap.of("myListField", ImmutableList.of("a", "b"))));
+        assertThat(MapDBValueFormat.decode(encodedValue, ImmutableSet.of()), is(VALUE));
+    }
+
+    @Test
+    public void testDecodeLegacyJson() {
+        final byte[] legacyValue = "{\"key\":\"value\"}".getBytes(StandardCharsets.UTF_8);
+
+        assertThat(MapDBValueFormat.JSON.isEncoded(legacyValue), is(true));
+        assertThat(MapDBValueFormat.decode(legacyValue), is(ImmutableMap.of("key", "value")));
+    }
+
+    @Test
+    public void testDecodeUnknownHeader() {
+        verifyException(() -> MapDBValueFormat.decode(new byte[]{(byte) 0x7F}), IllegalStateException.class);
+    }
+
+    @Test
+    public void testFromName() {
+        assertThat(MapDBValueFormat.fromName("smile"), is(MapDBValueFormat.SMILE));
+        verifyException(() -> MapDBValueFormat.fromName("xml"), ConfigException.BadValue.class);
+    }
+
+    @Test
+    public void testRewriteTable() {
+        final BTreeMap<String, byte[]> table = DBMaker.memoryDB().make()
+            .treeMap("myTable", Serializer.STRING, Serializer.BYTE_ARRAY).create();
+        table.put("json", MapDBValueFormat.JSON.encode(VALUE));
+        table.put("smile", MapDBValueFormat.SMILE.encode(VALUE));
+
+        assertThat(MapDBValueRewriter.rewriteTable(table, MapDBValueFormat.SMILE), is(1L));
+        assertThat(MapDBValueFormat.SMILE.isEncoded(table.get("json")), is(true));
+        assertThat(MapDBValueFormat.decode(table.get("json")), is(VALUE));
+    }
+}
@@ -0,0 +1,27 @@
+package net.spals.appbuilder.mapstore.core.memory;
+
+import net.spals.appbuilder.mapstore.core.MapStorePluginBenchmark;
+
+/**
+ * Throughput benchmark for {@link InMemoryMapStorePlugin}
+ * (see {@link MapStorePluginBenchmark}). Compare it with the
+ * storage=memory line of the MapDBMapStoreBenchmark, which
+ * runs the same workload.
+ *
+ * This is run by hand (it's not a test), e.g.:
+ *
+ * mvn -pl mapstore-core-test test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=net.spals.appbuilder.mapstore.core.memory.InMemoryMapStoreBenchmark
+ *
+ * @author tkral
+ */
+public class InMemoryMapStoreBenchmark {
+
+    private static final int THREAD_COUNT = 4;
+    private static final int ITEM_COUNT = 20000;
+
+    public static void main(final String[] args) {
+        System.out.println(MapStorePluginBenchmark.run("inMemory",
+            new InMemoryMapStorePlugin(), THREAD_COUNT, ITEM_COUNT));
+    }
+}
@@ -0,0 +1,247 @@
+package net.spals.appbuilder.mapstore.core.memory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.BaseEncoding;
+import net.spals.appbuilder.mapstore.core.MapStorePlugin;
+import net.spals.appbuilder.mapstore.core.model.MapItemPage;
+import net.spals.appbuilder.mapstore.core.model.MapQueryFilter;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.Order;
+import net.spals.appbuilder.mapstore.core.model.MapRangeKey;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+import net.spals.appbuilder.mapstore.core.model.MapStoreTableKey;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static net.spals.appbuilder.mapstore.core.MapStorePluginBatchContract.assertBatchItems;
+import static net.spals.appbuilder.mapstore.core.model.MapQueryOptions.defaultOptions;
+import static net.spals.appbuilder.mapstore.core.model.MultiValueMapRangeKey.in;
+import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.equalTo;
+import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.greaterThan;
+import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.greaterThanOrEqualTo;
+import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.lessThan;
+import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.lessThanOrEqualTo;
+import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.like;
+import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.startsWith;
+import static net.spals.appbuilder.mapstore.core.model.TwoValueMapRangeKey.between;
+import static net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey.all;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * Unit tests for {@link InMemoryMapStorePlugin}
+ *
+ * @author tkral
+ */
+public class InMemoryMapStorePluginTest {
+
+    private static final List<String> RANGE_VALUES = ImmutableList.of("a", "ab", "abc", "b", "ba", "c");
+
+    private final MapStorePlugin storePlugin = new InMemoryMapStorePlugin();
+
+    @BeforeClass
+    void classSetup() {
+        final MapStoreTableKey tableKey = new MapStoreTableKey.Builder()
+            .setHash("myHashField", String.class)
+            .setRange("myRangeField", String.class)
+            .build();
+        storePlugin.createTable("myTable", tableKey);
+        RANGE_VALUES.forEach(rangeValue -> storePlugin.putItem("myTable", key(equalTo(rangeValue)),
+            ImmutableMap.of("key", "value")));
+        // Items of other partitions are never read
+        storePlugin.putItem("myTable", new MapStoreKey.Builder().setHash("myHashField", "otherHashValue")
+            .setRange("myRangeField", equalTo("a")).build(), ImmutableMap.of("key", "value"));
+    }
+
+    @DataProvider
+    Object[][] getItemsProvider() {
+        return new Object[][] {
+            {all(), RANGE_VALUES},
+            {between("ab", "b"), ImmutableList.of("ab", "abc", "b")},
+            {equalTo("b"), ImmutableList.of("b")},
+            {equalTo("d"), ImmutableList.of()},
+            {greaterThan("b"), ImmutableList.of("ba", "c")},
+            {greaterThanOrEqualTo("b"), ImmutableList.of("b", "ba", "c")},
+            {lessThan("ab"), ImmutableList.of("a")},
+            {lessThanOrEqualTo("ab"), ImmutableList.of("a", "ab")},
+            {in("c", "ab", "d"), ImmutableList.of("ab", "c")},
+            {like("b"), ImmutableList.of("ab", "abc", "b", "ba")},
+            {startsWith("ab"), ImmutableList.of("ab", "abc")},
+        };
+    }
+
+    @Test(dataProvider = "getItemsProvider")
+    public void testGetItems(
+        final MapRangeKey rangeKey,
+        final List<String> expectedRangeValues
+    ) {
+        assertThat(rangeValues(storePlugin.getItems("myTable", key(rangeKey), defaultOptions())),
+            is(expectedRangeValues));
+    }
+
+    @Test(dataProvider = "getItemsProvider")
+    public void testGetItemsDescending(
+        final MapRangeKey rangeKey,
+        final List<String> expectedRangeValues
+    ) {
+        final List<String> reversedRangeValues = new ArrayList<>(expectedRangeValues);
+        Collections.reverse(reversedRangeValues);
+
+        assertThat(rangeValues(storePlugin.getItems("myTable", key(rangeKey),
+            new MapQueryOptions.Builder().setOrder(Order.DESC).build())), is(reversedRangeValues));
+    }
+
+    @Test
+    public void testGetItemsPage() {
+        final List<String> rangeValues = new ArrayList<>();
+        MapQueryOptions options = new MapQueryOptions.Builder().setPageSize(4).build();
+        MapItemPage page;
+        do {
+            page = storePlugin.getItemsPage("myTable", key(all()), options);
+            rangeValues.addAll(rangeValues(page.getItems()));
+            options = new MapQueryOptions.Builder().mergeFrom(options)
+                .setContinuationToken(page.getContinuationToken()).build();
+        } while (page.getContinuationToken().isPresent());
+
+        assertThat(rangeValues, is(RANGE_VALUES));
+    }
+
+    @Test
+    public void testGetAllItemsPage() {
+        final MapItemPage page = storePlugin.getAllItemsPage("myTable",
+            new MapQueryOptions.Builder().setPageSize(6).build());
+        final MapItemPage nextPage = storePlugin.getAllItemsPage("myTable",
+            new MapQueryOptions.Builder().setContinuationToken(page.getContinuationToken()).build());
+
+        // Partitions are read in hash key order
+        assertThat(rangeValues(page.getItems()), is(RANGE_VALUES));
+        assertThat(nextPage.getItems(), contains(ImmutableMap.of("myHashField", "otherHashValue",
+            "myRangeField", "a", "key", "value")));
+        assertThat(nextPage.getContinuationToken(), is(Optional.empty()));
+    }
+
+    @DataProvider
+    Object[][] continuationTokenProvider() {
+        return new Object[][] {
+            {new Object[]{"myHashValue"}, ImmutableList.of(String.class)},
+            {new Object[]{"myHashValue", 1}, ImmutableList.of(String.class, Integer.class)},
+            // Values which JSON would read back as another type
+            {new Object[]{1L, 2L}, ImmutableList.of(Long.class, Long.class)},
+            {new Object[]{"myHashValue", 1.5f}, ImmutableList.of(String.class, Float.class)},
+            {new Object[]{"myHashValue", new BigDecimal("1.50")}, ImmutableList.of(String.class, BigDecimal.class)},
+        };
+    }
+
+    @Test(dataProvider = "continuationTokenProvider")
+    public void testContinuationToken(
+        final Object[] keyArray,
+        final List<Class<?>> keyTypes
+    ) {
+        final String continuationToken = InMemoryMapStorePlugin.encodeContinuationToken(keyArray);
+        assertThat(InMemoryMapStorePlugin.decodeContinuationToken(keyTypes, continuationToken), is(keyArray));
+    }
+
+    @DataProvider
+    Object[][] invalidContinuationTokenProvider() {
+        return new Object[][] {
+            {"not a token"},
+            {BaseEncoding.base64Url().encode("{}".getBytes(StandardCharsets.UTF_8))},
+            {BaseEncoding.base64Url().encode("[\"myHashValue\"]".getBytes(StandardCharsets.UTF_8))},
+            {BaseEncoding.base64Url().encode("[\"myHashValue\",null]".getBytes(StandardCharsets.UTF_8))},
+            {BaseEncoding.base64Url().encode("[\"myHashValue\",\"a\"]".getBytes(StandardCharsets.UTF_8))},
+        };
+    }
+
+    @Test(dataProvider = "invalidContinuationTokenProvider", expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidContinuationToken(final String continuationToken) {
+        InMemoryMapStorePlugin.decodeContinuationToken(ImmutableList.of(String.class, Integer.class),
+            continuationToken);
+    }
+
+    @Test
+    public void testGetItemsFiltersAndProjection() {
+        final MapQueryOptions options = new MapQueryOptions.Builder()
+            .addFilters(MapQueryFilter.beginsWith("myRangeField", "a"))
+            .addProjection("myRangeField")
+            .setLimit(2)
+            .build();
+
+        assertThat(storePlugin.getItems("myTable", key(all()), options),
+            contains(ImmutableMap.of("myRangeField", "a"), ImmutableMap.of("myRangeField", "ab")));
+        assertThat(storePlugin.countItems("myTable", key(all()), options), is(3L));
+    }
+
+    @Test
+    public void testHashOnlyTable() {
+        final MapStorePlugin hashStorePlugin = new InMemoryMapStorePlugin();
+        final MapStoreKey key = new MapStoreKey.Builder().setHash("myHashField", 1L).build();
+        hashStorePlugin.putItem("myTable", key, ImmutableMap.of("key", "value"));
+
+        assertThat(hashStorePlugin.getItem("myTable", key),
+            is(Optional.of(ImmutableMap.of("myHashField", 1L, "key", "value"))));
+        assertThat(hashStorePlugin.getItems("myTable", key, defaultOptions()),
+            contains(ImmutableMap.of("myHashField", 1L, "key", "value")));
+
+        hashStorePlugin.deleteItem("myTable", key);
+        assertThat(hashStorePlugin.getAllItems("myTable"), empty());
+    }
+
+    @Test
+    public void testBatchItems() {
+        final MapStorePlugin hashStorePlugin = new InMemoryMapStorePlugin();
+        assertBatchItems(hashStorePlugin, "myHashTable", "myHashField", 100);
+    }
+
+    @Test
+    public void testUpdateItem() {
+        final MapStorePlugin updateStorePlugin = new InMemoryMapStorePlugin();
+        final MapStoreKey key = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+            .setRange("myRangeField", equalTo(1)).build();
+        final Map<String, Object> item = updateStorePlugin.putItem("myTable", key,
+            ImmutableMap.of("key", "value", "numberField", 1L));
+
+        final Map<String, Object> updatedItem = updateStorePlugin.updateItem("myTable", key,
+            ImmutableMap.of("key", "", "otherKey", "otherValue"));
+
+        assertThat(updatedItem, is(ImmutableMap.of("myHashField", "myHashValue", "myRangeField", 1,
+            "numberField", 1L, "otherKey", "otherValue")));
+        // Updates swap in a copy, so items which were already read don't change
+        assertThat(item, is(ImmutableMap.of("myHashField", "myHashValue", "myRangeField", 1,
+            "key", "value", "numberField", 1L)));
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void testItemsAreImmutable() {
+        storePlugin.getItem("myTable", key(equalTo("a"))).get().put("key", "otherValue");
+    }
+
+    @Test
+    public void testMissingTable() {
+        assertThat(storePlugin.getItem("missingTable", key(equalTo("a"))), is(Optional.empty()));
+        assertThat(storePlugin.getItems("missingTable", key(all()), defaultOptions()), empty());
+    }
+
+    private static MapStoreKey key(final MapRangeKey rangeKey) {
+        return new MapStoreKey.Builder()
+            .setHash("myHashField", "myHashValue")
+            .setRange("myRangeField", rangeKey)
+            .build();
+    }
+
+    private static List<String> rangeValues(final List<Map<String, Object>> items) {
+        return items.stream().map(item -> (String) item.get("myRangeField")).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,46 @@
+package net.spals.appbuilder.mapstore.core.model;
+
+import com.google.common.collect.ImmutableMap;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static net.spals.appbuilder.mapstore.core.model.MapAggregate.max;
+import static net.spals.appbuilder.mapstore.core.model.MapAggregate.min;
+import static net.spals.appbuilder.mapstore.core.model.MapAggregate.sum;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * Unit tests for {@link MapAggregate}.
+ *
+ * @author tkral
+ */
+public class MapAggregateTest {
+
+    @DataProvider
+    Object[][] aggregateProvider() {
+        return new Object[][] {
+            {max("size"), Optional.of(new BigDecimal("2.5"))},
+            {min("size"), Optional.of(new BigDecimal("1"))},
+            {sum("size"), Optional.of(new BigDecimal("3.5"))},
+            {sum("missing"), Optional.empty()},
+        };
+    }
+
+    @Test(dataProvider = "aggregateProvider")
+    public void testAggregate(
+        final MapAggregate aggregate,
+        final Optional<BigDecimal> expectedAggregate
+    ) {
+        // Non-numeric and non-finite values are left out
+        final Stream<Map<String, Object>> items = Stream.of(ImmutableMap.of("size", 1),
+            ImmutableMap.of("size", 2.5d), ImmutableMap.of("size", "3"), ImmutableMap.of("size", Double.NaN),
+            ImmutableMap.of("name", "myName"));
+        assertThat(aggregate.aggregate(items), is(expectedAggregate));
+    }
+}
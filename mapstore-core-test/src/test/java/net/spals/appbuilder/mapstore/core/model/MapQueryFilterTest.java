@@ -0,0 +1,71 @@
+package net.spals.appbuilder.mapstore.core.model;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+
+import static net.spals.appbuilder.mapstore.core.model.MapQueryFilter.beginsWith;
+import static net.spals.appbuilder.mapstore.core.model.MapQueryFilter.equalTo;
+import static net.spals.appbuilder.mapstore.core.model.MapQueryFilter.exists;
+import static net.spals.appbuilder.mapstore.core.model.MapQueryFilter.greaterThan;
+import static net.spals.appbuilder.mapstore.core.model.MapQueryFilter.in;
+import static net.spals.appbuilder.mapstore.core.model.MapQueryFilter.lessThan;
+import static net.spals.appbuilder.mapstore.core.model.MapQueryFilter.notEqualTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * Unit tests for {@link MapQueryFilter}.
+ *
+ * @author tkral
+ */
+public class MapQueryFilterTest {
+
+    private static final Map<String, Object> ITEM = ImmutableMap.of("name", "myName", "size", 2L);
+
+    @DataProvider
+    Object[][] testProvider() {
+        return new Object[][] {
+            {beginsWith("name", "my"), true},
+            {beginsWith("name", "your"), false},
+            {beginsWith("size", "2"), false},
+            {equalTo("name", "myName"), true},
+            {equalTo("name", "yourName"), false},
+            // Numbers match by value, regardless of their type
+            {equalTo("size", 2), true},
+            {equalTo("size", 2.0d), true},
+            {equalTo("size", "2"), false},
+            {equalTo("missing", "myName"), false},
+            {exists("name"), true},
+            {exists("missing"), false},
+            {greaterThan("size", 1), true},
+            {greaterThan("size", 2), false},
+            {greaterThan("name", "a"), true},
+            {in("size", ImmutableList.of(1, 2)), true},
+            {in("size", ImmutableList.of(3, 4)), false},
+            {lessThan("size", 3), true},
+            {lessThan("size", 2), false},
+            {notEqualTo("name", "yourName"), true},
+            {notEqualTo("name", "myName"), false},
+            {notEqualTo("missing", "myName"), true},
+        };
+    }
+
+    @Test(dataProvider = "testProvider")
+    public void testTest(final MapQueryFilter filter, final boolean expectedMatch) {
+        assertThat(filter.test(ITEM), is(expectedMatch));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInEmpty() {
+        in("size", ImmutableList.of());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testGetValueIn() {
+        in("size", ImmutableList.of(1, 2)).getValue();
+    }
+}
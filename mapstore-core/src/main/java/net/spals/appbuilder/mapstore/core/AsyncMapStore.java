@@ -0,0 +1,126 @@
+package net.spals.appbuilder.mapstore.core;
+
+import net.spals.appbuilder.mapstore.core.model.MapItemPage;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A non-blocking version of {@link MapStore}.
+ *
+ * All item operations return immediately with a
+ * {@link CompletableFuture} which is completed once
+ * the underlying store has responded. Any active
+ * tracing span at the time of the call remains
+ * active for continuations of the returned future.
+ *
+ * Table management is only available via {@link MapStore}.
+ *
+ * @author tkral
+ */
+public interface AsyncMapStore extends Closeable {
+
+    /**
+     * @see MapStore#batchDeleteItems(String, Collection)
+     */
+    CompletableFuture<Void> batchDeleteItems(
+        String tableName,
+        Collection<MapStoreKey> keys
+    );
+
+    /**
+     * @see MapStore#batchGetItems(String, Collection)
+     */
+    CompletableFuture<List<Map<String, Object>>> batchGetItems(
+        String tableName,
+        Collection<MapStoreKey> keys
+    );
+
+    /**
+     * @see MapStore#batchPutItems(String, Map)
+     */
+    CompletableFuture<List<Map<String, Object>>> batchPutItems(
+        String tableName,
+        Map<MapStoreKey, Map<String, Object>> items
+    );
+
+    /**
+     * @see MapStore#deleteItem(String, MapStoreKey)
+     */
+    CompletableFuture<Void> deleteItem(
+        String tableName,
+        MapStoreKey key
+    );
+
+    /**
+     * @see MapStore#getAllItems(String)
+     */
+    CompletableFuture<List<Map<String, Object>>> getAllItems(String tableName);
+
+    /**
+     * @see MapStore#getAllItemsPage(String, MapQueryOptions)
+     */
+    CompletableFuture<MapItemPage> getAllItemsPage(
+        String tableName,
+        MapQueryOptions options
+    );
+
+    /**
+     * @see MapStore#getItem(String, MapStoreKey)
+     */
+    CompletableFuture<Optional<Map<String, Object>>> getItem(
+        String tableName,
+        MapStoreKey key
+    );
+
+    /**
+     * @see MapStore#getItem(String, MapStoreKey, MapQueryOptions)
+     */
+    CompletableFuture<Optional<Map<String, Object>>> getItem(
+        String tableName,
+        MapStoreKey key,
+        MapQueryOptions options
+    );
+
+    /**
+     * @see MapStore#getItems(String, MapStoreKey, MapQueryOptions)
+     */
+    CompletableFuture<List<Map<String, Object>>> getItems(
+        String tableName,
+        MapStoreKey key,
+        MapQueryOptions options
+    );
+
+    /**
+     * @see MapStore#getItemsPage(String, MapStoreKey, MapQueryOptions)
+     */
+    CompletableFuture<MapItemPage> getItemsPage(
+        String tableName,
+        MapStoreKey key,
+        MapQueryOptions options
+    );
+
+    /**
+     * @see MapStore#putItem(String, MapStoreKey, Map)
+     */
+    CompletableFuture<Map<String, Object>> putItem(
+        String tableName,
+        MapStoreKey key,
+        Map<String, Object> payload
+    );
+
+    /**
+     * @see MapStore#updateItem(String, MapStoreKey, Map)
+     */
+    CompletableFuture<Map<String, Object>> updateItem(
+        String tableName,
+        MapStoreKey key,
+        Map<String, Object> payload
+    );
+}
@@ -0,0 +1,26 @@
+package net.spals.appbuilder.mapstore.core;
+
+/**
+ * A native, non-blocking implementation of {@link AsyncMapStore}.
+ *
+ * These are exposed via {@link MapStorePlugin#asyncPlugin()}
+ * by plugins whose underlying client supports asynchronous
+ * requests.
+ *
+ * @author tkral
+ */
+public interface AsyncMapStorePlugin extends AsyncMapStore {
+
+    @Override
+    default void close() {
+        // The owning MapStorePlugin is responsible for
+        // tearing down any shared client resources.
+    }
+
+    /**
+     * @see MapStorePlugin#supportsUpsert()
+     */
+    default boolean supportsUpsert() {
+        return false;
+    }
+}
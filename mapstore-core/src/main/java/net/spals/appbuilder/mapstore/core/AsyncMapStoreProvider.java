@@ -0,0 +1,426 @@
+package net.spals.appbuilder.mapstore.core;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Iterables;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.netflix.governator.annotations.Configuration;
+import com.typesafe.config.ConfigException;
+import net.spals.appbuilder.annotations.service.AutoBindProvider;
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory;
+import net.spals.appbuilder.mapstore.core.model.MapItemPage;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.Order;
+import net.spals.appbuilder.mapstore.core.model.MapRangeOperator.SyntacticSugar;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+import net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+import static net.spals.appbuilder.annotations.service.AutoBindProvider.ProviderScope.LAZY_SINGLETON;
+import static net.spals.appbuilder.mapstore.core.MapStoreProvider.DelegatingMapStore.checkMultiItemKey;
+import static net.spals.appbuilder.mapstore.core.MapStoreProvider.DelegatingMapStore.checkPutItem;
+import static net.spals.appbuilder.mapstore.core.MapStoreProvider.DelegatingMapStore.checkSingleItemKey;
+import static net.spals.appbuilder.mapstore.core.MapStoreProvider.DelegatingMapStore.checkWriteItem;
+
+/**
+ * A {@link Provider} of the {@link AsyncMapStore}.
+ *
+ * Plugins with a native asynchronous client are used
+ * directly. All others have their blocking calls run
+ * on a managed (and traced) thread pool. The same is
+ * true when a {@link MapStoreCache} is configured, so
+ * that asynchronous writes invalidate the cache.
+ *
+ * Asynchronous writes end the sharing of synchronous
+ * reads of their table, as synchronous writes do
+ * (see {@link MapStoreSingleFlight}).
+ *
+ * @author tkral
+ */
+@AutoBindProvider(LAZY_SINGLETON)
+class AsyncMapStoreProvider implements Provider<AsyncMapStore> {
+
+    @Configuration("mapStore.system")
+    private volatile String storeSystem;
+
+    @Configuration("mapStore.async.numThreads")
+    private volatile int numThreads = 10;
+
+    private final ExecutorServiceFactory executorServiceFactory;
+    private final DefaultMapStoreCache storeCache;
+    private final DefaultMapStoreWriteBehind storeWriteBehind;
+    private final DefaultMapStoreSingleFlight storeSingleFlight;
+    private final Map<String, MapStorePlugin> storePluginMap;
+
+    @Inject
+    AsyncMapStoreProvider(
+        final ExecutorServiceFactory executorServiceFactory,
+        final DefaultMapStoreCache storeCache,
+        final DefaultMapStoreWriteBehind storeWriteBehind,
+        final DefaultMapStoreSingleFlight storeSingleFlight,
+        final Map<String, MapStorePlugin> storePluginMap
+    ) {
+        this.executorServiceFactory = executorServiceFactory;
+        this.storeCache = storeCache;
+        this.storeWriteBehind = storeWriteBehind;
+        this.storeSingleFlight = storeSingleFlight;
+        this.storePluginMap = storePluginMap;
+    }
+
+    @Override
+    public AsyncMapStore get() {
+        final MapStorePlugin storePlugin = storeCache.decorate(DefaultMapStoreWriteBehind.isTiered(storeSystem)
+            ? storeWriteBehind.getTieredPlugin(storeSystem)
+            : Optional.ofNullable(storePluginMap.get(storeSystem))
+                .orElseThrow(() -> new ConfigException.BadValue("mapStore.system",
+                    "No Map Store plugin found for : " + storeSystem)));
+
+        final AsyncMapStorePlugin asyncStorePlugin = storePlugin.asyncPlugin().orElseGet(() -> {
+            if (numThreads < 1) {
+                throw new ConfigException.BadValue("mapStore.async.numThreads",
+                    "Number of async Map Store threads must be positive: " + numThreads);
+            }
+            final ExecutorService executorService = executorServiceFactory.createFixedThreadPool(numThreads,
+                new ExecutorServiceFactory.Key.Builder(getClass()).addTags(storeSystem).build());
+            return new ExecutorAsyncMapStorePlugin(storePlugin, executorService);
+        });
+
+        return new DelegatingAsyncMapStore(asyncStorePlugin, storeSingleFlight);
+    }
+
+    /**
+     * An {@link AsyncMapStorePlugin} which runs the
+     * blocking calls of a {@link MapStorePlugin} on
+     * the given executor.
+     */
+    @VisibleForTesting
+    static class ExecutorAsyncMapStorePlugin implements AsyncMapStorePlugin {
+
+        private final MapStorePlugin storePlugin;
+        private final ExecutorService executorService;
+
+        ExecutorAsyncMapStorePlugin(
+            final MapStorePlugin storePlugin,
+            final ExecutorService executorService
+        ) {
+            this.storePlugin = storePlugin;
+            this.executorService = executorService;
+        }
+
+        @Override
+        public CompletableFuture<Void> batchDeleteItems(
+            final String tableName,
+            final Collection<MapStoreKey> keys
+        ) {
+            return CompletableFuture.runAsync(() -> storePlugin.batchDeleteItems(tableName, keys), executorService);
+        }
+
+        @Override
+        public CompletableFuture<List<Map<String, Object>>> batchGetItems(
+            final String tableName,
+            final Collection<MapStoreKey> keys
+        ) {
+            return CompletableFuture.supplyAsync(() -> storePlugin.batchGetItems(tableName, keys), executorService);
+        }
+
+        @Override
+        public CompletableFuture<List<Map<String, Object>>> batchPutItems(
+            final String tableName,
+            final Map<MapStoreKey, Map<String, Object>> items
+        ) {
+            return CompletableFuture.supplyAsync(() -> storePlugin.batchPutItems(tableName, items), executorService);
+        }
+
+        @Override
+        public CompletableFuture<Void> deleteItem(
+            final String tableName,
+            final MapStoreKey key
+        ) {
+            return CompletableFuture.runAsync(() -> storePlugin.deleteItem(tableName, key), executorService);
+        }
+
+        @Override
+        public CompletableFuture<List<Map<String, Object>>> getAllItems(final String tableName) {
+            return CompletableFuture.supplyAsync(() -> storePlugin.getAllItems(tableName), executorService);
+        }
+
+        @Override
+        public CompletableFuture<MapItemPage> getAllItemsPage(
+            final String tableName,
+            final MapQueryOptions options
+        ) {
+            return CompletableFuture.supplyAsync(() -> storePlugin.getAllItemsPage(tableName, options), executorService);
+        }
+
+        @Override
+        public CompletableFuture<Optional<Map<String, Object>>> getItem(
+            final String tableName,
+            final MapStoreKey key
+        ) {
+            return CompletableFuture.supplyAsync(() -> storePlugin.getItem(tableName, key), executorService);
+        }
+
+        @Override
+        public CompletableFuture<Optional<Map<String, Object>>> getItem(
+            final String tableName,
+            final MapStoreKey key,
+            final MapQueryOptions options
+        ) {
+            return CompletableFuture.supplyAsync(() -> storePlugin.getItem(tableName, key, options), executorService);
+        }
+
+        @Override
+        public CompletableFuture<List<Map<String, Object>>> getItems(
+            final String tableName,
+            final MapStoreKey key,
+            final MapQueryOptions options
+        ) {
+            return CompletableFuture.supplyAsync(() -> storePlugin.getItems(tableName, key, options), executorService);
+        }
+
+        @Override
+        public CompletableFuture<MapItemPage> getItemsPage(
+            final String tableName,
+            final MapStoreKey key,
+            final MapQueryOptions options
+        ) {
+            return CompletableFuture.supplyAsync(() -> storePlugin.getItemsPage(tableName, key, options),
+                executorService);
+        }
+
+        @Override
+        public CompletableFuture<Map<String, Object>> putItem(
+            final String tableName,
+            final MapStoreKey key,
+            final Map<String, Object> payload
+        ) {
+            return CompletableFuture.supplyAsync(() -> storePlugin.putItem(tableName, key, payload), executorService);
+        }
+
+        @Override
+        public CompletableFuture<Map<String, Object>> updateItem(
+            final String tableName,
+            final MapStoreKey key,
+            final Map<String, Object> payload
+        ) {
+            return CompletableFuture.supplyAsync(() -> storePlugin.updateItem(tableName, key, payload),
+                executorService);
+        }
+
+        @Override
+        public boolean supportsUpsert() {
+            return storePlugin.supportsUpsert();
+        }
+    }
+
+    /**
+     * The asynchronous counterpart of {@link MapStoreProvider.DelegatingMapStore}.
+     * Inputs are validated up front, on the caller's thread.
+     */
+    @VisibleForTesting
+    static class DelegatingAsyncMapStore implements AsyncMapStore {
+
+        private final AsyncMapStorePlugin pluginDelegate;
+        private final DefaultMapStoreSingleFlight singleFlight;
+
+        DelegatingAsyncMapStore(final AsyncMapStorePlugin pluginDelegate) {
+            this(pluginDelegate, new DefaultMapStoreSingleFlight());
+        }
+
+        DelegatingAsyncMapStore(
+            final AsyncMapStorePlugin pluginDelegate,
+            final DefaultMapStoreSingleFlight singleFlight
+        ) {
+            this.pluginDelegate = pluginDelegate;
+            this.singleFlight = singleFlight;
+        }
+
+        @Override
+        public void close() {
+            // Plugins should register their close() method
+            // in the pre-destroy lifecycle so we're sure that
+            // everything is properly torn down. Therefore, there's
+            // nothing to do here.
+        }
+
+        @Override
+        public CompletableFuture<Void> batchDeleteItems(
+            final String tableName,
+            final Collection<MapStoreKey> keys
+        ) {
+            keys.forEach(key -> checkSingleItemKey(key));
+            return invalidateOnCompletion(tableName, pluginDelegate.batchDeleteItems(tableName, keys));
+        }
+
+        @Override
+        public CompletableFuture<List<Map<String, Object>>> batchGetItems(
+            final String tableName,
+            final Collection<MapStoreKey> keys
+        ) {
+            keys.forEach(key -> checkSingleItemKey(key));
+            return pluginDelegate.batchGetItems(tableName, keys);
+        }
+
+        @Override
+        public CompletableFuture<List<Map<String, Object>>> batchPutItems(
+            final String tableName,
+            final Map<MapStoreKey, Map<String, Object>> items
+        ) {
+            items.forEach((key, payload) -> {
+                checkWriteItem(key, payload);
+                checkPutItem(payload);
+            });
+            return invalidateOnCompletion(tableName, pluginDelegate.batchPutItems(tableName, items));
+        }
+
+        @Override
+        public CompletableFuture<Void> deleteItem(
+            final String tableName,
+            final MapStoreKey key
+        ) {
+            checkSingleItemKey(key);
+            return invalidateOnCompletion(tableName, pluginDelegate.deleteItem(tableName, key));
+        }
+
+        @Override
+        public CompletableFuture<List<Map<String, Object>>> getAllItems(final String tableName) {
+            return pluginDelegate.getAllItems(tableName);
+        }
+
+        @Override
+        public CompletableFuture<MapItemPage> getAllItemsPage(
+            final String tableName,
+            final MapQueryOptions options
+        ) {
+            return pluginDelegate.getAllItemsPage(tableName, options);
+        }
+
+        @Override
+        public CompletableFuture<Optional<Map<String, Object>>> getItem(
+            final String tableName,
+            final MapStoreKey key
+        ) {
+            final Optional<SyntacticSugar> sugarOp = SyntacticSugar.fromName(key.getRangeKey().getOperator().toString());
+            if (sugarOp.isPresent()) {
+                switch (sugarOp.get()) {
+                    case MAX: return getFirstItem(tableName, key,
+                        new MapQueryOptions.Builder().setOrder(Order.DESC).build());
+                    case MIN: return getFirstItem(tableName, key,
+                        new MapQueryOptions.Builder().setOrder(Order.ASC).build());
+                    default:
+                        throw new IllegalArgumentException("AsyncMapStore.getItem does not support the syntactic sugar operator: "+ sugarOp.get().name());
+                }
+            }
+
+            checkSingleItemKey(key);
+            return pluginDelegate.getItem(tableName, key);
+        }
+
+        @Override
+        public CompletableFuture<Optional<Map<String, Object>>> getItem(
+            final String tableName,
+            final MapStoreKey key,
+            final MapQueryOptions options
+        ) {
+            final Optional<SyntacticSugar> sugarOp = SyntacticSugar.fromName(key.getRangeKey().getOperator().toString());
+            if (sugarOp.isPresent()) {
+                switch (sugarOp.get()) {
+                    case MAX: return getFirstItem(tableName, key, new MapQueryOptions.Builder()
+                        .mergeFrom(options).setOrder(Order.DESC).build());
+                    case MIN: return getFirstItem(tableName, key, new MapQueryOptions.Builder()
+                        .mergeFrom(options).setOrder(Order.ASC).build());
+                    default:
+                        throw new IllegalArgumentException("AsyncMapStore.getItem does not support the syntactic sugar operator: "+ sugarOp.get().name());
+                }
+            }
+
+            checkSingleItemKey(key);
+            return pluginDelegate.getItem(tableName, key, options);
+        }
+
+        @Override
+        public CompletableFuture<List<Map<String, Object>>> getItems(
+            final String tableName,
+            final MapStoreKey key,
+            final MapQueryOptions options
+        ) {
+            checkMultiItemKey("getItems", key);
+            return pluginDelegate.getItems(tableName, key, options);
+        }
+
+        @Override
+        public CompletableFuture<MapItemPage> getItemsPage(
+            final String tableName,
+            final MapStoreKey key,
+            final MapQueryOptions options
+        ) {
+            checkMultiItemKey("getItemsPage", key);
+            return pluginDelegate.getItemsPage(tableName, key, options);
+        }
+
+        @Override
+        public CompletableFuture<Map<String, Object>> putItem(
+            final String tableName,
+            final MapStoreKey key,
+            final Map<String, Object> payload
+        ) {
+            checkWriteItem(key, payload);
+            checkPutItem(payload);
+            return invalidateOnCompletion(tableName, pluginDelegate.putItem(tableName, key, payload));
+        }
+
+        @Override
+        public CompletableFuture<Map<String, Object>> updateItem(
+            final String tableName,
+            final MapStoreKey key,
+            final Map<String, Object> payload
+        ) {
+            checkWriteItem(key, payload);
+            // Native upserts handle a missing item in the same write
+            if (pluginDelegate.supportsUpsert()) {
+                return invalidateOnCompletion(tableName, pluginDelegate.updateItem(tableName, key, payload));
+            }
+
+            // If no item is present at the given key, then updateItem takes on putItem semantics
+            return pluginDelegate.getItem(tableName, key).thenCompose(item -> item.isPresent() ?
+                invalidateOnCompletion(tableName, pluginDelegate.updateItem(tableName, key, payload)) :
+                putItem(tableName, key, payload));
+        }
+
+        /**
+         * Ends the sharing of synchronous reads of the given table
+         * once the given write completes (even if it fails), before
+         * the write's caller sees it complete.
+         */
+        private <T> CompletableFuture<T> invalidateOnCompletion(
+            final String tableName,
+            final CompletableFuture<T> write
+        ) {
+            return write.whenComplete((result, error) -> singleFlight.invalidate(tableName));
+        }
+
+        // Run max and min syntactic sugar operations
+        @VisibleForTesting
+        CompletableFuture<Optional<Map<String, Object>>> getFirstItem(
+            final String tableName,
+            final MapStoreKey key,
+            final MapQueryOptions options
+        ) {
+            // The max (min) operator is equivalent to grabbing all range keys, sorting
+            // them in descending (ascending) order, and grabbing the first one.
+            final MapStoreKey allKey = new MapStoreKey.Builder()
+                    .setHash(key.getHashField(), key.getHashValue())
+                    .setRange(key.getRangeField().get(), ZeroValueMapRangeKey.all())
+                    .build();
+            return pluginDelegate.getItems(tableName, allKey,
+                    new MapQueryOptions.Builder().mergeFrom(options).setLimit(1).build())
+                .thenApply(items -> Optional.ofNullable(Iterables.getOnlyElement(items, null)));
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package net.spals.appbuilder.mapstore.core;
+
+import net.spals.appbuilder.mapstore.core.DefaultMapStoreCache.TableCache;
+import net.spals.appbuilder.mapstore.core.model.MapAggregate;
+import net.spals.appbuilder.mapstore.core.model.MapItemPage;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+import net.spals.appbuilder.mapstore.core.model.MapStoreTableKey;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static net.spals.appbuilder.mapstore.core.MapStorePlugin.matchesFilters;
+import static net.spals.appbuilder.mapstore.core.MapStorePlugin.projectItem;
+
+/**
+ * A {@link MapStorePlugin} which serves single item
+ * and range reads out of a {@link TableCache} for
+ * configured tables, falling back to the delegate plugin
+ * on a miss. Batch reads are served out of, and fill,
+ * the same cache as single item reads.
+ *
+ * Writes made through this plugin invalidate the cache,
+ * including any values whose reads were in flight.
+ * Writes made by other processes are only picked up once
+ * the cached entry expires or is evicted.
+ *
+ * @author tkral
+ */
+class CachingMapStorePlugin implements MapStorePlugin {
+
+    private final MapStorePlugin pluginDelegate;
+    private final Map<String, TableCache> tableCaches;
+
+    CachingMapStorePlugin(
+        final MapStorePlugin pluginDelegate,
+        final Map<String, TableCache> tableCaches
+    ) {
+        this.pluginDelegate = pluginDelegate;
+        this.tableCaches = tableCaches;
+    }
+
+    @Override
+    public void close() {
+        // The delegate plugin is torn down within
+        // its own pre-destroy lifecycle.
+    }
+
+    @Override
+    public boolean createTable(
+        final String tableName,
+        final MapStoreTableKey tableKey
+    ) {
+        return pluginDelegate.createTable(tableName, tableKey);
+    }
+
+    @Override
+    public boolean dropTable(final String tableName) {
+        tableCache(tableName).ifPresent(TableCache::invalidateAll);
+        return pluginDelegate.dropTable(tableName);
+    }
+
+    @Override
+    public Optional<BigDecimal> aggregateItems(
+        final String tableName,
+        final MapStoreKey key,
+        final MapAggregate aggregate,
+        final MapQueryOptions options
+    ) {
+        return pluginDelegate.aggregateItems(tableName, key, aggregate, options);
+    }
+
+    @Override
+    public void batchDeleteItems(
+        final String tableName,
+        final Collection<MapStoreKey> keys
+    ) {
+        pluginDelegate.batchDeleteItems(tableName, keys);
+        tableCache(tableName).ifPresent(tableCache -> keys.forEach(tableCache::invalidate));
+    }
+
+    @Override
+    public List<Map<String, Object>> batchGetItems(
+        final String tableName,
+        final Collection<MapStoreKey> keys
+    ) {
+        final Optional<TableCache> tableCache = tableCache(tableName);
+        if (!tableCache.isPresent()) {
+            return pluginDelegate.batchGetItems(tableName, keys);
+        }
+
+        // Serve what we can out of the cache and batch up the rest
+        final List<Map<String, Object>> items = new ArrayList<>(keys.size());
+        final List<MapStoreKey> missedKeys = new ArrayList<>();
+        keys.forEach(key -> {
+            final Optional<Optional<Map<String, Object>>> cachedItem = tableCache.get().getItem(key);
+            if (cachedItem.isPresent()) {
+                cachedItem.get().ifPresent(items::add);
+            } else {
+                missedKeys.add(key);
+            }
+        });
+
+        if (!missedKeys.isEmpty()) {
+            final long readSequence = tableCache.get().readSequence();
+            final List<Map<String, Object>> missedItems = pluginDelegate.batchGetItems(tableName, missedKeys);
+            tableCache.get().putItems(missedKeys, readSequence, missedItems);
+            items.addAll(missedItems);
+        }
+        return items;
+    }
+
+    @Override
+    public List<Map<String, Object>> batchPutItems(
+        final String tableName,
+        final Map<MapStoreKey, Map<String, Object>> items
+    ) {
+        final List<Map<String, Object>> putItems = pluginDelegate.batchPutItems(tableName, items);
+        tableCache(tableName).ifPresent(tableCache -> items.keySet().forEach(tableCache::invalidate));
+        return putItems;
+    }
+
+    @Override
+    public long countItems(
+        final String tableName,
+        final MapStoreKey key,
+        final MapQueryOptions options
+    ) {
+        return pluginDelegate.countItems(tableName, key, options);
+    }
+
+    @Override
+    public void deleteItem(
+        final String tableName,
+        final MapStoreKey key
+    ) {
+        pluginDelegate.deleteItem(tableName, key);
+        tableCache(tableName).ifPresent(tableCache -> tableCache.invalidate(key));
+    }
+
+    @Override
+    public List<Map<String, Object>> getAllItems(final String tableName) {
+        return pluginDelegate.getAllItems(tableName);
+    }
+
+    @Override
+    public MapItemPage getAllItemsPage(
+        final String tableName,
+        final MapQueryOptions options
+    ) {
+        return pluginDelegate.getAllItemsPage(tableName, options);
+    }
+
+    @Override
+    public Optional<Map<String, Object>> getItem(
+        final String tableName,
+        final MapStoreKey key
+    ) {
+        final Optional<TableCache> tableCache = tableCache(tableName);
+        if (!tableCache.isPresent()) {
+            return pluginDelegate.getItem(tableName, key);
+        }
+
+        return tableCache.get().getItem(key).orElseGet(() -> {
+            final long readSequence = tableCache.get().readSequence();
+            final Optional<Map<String, Object>> item = pluginDelegate.getItem(tableName, key);
+            tableCache.get().putItem(key, readSequence, item);
+            return item;
+        });
+    }
+
+    @Override
+    public Optional<Map<String, Object>> getItem(
+        final String tableName,
+        final MapStoreKey key,
+        final MapQueryOptions options
+    ) {
+        if (options.getFilters().isEmpty() && options.getProjection().isEmpty()) {
+            return getItem(tableName, key);
+        }
+
+        // Filtered or projected items are never cached, but they can be cut out of a cached full item
+        final Optional<Optional<Map<String, Object>>> cachedItem =
+            tableCache(tableName).flatMap(tableCache -> tableCache.getItem(key));
+        return cachedItem.map(item -> item.filter(fullItem -> matchesFilters(fullItem, options))
+                .map(fullItem -> projectItem(fullItem, options)))
+            .orElseGet(() -> pluginDelegate.getItem(tableName, key, options));
+    }
+
+    @Override
+    public List<Map<String, Object>> getItems(
+        final String tableName,
+        final MapStoreKey key,
+        final MapQueryOptions options
+    ) {
+        final Optional<TableCache> tableCache = tableCache(tableName);
+        if (!tableCache.isPresent()) {
+            return pluginDelegate.getItems(tableName, key, options);
+        }
+
+        return tableCache.get().getItems(key, options).orElseGet(() -> {
+            final long readSequence = tableCache.get().readSequence();
+            final List<Map<String, Object>> items = pluginDelegate.getItems(tableName, key, options);
+            tableCache.get().putItems(key, options, readSequence, items);
+            return items;
+        });
+    }
+
+    @Override
+    public MapItemPage getItemsPage(
+        final String tableName,
+        final MapStoreKey key,
+        final MapQueryOptions options
+    ) {
+        return pluginDelegate.getItemsPage(tableName, key, options);
+    }
+
+    @Override
+    public Map<String, Object> putItem(
+        final String tableName,
+        final MapStoreKey key,
+        final Map<String, Object> payload
+    ) {
+        final Map<String, Object> item = pluginDelegate.putItem(tableName, key, payload);
+        tableCache(tableName).ifPresent(tableCache -> tableCache.invalidate(key));
+        return item;
+    }
+
+    @Override
+    public Stream<Map<String, Object>> streamAllItems(
+        final String tableName,
+        final MapQueryOptions options
+    ) {
+        return pluginDelegate.streamAllItems(tableName, options);
+    }
+
+    @Override
+    public Stream<Map<String, Object>> streamItems(
+        final String tableName,
+        final MapStoreKey key,
+        final MapQueryOptions options
+    ) {
+        return pluginDelegate.streamItems(tableName, key, options);
+    }
+
+    @Override
+    public boolean supportsUpsert() {
+        return pluginDelegate.supportsUpsert();
+    }
+
+    @Override
+    public Map<String, Object> updateItem(
+        final String tableName,
+        final MapStoreKey key,
+        final Map<String, Object> payload
+    ) {
+        final Map<String, Object> item = pluginDelegate.updateItem(tableName, key, payload);
+        tableCache(tableName).ifPresent(tableCache -> tableCache.invalidate(key));
+        return item;
+    }
+
+    private Optional<TableCache> tableCache(final String tableName) {
+        return Optional.ofNullable(tableCaches.get(tableName));
+    }
+}
@@ -0,0 +1,301 @@
+package net.spals.appbuilder.mapstore.core;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigUtil;
+import net.spals.appbuilder.annotations.config.ServiceConfig;
+import net.spals.appbuilder.annotations.service.AutoBindSingleton;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapRangeOperator.Standard;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Default implementation of {@link MapStoreCache}
+ * which holds a pair of Guava {@link Cache}s for
+ * each configured table.
+ *
+ * @author tkral
+ */
+@AutoBindSingleton(baseClass = MapStoreCache.class, includeImpl = true)
+class DefaultMapStoreCache implements MapStoreCache {
+
+    private static final String CACHE_CONFIG_PATH = "mapStore.cache";
+
+    private final Map<String, TableCache> tableCaches;
+
+    @Inject
+    DefaultMapStoreCache(@ServiceConfig final Config serviceConfig) {
+        this.tableCaches = Optional.of(serviceConfig)
+            .filter(config -> config.hasPath(CACHE_CONFIG_PATH))
+            .map(config -> config.getConfig(CACHE_CONFIG_PATH))
+            .map(cacheConfig -> cacheConfig.root().keySet().stream()
+                .collect(Collectors.toMap(Function.identity(),
+                    tableName -> new TableCache(tableName, cacheConfig.getConfig(ConfigUtil.quoteString(tableName))))))
+            .orElse(Collections.emptyMap());
+    }
+
+    @Override
+    public Map<String, CacheStats> getCacheStats() {
+        return tableCaches.entrySet().stream()
+            .collect(Collectors.toMap(Map.Entry::getKey, entry -> entry.getValue().stats()));
+    }
+
+    /**
+     * Wraps the given plugin with a read-through
+     * cache, if any table caches are configured.
+     */
+    MapStorePlugin decorate(final MapStorePlugin storePlugin) {
+        return tableCaches.isEmpty() ? storePlugin : new CachingMapStorePlugin(storePlugin, tableCaches);
+    }
+
+    /**
+     * The caches for a single table.
+     *
+     * Single items are keyed by their {@link MapStoreKey}.
+     * Range results are keyed by their {@link MapStoreKey}
+     * and {@link MapQueryOptions} together.
+     *
+     * Every cached value is stamped with the write sequence
+     * at which its read started. Writes bump the sequence
+     * of their item and of their hash partition, so a value
+     * which was read before a write is never served after
+     * it, even if its read finished after the write did.
+     * Sequences are held in a fixed number of stripes, so
+     * a write costs the same no matter how much is cached.
+     * Guava counts a dropped value as a hit, so its stats
+     * are corrected to count it as the miss that it is.
+     */
+    @VisibleForTesting
+    static class TableCache {
+
+        private static final int MAX_STRIPES = 1 << 16;
+
+        private final Cache<MapStoreKey, CachedValue<Optional<Map<String, Object>>>> itemCache;
+        private final Cache<Map.Entry<MapStoreKey, MapQueryOptions>, CachedValue<List<Map<String, Object>>>> rangeCache;
+
+        private final AtomicLong writeSequence = new AtomicLong();
+        // The write sequence of the latest write within each stripe
+        private final AtomicLongArray stripeWriteSequences;
+        // The write sequence of the latest table-wide invalidation
+        private volatile long invalidateAllSequence = 0L;
+        // The number of cache hits which were dropped for being stale
+        private final LongAdder staleHitCount = new LongAdder();
+
+        @VisibleForTesting
+        TableCache(
+            final String tableName,
+            final Config tableConfig
+        ) {
+            final long maxSize = tableConfig.hasPath("maxSize") ? tableConfig.getLong("maxSize") : 10000L;
+            if (maxSize < 1L) {
+                throw new ConfigException.BadValue(CACHE_CONFIG_PATH + "." + tableName + ".maxSize",
+                    "Map Store cache size must be positive: " + maxSize);
+            }
+            final Optional<Duration> ttl = Optional.of(tableConfig)
+                .filter(config -> config.hasPath("ttl"))
+                .map(config -> config.getDuration("ttl"));
+
+            this.itemCache = buildCache(maxSize, ttl);
+            this.rangeCache = buildCache(maxSize, ttl);
+            this.stripeWriteSequences = new AtomicLongArray(
+                Integer.highestOneBit((int) Math.min(maxSize, MAX_STRIPES) * 2 - 1));
+        }
+
+        /**
+         * The sequence to stamp on a value which is
+         * about to be read from the delegate plugin.
+         */
+        long readSequence() {
+            return writeSequence.get();
+        }
+
+        Optional<Optional<Map<String, Object>>> getItem(final MapStoreKey key) {
+            return getValid(itemCache, key, stripeOf(key));
+        }
+
+        Optional<List<Map<String, Object>>> getItems(
+            final MapStoreKey key,
+            final MapQueryOptions options
+        ) {
+            return getValid(rangeCache, Maps.immutableEntry(key, options), stripeOf(key.getHashValue()));
+        }
+
+        void putItem(
+            final MapStoreKey key,
+            final long readSequence,
+            final Optional<Map<String, Object>> item
+        ) {
+            itemCache.put(key, new CachedValue<>(readSequence, item.map(Collections::unmodifiableMap)));
+        }
+
+        /**
+         * Caches the items of a batch read of the given keys.
+         *
+         * Items are matched to their keys by their key values,
+         * and keys without an item are cached as missing. If
+         * any item can't be matched to a key (e.g. the store
+         * returned a key value of another type), no keys are
+         * cached as missing.
+         */
+        void putItems(
+            final Collection<MapStoreKey> keys,
+            final long readSequence,
+            final List<Map<String, Object>> items
+        ) {
+            // Only keys with a single range value can be matched to a single item
+            final Map<List<Object>, MapStoreKey> keysByValues = new HashMap<>();
+            keys.stream().filter(key -> !key.getRangeField().isPresent()
+                    || key.getRangeKey().getOperator() == Standard.EQUAL_TO)
+                .forEach(key -> keysByValues.putIfAbsent(keyValues(key), key));
+
+            if (keysByValues.isEmpty()) {
+                return;
+            }
+
+            // All keys of a table have the same fields
+            final MapStoreKey anyKey = keysByValues.values().iterator().next();
+            final Set<MapStoreKey> missingKeys = new HashSet<>(keysByValues.values());
+            boolean allItemsMatched = true;
+            for (final Map<String, Object> item : items) {
+                final MapStoreKey key = keysByValues.get(itemKeyValues(anyKey, item));
+                if (key != null) {
+                    putItem(key, readSequence, Optional.of(item));
+                    missingKeys.remove(key);
+                } else {
+                    allItemsMatched = false;
+                }
+            }
+
+            if (allItemsMatched) {
+                missingKeys.forEach(key -> putItem(key, readSequence, Optional.empty()));
+            }
+        }
+
+        void putItems(
+            final MapStoreKey key,
+            final MapQueryOptions options,
+            final long readSequence,
+            final List<Map<String, Object>> items
+        ) {
+            rangeCache.put(Maps.immutableEntry(key, options), new CachedValue<>(readSequence,
+                Collections.unmodifiableList(items.stream()
+                    .map(Collections::unmodifiableMap)
+                    .collect(Collectors.toList()))));
+        }
+
+        /**
+         * Invalidates the item at the given key along with
+         * any range results within the same hash partition.
+         */
+        void invalidate(final MapStoreKey key) {
+            final long sequence = writeSequence.incrementAndGet();
+            stripeWriteSequences.accumulateAndGet(stripeOf(key), sequence, Math::max);
+            stripeWriteSequences.accumulateAndGet(stripeOf(key.getHashValue()), sequence, Math::max);
+            itemCache.invalidate(key);
+        }
+
+        void invalidateAll() {
+            invalidateAllSequence = writeSequence.incrementAndGet();
+            itemCache.invalidateAll();
+            rangeCache.invalidateAll();
+        }
+
+        CacheStats stats() {
+            // Read the stale hits first, so that each one has already been counted as a hit
+            final long staleHits = staleHitCount.sum();
+            final CacheStats stats = itemCache.stats().plus(rangeCache.stats());
+            return new CacheStats(stats.hitCount() - staleHits, stats.missCount() + staleHits,
+                stats.loadSuccessCount(), stats.loadExceptionCount(), stats.totalLoadTime(), stats.evictionCount());
+        }
+
+        private <K, V> Optional<V> getValid(
+            final Cache<K, CachedValue<V>> cache,
+            final K cacheKey,
+            final int stripe
+        ) {
+            final CachedValue<V> cachedValue = cache.getIfPresent(cacheKey);
+            if (cachedValue == null) {
+                return Optional.empty();
+            }
+
+            // Drop values whose read started before a later write
+            if (cachedValue.readSequence < invalidateAllSequence
+                || cachedValue.readSequence < stripeWriteSequences.get(stripe)) {
+                cache.asMap().remove(cacheKey, cachedValue);
+                staleHitCount.increment();
+                return Optional.empty();
+            }
+            return Optional.of(cachedValue.value);
+        }
+
+        private static List<Object> keyValues(final MapStoreKey key) {
+            return Arrays.asList(key.getHashValue(),
+                key.getRangeField().map(rangeField -> key.getRangeKey().getValue()).orElse(null));
+        }
+
+        private static List<Object> itemKeyValues(
+            final MapStoreKey key,
+            final Map<String, Object> item
+        ) {
+            return Arrays.asList(item.get(key.getHashField()),
+                key.getRangeField().map(item::get).orElse(null));
+        }
+
+        private int stripeOf(final Object stripeKey) {
+            final int hashCode = stripeKey.hashCode();
+            return (hashCode ^ (hashCode >>> 16)) & (stripeWriteSequences.length() - 1);
+        }
+
+        private static <K, V> Cache<K, V> buildCache(
+            final long maxSize,
+            final Optional<Duration> ttl
+        ) {
+            final CacheBuilder<Object, Object> cacheBuilder = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .recordStats();
+            ttl.ifPresent(duration -> cacheBuilder.expireAfterWrite(duration.toNanos(), TimeUnit.NANOSECONDS));
+            return cacheBuilder.build();
+        }
+    }
+
+    /**
+     * A cached value along with the write
+     * sequence at which its read started.
+     */
+    private static class CachedValue<V> {
+
+        private final long readSequence;
+        private final V value;
+
+        private CachedValue(
+            final long readSequence,
+            final V value
+        ) {
+            this.readSequence = readSequence;
+            this.value = value;
+        }
+    }
+}
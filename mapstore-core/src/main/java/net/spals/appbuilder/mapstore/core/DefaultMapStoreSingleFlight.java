@@ -0,0 +1,129 @@
+package net.spals.appbuilder.mapstore.core;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.netflix.governator.annotations.Configuration;
+import net.spals.appbuilder.annotations.service.AutoBindSingleton;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+/**
+ * Default implementation of {@link MapStoreSingleFlight}
+ * which tracks the in-flight reads of each kind by their
+ * table name, {@link MapStoreKey} and {@link MapQueryOptions}.
+ *
+ * Calls which share a result are each handed their own
+ * (shallow) copy of the items, so that they can't see
+ * each other's changes.
+ *
+ * @author tkral
+ */
+@AutoBindSingleton(baseClass = MapStoreSingleFlight.class, includeImpl = true)
+class DefaultMapStoreSingleFlight implements MapStoreSingleFlight {
+
+    @Configuration("mapStore.singleFlight.enabled")
+    @VisibleForTesting
+    volatile boolean enabled = true;
+
+    private final ConcurrentMap<List<Object>, CompletableFuture<Optional<Map<String, Object>>>> itemFlights =
+        new ConcurrentHashMap<>();
+    private final ConcurrentMap<List<Object>, CompletableFuture<List<Map<String, Object>>>> itemsFlights =
+        new ConcurrentHashMap<>();
+
+    private final LongAdder coalescedGetItemCount = new LongAdder();
+    private final LongAdder coalescedGetItemsCount = new LongAdder();
+
+    @Override
+    public long getCoalescedGetItemCount() {
+        return coalescedGetItemCount.sum();
+    }
+
+    @Override
+    public long getCoalescedGetItemsCount() {
+        return coalescedGetItemsCount.sum();
+    }
+
+    Optional<Map<String, Object>> getItem(
+        final String tableName,
+        final MapStoreKey key,
+        final MapQueryOptions options,
+        final Supplier<Optional<Map<String, Object>>> read
+    ) {
+        return call(itemFlights, coalescedGetItemCount, ImmutableList.of(tableName, key, options), read,
+            item -> item.map(LinkedHashMap::new));
+    }
+
+    List<Map<String, Object>> getItems(
+        final String tableName,
+        final MapStoreKey key,
+        final MapQueryOptions options,
+        final Supplier<List<Map<String, Object>>> read
+    ) {
+        return call(itemsFlights, coalescedGetItemsCount, ImmutableList.of(tableName, key, options), read,
+            items -> items.stream().map(LinkedHashMap::new).collect(Collectors.toCollection(ArrayList::new)));
+    }
+
+    /**
+     * Stops sharing the in-flight reads of the given table,
+     * so that reads which start after a write never share
+     * the result of a read which started before it.
+     */
+    void invalidate(final String tableName) {
+        itemFlights.keySet().removeIf(flightKey -> flightKey.get(0).equals(tableName));
+        itemsFlights.keySet().removeIf(flightKey -> flightKey.get(0).equals(tableName));
+    }
+
+    private <T> T call(
+        final ConcurrentMap<List<Object>, CompletableFuture<T>> flights,
+        final LongAdder coalescedCount,
+        final List<Object> flightKey,
+        final Supplier<T> read,
+        final UnaryOperator<T> copy
+    ) {
+        if (!enabled) {
+            return read.get();
+        }
+
+        final CompletableFuture<T> flight = new CompletableFuture<>();
+        final CompletableFuture<T> inFlight = flights.putIfAbsent(flightKey, flight);
+        if (inFlight != null) {
+            coalescedCount.increment();
+            try {
+                return copy.apply(inFlight.join());
+            } catch (CompletionException e) {
+                // Rethrow the failure of the shared read as-is
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                } else if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        try {
+            final T result = read.get();
+            flight.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            flights.remove(flightKey, flight);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package net.spals.appbuilder.mapstore.core;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.netflix.governator.annotations.Configuration;
+import com.typesafe.config.ConfigException;
+import net.spals.appbuilder.annotations.service.AutoBindSingleton;
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory;
+import net.spals.appbuilder.mapstore.core.mapdb.MapDBCommits;
+import org.mapdb.DB;
+import org.mapdb.Serializer;
+import org.mapdb.Store;
+import org.mapdb.StoreWAL;
+import org.mapdb.serializer.GroupSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Default implementation of {@link MapStoreWriteBehind}
+ * which builds the {@link TieredMapStorePlugin} for a
+ * tiered Map Store system.
+ *
+ * The write log is held in the MapDB {@link DB}, next to the
+ * items of the local tier, and each local write is committed
+ * together with its write log entry. So the local tier must
+ * be the unsharded mapDB plugin, as the write log could
+ * otherwise disagree with the local items after a restart.
+ *
+ * The write log is only durable when MapDB is file backed
+ * with transactions (up to its commit interval). Otherwise,
+ * acknowledged writes are lost on a crash, so a tiered system
+ * is refused unless mapStore.tiered.allowVolatileWriteLog is
+ * set. Pending writes are flushed every flushIntervalMs, in
+ * batches of up to batchSize items per table.
+ *
+ * @author tkral
+ */
+@AutoBindSingleton(baseClass = MapStoreWriteBehind.class, includeImpl = true)
+class DefaultMapStoreWriteBehind implements MapStoreWriteBehind {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DefaultMapStoreWriteBehind.class);
+
+    private static final Pattern TIERED_SYSTEM_PATTERN =
+        Pattern.compile("tiered\\(\\s*(\\w+)\\s*,\\s*(\\w+)\\s*\\)");
+    private static final String WRITE_LOG_NAME = "mapStore.tiered.writeLog";
+    private static final String LOCAL_SYSTEM = "mapDB";
+
+    @Configuration("mapStore.tiered.flushIntervalMs")
+    @VisibleForTesting
+    volatile long flushIntervalMs = 1000L;
+
+    @Configuration("mapStore.tiered.batchSize")
+    @VisibleForTesting
+    volatile int batchSize = 25;
+
+    @Configuration("mapStore.tiered.allowVolatileWriteLog")
+    @VisibleForTesting
+    volatile boolean allowVolatileWriteLog = false;
+
+    @Configuration("mapStore.mapDB.shards")
+    @VisibleForTesting
+    volatile int mapDBShardCount = 1;
+
+    private final ExecutorServiceFactory executorServiceFactory;
+    private final Provider<DB> mapDBProvider;
+    private final Map<String, MapStorePlugin> storePluginMap;
+
+    private volatile Optional<TieredMapStorePlugin> tieredPlugin = Optional.empty();
+
+    @Inject
+    DefaultMapStoreWriteBehind(
+        final ExecutorServiceFactory executorServiceFactory,
+        final Provider<DB> mapDBProvider,
+        final Map<String, MapStorePlugin> storePluginMap
+    ) {
+        this.executorServiceFactory = executorServiceFactory;
+        this.mapDBProvider = mapDBProvider;
+        this.storePluginMap = storePluginMap;
+    }
+
+    @Override
+    public long getPendingWriteCount() {
+        return tieredPlugin.map(TieredMapStorePlugin::getPendingWriteCount).orElse(0L);
+    }
+
+    @Override
+    public long getWriteLagMs() {
+        return tieredPlugin.map(TieredMapStorePlugin::getWriteLagMs).orElse(0L);
+    }
+
+    @Override
+    public long getFlushedWriteCount() {
+        return tieredPlugin.map(TieredMapStorePlugin::getFlushedWriteCount).orElse(0L);
+    }
+
+    @Override
+    public long getFailedFlushCount() {
+        return tieredPlugin.map(TieredMapStorePlugin::getFailedFlushCount).orElse(0L);
+    }
+
+    static boolean isTiered(final String storeSystem) {
+        return storeSystem != null && TIERED_SYSTEM_PATTERN.matcher(storeSystem).matches();
+    }
+
+    /**
+     * Finds the plugin of the given tiered Map Store system.
+     * The plugin is built (and starts flushing) on first use,
+     * and is shared by the synchronous and asynchronous stores.
+     */
+    synchronized MapStorePlugin getTieredPlugin(final String storeSystem) {
+        if (tieredPlugin.isPresent()) {
+            return tieredPlugin.get();
+        }
+
+        final Matcher tieredSystemMatcher = TIERED_SYSTEM_PATTERN.matcher(storeSystem);
+        if (!tieredSystemMatcher.matches()) {
+            throw new ConfigException.BadValue("mapStore.system",
+                "Not a tiered Map Store system: " + storeSystem);
+        }
+        final String localSystem = tieredSystemMatcher.group(1);
+        final String remoteSystem = tieredSystemMatcher.group(2);
+
+        if (flushIntervalMs < 1L) {
+            throw new ConfigException.BadValue("mapStore.tiered.flushIntervalMs",
+                "Write-behind flush interval must be positive: " + flushIntervalMs);
+        }
+        if (batchSize < 1) {
+            throw new ConfigException.BadValue("mapStore.tiered.batchSize",
+                "Write-behind batch size must be positive: " + batchSize);
+        }
+
+        if (!LOCAL_SYSTEM.equals(localSystem) || mapDBShardCount != 1) {
+            throw new ConfigException.BadValue("mapStore.system", "The local tier of " + storeSystem +
+                " must be the unsharded " + LOCAL_SYSTEM + " plugin, which holds the write log.");
+        }
+        final MapStorePlugin localPlugin = findPlugin(localSystem);
+        final MapStorePlugin remotePlugin = findPlugin(remoteSystem);
+
+        final DB mapDB = mapDBProvider.get();
+        if (!isDurable(mapDB)) {
+            if (!allowVolatileWriteLog) {
+                throw new ConfigException.BadValue("mapStore.system", "The write log of " + storeSystem +
+                    " would lose writes on a crash. Set mapStore.mapDB.file and mapStore.mapDB.transactions," +
+                    " or set mapStore.tiered.allowVolatileWriteLog to accept the loss.");
+            }
+            LOGGER.warn("The write log of {} is not durable, so pending writes will be lost on a crash", storeSystem);
+        }
+
+        final TieredMapStorePlugin storePlugin = new TieredMapStorePlugin(localPlugin, remotePlugin,
+            openWriteLog(mapDB), writes -> MapDBCommits.writeTogether(mapDB, writes), batchSize);
+        executorServiceFactory.createSingleThreadScheduledExecutor(
+            new ExecutorServiceFactory.Key.Builder(getClass()).addTags(localSystem, remoteSystem).build())
+            .scheduleWithFixedDelay(storePlugin::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+
+        tieredPlugin = Optional.of(storePlugin);
+        return storePlugin;
+    }
+
+    /**
+     * Whether writes to the given DB survive a crash. That takes
+     * a file backed store with a write ahead log (transactions).
+     */
+    @VisibleForTesting
+    static boolean isDurable(final DB mapDB) {
+        final Store store = mapDB.getStore();
+        return store instanceof StoreWAL && ((StoreWAL) store).getFile() != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    @VisibleForTesting
+    static ConcurrentNavigableMap<Long, Object[]> openWriteLog(final DB mapDB) {
+        return mapDB.treeMap(WRITE_LOG_NAME)
+            .keySerializer(Serializer.LONG)
+            .valueSerializer((GroupSerializer<Object[]>) Serializer.ELSA)
+            .createOrOpen();
+    }
+
+    private MapStorePlugin findPlugin(final String storeSystem) {
+        return Optional.ofNullable(storePluginMap.get(storeSystem))
+            .orElseThrow(() -> new ConfigException.BadValue("mapStore.system",
+                "No Map Store plugin found for : " + storeSystem));
+    }
+}
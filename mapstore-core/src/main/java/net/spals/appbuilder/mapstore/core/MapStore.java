@@ -1,13 +1,18 @@
 package net.spals.appbuilder.mapstore.core;
 
+import net.spals.appbuilder.mapstore.core.model.MapAggregate;
+import net.spals.appbuilder.mapstore.core.model.MapItemPage;
 import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
 import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
 import net.spals.appbuilder.mapstore.core.model.MapStoreTableKey;
 
 import java.io.Closeable;
+import java.math.BigDecimal;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 /**
  * A NoSQL storage service which holds data in maps.
@@ -37,6 +42,73 @@ public interface MapStore extends Closeable {
      */
     boolean dropTable(String tableName);
 
+    /**
+     * Aggregates a numeric field over all items
+     * from the given table which match the given
+     * {@link MapStoreKey} range key operator and the
+     * filters in the given options.
+     *
+     * Paging options and limits are ignored.
+     *
+     * Returns {@link Optional#empty()} if no
+     * matching item holds a number in the field.
+     */
+    Optional<BigDecimal> aggregateItems(
+        String tableName,
+        MapStoreKey key,
+        MapAggregate aggregate,
+        MapQueryOptions options
+    );
+
+    /**
+     * Deletes all items from the given table
+     * with the given keys.
+     *
+     * This should be idempotent for any items
+     * which do not exist.
+     */
+    void batchDeleteItems(
+        String tableName,
+        Collection<MapStoreKey> keys
+    );
+
+    /**
+     * Retrieves all items from the given table
+     * with the given keys.
+     *
+     * Keys for which no item exists are omitted
+     * from the result. Note that the result is
+     * not guaranteed to follow the order of the
+     * given keys.
+     */
+    List<Map<String, Object>> batchGetItems(
+        String tableName,
+        Collection<MapStoreKey> keys
+    );
+
+    /**
+     * Adds all of the given items to the
+     * given table under their associated keys.
+     */
+    List<Map<String, Object>> batchPutItems(
+        String tableName,
+        Map<MapStoreKey, Map<String, Object>> items
+    );
+
+    /**
+     * Counts all items from the given table
+     * which match the given {@link MapStoreKey}
+     * range key operator and the filters in the
+     * given options, without retrieving them.
+     *
+     * Paging options and limits are ignored.
+     */
+    long countItems(
+        String tableName,
+        MapStoreKey key,
+        MapQueryOptions options
+    );
+
     /**
      * Delete an item from the given table
      * with the give key.
@@ -55,6 +127,18 @@ public interface MapStore extends Closeable {
      */
     List<Map<String, Object>> getAllItems(String tableName);
 
+    /**
+     * Retrieves a single page of items from
+     * the given table with all keys.
+     *
+     * The page size and the starting point of
+     * the page are taken from the given options.
+     */
+    MapItemPage getAllItemsPage(
+        String tableName,
+        MapQueryOptions options
+    );
+
     /**
      * Retrieves an item from the given table
      * with the given key.
@@ -67,6 +151,20 @@ public interface MapStore extends Closeable {
         MapStoreKey key
     );
 
+    /**
+     * Retrieves an item from the given table
+     * with the given key, holding only the fields
+     * in the given options' projection.
+     *
+     * Returns {@link Optional#empty()} if no
+     * item exists with the given key.
+     */
+    Optional<Map<String, Object>> getItem(
+        String tableName,
+        MapStoreKey key,
+        MapQueryOptions options
+    );
+
     /**
      * Queries all items from the given table
      * which match the given {@link MapStoreKey}
@@ -78,6 +176,36 @@ public interface MapStore extends Closeable {
         MapQueryOptions options
     );
 
+    /**
+     * Queries a single page of items from the
+     * given table which match the given {@link MapStoreKey}
+     * range key operator.
+     *
+     * The page size and the starting point of
+     * the page are taken from the given options.
+     */
+    MapItemPage getItemsPage(
+        String tableName,
+        MapStoreKey key,
+        MapQueryOptions options
+    );
+
+    /**
+     * Queries all items from the given table
+     * which match any of the given {@link MapStoreKey}s.
+     * This is typically the same range key operator
+     * over many hash keys (i.e. partitions).
+     *
+     * Items are merged in range key order (see
+     * {@link MapQueryOptions#getOrder()}) and the
+     * options' limit applies to the merged result.
+     */
+    List<Map<String, Object>> multiGetItems(
+        String tableName,
+        Collection<MapStoreKey> keys,
+        MapQueryOptions options
+    );
+
     /**
      * Adds an item to the given table
      * under the given key.
@@ -88,6 +216,34 @@ public interface MapStore extends Closeable {
         Map<String, Object> payload
     );
 
+    /**
+     * Streams all items from the given table
+     * with all keys.
+     *
+     * Items are fetched lazily from the underlying
+     * store so the returned stream should be closed
+     * when it is no longer needed.
+     */
+    Stream<Map<String, Object>> streamAllItems(
+        String tableName,
+        MapQueryOptions options
+    );
+
+    /**
+     * Streams all items from the given table
+     * which match the given {@link MapStoreKey}
+     * range key operator.
+     *
+     * Items are fetched lazily from the underlying
+     * store so the returned stream should be closed
+     * when it is no longer needed.
+     */
+    Stream<Map<String, Object>> streamItems(
+        String tableName,
+        MapStoreKey key,
+        MapQueryOptions options
+    );
+
     /**
      * Updates an item in the given table
      * under the given key.
@@ -0,0 +1,30 @@
+package net.spals.appbuilder.mapstore.core;
+
+import com.google.common.cache.CacheStats;
+
+import java.util.Map;
+
+/**
+ * A read-through cache which sits in front of
+ * the configured {@link MapStorePlugin}.
+ *
+ * Caching is enabled per table through the
+ * service configuration:
+ *
+ * <pre>
+ * mapStore.cache.myTable.maxSize = 10000
+ * mapStore.cache.myTable.ttl = 5 minutes
+ * </pre>
+ *
+ * Tables which are not configured are never cached.
+ *
+ * @author tkral
+ */
+public interface MapStoreCache {
+
+    /**
+     * Hit, miss, and eviction statistics for
+     * each cached table, keyed by table name.
+     */
+    Map<String, CacheStats> getCacheStats();
+}
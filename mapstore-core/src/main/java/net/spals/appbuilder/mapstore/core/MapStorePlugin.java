@@ -1,10 +1,28 @@
 package net.spals.appbuilder.mapstore.core;
 
+import com.google.common.util.concurrent.MoreExecutors;
+import net.spals.appbuilder.mapstore.core.model.MapAggregate;
+import net.spals.appbuilder.mapstore.core.model.MapItemPage;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
 import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
 
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * @author tkral
@@ -21,4 +39,306 @@ public interface MapStorePlugin extends MapStore {
         payload.remove(key.getHashField());
         key.getRangeField().ifPresent(rangeField -> payload.remove(rangeField));
     }
+
+    /**
+     * Whether the given item matches all of the filters
+     * in the given query options. Plugins which cannot
+     * filter natively use this to filter items after they
+     * are read (and before they are projected).
+     */
+    static boolean matchesFilters(
+        final Map<String, Object> item,
+        final MapQueryOptions options
+    ) {
+        return options.getFilters().stream().allMatch(filter -> filter.test(item));
+    }
+
+    /**
+     * Copies the given query options for a count or an
+     * aggregate, which ignore paging options, limits and
+     * the projection.
+     */
+    static MapQueryOptions.Builder aggregateOptions(final MapQueryOptions options) {
+        return new MapQueryOptions.Builder()
+            .mergeFrom(options)
+            .clearContinuationToken()
+            .clearLimit()
+            .clearPageSize()
+            .clearProjection();
+    }
+
+    /**
+     * Strips all fields from the given item which are
+     * not in the projection of the given query options.
+     * Plugins which cannot project natively use this to
+     * project items after they are read.
+     */
+    static Map<String, Object> projectItem(
+        final Map<String, Object> item,
+        final MapQueryOptions options
+    ) {
+        if (options.getProjection().isEmpty()) {
+            return item;
+        }
+        final Map<String, Object> projectedItem = new LinkedHashMap<>();
+        item.forEach((field, value) -> {
+            if (options.getProjection().contains(field)) {
+                projectedItem.put(field, value);
+            }
+        });
+        return projectedItem;
+    }
+
+    /**
+     * Cuts a page out of a fully materialized list of items.
+     * The continuation token is the offset of the page within
+     * the list.
+     */
+    static MapItemPage offsetPage(
+        final List<Map<String, Object>> items,
+        final MapQueryOptions options
+    ) {
+        final int offset = options.getContinuationToken().map(Integer::parseInt).orElse(0);
+        final int pageEnd = options.getPageSize().map(pageSize -> offset + pageSize)
+            .filter(end -> end < items.size())
+            .orElse(items.size());
+
+        final MapItemPage.Builder pageBuilder = new MapItemPage.Builder();
+        if (offset < items.size()) {
+            pageBuilder.addAllItems(items.subList(offset, pageEnd));
+        }
+        if (pageEnd < items.size()) {
+            pageBuilder.setContinuationToken(String.valueOf(pageEnd));
+        }
+        return pageBuilder.build();
+    }
+
+    /**
+     * Lazily streams items by fetching one page at a
+     * time and feeding each page's continuation token
+     * back into the next fetch.
+     */
+    static Stream<Map<String, Object>> pagedStream(
+        final MapQueryOptions options,
+        final Function<MapQueryOptions, MapItemPage> pageFetcher
+    ) {
+        final Iterator<Map<String, Object>> pagedIterator = new Iterator<Map<String, Object>>() {
+            private Optional<String> continuationToken = options.getContinuationToken();
+            private Iterator<Map<String, Object>> pageIterator = Collections.emptyIterator();
+            private boolean firstPage = true;
+
+            @Override
+            public boolean hasNext() {
+                while (!pageIterator.hasNext() && (firstPage || continuationToken.isPresent())) {
+                    final MapItemPage page = pageFetcher.apply(new MapQueryOptions.Builder()
+                        .mergeFrom(options)
+                        .setContinuationToken(continuationToken)
+                        .build());
+                    firstPage = false;
+                    continuationToken = page.getContinuationToken();
+                    pageIterator = page.getItems().iterator();
+                }
+                return pageIterator.hasNext();
+            }
+
+            @Override
+            public Map<String, Object> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return pageIterator.next();
+            }
+        };
+
+        final Stream<Map<String, Object>> stream = StreamSupport.stream(
+            Spliterators.spliteratorUnknownSize(pagedIterator, Spliterator.ORDERED), false);
+        return options.getLimit().map(limit -> stream.limit(limit)).orElse(stream);
+    }
+
+    /**
+     * A native, non-blocking version of this plugin.
+     *
+     * Plugins return {@link Optional#empty()} if their
+     * underlying client has no asynchronous support, in
+     * which case {@link AsyncMapStore} will fall back to
+     * running blocking calls on a managed thread pool.
+     */
+    default Optional<AsyncMapStorePlugin> asyncPlugin() {
+        return Optional.empty();
+    }
+
+    /**
+     * Whether this plugin's {@link #updateItem(String, MapStoreKey, Map)}
+     * is a native upsert. That is, an update of a missing item creates
+     * the item in the same write and null or empty fields are ignored.
+     *
+     * {@link MapStore} skips its existence check (read) for
+     * plugins which return true here.
+     */
+    default boolean supportsUpsert() {
+        return false;
+    }
+
+    /**
+     * Generic aggregate which streams only the aggregated
+     * field of each item through {@link MapAggregate#aggregate(Stream)}.
+     * Plugins with native aggregates should override this.
+     */
+    @Override
+    default Optional<BigDecimal> aggregateItems(
+        final String tableName,
+        final MapStoreKey key,
+        final MapAggregate aggregate,
+        final MapQueryOptions options
+    ) {
+        try (final Stream<Map<String, Object>> items = streamItems(tableName, key,
+                aggregateOptions(options).addProjection(aggregate.getField()).build())) {
+            return aggregate.aggregate(items);
+        }
+    }
+
+    /**
+     * Generic batch delete which fans out to {@link #deleteItem(String, MapStoreKey)}
+     * in parallel. Plugins with a native batch path should override this.
+     */
+    @Override
+    default void batchDeleteItems(
+        final String tableName,
+        final Collection<MapStoreKey> keys
+    ) {
+        keys.parallelStream().forEach(key -> deleteItem(tableName, key));
+    }
+
+    /**
+     * Generic batch get which fans out to {@link #getItem(String, MapStoreKey)}
+     * in parallel. Plugins with a native batch path should override this.
+     */
+    @Override
+    default List<Map<String, Object>> batchGetItems(
+        final String tableName,
+        final Collection<MapStoreKey> keys
+    ) {
+        return keys.parallelStream()
+            .map(key -> getItem(tableName, key))
+            .filter(Optional::isPresent)
+            .map(Optional::get)
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * Generic batch put which fans out to {@link #putItem(String, MapStoreKey, Map)}
+     * in parallel. Plugins with a native batch path should override this.
+     */
+    @Override
+    default List<Map<String, Object>> batchPutItems(
+        final String tableName,
+        final Map<MapStoreKey, Map<String, Object>> items
+    ) {
+        return items.entrySet().parallelStream()
+            .map(item -> putItem(tableName, item.getKey(), item.getValue()))
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * Generic count which streams only the hash key of
+     * each item. Plugins with native counts should override this.
+     */
+    @Override
+    default long countItems(
+        final String tableName,
+        final MapStoreKey key,
+        final MapQueryOptions options
+    ) {
+        try (final Stream<Map<String, Object>> items = streamItems(tableName, key,
+                aggregateOptions(options).addProjection(key.getHashField()).build())) {
+            return items.count();
+        }
+    }
+
+    /**
+     * Generic filtered and projected get which strips the
+     * result of {@link #getItem(String, MapStoreKey)}. Plugins
+     * with native filters or projection should override this.
+     */
+    @Override
+    default Optional<Map<String, Object>> getItem(
+        final String tableName,
+        final MapStoreKey key,
+        final MapQueryOptions options
+    ) {
+        return getItem(tableName, key)
+            .filter(item -> matchesFilters(item, options))
+            .map(item -> projectItem(item, options));
+    }
+
+    /**
+     * Generic page read which cuts the page out of
+     * {@link #getAllItems(String)}. Plugins with native
+     * paging should override this.
+     */
+    @Override
+    default MapItemPage getAllItemsPage(
+        final String tableName,
+        final MapQueryOptions options
+    ) {
+        final List<Map<String, Object>> allItems = getAllItems(tableName).stream()
+            .filter(item -> matchesFilters(item, options))
+            .collect(Collectors.toList());
+        return offsetPage(options.getLimit().filter(limit -> limit < allItems.size())
+            .map(limit -> allItems.subList(0, limit)).orElse(allItems), options);
+    }
+
+    /**
+     * Generic page query which cuts the page out of
+     * {@link #getItems(String, MapStoreKey, MapQueryOptions)}.
+     * Plugins with native paging should override this.
+     */
+    @Override
+    default MapItemPage getItemsPage(
+        final String tableName,
+        final MapStoreKey key,
+        final MapQueryOptions options
+    ) {
+        return offsetPage(getItems(tableName, key, options), options);
+    }
+
+    /**
+     * Generic multi-partition query which pages through
+     * the partitions one after another on the calling thread.
+     * {@link MapStore} queries partitions concurrently instead.
+     */
+    @Override
+    default List<Map<String, Object>> multiGetItems(
+        final String tableName,
+        final Collection<MapStoreKey> keys,
+        final MapQueryOptions options
+    ) {
+        return new ScatterGatherQuery(this, MoreExecutors.newDirectExecutorService())
+            .getItems(tableName, keys, options);
+    }
+
+    /**
+     * Generic stream which chains calls to
+     * {@link #getAllItemsPage(String, MapQueryOptions)}.
+     */
+    @Override
+    default Stream<Map<String, Object>> streamAllItems(
+        final String tableName,
+        final MapQueryOptions options
+    ) {
+        return pagedStream(options, pageOptions -> getAllItemsPage(tableName, pageOptions));
+    }
+
+    /**
+     * Generic stream which chains calls to
+     * {@link #getItemsPage(String, MapStoreKey, MapQueryOptions)}.
+     */
+    @Override
+    default Stream<Map<String, Object>> streamItems(
+        final String tableName,
+        final MapStoreKey key,
+        final MapQueryOptions options
+    ) {
+        return pagedStream(options, pageOptions -> getItemsPage(tableName, key, pageOptions));
+    }
 }
@@ -2,11 +2,15 @@ package net.spals.appbuilder.mapstore.core;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.netflix.governator.annotations.Configuration;
 import com.typesafe.config.ConfigException;
 import net.spals.appbuilder.annotations.service.AutoBindProvider;
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory;
+import net.spals.appbuilder.mapstore.core.model.MapAggregate;
+import net.spals.appbuilder.mapstore.core.model.MapItemPage;
 import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
 import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.Order;
 import net.spals.appbuilder.mapstore.core.model.MapRangeOperator.Standard;
@@ -15,16 +19,29 @@ import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
 import net.spals.appbuilder.mapstore.core.model.MapStoreTableKey;
 import net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey;
 
+import java.math.BigDecimal;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static net.spals.appbuilder.mapstore.core.MapStorePlugin.isNullOrEmptyEntry;
 
 /**
+ * A {@link Provider} of the {@link MapStore}.
+ *
+ * A tiered Map Store system, such as tiered(mapDB, dynamoDB),
+ * writes behind a local plugin to a remote plugin
+ * (see {@link MapStoreWriteBehind}).
+ *
+ * Concurrent, identical getItem and getItems calls
+ * share a single read (see {@link MapStoreSingleFlight}).
+ *
  * @author tkral
  */
 @AutoBindProvider
@@ -33,29 +50,76 @@ class MapStoreProvider implements Provider<MapStore> {
     @Configuration("mapStore.system")
     private volatile String storeSystem;
 
+    @Configuration("mapStore.multiGet.numThreads")
+    private volatile int multiGetNumThreads = 10;
+
+    private final ExecutorServiceFactory executorServiceFactory;
+    private final DefaultMapStoreCache storeCache;
+    private final DefaultMapStoreWriteBehind storeWriteBehind;
+    private final DefaultMapStoreSingleFlight storeSingleFlight;
     private final Map<String, MapStorePlugin> storePluginMap;
 
     @Inject
-    MapStoreProvider(final Map<String, MapStorePlugin> storePluginMap) {
+    MapStoreProvider(
+        final ExecutorServiceFactory executorServiceFactory,
+        final DefaultMapStoreCache storeCache,
+        final DefaultMapStoreWriteBehind storeWriteBehind,
+        final DefaultMapStoreSingleFlight storeSingleFlight,
+        final Map<String, MapStorePlugin> storePluginMap
+    ) {
+        this.executorServiceFactory = executorServiceFactory;
+        this.storeCache = storeCache;
+        this.storeWriteBehind = storeWriteBehind;
+        this.storeSingleFlight = storeSingleFlight;
         this.storePluginMap = storePluginMap;
     }
 
     @Override
     public MapStore get() {
-        final MapStorePlugin storePlugin = Optional.ofNullable(storePluginMap.get(storeSystem))
-            .orElseThrow(() -> new ConfigException.BadValue("mapStore.system",
+        final MapStorePlugin storePlugin = DefaultMapStoreWriteBehind.isTiered(storeSystem)
+            ? storeWriteBehind.getTieredPlugin(storeSystem)
+            : Optional.ofNullable(storePluginMap.get(storeSystem))
+                .orElseThrow(() -> new ConfigException.BadValue("mapStore.system",
                     "No Map Store plugin found for : " + storeSystem));
 
-        return new DelegatingMapStore(storePlugin);
+        if (multiGetNumThreads < 1) {
+            throw new ConfigException.BadValue("mapStore.multiGet.numThreads",
+                "Number of multi-partition query threads must be positive: " + multiGetNumThreads);
+        }
+        // Partition queries of all multiGetItems calls share this pool,
+        // which bounds the load that they put on the underlying store.
+        final ExecutorService multiGetExecutorService = executorServiceFactory.createFixedThreadPool(
+            multiGetNumThreads, new ExecutorServiceFactory.Key.Builder(getClass()).addTags(storeSystem, "multiGet").build());
+
+        return new DelegatingMapStore(storeCache.decorate(storePlugin), multiGetExecutorService, storeSingleFlight);
     }
 
     @VisibleForTesting
     static class DelegatingMapStore implements MapStore {
 
         private final MapStorePlugin pluginDelegate;
+        private final ScatterGatherQuery scatterGatherQuery;
+        private final DefaultMapStoreSingleFlight singleFlight;
 
         DelegatingMapStore(final MapStorePlugin pluginDelegate) {
+            this(pluginDelegate, MoreExecutors.newDirectExecutorService());
+        }
+
+        DelegatingMapStore(
+            final MapStorePlugin pluginDelegate,
+            final ExecutorService multiGetExecutorService
+        ) {
+            this(pluginDelegate, multiGetExecutorService, new DefaultMapStoreSingleFlight());
+        }
+
+        DelegatingMapStore(
+            final MapStorePlugin pluginDelegate,
+            final ExecutorService multiGetExecutorService,
+            final DefaultMapStoreSingleFlight singleFlight
+        ) {
             this.pluginDelegate = pluginDelegate;
+            this.scatterGatherQuery = new ScatterGatherQuery(pluginDelegate, multiGetExecutorService);
+            this.singleFlight = singleFlight;
         }
 
         @Override
@@ -76,7 +140,63 @@ class MapStoreProvider implements Provider<MapStore> {
 
         @Override
         public boolean dropTable(final String tableName) {
-            return pluginDelegate.dropTable(tableName);
+            final boolean dropped = pluginDelegate.dropTable(tableName);
+            singleFlight.invalidate(tableName);
+            return dropped;
+        }
+
+        @Override
+        public Optional<BigDecimal> aggregateItems(
+            final String tableName,
+            final MapStoreKey key,
+            final MapAggregate aggregate,
+            final MapQueryOptions options
+        ) {
+            checkMultiItemKey("aggregateItems", key);
+            return pluginDelegate.aggregateItems(tableName, key, aggregate, options);
+        }
+
+        @Override
+        public void batchDeleteItems(
+            final String tableName,
+            final Collection<MapStoreKey> keys
+        ) {
+            keys.forEach(key -> checkSingleItemKey(key));
+            pluginDelegate.batchDeleteItems(tableName, keys);
+            singleFlight.invalidate(tableName);
+        }
+
+        @Override
+        public List<Map<String, Object>> batchGetItems(
+            final String tableName,
+            final Collection<MapStoreKey> keys
+        ) {
+            keys.forEach(key -> checkSingleItemKey(key));
+            return pluginDelegate.batchGetItems(tableName, keys);
+        }
+
+        @Override
+        public List<Map<String, Object>> batchPutItems(
+            final String tableName,
+            final Map<MapStoreKey, Map<String, Object>> items
+        ) {
+            items.forEach((key, payload) -> {
+                checkWriteItem(key, payload);
+                checkPutItem(payload);
+            });
+            final List<Map<String, Object>> putItems = pluginDelegate.batchPutItems(tableName, items);
+            singleFlight.invalidate(tableName);
+            return putItems;
+        }
+
+        @Override
+        public long countItems(
+            final String tableName,
+            final MapStoreKey key,
+            final MapQueryOptions options
+        ) {
+            checkMultiItemKey("countItems", key);
+            return pluginDelegate.countItems(tableName, key, options);
         }
 
         @Override
@@ -86,6 +206,7 @@ class MapStoreProvider implements Provider<MapStore> {
         ) {
             checkSingleItemKey(key);
             pluginDelegate.deleteItem(tableName, key);
+            singleFlight.invalidate(tableName);
         }
 
         @Override
@@ -93,6 +214,14 @@ class MapStoreProvider implements Provider<MapStore> {
             return pluginDelegate.getAllItems(tableName);
         }
 
+        @Override
+        public MapItemPage getAllItemsPage(
+            final String tableName,
+            final MapQueryOptions options
+        ) {
+            return pluginDelegate.getAllItemsPage(tableName, options);
+        }
+
         @Override
         public Optional<Map<String, Object>> getItem(
             final String tableName,
@@ -101,19 +230,20 @@ class MapStoreProvider implements Provider<MapStore> {
             final Optional<SyntacticSugar> sugarOp = SyntacticSugar.fromName(key.getRangeKey().getOperator().toString());
             if (sugarOp.isPresent()) {
                 switch (sugarOp.get()) {
-                    case MAX: return getMaxItem(tableName, key);
-                    case MIN: return getMinItem(tableName, key);
+                    case MAX: return getMaxItem(tableName, key, MapQueryOptions.defaultOptions());
+                    case MIN: return getMinItem(tableName, key, MapQueryOptions.defaultOptions());
                     default:
                         throw new IllegalArgumentException("MapStore.getItem does not support the syntactic sugar operator: "+ sugarOp.get().name());
                 }
             }
 
             checkSingleItemKey(key);
-            return pluginDelegate.getItem(tableName, key);
+            return singleFlight.getItem(tableName, key, MapQueryOptions.defaultOptions(),
+                () -> pluginDelegate.getItem(tableName, key));
         }
 
         @Override
-        public List<Map<String, Object>> getItems(
+        public Optional<Map<String, Object>> getItem(
             final String tableName,
             final MapStoreKey key,
             final MapQueryOptions options
@@ -121,12 +251,45 @@ class MapStoreProvider implements Provider<MapStore> {
             final Optional<SyntacticSugar> sugarOp = SyntacticSugar.fromName(key.getRangeKey().getOperator().toString());
             if (sugarOp.isPresent()) {
                 switch (sugarOp.get()) {
+                    case MAX: return getMaxItem(tableName, key, options);
+                    case MIN: return getMinItem(tableName, key, options);
                     default:
-                        throw new IllegalArgumentException("MapStore.getItems does not support the syntactic sugar operator: "+ sugarOp.get().name());
+                        throw new IllegalArgumentException("MapStore.getItem does not support the syntactic sugar operator: "+ sugarOp.get().name());
                 }
             }
 
-            return pluginDelegate.getItems(tableName, key, options);
+            checkSingleItemKey(key);
+            return singleFlight.getItem(tableName, key, options, () -> pluginDelegate.getItem(tableName, key, options));
+        }
+
+        @Override
+        public List<Map<String, Object>> getItems(
+            final String tableName,
+            final MapStoreKey key,
+            final MapQueryOptions options
+        ) {
+            checkMultiItemKey("getItems", key);
+            return singleFlight.getItems(tableName, key, options, () -> pluginDelegate.getItems(tableName, key, options));
+        }
+
+        @Override
+        public MapItemPage getItemsPage(
+            final String tableName,
+            final MapStoreKey key,
+            final MapQueryOptions options
+        ) {
+            checkMultiItemKey("getItemsPage", key);
+            return pluginDelegate.getItemsPage(tableName, key, options);
+        }
+
+        @Override
+        public List<Map<String, Object>> multiGetItems(
+            final String tableName,
+            final Collection<MapStoreKey> keys,
+            final MapQueryOptions options
+        ) {
+            keys.forEach(key -> checkMultiItemKey("multiGetItems", key));
+            return scatterGatherQuery.getItems(tableName, keys, options);
         }
 
         @Override
@@ -137,7 +300,27 @@ class MapStoreProvider implements Provider<MapStore> {
         ) {
             checkWriteItem(key, payload);
             checkPutItem(payload);
-            return pluginDelegate.putItem(tableName, key, payload);
+            final Map<String, Object> item = pluginDelegate.putItem(tableName, key, payload);
+            singleFlight.invalidate(tableName);
+            return item;
+        }
+
+        @Override
+        public Stream<Map<String, Object>> streamAllItems(
+            final String tableName,
+            final MapQueryOptions options
+        ) {
+            return pluginDelegate.streamAllItems(tableName, options);
+        }
+
+        @Override
+        public Stream<Map<String, Object>> streamItems(
+            final String tableName,
+            final MapStoreKey key,
+            final MapQueryOptions options
+        ) {
+            checkMultiItemKey("streamItems", key);
+            return pluginDelegate.streamItems(tableName, key, options);
         }
 
         @Override
@@ -147,6 +330,10 @@ class MapStoreProvider implements Provider<MapStore> {
             final Map<String, Object> payload
         ) {
             checkWriteItem(key, payload);
+            // Native upserts handle a missing item in the same write
+            if (pluginDelegate.supportsUpsert()) {
+                return updatePluginItem(tableName, key, payload);
+            }
 
             final Optional<Map<String, Object>> item = getItem(tableName, key);
             // If no item is present at the given key, then updateItem takes on putItem semantics
@@ -154,7 +341,19 @@ class MapStoreProvider implements Provider<MapStore> {
                 return putItem(tableName, key, payload);
             }
 
-            return pluginDelegate.updateItem(tableName, key, payload);
+            return updatePluginItem(tableName, key, payload);
+        }
+
+        @VisibleForTesting
+        static void checkMultiItemKey(
+            final String operation,
+            final MapStoreKey key
+        ) {
+            final Optional<SyntacticSugar> sugarOp = SyntacticSugar.fromName(key.getRangeKey().getOperator().toString());
+            if (sugarOp.isPresent()) {
+                throw new IllegalArgumentException("MapStore." + operation +
+                    " does not support the syntactic sugar operator: "+ sugarOp.get().name());
+            }
         }
 
         @VisibleForTesting
@@ -203,10 +402,21 @@ class MapStoreProvider implements Provider<MapStore> {
             checkSingleItemKey(key);
         }
 
+        private Map<String, Object> updatePluginItem(
+            final String tableName,
+            final MapStoreKey key,
+            final Map<String, Object> payload
+        ) {
+            final Map<String, Object> item = pluginDelegate.updateItem(tableName, key, payload);
+            singleFlight.invalidate(tableName);
+            return item;
+        }
+
         // Run max syntactic sugar operation
         Optional<Map<String, Object>> getMaxItem(
             final String tableName,
-            final MapStoreKey key
+            final MapStoreKey key,
+            final MapQueryOptions options
         ) {
             checkArgument(key.getRangeKey().getOperator() == SyntacticSugar.MAX);
 
@@ -217,14 +427,15 @@ class MapStoreProvider implements Provider<MapStore> {
                     .setRange(key.getRangeField().get(), ZeroValueMapRangeKey.all())
                     .build();
             final List<Map<String, Object>> maxItems = getItems(tableName, maxKey,
-                    new MapQueryOptions.Builder().setOrder(Order.DESC).setLimit(1).build());
+                    new MapQueryOptions.Builder().mergeFrom(options).setOrder(Order.DESC).setLimit(1).build());
             return Optional.ofNullable(Iterables.getOnlyElement(maxItems, null));
         }
 
         // Run min syntactic sugar operation
         Optional<Map<String, Object>> getMinItem(
             final String tableName,
-            final MapStoreKey key
+            final MapStoreKey key,
+            final MapQueryOptions options
         ) {
             checkArgument(key.getRangeKey().getOperator() == SyntacticSugar.MIN);
 
@@ -235,7 +446,7 @@ class MapStoreProvider implements Provider<MapStore> {
                     .setRange(key.getRangeField().get(), ZeroValueMapRangeKey.all())
                     .build();
             final List<Map<String, Object>> minItems = getItems(tableName, maxKey,
-                    new MapQueryOptions.Builder().setOrder(Order.ASC).setLimit(1).build());
+                    new MapQueryOptions.Builder().mergeFrom(options).setOrder(Order.ASC).setLimit(1).build());
             return Optional.ofNullable(Iterables.getOnlyElement(minItems, null));
         }
     }
@@ -0,0 +1,34 @@
+package net.spals.appbuilder.mapstore.core;
+
+/**
+ * Coalesces concurrent, identical reads of the {@link MapStore}.
+ *
+ * While a getItem or getItems call is in flight, any other call
+ * for the same table, key and query options waits for it and
+ * shares its result, rather than reading from the store again.
+ * A write through the {@link MapStore} or the {@link AsyncMapStore}
+ * ends the sharing of any reads of its table, so that later reads
+ * see the write.
+ *
+ * Coalescing can be switched off through the service configuration:
+ *
+ * <pre>
+ * mapStore.singleFlight.enabled = false
+ * </pre>
+ *
+ * @author tkral
+ */
+public interface MapStoreSingleFlight {
+
+    /**
+     * The number of getItem calls which shared
+     * the result of another in-flight call.
+     */
+    long getCoalescedGetItemCount();
+
+    /**
+     * The number of getItems calls which shared
+     * the result of another in-flight call.
+     */
+    long getCoalescedGetItemsCount();
+}
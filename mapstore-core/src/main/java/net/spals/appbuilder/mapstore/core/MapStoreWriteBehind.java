@@ -0,0 +1,59 @@
+package net.spals.appbuilder.mapstore.core;
+
+/**
+ * A write-behind tier which sits in front of a
+ * remote {@link MapStorePlugin}.
+ *
+ * Tiering is enabled through the Map Store system,
+ * which names the local and the remote plugins:
+ *
+ * <pre>
+ * mapStore.system = "tiered(mapDB, dynamoDB)"
+ * mapStore.tiered.flushIntervalMs = 1000
+ * mapStore.tiered.batchSize = 25
+ * </pre>
+ *
+ * Writes land in the local plugin and are flushed to
+ * the remote plugin in the background. The local plugin
+ * must be the unsharded mapDB plugin. All counts are
+ * zero when the Map Store system is not tiered.
+ *
+ * Pending writes are logged in MapDB, which must be
+ * file backed with transactions so that they survive
+ * a crash:
+ *
+ * <pre>
+ * mapStore.mapDB.file = "/var/lib/myService/mapStore.db"
+ * mapStore.mapDB.transactions = true
+ * </pre>
+ *
+ * Otherwise, the tiered system is refused unless the
+ * loss is accepted with mapStore.tiered.allowVolatileWriteLog.
+ *
+ * @author tkral
+ */
+public interface MapStoreWriteBehind {
+
+    /**
+     * The number of items which were written locally,
+     * but not yet flushed to the remote plugin.
+     */
+    long getPendingWriteCount();
+
+    /**
+     * How long (in milliseconds) the oldest pending
+     * write has been waiting to be flushed.
+     */
+    long getWriteLagMs();
+
+    /**
+     * The number of items flushed to the remote plugin.
+     */
+    long getFlushedWriteCount();
+
+    /**
+     * The number of flushed batches which the remote
+     * plugin has failed. Failed batches are retried.
+     */
+    long getFailedFlushCount();
+}
@@ -0,0 +1,223 @@
+package net.spals.appbuilder.mapstore.core;
+
+import com.google.common.base.Throwables;
+import net.spals.appbuilder.mapstore.core.model.MapItemPage;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.Order;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Collectors;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static net.spals.appbuilder.mapstore.core.MapStorePlugin.projectItem;
+
+/**
+ * A query of the same range across many partitions
+ * (i.e. hash keys) of a single table.
+ *
+ * Each partition is read one page at a time on the given
+ * executor, so partitions are queried concurrently up to the
+ * size of its thread pool. Pages are merge-sorted by range key
+ * in the requested order and each partition has at most one
+ * page in flight, which is fetched while its previous page is
+ * merged. No more pages are fetched once the merged result
+ * reaches the query's limit, and any page fetches which have
+ * not yet started are cancelled.
+ *
+ * @author tkral
+ */
+class ScatterGatherQuery {
+
+    static final int DEFAULT_PAGE_SIZE = 100;
+
+    private final MapStorePlugin storePlugin;
+    private final ExecutorService executorService;
+
+    ScatterGatherQuery(
+        final MapStorePlugin storePlugin,
+        final ExecutorService executorService
+    ) {
+        this.storePlugin = storePlugin;
+        this.executorService = executorService;
+    }
+
+    List<Map<String, Object>> getItems(
+        final String tableName,
+        final Collection<MapStoreKey> keys,
+        final MapQueryOptions options
+    ) {
+        if (keys.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        final MapStoreKey firstKey = keys.iterator().next();
+        keys.forEach(key -> checkArgument(key.getHashField().equals(firstKey.getHashField())
+                && key.getRangeField().equals(firstKey.getRangeField()),
+            "All keys of a multi-partition query must have the same hash and range fields"));
+
+        final int limit = options.getLimit().orElse(Integer.MAX_VALUE);
+        final MapQueryOptions pageOptions = partitionOptions(firstKey.getRangeField(), options);
+        final List<Partition> partitions = new ArrayList<>(keys.size());
+        keys.forEach(key -> partitions.add(new Partition(partitions.size(), tableName, key, pageOptions)));
+
+        final List<Map<String, Object>> items = new ArrayList<>();
+        try {
+            partitions.forEach(Partition::fetchFirstPage);
+            if (firstKey.getRangeField().isPresent()) {
+                mergeItems(partitions, rangeComparator(firstKey.getRangeField().get(), options.getOrder()),
+                    limit, items);
+            } else {
+                // Without range keys, there is no order to merge, so
+                // partitions are simply drained in the order they were queried.
+                for (final Iterator<Partition> iterator = partitions.iterator();
+                     iterator.hasNext() && items.size() < limit; ) {
+                    final Partition partition = iterator.next();
+                    while (items.size() < limit && partition.advance()) {
+                        items.add(partition.head);
+                    }
+                }
+            }
+        } finally {
+            partitions.forEach(Partition::cancel);
+        }
+
+        return items.stream().map(item -> projectItem(item, options)).collect(Collectors.toList());
+    }
+
+    private void mergeItems(
+        final List<Partition> partitions,
+        final Comparator<Map<String, Object>> rangeComparator,
+        final int limit,
+        final List<Map<String, Object>> items
+    ) {
+        // Ties between partitions are broken by the order of the keys
+        final PriorityQueue<Partition> heads = new PriorityQueue<>(partitions.size(),
+            Comparator.<Partition, Map<String, Object>>comparing(partition -> partition.head, rangeComparator)
+                .thenComparing(partition -> partition.index));
+        for (final Partition partition : partitions) {
+            if (partition.advance()) {
+                heads.add(partition);
+            }
+        }
+
+        while (items.size() < limit && !heads.isEmpty()) {
+            final Partition partition = heads.poll();
+            items.add(partition.head);
+            if (items.size() < limit && partition.advance()) {
+                heads.add(partition);
+            }
+        }
+    }
+
+    /**
+     * The options with which each partition is paged. Every
+     * partition is capped at the global limit, since no partition
+     * can contribute more than that to the merged result, and the
+     * range field is projected so that items can be merged.
+     */
+    private static MapQueryOptions partitionOptions(
+        final Optional<String> rangeField,
+        final MapQueryOptions options
+    ) {
+        final int pageSize = Math.min(options.getPageSize().orElse(DEFAULT_PAGE_SIZE),
+            options.getLimit().orElse(Integer.MAX_VALUE));
+        final MapQueryOptions.Builder pageOptionsBuilder = new MapQueryOptions.Builder()
+            .mergeFrom(options)
+            .clearContinuationToken()
+            .setPageSize(Math.max(pageSize, 1));
+        if (!options.getProjection().isEmpty()) {
+            rangeField.ifPresent(pageOptionsBuilder::addProjection);
+        }
+        return pageOptionsBuilder.build();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Comparator<Map<String, Object>> rangeComparator(
+        final String rangeField,
+        final Order order
+    ) {
+        final Comparator<Map<String, Object>> ascending = Comparator.comparing(
+            item -> (Comparable<Object>) item.get(rangeField), Comparator.nullsFirst(Comparator.naturalOrder()));
+        return order == Order.DESC ? ascending.reversed() : ascending;
+    }
+
+    private class Partition {
+        private final int index;
+        private final String tableName;
+        private final MapStoreKey key;
+        private final MapQueryOptions pageOptions;
+
+        private Map<String, Object> head;
+        private Iterator<Map<String, Object>> pageItems = Collections.emptyIterator();
+        private Optional<CompletableFuture<MapItemPage>> nextPage = Optional.empty();
+
+        private Partition(
+            final int index,
+            final String tableName,
+            final MapStoreKey key,
+            final MapQueryOptions pageOptions
+        ) {
+            this.index = index;
+            this.tableName = tableName;
+            this.key = key;
+            this.pageOptions = pageOptions;
+        }
+
+        /**
+         * Moves this partition's head to its next item,
+         * waiting for the next page if necessary.
+         *
+         * @return false iff the partition is exhausted
+         */
+        private boolean advance() {
+            while (!pageItems.hasNext() && nextPage.isPresent()) {
+                final MapItemPage page = join(nextPage.get());
+                nextPage = Optional.empty();
+                pageItems = page.getItems().iterator();
+                // Fetch the following page while this one is merged
+                page.getContinuationToken().ifPresent(this::fetchPage);
+            }
+
+            head = pageItems.hasNext() ? pageItems.next() : null;
+            return head != null;
+        }
+
+        private void cancel() {
+            nextPage.ifPresent(page -> page.cancel(false));
+        }
+
+        private void fetchFirstPage() {
+            fetchPage(null);
+        }
+
+        private void fetchPage(final String continuationToken) {
+            final MapQueryOptions options = new MapQueryOptions.Builder()
+                .mergeFrom(pageOptions)
+                .setNullableContinuationToken(continuationToken)
+                .build();
+            nextPage = Optional.of(CompletableFuture.supplyAsync(
+                () -> storePlugin.getItemsPage(tableName, key, options), executorService));
+        }
+    }
+
+    private static <T> T join(final CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw e;
+        }
+    }
+}
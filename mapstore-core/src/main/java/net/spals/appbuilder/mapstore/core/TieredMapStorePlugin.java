@@ -0,0 +1,548 @@
+package net.spals.appbuilder.mapstore.core;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import net.spals.appbuilder.mapstore.core.model.MapAggregate;
+import net.spals.appbuilder.mapstore.core.model.MapItemPage;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+import net.spals.appbuilder.mapstore.core.model.MapStoreTableKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.equalTo;
+
+/**
+ * A {@link MapStorePlugin} which writes items to a local
+ * plugin and flushes them to a remote plugin in the background.
+ *
+ * Every write is recorded in a write log, along with the item
+ * which it left behind (or a tombstone, for a delete). Only the
+ * latest write of each item is kept (last write wins), so an item
+ * which is written many times between flushes is flushed only once.
+ * Flushes send exactly what the write log holds, and never read
+ * the local plugin. Flushed items are evicted from the local plugin,
+ * so the local plugin only ever holds the items which are waiting
+ * to be flushed.
+ *
+ * Each write of an item (and its write log entry) is made while
+ * holding the item's pending write, so concurrent writes and
+ * flushes of the same item are applied one at a time. The local
+ * write and the write log entry are made durable together (see
+ * {@link DefaultMapStoreWriteBehind}). Pending writes are recovered
+ * from the write log on startup.
+ *
+ * Single item reads are served by the local plugin first, so
+ * that pending writes are always seen. All other reads are
+ * served by the remote plugin, after the pending writes of
+ * their table are flushed to it. So every read sees the writes
+ * which were made before it, and a read fails if they can't be
+ * flushed.
+ *
+ * @author tkral
+ */
+class TieredMapStorePlugin implements MapStorePlugin, MapStoreWriteBehind {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TieredMapStorePlugin.class);
+
+    // The fields of a write log entry
+    private static final int TABLE_NAME = 0;
+    private static final int HASH_FIELD = 1;
+    private static final int HASH_VALUE = 2;
+    private static final int RANGE_FIELD = 3;
+    private static final int RANGE_VALUE = 4;
+    private static final int WRITE_TIME_MS = 5;
+    private static final int ITEM = 6;
+
+    private final MapStorePlugin localPlugin;
+    private final MapStorePlugin remotePlugin;
+    private final ConcurrentNavigableMap<Long, Object[]> writeLog;
+    private final Consumer<Runnable> writeTogether;
+    private final int batchSize;
+
+    // The write log sequence of the latest write of each pending item
+    private final ConcurrentMap<Map.Entry<String, MapStoreKey>, Long> pendingWrites = new ConcurrentHashMap<>();
+    // Flushes of each table, so that reads of one table never wait for flushes of another
+    private final ConcurrentMap<String, Lock> flushLocks = new ConcurrentHashMap<>();
+    private final AtomicLong nextSequence;
+    private final LongAdder flushedWriteCount = new LongAdder();
+    private final LongAdder failedFlushCount = new LongAdder();
+
+    @VisibleForTesting
+    TieredMapStorePlugin(
+        final MapStorePlugin localPlugin,
+        final MapStorePlugin remotePlugin,
+        final ConcurrentNavigableMap<Long, Object[]> writeLog,
+        final int batchSize
+    ) {
+        this(localPlugin, remotePlugin, writeLog, Runnable::run, batchSize);
+    }
+
+    /**
+     * @param writeTogether Runs writes to the local plugin and the
+     *                      write log, so that they're made durable together
+     */
+    TieredMapStorePlugin(
+        final MapStorePlugin localPlugin,
+        final MapStorePlugin remotePlugin,
+        final ConcurrentNavigableMap<Long, Object[]> writeLog,
+        final Consumer<Runnable> writeTogether,
+        final int batchSize
+    ) {
+        checkArgument(batchSize > 0, "Write-behind batch size must be positive: %s", batchSize);
+        this.localPlugin = localPlugin;
+        this.remotePlugin = remotePlugin;
+        this.writeLog = writeLog;
+        this.writeTogether = writeTogether;
+        this.batchSize = batchSize;
+
+        // Recover the writes which were not flushed before the last shutdown
+        writeLog.forEach((sequence, logEntry) -> Optional.ofNullable(pendingWrites.put(writeKey(logEntry), sequence))
+            .ifPresent(writeLog::remove));
+        this.nextSequence = new AtomicLong(writeLog.isEmpty() ? 0L : writeLog.lastKey() + 1L);
+        if (!pendingWrites.isEmpty()) {
+            LOGGER.info("Recovered {} pending Map Store writes", pendingWrites.size());
+        }
+    }
+
+    @Override
+    public void close() {
+        // Both plugins are torn down within their own
+        // pre-destroy lifecycle. Unflushed writes are
+        // recovered from the write log on startup.
+    }
+
+    @Override
+    public boolean createTable(
+        final String tableName,
+        final MapStoreTableKey tableKey
+    ) {
+        return localPlugin.createTable(tableName, tableKey) && remotePlugin.createTable(tableName, tableKey);
+    }
+
+    @Override
+    public boolean dropTable(final String tableName) {
+        pendingWrites.keySet().stream()
+            .filter(writeKey -> writeKey.getKey().equals(tableName))
+            .forEach(writeKey -> pendingWrites.computeIfPresent(writeKey, (key, sequence) -> {
+                writeLog.remove(sequence);
+                return null;
+            }));
+        return localPlugin.dropTable(tableName) && remotePlugin.dropTable(tableName);
+    }
+
+    @Override
+    public Optional<BigDecimal> aggregateItems(
+        final String tableName,
+        final MapStoreKey key,
+        final MapAggregate aggregate,
+        final MapQueryOptions options
+    ) {
+        flushTable(tableName);
+        return remotePlugin.aggregateItems(tableName, key, aggregate, options);
+    }
+
+    @Override
+    public void batchDeleteItems(
+        final String tableName,
+        final Collection<MapStoreKey> keys
+    ) {
+        keys.forEach(key -> deleteItem(tableName, key));
+    }
+
+    @Override
+    public List<Map<String, Object>> batchGetItems(
+        final String tableName,
+        final Collection<MapStoreKey> keys
+    ) {
+        final List<Map<String, Object>> items = new ArrayList<>(localPlugin.batchGetItems(tableName, keys));
+        if (keys.isEmpty()) {
+            return items;
+        }
+
+        // All keys of a table share the same fields
+        final MapStoreKey firstKey = keys.iterator().next();
+        final Set<List<Object>> localKeyValues = items.stream()
+            .map(item -> Arrays.asList(item.get(firstKey.getHashField()),
+                firstKey.getRangeField().map(item::get).orElse(null)))
+            .collect(Collectors.toSet());
+        final List<MapStoreKey> missedKeys = keys.stream()
+            .filter(key -> !isPending(tableName, key))
+            .filter(key -> !localKeyValues.contains(keyValues(key)))
+            .collect(Collectors.toList());
+
+        if (!missedKeys.isEmpty()) {
+            items.addAll(remotePlugin.batchGetItems(tableName, missedKeys));
+        }
+        return items;
+    }
+
+    @Override
+    public List<Map<String, Object>> batchPutItems(
+        final String tableName,
+        final Map<MapStoreKey, Map<String, Object>> items
+    ) {
+        return items.entrySet().stream()
+            .map(item -> putItem(tableName, item.getKey(), item.getValue()))
+            .collect(Collectors.toList());
+    }
+
+    @Override
+    public long countItems(
+        final String tableName,
+        final MapStoreKey key,
+        final MapQueryOptions options
+    ) {
+        flushTable(tableName);
+        return remotePlugin.countItems(tableName, key, options);
+    }
+
+    @Override
+    public void deleteItem(
+        final String tableName,
+        final MapStoreKey key
+    ) {
+        writeLocally(tableName, key, false, () -> {
+            localPlugin.deleteItem(tableName, key);
+            return Optional.empty();
+        });
+    }
+
+    @Override
+    public List<Map<String, Object>> getAllItems(final String tableName) {
+        flushTable(tableName);
+        return remotePlugin.getAllItems(tableName);
+    }
+
+    @Override
+    public MapItemPage getAllItemsPage(
+        final String tableName,
+        final MapQueryOptions options
+    ) {
+        flushTable(tableName);
+        return remotePlugin.getAllItemsPage(tableName, options);
+    }
+
+    @Override
+    public Optional<Map<String, Object>> getItem(
+        final String tableName,
+        final MapStoreKey key
+    ) {
+        final Optional<Map<String, Object>> item = localPlugin.getItem(tableName, key);
+        // A pending item which is missing locally is waiting to be deleted
+        return item.isPresent() || isPending(tableName, key) ? item : remotePlugin.getItem(tableName, key);
+    }
+
+    @Override
+    public Optional<Map<String, Object>> getItem(
+        final String tableName,
+        final MapStoreKey key,
+        final MapQueryOptions options
+    ) {
+        // Pending items are read in full, so that filtered out items aren't mistaken for deleted items
+        final Optional<Map<String, Object>> item = localPlugin.getItem(tableName, key);
+        if (item.isPresent() || isPending(tableName, key)) {
+            return item.filter(pendingItem -> MapStorePlugin.matchesFilters(pendingItem, options))
+                .map(pendingItem -> MapStorePlugin.projectItem(pendingItem, options));
+        }
+        return remotePlugin.getItem(tableName, key, options);
+    }
+
+    @Override
+    public List<Map<String, Object>> getItems(
+        final String tableName,
+        final MapStoreKey key,
+        final MapQueryOptions options
+    ) {
+        flushTable(tableName);
+        return remotePlugin.getItems(tableName, key, options);
+    }
+
+    @Override
+    public MapItemPage getItemsPage(
+        final String tableName,
+        final MapStoreKey key,
+        final MapQueryOptions options
+    ) {
+        flushTable(tableName);
+        return remotePlugin.getItemsPage(tableName, key, options);
+    }
+
+    @Override
+    public Map<String, Object> putItem(
+        final String tableName,
+        final MapStoreKey key,
+        final Map<String, Object> payload
+    ) {
+        return writeLocally(tableName, key, false,
+            () -> Optional.of(localPlugin.putItem(tableName, key, payload))).get();
+    }
+
+    @Override
+    public Stream<Map<String, Object>> streamAllItems(
+        final String tableName,
+        final MapQueryOptions options
+    ) {
+        flushTable(tableName);
+        return remotePlugin.streamAllItems(tableName, options);
+    }
+
+    @Override
+    public Stream<Map<String, Object>> streamItems(
+        final String tableName,
+        final MapStoreKey key,
+        final MapQueryOptions options
+    ) {
+        flushTable(tableName);
+        return remotePlugin.streamItems(tableName, key, options);
+    }
+
+    @Override
+    public Map<String, Object> updateItem(
+        final String tableName,
+        final MapStoreKey key,
+        final Map<String, Object> payload
+    ) {
+        return writeLocally(tableName, key, true,
+            () -> Optional.of(localPlugin.updateItem(tableName, key, payload))).get();
+    }
+
+    @Override
+    public long getPendingWriteCount() {
+        return pendingWrites.size();
+    }
+
+    @Override
+    public long getWriteLagMs() {
+        return Optional.ofNullable(writeLog.firstEntry())
+            .map(logEntry -> Math.max(0L, System.currentTimeMillis() - (long) logEntry.getValue()[WRITE_TIME_MS]))
+            .orElse(0L);
+    }
+
+    @Override
+    public long getFlushedWriteCount() {
+        return flushedWriteCount.sum();
+    }
+
+    @Override
+    public long getFailedFlushCount() {
+        return failedFlushCount.sum();
+    }
+
+    /**
+     * Flushes all pending writes to the remote plugin,
+     * one table batch at a time. Batches which fail stay
+     * pending, and are retried by the next flush.
+     */
+    void flush() {
+        final Map<String, List<Map.Entry<Map.Entry<String, MapStoreKey>, Long>>> tableWrites =
+            ImmutableMap.copyOf(pendingWrites).entrySet().stream()
+                .collect(Collectors.groupingBy(write -> write.getKey().getKey()));
+
+        tableWrites.forEach((tableName, writes) -> withFlushLock(tableName, () ->
+            Iterables.partition(writes, batchSize).forEach(batch -> {
+                try {
+                    flushBatch(tableName, batch);
+                } catch (RuntimeException e) {
+                    // Don't let a single failure hold up the other batches
+                    failedFlushCount.increment();
+                    LOGGER.warn("Unable to flush " + batch.size() + " Map Store writes to table " + tableName, e);
+                }
+            })));
+    }
+
+    @VisibleForTesting
+    static Object[] logEntry(
+        final String tableName,
+        final MapStoreKey key,
+        final Optional<Map<String, Object>> item
+    ) {
+        return new Object[]{tableName, key.getHashField(), key.getHashValue(), key.getRangeField().orElse(null),
+            key.getRangeField().map(rangeField -> key.getRangeKey().getValue()).orElse(null),
+            System.currentTimeMillis(), item.map(LinkedHashMap::new).orElse(null)};
+    }
+
+    @SuppressWarnings("unchecked")
+    @VisibleForTesting
+    static Map.Entry<String, MapStoreKey> writeKey(final Object[] logEntry) {
+        final MapStoreKey.Builder keyBuilder = new MapStoreKey.Builder()
+            .setHash((String) logEntry[HASH_FIELD], logEntry[HASH_VALUE]);
+        Optional.ofNullable((String) logEntry[RANGE_FIELD]).ifPresent(rangeField ->
+            keyBuilder.setRange(rangeField, equalTo((Comparable) logEntry[RANGE_VALUE])));
+        return Maps.immutableEntry((String) logEntry[TABLE_NAME], keyBuilder.build());
+    }
+
+    /**
+     * The item which a write log entry left behind,
+     * or nothing if the entry is a tombstone.
+     */
+    @SuppressWarnings("unchecked")
+    @VisibleForTesting
+    static Optional<Map<String, Object>> writeItem(final Object[] logEntry) {
+        return Optional.ofNullable((Map<String, Object>) logEntry[ITEM]);
+    }
+
+    private void flushBatch(
+        final String tableName,
+        final List<Map.Entry<Map.Entry<String, MapStoreKey>, Long>> batch
+    ) {
+        // Flush what the write log holds for each item. A write
+        // which has been superseded since the batch was taken
+        // is flushed with the write which superseded it.
+        final Map<MapStoreKey, Map<String, Object>> putItems = new LinkedHashMap<>();
+        final List<MapStoreKey> deleteKeys = new ArrayList<>();
+        batch.forEach(write -> Optional.ofNullable(writeLog.get(write.getValue())).ifPresent(logEntry -> {
+            final MapStoreKey key = write.getKey().getValue();
+            final Optional<Map<String, Object>> item = writeItem(logEntry);
+            if (item.isPresent()) {
+                putItems.put(key, new LinkedHashMap<>(item.get()));
+            } else {
+                deleteKeys.add(key);
+            }
+        }));
+
+        if (!putItems.isEmpty()) {
+            remotePlugin.batchPutItems(tableName, putItems);
+        }
+        if (!deleteKeys.isEmpty()) {
+            remotePlugin.batchDeleteItems(tableName, deleteKeys);
+        }
+
+        // Items which were written during the flush stay pending (and local)
+        batch.forEach(write -> pendingWrites.computeIfPresent(write.getKey(), (writeKey, sequence) -> {
+            if (!sequence.equals(write.getValue())) {
+                return sequence;
+            }
+            writeTogether.accept(() -> {
+                localPlugin.deleteItem(tableName, writeKey.getValue());
+                writeLog.remove(sequence);
+            });
+            return null;
+        }));
+        flushedWriteCount.add(batch.size());
+    }
+
+    /**
+     * Flushes the pending writes of the given table, so that
+     * a read of the remote plugin sees them. Unlike a background
+     * flush, a failed batch is thrown to the reader.
+     */
+    private void flushTable(final String tableName) {
+        if (pendingWrites.keySet().stream().noneMatch(writeKey -> writeKey.getKey().equals(tableName))) {
+            return;
+        }
+
+        withFlushLock(tableName, () -> {
+            // Take the writes under the flush lock, so that none of them has been flushed already
+            final List<Map.Entry<Map.Entry<String, MapStoreKey>, Long>> writes =
+                ImmutableMap.copyOf(pendingWrites).entrySet().stream()
+                    .filter(write -> write.getKey().getKey().equals(tableName))
+                    .collect(Collectors.toList());
+            Iterables.partition(writes, batchSize).forEach(batch -> {
+                try {
+                    flushBatch(tableName, batch);
+                } catch (RuntimeException e) {
+                    failedFlushCount.increment();
+                    throw e;
+                }
+            });
+        });
+    }
+
+    private void withFlushLock(
+        final String tableName,
+        final Runnable flush
+    ) {
+        final Lock flushLock = flushLocks.computeIfAbsent(tableName, name -> new ReentrantLock());
+        flushLock.lock();
+        try {
+            flush.run();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private List<Object> keyValues(final MapStoreKey key) {
+        return Arrays.asList(key.getHashValue(),
+            key.getRangeField().map(rangeField -> key.getRangeKey().getValue()).orElse(null));
+    }
+
+    private boolean isPending(
+        final String tableName,
+        final MapStoreKey key
+    ) {
+        return pendingWrites.containsKey(Maps.immutableEntry(tableName, key));
+    }
+
+    /**
+     * Runs a write of the given item against the local plugin, and
+     * records it in the write log, replacing any earlier pending
+     * write of the item (last write wins).
+     *
+     * The write holds the item's pending write throughout, so a
+     * flush can't evict the item while it's being written. An update
+     * of an item which isn't pending is first filled with the remote
+     * item (if any), as the item may only exist remotely.
+     *
+     * @param localWrite Writes the item locally, and returns what
+     *                   it left behind (nothing, for a delete)
+     */
+    private Optional<Map<String, Object>> writeLocally(
+        final String tableName,
+        final MapStoreKey key,
+        final boolean fillFromRemote,
+        final Supplier<Optional<Map<String, Object>>> localWrite
+    ) {
+        final AtomicReference<Optional<Map<String, Object>>> writtenItem = new AtomicReference<>();
+        pendingWrites.compute(Maps.immutableEntry(tableName, key), (writeKey, pendingSequence) -> {
+            final long sequence = nextSequence.getAndIncrement();
+            final Optional<Map<String, Object>> remoteItem = fillFromRemote && pendingSequence == null
+                ? remotePlugin.getItem(tableName, key) : Optional.empty();
+
+            writeTogether.accept(() -> {
+                final boolean filled = remoteItem.isPresent() && !localPlugin.getItem(tableName, key).isPresent();
+                if (filled) {
+                    localPlugin.putItem(tableName, key, new LinkedHashMap<>(remoteItem.get()));
+                }
+                try {
+                    writtenItem.set(localWrite.get());
+                } catch (RuntimeException e) {
+                    // Never leave an item locally which isn't pending
+                    if (filled) {
+                        localPlugin.deleteItem(tableName, key);
+                    }
+                    throw e;
+                }
+
+                writeLog.put(sequence, logEntry(tableName, key, writtenItem.get()));
+                Optional.ofNullable(pendingSequence).ifPresent(writeLog::remove);
+            });
+            return sequence;
+        });
+        return writtenItem.get();
+    }
+}
@@ -0,0 +1,57 @@
+package net.spals.appbuilder.mapstore.core.mapdb;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.mapdb.DB;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Groups writes to a MapDB {@link DB} into a single commit.
+ *
+ * MapDB commits periodically (see {@link MapDBProvider}), so
+ * the writes of one operation may otherwise be split across
+ * two commits, and only half of them survive a crash. Writes
+ * run through {@link #writeTogether(DB, Runnable)} are never
+ * split by a commit.
+ *
+ * @author tkral
+ */
+public final class MapDBCommits {
+
+    // Writes which are committed together hold the read lock, and commits hold the write lock
+    private static final LoadingCache<DB, ReadWriteLock> COMMIT_LOCKS = CacheBuilder.newBuilder()
+        .weakKeys()
+        .build(new CacheLoader<DB, ReadWriteLock>() {
+            @Override
+            public ReadWriteLock load(final DB mapDB) {
+                return new ReentrantReadWriteLock();
+            }
+        });
+
+    private MapDBCommits() {  }
+
+    /**
+     * Runs the given writes to the given DB, so that
+     * they're all made durable by the same commit.
+     */
+    public static void writeTogether(
+        final DB mapDB,
+        final Runnable writes
+    ) {
+        final Lock writesLock = COMMIT_LOCKS.getUnchecked(mapDB).readLock();
+        writesLock.lock();
+        try {
+            writes.run();
+        } finally {
+            writesLock.unlock();
+        }
+    }
+
+    static Lock commitLock(final DB mapDB) {
+        return COMMIT_LOCKS.getUnchecked(mapDB).writeLock();
+    }
+}
@@ -1,7 +1,11 @@
 package net.spals.appbuilder.mapstore.core.mapdb;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
 import com.google.inject.Inject;
+import com.netflix.governator.annotations.Configuration;
+import com.typesafe.config.ConfigException;
 import net.spals.appbuilder.annotations.service.AutoBindInMap;
 import net.spals.appbuilder.mapstore.core.MapStore;
 import net.spals.appbuilder.mapstore.core.MapStoreIndexPlugin;
@@ -15,32 +19,64 @@ import org.mapdb.BTreeMap;
 import org.mapdb.DB;
 import org.mapdb.MapModificationListener;
 import org.mapdb.Serializer;
+import org.mapdb.serializer.SerializerArrayTuple;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static net.spals.appbuilder.mapstore.core.mapdb.MapDBIndexMetadata.findIndexMetadata;
 import static net.spals.appbuilder.mapstore.core.mapdb.MapDBIndexMetadata.indexMetadata;
+import static net.spals.appbuilder.mapstore.core.mapdb.MapDBMapStorePlugin.addTableListener;
 import static net.spals.appbuilder.mapstore.core.mapdb.MapDBMapStorePlugin.createKeySerializer;
 
 /**
+ * A {@link MapStoreIndexPlugin} backed by MapDB.
+ *
+ * Each shard indexes its own items (see {@link MapDBMapStorePlugin}),
+ * so indexes are backfilled and kept up to date shard by shard.
+ *
+ * A new index is bulk loaded with up to mapStore.mapDB.index.bulkLoadLimit
+ * of its table's values, which are held in memory to be sorted. Any
+ * values beyond the limit are inserted one at a time, so that the
+ * backfill of a large table doesn't run out of memory.
+ *
  * @author tkral
  */
 @AutoBindInMap(baseClass = MapStoreIndexPlugin.class, key = "mapDB")
 class MapDBMapStoreIndexPlugin implements MapStoreIndexPlugin {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MapDBMapStoreIndexPlugin.class);
 
-    private final DB mapDB;
+    @VisibleForTesting
+    static final long PROGRESS_INTERVAL = 100000L;
+
+    @Configuration("mapStore.mapDB.index.bulkLoadLimit")
+    @VisibleForTesting
+    volatile int bulkLoadLimit = 1000000;
+
+    private final MapDBShards shards;
     private final MapStore mapStore;
 
-    @Inject
     MapDBMapStoreIndexPlugin(
         final DB mapDB,
         final MapStore mapStore
     ) {
-        this.mapDB = mapDB;
+        this(MapDBShards.singleShard(mapDB), mapStore);
+    }
+
+    @Inject
+    MapDBMapStoreIndexPlugin(
+        final MapDBShards shards,
+        final MapStore mapStore
+    ) {
+        this.shards = shards;
         this.mapStore = mapStore;
     }
 
@@ -53,33 +89,31 @@ class MapDBMapStoreIndexPlugin implements MapStoreIndexPlugin {
         final MapStoreIndexName indexName,
         final MapStoreTableKey indexKey
     ) {
-        // Create a new index table using the map store
-        final MapDBIndexMetadata indexMetadata = indexMetadata(indexName, indexKey);
-        final boolean createdIndex = mapStore.createTable(indexMetadata.toString(), indexKey);
+        if (bulkLoadLimit < 0) {
+            throw new ConfigException.BadValue("mapStore.mapDB.index.bulkLoadLimit",
+                "MapDB index bulk load limit cannot be negative: " + bulkLoadLimit);
+        }
 
-        if (createdIndex) {
-            // Copy all table records to the new index
-            final Function<byte[], Object[]> indexKeyFunction = indexKeyFunction(indexMetadata);
-            final BTreeMap<?, byte[]> table = mapDB.treeMap(indexName.getTableName())
-                .valueSerializer(Serializer.BYTE_ARRAY)
-                .open();
-            final BTreeMap<Object[], byte[]> index = mapDB.treeMap(indexMetadata.toString())
-                .keySerializer(createKeySerializer(indexKey.getHashFieldType(), indexKey.getRangeFieldType()))
-                .valueSerializer(Serializer.BYTE_ARRAY)
-                .open();
+        final MapDBIndexMetadata indexMetadata = indexMetadata(indexName, indexKey);
+        // Shards are checked one by one, so that a partially created index is completed
+        shards.getAll().stream().filter(mapDB -> !mapDB.exists(indexMetadata.toString())).forEach(mapDB -> {
+            // Capture all writes made while the index is backfilled
+            final MapDBTable table = MapDBTable.open(mapDB, indexName.getTableName(), Optional.empty());
+            final MapDBBackfillIndexListener backfillListener = new MapDBBackfillIndexListener(indexMetadata);
+            addTableListener(indexName.getTableName(), table.getMap(), backfillListener);
 
-            table.getValues().forEach((byte[] value) -> {
-                final Object[] newKey = indexKeyFunction.apply(value);
-                index.put(newKey, value);
-            });
-        }
+            final BTreeMap<Object[], byte[]> index = backfillIndex(mapDB, indexMetadata, table);
+            final int replayCount = backfillListener.replay(index);
+            LOGGER.info("Replayed {} concurrent writes into MapDB index {}", replayCount, indexMetadata);
+        });
 
-        return createdIndex;
+        // Let the map store attach the new index on next use of the table
+        return mapStore.createTable(indexMetadata.toString(), indexKey);
     }
 
     @Override
     public boolean dropIndex(final MapStoreIndexName indexName) {
-        return mapStore.dropTable(findIndexMetadata(mapDB, indexName).toString());
+        return mapStore.dropTable(findIndexMetadata(shards.getPrimary(), indexName).toString());
     }
 
     @Override
@@ -87,7 +121,7 @@ class MapDBMapStoreIndexPlugin implements MapStoreIndexPlugin {
         final MapStoreIndexName indexName,
         final MapStoreKey key
     ) {
-        return mapStore.getItem(findIndexMetadata(mapDB, indexName).toString(), key);
+        return mapStore.getItem(findIndexMetadata(shards.getPrimary(), indexName).toString(), key);
     }
 
     @Override
@@ -96,7 +130,81 @@ class MapDBMapStoreIndexPlugin implements MapStoreIndexPlugin {
         final MapStoreKey key,
         final MapQueryOptions options
     ) {
-        return mapStore.getItems(findIndexMetadata(mapDB, indexName).toString(), key, options);
+        return mapStore.getItems(findIndexMetadata(shards.getPrimary(), indexName).toString(), key, options);
+    }
+
+    /**
+     * Bulk loads a new index with all of the given table's values.
+     *
+     * Index keys are extracted in parallel and sorted, so that the
+     * index can be written bottom up by MapDB's data pump rather than
+     * by one insert at a time. Only the first bulkLoadLimit values
+     * are sorted, and the rest are inserted into the loaded index.
+     */
+    @VisibleForTesting
+    BTreeMap<Object[], byte[]> backfillIndex(
+        final DB mapDB,
+        final MapDBIndexMetadata indexMetadata,
+        final MapDBTable table
+    ) {
+        final Function<byte[], Object[]> indexKeyFunction = indexKeyFunction(indexMetadata);
+        final SerializerArrayTuple indexKeySerializer = createKeySerializer(
+            indexMetadata.getIndexKey().getHashFieldType(),
+            indexMetadata.getIndexKey().getRangeFieldType()
+        );
+
+        LOGGER.info("Extracting keys for MapDB index {}", indexMetadata);
+        // The table's size may change while it is read, so its values are read up to the limit
+        final Iterator<byte[]> values = table.getMap().values().iterator();
+        final List<byte[]> bulkLoadValues = new ArrayList<>();
+        while (values.hasNext() && bulkLoadValues.size() < bulkLoadLimit) {
+            bulkLoadValues.add(values.next());
+        }
+
+        // Parallel sorts are stable, so duplicate keys keep their table order.
+        final List<Map.Entry<Object[], byte[]>> indexEntries = bulkLoadValues.parallelStream()
+            .map(value -> Maps.immutableEntry(indexKeyFunction.apply(value), value))
+            .sorted((entry1, entry2) -> indexKeySerializer.compare(entry1.getKey(), entry2.getKey()))
+            .collect(Collectors.toList());
+
+        final DB.TreeMapSink<Object[], byte[]> indexSink = mapDB.treeMap(indexMetadata.toString())
+            .keySerializer(indexKeySerializer)
+            .valueSerializer(Serializer.BYTE_ARRAY)
+            .createFromSink();
+
+        long loadCount = 0L;
+        for (int i = 0; i < indexEntries.size(); i++) {
+            // The data pump requires strictly ascending keys. Like a
+            // sequential put, the last of any duplicate keys wins.
+            if (i + 1 < indexEntries.size()
+                && indexKeySerializer.compare(indexEntries.get(i).getKey(), indexEntries.get(i + 1).getKey()) == 0) {
+                continue;
+            }
+
+            indexSink.put(indexEntries.get(i).getKey(), indexEntries.get(i).getValue());
+            if (++loadCount % PROGRESS_INTERVAL == 0L) {
+                LOGGER.info("Loaded {} of {} entries into MapDB index {}", loadCount, indexEntries.size(), indexMetadata);
+            }
+        }
+
+        final BTreeMap<Object[], byte[]> index = indexSink.create();
+        LOGGER.info("Loaded {} entries into MapDB index {}", loadCount, indexMetadata);
+
+        // Like a sequential put, values later in table order overwrite duplicate keys
+        long insertCount = 0L;
+        while (values.hasNext()) {
+            final byte[] value = values.next();
+            index.put(indexKeyFunction.apply(value), value);
+            if (++insertCount % PROGRESS_INTERVAL == 0L) {
+                LOGGER.info("Inserted {} entries beyond the bulk load limit into MapDB index {}",
+                    insertCount, indexMetadata);
+            }
+        }
+        if (insertCount > 0L) {
+            LOGGER.info("Inserted {} entries beyond the bulk load limit into MapDB index {}",
+                insertCount, indexMetadata);
+        }
+        return index;
     }
 
     static Function<byte[], Object[]> indexKeyFunction(final MapDBIndexMetadata indexMetadata) {
@@ -105,14 +213,14 @@ class MapDBMapStoreIndexPlugin implements MapStoreIndexPlugin {
             final ImmutableList.Builder<Object> keyValuesBuilder = ImmutableList.builder()
                 .add(mapValue.get(indexMetadata.getIndexKey().getHashField()));
             indexMetadata.getIndexKey().getRangeField().ifPresent(rangeField ->
-                keyValuesBuilder.add(rangeField));
+                keyValuesBuilder.add(mapValue.get(rangeField)));
 
             final List<Object> keyValues = keyValuesBuilder.build();
             return keyValues.toArray(new Object[keyValues.size()]);
         };
     }
 
-    static class MapDBUpdateIndexListener implements MapModificationListener<Object[], byte[]> {
+    static class MapDBUpdateIndexListener implements MapModificationListener<Object, byte[]> {
 
         private final Function<byte[], Object[]> keyFunction;
         private final BTreeMap<Object[], byte[]> index;
@@ -134,18 +242,73 @@ class MapDBMapStoreIndexPlugin implements MapStoreIndexPlugin {
 
         @Override
         public void modify(
-            final @NotNull Object[] key,
+            final @NotNull Object key,
             final @Nullable byte[] oldValue,
             final @Nullable byte[] newValue,
             final boolean triggered
         ) {
-            if (newValue == null) {
-                final Object[] oldKey = keyFunction.apply(oldValue);
-                index.remove(oldKey);
+            updateIndex(index, keyFunction, oldValue, newValue);
+        }
+    }
+
+    /**
+     * Buffers all writes made to a table while a new index is
+     * backfilled. Once the index is loaded, the buffered writes
+     * are replayed into it and all later writes go directly to it.
+     */
+    static class MapDBBackfillIndexListener implements MapModificationListener<Object, byte[]> {
+
+        private final Function<byte[], Object[]> keyFunction;
+        private final List<Map.Entry<byte[], byte[]>> bufferedWrites = new ArrayList<>();
+        private BTreeMap<Object[], byte[]> index;
+
+        MapDBBackfillIndexListener(final MapDBIndexMetadata indexMetadata) {
+            this.keyFunction = MapDBMapStoreIndexPlugin.indexKeyFunction(indexMetadata);
+        }
+
+        @Override
+        public synchronized void modify(
+            final @NotNull Object key,
+            final @Nullable byte[] oldValue,
+            final @Nullable byte[] newValue,
+            final boolean triggered
+        ) {
+            if (index == null) {
+                bufferedWrites.add(Maps.immutableEntry(oldValue, newValue));
             } else {
-                final Object[] newKey = keyFunction.apply(newValue);
-                index.put(newKey, newValue);
+                updateIndex(index, keyFunction, oldValue, newValue);
             }
         }
+
+        synchronized boolean isReplayed() {
+            return index != null;
+        }
+
+        /**
+         * @return the number of buffered writes replayed
+         */
+        synchronized int replay(final BTreeMap<Object[], byte[]> index) {
+            bufferedWrites.forEach(write -> updateIndex(index, keyFunction, write.getKey(), write.getValue()));
+            final int replayCount = bufferedWrites.size();
+
+            bufferedWrites.clear();
+            this.index = index;
+            return replayCount;
+        }
+    }
+
+    private static void updateIndex(
+        final BTreeMap<Object[], byte[]> index,
+        final Function<byte[], Object[]> keyFunction,
+        final @Nullable byte[] oldValue,
+        final @Nullable byte[] newValue
+    ) {
+        if (newValue == null) {
+            final Object[] oldKey = keyFunction.apply(oldValue);
+            index.remove(oldKey);
+        } else {
+            final Object[] newKey = keyFunction.apply(newValue);
+            index.put(newKey, newValue);
+        }
     }
 }
@@ -1,27 +1,184 @@
 package net.spals.appbuilder.mapstore.core.mapdb;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.netflix.governator.annotations.Configuration;
+import com.typesafe.config.ConfigException;
 import net.spals.appbuilder.annotations.service.AutoBindProvider;
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory;
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory.Key;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
+ * A {@link Provider} of the MapDB {@link DB}.
+ *
+ * A file backed store is used when mapStore.mapDB.file
+ * is set. Otherwise, the store is held in memory.
+ *
+ * Storage trade-offs:
+ *  - fileMmap: memory-mapped file I/O. Much faster reads
+ *    and writes than the default random access file, but
+ *    the OS page cache decides when data reaches disk.
+ *  - allocateStartSize / allocateIncrement: preallocate
+ *    file (or memory) space to avoid frequent growth.
+ *  - memoryDirect: keep an in-memory store off of the Java
+ *    heap. Avoids GC pressure for large data sets at a
+ *    small serialization cost.
+ *  - transactions: write ahead log for crash recovery.
+ *    Writes become visible immediately, but are only durable
+ *    once committed. Commits happen every commitIntervalMs
+ *    (group commit), trading a window of possible data loss
+ *    for write throughput.
+ *  - concurrencyScale: the number of lock segments. Higher
+ *    values help with many concurrent writers.
+ *  - shards: the number of independent DBs (each with its own
+ *    file, locks and commits) which items are spread across.
+ *    See {@link MapDBShardsProvider}.
+ *
+ * Measured with the storage group of the MapDBMapStoreBenchmark
+ * (4 threads, 20,000 items, 1 vCPU, virtual disk, JDK 17, each
+ * setting in its own JVM, 3 runs; this is not a JMH benchmark):
+ *  - memory: 26,500-31,500 puts/s, 36,000-43,000 gets/s
+ *  - memoryDirect: 22,500-28,000 puts/s, 34,500-43,500 gets/s
+ *    (at this size, the GC savings don't show)
+ *  - file: 5,000-6,000 puts/s, 11,000-13,000 gets/s
+ *  - fileMmap: 25,000-28,000 puts/s, 40,000-49,500 gets/s
+ *  - file + transactions: 8,000-9,500 puts/s,
+ *    19,000-20,000 gets/s
+ *  - fileMmap + transactions: 14,500-16,500 puts/s,
+ *    24,000-50,000 gets/s
+ *
  * @author tkral
  */
 @AutoBindProvider
 class MapDBProvider implements Provider<DB> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MapDBProvider.class);
 
     @Configuration("mapStore.mapDB.file")
     @VisibleForTesting
-    private volatile String storeFilePath;
+    volatile String storeFilePath;
+
+    @Configuration("mapStore.mapDB.fileMmap")
+    @VisibleForTesting
+    volatile boolean fileMmap = false;
+
+    @Configuration("mapStore.mapDB.allocateStartSize")
+    @VisibleForTesting
+    volatile long allocateStartSize = 0L;
+
+    @Configuration("mapStore.mapDB.allocateIncrement")
+    @VisibleForTesting
+    volatile long allocateIncrement = 0L;
+
+    @Configuration("mapStore.mapDB.memoryDirect")
+    @VisibleForTesting
+    volatile boolean memoryDirect = false;
+
+    @Configuration("mapStore.mapDB.transactions")
+    @VisibleForTesting
+    volatile boolean transactions = false;
+
+    @Configuration("mapStore.mapDB.commitIntervalMs")
+    @VisibleForTesting
+    volatile long commitIntervalMs = 1000L;
+
+    @Configuration("mapStore.mapDB.concurrencyScale")
+    @VisibleForTesting
+    volatile int concurrencyScale = 0;
+
+    private final ExecutorServiceFactory executorServiceFactory;
+
+    @Inject
+    MapDBProvider(final ExecutorServiceFactory executorServiceFactory) {
+        this.executorServiceFactory = executorServiceFactory;
+    }
 
     @Override
     public DB get() {
-        return Optional.ofNullable(storeFilePath).map(filePath -> DBMaker.fileDB(filePath).closeOnJvmShutdown().make())
-                .orElseGet(() -> DBMaker.memoryDB().closeOnJvmShutdown().make());
+        return makeDB(Optional.ofNullable(storeFilePath), new Key.Builder(getClass()).build());
+    }
+
+    /**
+     * Makes the DB of an additional shard (see {@link MapDBShardsProvider}).
+     * A file backed shard is stored next to the file of the first shard.
+     */
+    DB getShard(final int shard) {
+        checkArgument(shard > 0, "The first MapDB shard is provided by get()");
+        return makeDB(Optional.ofNullable(storeFilePath).map(filePath -> filePath + "." + shard),
+            new Key.Builder(getClass()).addTags("shard" + shard).build());
+    }
+
+    private DB makeDB(
+        final Optional<String> storeFilePathOpt,
+        final Key commitKey
+    ) {
+        final DBMaker.Maker dbMaker = storeFilePathOpt.map(filePath -> {
+            final DBMaker.Maker fileDBMaker = DBMaker.fileDB(filePath);
+            return fileMmap ? fileDBMaker.fileMmapEnableIfSupported() : fileDBMaker;
+        }).orElseGet(() -> memoryDirect ? DBMaker.memoryDirectDB() : DBMaker.memoryDB());
+
+        if (allocateStartSize < 0L) {
+            throw new ConfigException.BadValue("mapStore.mapDB.allocateStartSize",
+                "MapDB allocation start size cannot be negative: " + allocateStartSize);
+        } else if (allocateStartSize > 0L) {
+            dbMaker.allocateStartSize(allocateStartSize);
+        }
+
+        if (allocateIncrement < 0L) {
+            throw new ConfigException.BadValue("mapStore.mapDB.allocateIncrement",
+                "MapDB allocation increment cannot be negative: " + allocateIncrement);
+        } else if (allocateIncrement > 0L) {
+            dbMaker.allocateIncrement(allocateIncrement);
+        }
+
+        if (concurrencyScale < 0) {
+            throw new ConfigException.BadValue("mapStore.mapDB.concurrencyScale",
+                "MapDB concurrency scale cannot be negative: " + concurrencyScale);
+        } else if (concurrencyScale > 0) {
+            dbMaker.concurrencyScale(concurrencyScale);
+        }
+
+        if (transactions) {
+            if (commitIntervalMs < 0L) {
+                throw new ConfigException.BadValue("mapStore.mapDB.commitIntervalMs",
+                    "MapDB commit interval cannot be negative: " + commitIntervalMs);
+            }
+            dbMaker.transactionEnable();
+        }
+
+        final DB mapDB = dbMaker.closeOnJvmShutdown().make();
+        // A commit interval of 0 means that writes are only committed on close
+        if (transactions && commitIntervalMs > 0L) {
+            executorServiceFactory.createSingleThreadScheduledExecutor(commitKey)
+                .scheduleWithFixedDelay(() -> commit(mapDB), commitIntervalMs, commitIntervalMs, TimeUnit.MILLISECONDS);
+        }
+        return mapDB;
+    }
+
+    @VisibleForTesting
+    static void commit(final DB mapDB) {
+        // Wait for any writes which must be committed together (see MapDBCommits)
+        final Lock commitLock = MapDBCommits.commitLock(mapDB);
+        commitLock.lock();
+        try {
+            if (!mapDB.isClosed()) {
+                mapDB.commit();
+            }
+        } catch (RuntimeException e) {
+            // Don't let a single failure cancel all future commits
+            LOGGER.error("Unable to commit MapDB", e);
+        } finally {
+            commitLock.unlock();
+        }
     }
 }
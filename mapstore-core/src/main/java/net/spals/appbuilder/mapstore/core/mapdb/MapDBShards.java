@@ -0,0 +1,57 @@
+package net.spals.appbuilder.mapstore.core.mapdb;
+
+import com.google.common.collect.ImmutableList;
+import org.mapdb.DB;
+
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The independent MapDB {@link DB}s which
+ * back a sharded {@link MapDBMapStorePlugin}.
+ *
+ * Each item is routed to a single shard by the hash code of its
+ * hash key, so all items of a partition live in the same shard.
+ * Every table (and index) exists in every shard.
+ *
+ * Items are routed by {@link Object#hashCode()}, so the hash
+ * key's hash code must be stable across JVMs and the number
+ * of shards must never change for a file backed store (which
+ * {@link MapDBShardsProvider} enforces).
+ *
+ * @author tkral
+ */
+class MapDBShards {
+
+    private final List<DB> shardDBs;
+
+    MapDBShards(final List<DB> shardDBs) {
+        checkArgument(!shardDBs.isEmpty(), "At least one MapDB shard is required");
+        this.shardDBs = ImmutableList.copyOf(shardDBs);
+    }
+
+    static MapDBShards singleShard(final DB mapDB) {
+        return new MapDBShards(ImmutableList.of(mapDB));
+    }
+
+    List<DB> getAll() {
+        return shardDBs;
+    }
+
+    /**
+     * The first shard, which is the only
+     * shard of an unsharded store.
+     */
+    DB getPrimary() {
+        return shardDBs.get(0);
+    }
+
+    int shardIndex(final Object hashValue) {
+        return Math.floorMod(hashValue.hashCode(), shardDBs.size());
+    }
+
+    int size() {
+        return shardDBs.size();
+    }
+}
@@ -0,0 +1,82 @@
+package net.spals.appbuilder.mapstore.core.mapdb;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.netflix.governator.annotations.Configuration;
+import com.typesafe.config.ConfigException;
+import net.spals.appbuilder.annotations.service.AutoBindProvider;
+import org.mapdb.DB;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link Provider} of the {@link MapDBShards}.
+ *
+ * One DB serializes all writes on its own locks, so it
+ * can only scale so far with concurrent writers. Setting
+ * mapStore.mapDB.shards spreads items across that many
+ * independent DBs instead. The first shard is the {@link DB}
+ * from {@link MapDBProvider}, so a single shard (the default)
+ * is the same as an unsharded store.
+ *
+ * Items are routed to shards by the shard count, so it can
+ * never change for a store. The count is recorded in the
+ * first shard when the store is created, and a store which
+ * is opened with a different count is refused.
+ *
+ * Measured with MapDBMapStoreBenchmark (file store with
+ * transactions, 4 threads, 20,000 items, 3 runs on 1 vCPU
+ * with JDK 17):
+ *  - shards=1:  8,000-10,500 puts/s, 14,000-21,000 gets/s
+ *  - shards=2: 10,000-12,000 puts/s, 19,000-38,000 gets/s
+ *  - shards=4: 10,500-17,000 puts/s, 19,000-25,000 gets/s
+ * Writes gain from the separate commits even on one CPU, but
+ * the gain from separate locks needs as many cores as writers,
+ * so measure on the target hardware before raising the count.
+ *
+ * @author tkral
+ */
+@AutoBindProvider
+class MapDBShardsProvider implements Provider<MapDBShards> {
+
+    private static final String SHARD_COUNT_NAME = "mapStore.mapDB.shards";
+
+    @Configuration("mapStore.mapDB.shards")
+    @VisibleForTesting
+    volatile int shardCount = 1;
+
+    private final DB mapDB;
+    private final MapDBProvider dbProvider;
+
+    @Inject
+    MapDBShardsProvider(
+        final DB mapDB,
+        final MapDBProvider dbProvider
+    ) {
+        this.mapDB = mapDB;
+        this.dbProvider = dbProvider;
+    }
+
+    @Override
+    public MapDBShards get() {
+        if (shardCount < 1) {
+            throw new ConfigException.BadValue("mapStore.mapDB.shards",
+                "MapDB shard count must be positive: " + shardCount);
+        }
+
+        final int storedShardCount = mapDB.atomicInteger(SHARD_COUNT_NAME, shardCount).createOrOpen().get();
+        if (storedShardCount != shardCount) {
+            throw new ConfigException.BadValue("mapStore.mapDB.shards", "MapDB store was created with " +
+                storedShardCount + " shards, so it can't be opened with " + shardCount);
+        }
+
+        final List<DB> shardDBs = new ArrayList<>(shardCount);
+        shardDBs.add(mapDB);
+        for (int shard = 1; shard < shardCount; shard++) {
+            shardDBs.add(dbProvider.getShard(shard));
+        }
+        return new MapDBShards(shardDBs);
+    }
+}
@@ -0,0 +1,399 @@
+package net.spals.appbuilder.mapstore.core.mapdb;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
+import net.spals.appbuilder.mapstore.core.model.MapRangeOperator.Standard;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+import net.spals.appbuilder.mapstore.core.model.MapStoreTableKey;
+import net.spals.appbuilder.mapstore.core.model.TwoValueMapRangeKey.TwoValueHolder;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.HTreeMap;
+import org.mapdb.Serializer;
+import org.mapdb.serializer.GroupSerializer;
+import org.mapdb.serializer.SerializerArrayTuple;
+import org.mapdb.serializer.SerializerUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+import static net.spals.appbuilder.mapstore.core.mapdb.MapDBMapStorePlugin.createKeySerializer;
+
+/**
+ * A MapDB table within a single shard.
+ *
+ * Tables are held in a {@link BTreeMap}, keyed by (hash, range)
+ * tuples, unless hash tables are enabled. Then tables without a
+ * range key are held in an {@link HTreeMap}, keyed directly by
+ * hash value, so that point lookups skip the tree traversal and
+ * tuple serialization. The kind of each table is recorded in the
+ * MapDB name catalog, so a table always re-opens as the kind it
+ * was created as. MapDB doesn't record tuple key serializers, so
+ * the key types of each table are recorded as well (in
+ * mapStore.mapDB.tableKeyTypes), and every handle of a table builds
+ * its key serializer from them.
+ *
+ * Ranges of a table are read as sorted maps which are keyed by
+ * tuples, so that they are paged and merged alike. A hash table
+ * is unordered, so it has no sorted view of all of its entries.
+ *
+ * @author tkral
+ */
+abstract class MapDBTable {
+
+    static final String HASH_TABLE_TYPE = "HashMap";
+    static final String TABLE_KEY_TYPES_NAME = "mapStore.mapDB.tableKeyTypes";
+
+    /**
+     * Settings for new hash tables.
+     */
+    static class HashTableSettings {
+        private final boolean enabled;
+        private final int segments;
+        private final long expireAfterWriteMs;
+
+        HashTableSettings(
+            final boolean enabled,
+            final int segments,
+            final long expireAfterWriteMs
+        ) {
+            this.enabled = enabled;
+            this.segments = segments;
+            this.expireAfterWriteMs = expireAfterWriteMs;
+        }
+    }
+
+    static void create(
+        final DB mapDB,
+        final String tableName,
+        final MapStoreTableKey tableKey,
+        final HashTableSettings hashTableSettings
+    ) {
+        // The first creation of a table wins, as with the table itself
+        tableKeyTypes(mapDB).putIfAbsent(tableName, keyTypesString(tableKey));
+
+        final boolean hashTable = mapDB.exists(tableName) ? isHashTable(mapDB, tableName)
+            : hashTableSettings.enabled && !tableKey.getRangeField().isPresent()
+                && !MapDBMapStorePlugin.isIndexTable(tableName);
+
+        if (hashTable) {
+            final DB.HashMapMaker<?, byte[]> tableMaker = mapDB.hashMap(tableName)
+                .keySerializer(SerializerUtils.serializerForClass(tableKey.getHashFieldType()))
+                .valueSerializer(Serializer.BYTE_ARRAY)
+                // Keep MapDB's default directory size and depth
+                .layout(hashTableSettings.segments, 16, 4);
+            if (hashTableSettings.expireAfterWriteMs > 0L) {
+                tableMaker.expireAfterCreate(hashTableSettings.expireAfterWriteMs, TimeUnit.MILLISECONDS)
+                    .expireAfterUpdate(hashTableSettings.expireAfterWriteMs, TimeUnit.MILLISECONDS);
+            }
+            tableMaker.createOrOpen();
+        } else {
+            mapDB.treeMap(tableName)
+                .keySerializer(createKeySerializer(tableKey.getHashFieldType(), tableKey.getRangeFieldType()))
+                .valueSerializer(Serializer.BYTE_ARRAY)
+                .createOrOpen();
+        }
+    }
+
+    /**
+     * Opens an existing table, with a key serializer built from
+     * the key types which were recorded when it was created. A
+     * table which was created before key types were recorded falls
+     * back to the runtime classes of the given key or, without a
+     * key, to the key serializer in the name catalog (if MapDB
+     * recorded one there).
+     */
+    @SuppressWarnings("unchecked")
+    static MapDBTable open(
+        final DB mapDB,
+        final String tableName,
+        final Optional<MapStoreKey> key
+    ) {
+        final Optional<List<Class<?>>> keyTypes = findKeyTypes(mapDB, tableName);
+        final Optional<List<Class<?>>> openKeyTypes = keyTypes.isPresent() ? keyTypes
+            : key.map(MapDBTable::runtimeKeyTypes);
+
+        if (isHashTable(mapDB, tableName)) {
+            final DB.HashMapMaker<Object, byte[]> tableMaker =
+                (DB.HashMapMaker<Object, byte[]>) mapDB.hashMap(tableName).valueSerializer(Serializer.BYTE_ARRAY);
+            openKeyTypes.ifPresent(types -> tableMaker.keySerializer(SerializerUtils.serializerForClass(types.get(0))));
+            return new HashTable(tableMaker.open());
+        }
+
+        final DB.TreeMapMaker<Object[], byte[]> tableMaker =
+            (DB.TreeMapMaker<Object[], byte[]>) mapDB.treeMap(tableName).valueSerializer(Serializer.BYTE_ARRAY);
+        openKeyTypes.ifPresent(types -> tableMaker.keySerializer(createKeySerializer(types.get(0),
+            types.stream().skip(1L).findFirst().map(rangeType -> (Class<? extends Comparable>) rangeType))));
+        return new TreeTable(tableMaker.open());
+    }
+
+    /**
+     * Finds the key types which were recorded
+     * for the given table when it was created.
+     */
+    private static Optional<List<Class<?>>> findKeyTypes(
+        final DB mapDB,
+        final String tableName
+    ) {
+        return Optional.ofNullable(tableKeyTypes(mapDB).get(tableName))
+            .map(keyTypesStr -> Arrays.stream(keyTypesStr.split("&"))
+                .map(MapDBTable::loadKeyClass)
+                .collect(Collectors.toList()));
+    }
+
+    static boolean isHashTable(
+        final DB mapDB,
+        final String tableName
+    ) {
+        return HASH_TABLE_TYPE.equals(mapDB.nameCatalogParamsFor(tableName).get(tableName + "#type"));
+    }
+
+    private static HTreeMap<String, String> tableKeyTypes(final DB mapDB) {
+        return mapDB.hashMap(TABLE_KEY_TYPES_NAME, Serializer.STRING, Serializer.STRING).createOrOpen();
+    }
+
+    private static String keyTypesString(final MapStoreTableKey tableKey) {
+        final StringBuilder keyTypesBuilder = new StringBuilder(tableKey.getHashFieldType().getName());
+        tableKey.getRangeFieldType().ifPresent(rangeType -> keyTypesBuilder.append("&").append(rangeType.getName()));
+        return keyTypesBuilder.toString();
+    }
+
+    private static List<Class<?>> runtimeKeyTypes(final MapStoreKey key) {
+        final List<Class<?>> keyTypes = new ArrayList<>();
+        keyTypes.add(key.getHashValue().getClass());
+        key.getRangeField().flatMap(rangeField -> Optional.ofNullable(key.getRangeKey().getValue()))
+            .ifPresent(rangeValue -> keyTypes.add(rangeValue.getClass()));
+        return keyTypes;
+    }
+
+    private static Class<?> loadKeyClass(final String className) {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Unknown MapDB table key type " + className, e);
+        }
+    }
+
+    static Object[] keyArray(final MapStoreKey key) {
+        return key.getRangeField().map(rangeField -> new Object[]{key.getHashValue(), key.getRangeKey().getValue()})
+            .orElseGet(() -> new Object[]{key.getHashValue()});
+    }
+
+    /**
+     * The underlying MapDB map, to which index listeners are attached.
+     */
+    abstract ConcurrentMap<?, byte[]> getMap();
+
+    /**
+     * The serializer of the tuple keys of this table's ranges.
+     */
+    abstract GroupSerializer<Object[]> getKeySerializer();
+
+    /**
+     * A sorted view of all entries in the table,
+     * if the table is ordered.
+     */
+    abstract Optional<NavigableMap<Object[], byte[]>> allMap();
+
+    /**
+     * A sorted view of all entries which match the given key.
+     */
+    abstract NavigableMap<Object[], byte[]> rangeMap(MapStoreKey key);
+
+    abstract Optional<byte[]> get(MapStoreKey key);
+
+    abstract void put(
+        MapStoreKey key,
+        byte[] value
+    );
+
+    abstract void putAll(Map<MapStoreKey, byte[]> values);
+
+    abstract void remove(MapStoreKey key);
+
+    /**
+     * Atomically replaces the value of the given key. The
+     * current value is null if the key doesn't exist.
+     */
+    abstract byte[] update(
+        MapStoreKey key,
+        UnaryOperator<byte[]> updateFunction
+    );
+
+    void drop() {
+        getMap().clear();
+    }
+
+    static class HashTable extends MapDBTable {
+
+        private final HTreeMap<Object, byte[]> map;
+        private final GroupSerializer<Object[]> keySerializer;
+
+        HashTable(final HTreeMap<Object, byte[]> map) {
+            this.map = map;
+            this.keySerializer = new SerializerArrayTuple(map.getKeySerializer());
+        }
+
+        @Override
+        ConcurrentMap<?, byte[]> getMap() {
+            return map;
+        }
+
+        @Override
+        GroupSerializer<Object[]> getKeySerializer() {
+            return keySerializer;
+        }
+
+        @Override
+        Optional<NavigableMap<Object[], byte[]>> allMap() {
+            return Optional.empty();
+        }
+
+        @Override
+        NavigableMap<Object[], byte[]> rangeMap(final MapStoreKey key) {
+            // As with tree tables, only the ALL operator matches the whole partition
+            if (key.getRangeKey().getOperator() != Standard.ALL) {
+                return Collections.emptyNavigableMap();
+            }
+            return get(key).map(value -> (NavigableMap<Object[], byte[]>) ImmutableSortedMap
+                .<Object[], byte[]>orderedBy(keySerializer).put(new Object[]{key.getHashValue()}, value).build())
+                .orElseGet(Collections::emptyNavigableMap);
+        }
+
+        @Override
+        Optional<byte[]> get(final MapStoreKey key) {
+            return Optional.ofNullable(map.get(key.getHashValue()));
+        }
+
+        @Override
+        void put(
+            final MapStoreKey key,
+            final byte[] value
+        ) {
+            map.put(key.getHashValue(), value);
+        }
+
+        @Override
+        void putAll(final Map<MapStoreKey, byte[]> values) {
+            values.forEach(this::put);
+        }
+
+        @Override
+        void remove(final MapStoreKey key) {
+            map.remove(key.getHashValue());
+        }
+
+        @Override
+        byte[] update(
+            final MapStoreKey key,
+            final UnaryOperator<byte[]> updateFunction
+        ) {
+            return map.compute(key.getHashValue(), (k, value) -> updateFunction.apply(value));
+        }
+    }
+
+    static class TreeTable extends MapDBTable {
+
+        private final BTreeMap<Object[], byte[]> map;
+
+        TreeTable(final BTreeMap<Object[], byte[]> map) {
+            this.map = map;
+        }
+
+        @Override
+        ConcurrentMap<?, byte[]> getMap() {
+            return map;
+        }
+
+        @Override
+        GroupSerializer<Object[]> getKeySerializer() {
+            return map.getKeySerializer();
+        }
+
+        @Override
+        Optional<NavigableMap<Object[], byte[]>> allMap() {
+            return Optional.of(map);
+        }
+
+        /**
+         * Finds the sub-map of the table which holds all
+         * entries matching the range key operator. Note that
+         * the sub-map is always bounded by the key's hash value.
+         */
+        @Override
+        NavigableMap<Object[], byte[]> rangeMap(final MapStoreKey key) {
+            final Standard op = Standard.fromName(key.getRangeKey().getOperator().toString())
+                .orElseThrow(() -> new IllegalArgumentException("MapDB cannot support the operator " +
+                    key.getRangeKey().getOperator()));
+            final NavigableMap<Object[], byte[]> hashMap = map.prefixSubMap(new Object[]{key.getHashValue()});
+
+            switch (op) {
+                case ALL:
+                    return hashMap;
+                case BETWEEN:
+                    final Object[] fromKeyArray = new Object[]{key.getHashValue(), ((TwoValueHolder)key.getRangeKey().getValue()).getValue1()};
+                    final Object[] toKeyArray = new Object[]{key.getHashValue(), ((TwoValueHolder)key.getRangeKey().getValue()).getValue2()};
+                    return hashMap.subMap(fromKeyArray, true, toKeyArray, true);
+                case EQUAL_TO:
+                    final Object[] equalToKeyArray = keyArray(key);
+                    return hashMap.subMap(equalToKeyArray, true, equalToKeyArray, true);
+                case GREATER_THAN:
+                case GREATER_THAN_OR_EQUAL_TO:
+                    return hashMap.tailMap(keyArray(key), op == Standard.GREATER_THAN_OR_EQUAL_TO);
+                case LESS_THAN:
+                case LESS_THAN_OR_EQUAL_TO:
+                    return hashMap.headMap(keyArray(key), op == Standard.LESS_THAN_OR_EQUAL_TO);
+                default:
+                    return Collections.emptyNavigableMap();
+            }
+        }
+
+        @Override
+        Optional<byte[]> get(final MapStoreKey key) {
+            return Optional.ofNullable(map.get(keyArray(key)));
+        }
+
+        @Override
+        void put(
+            final MapStoreKey key,
+            final byte[] value
+        ) {
+            map.put(keyArray(key), value);
+        }
+
+        @Override
+        void putAll(final Map<MapStoreKey, byte[]> values) {
+            final Map<Object[], byte[]> tableValues = Maps.newLinkedHashMapWithExpectedSize(values.size());
+            values.forEach((key, value) -> tableValues.put(keyArray(key), value));
+            map.putAll(tableValues);
+        }
+
+        @Override
+        void remove(final MapStoreKey key) {
+            map.remove(keyArray(key));
+        }
+
+        @Override
+        byte[] update(
+            final MapStoreKey key,
+            final UnaryOperator<byte[]> updateFunction
+        ) {
+            return map.compute(keyArray(key), (k, value) -> updateFunction.apply(value));
+        }
+
+        @Override
+        void drop() {
+            map.clear();
+            map.close();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package net.spals.appbuilder.mapstore.core.mapdb;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.typesafe.config.ConfigException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Binary encodings of MapDB table values.
+ *
+ * Every encoded value starts with a one byte header
+ * which identifies its format. JSON values are objects,
+ * so their opening '{' doubles as the header. This keeps
+ * JSON values compatible with those written before
+ * headers existed.
+ *
+ * @author tkral
+ */
+enum MapDBValueFormat {
+    JSON((byte) '{', new ObjectMapper()),
+    SMILE((byte) 0x02, new ObjectMapper(new SmileFactory())),
+    ;
+
+    private final byte header;
+    private final ObjectReader valueReader;
+    private final ObjectReader fieldReader;
+    private final ObjectWriter valueWriter;
+
+    MapDBValueFormat(
+        final byte header,
+        final ObjectMapper objectMapper
+    ) {
+        this.header = header;
+        this.valueReader = objectMapper.readerFor(new TypeReference<Map<String, Object>>(){});
+        this.fieldReader = objectMapper.readerFor(Object.class);
+        this.valueWriter = objectMapper.writer();
+    }
+
+    static MapDBValueFormat fromName(final String formatName) {
+        return Arrays.stream(values())
+            .filter(format -> format.name().equalsIgnoreCase(formatName))
+            .findAny()
+            .orElseThrow(() -> new ConfigException.BadValue("mapStore.mapDB.valueFormat",
+                "No MapDB value format found for : " + formatName));
+    }
+
+    static Map<String, Object> decode(final byte[] value) {
+        return formatOf(value).read(value);
+    }
+
+    /**
+     * Decodes only the given fields of the given value.
+     * All other fields are skipped over by the parser
+     * without being materialized.
+     */
+    static Map<String, Object> decode(
+        final byte[] value,
+        final Set<String> fields
+    ) {
+        return fields.isEmpty() ? decode(value) : formatOf(value).readFields(value, fields);
+    }
+
+    private static MapDBValueFormat formatOf(final byte[] value) {
+        checkArgument(value.length > 0, "Cannot decode empty MapDB value");
+        return Arrays.stream(values())
+            .filter(valueFormat -> valueFormat.header == value[0])
+            .findAny()
+            .orElseThrow(() -> new IllegalStateException("Unknown MapDB value format header: " + value[0]));
+    }
+
+    byte[] encode(final Map<String, Object> value) {
+        final ByteArrayOutputStream valueOutput = new ByteArrayOutputStream();
+        if (this != JSON) {
+            valueOutput.write(header);
+        }
+        try {
+            valueWriter.writeValue(valueOutput, value);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return valueOutput.toByteArray();
+    }
+
+    /**
+     * @return true iff the given value is
+     *         encoded in this format
+     */
+    boolean isEncoded(final byte[] value) {
+        return value.length > 0 && value[0] == header;
+    }
+
+    private Map<String, Object> read(final byte[] value) {
+        final int offset = this == JSON ? 0 : 1;
+        try {
+            return valueReader.readValue(value, offset, value.length - offset);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Map<String, Object> readFields(
+        final byte[] value,
+        final Set<String> fields
+    ) {
+        final int offset = this == JSON ? 0 : 1;
+        final Map<String, Object> projectedValue = new LinkedHashMap<>();
+        try (final JsonParser parser = fieldReader.getFactory().createParser(value, offset, value.length - offset)) {
+            checkState(parser.nextToken() == JsonToken.START_OBJECT, "MapDB value is not an object");
+            // Stop as soon as all of the projected fields are found
+            while (projectedValue.size() < fields.size() && parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String fieldName = parser.getCurrentName();
+                parser.nextToken();
+                if (fields.contains(fieldName)) {
+                    projectedValue.put(fieldName, fieldReader.readValue(parser));
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return projectedValue;
+    }
+}
@@ -0,0 +1,95 @@
+package net.spals.appbuilder.mapstore.core.mapdb;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.inject.Inject;
+import com.netflix.governator.annotations.Configuration;
+import net.spals.appbuilder.annotations.service.AutoBindSingleton;
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory;
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory.Key;
+import org.mapdb.BTreeMap;
+import org.mapdb.HTreeMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Rewrites, in the background, all MapDB table values
+ * which are not encoded in the configured {@link MapDBValueFormat}.
+ *
+ * This is disabled by default and can be enabled
+ * with mapStore.mapDB.rewriteValues.
+ *
+ * @author tkral
+ */
+@AutoBindSingleton
+class MapDBValueRewriter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MapDBValueRewriter.class);
+
+    @Configuration("mapStore.mapDB.rewriteValues")
+    private volatile boolean rewriteValues = false;
+
+    @Configuration("mapStore.mapDB.valueFormat")
+    private volatile String valueFormatName = MapDBValueFormat.JSON.name();
+
+    private final MapDBShards shards;
+    private final ExecutorServiceFactory executorServiceFactory;
+
+    @Inject
+    MapDBValueRewriter(
+        final MapDBShards shards,
+        final ExecutorServiceFactory executorServiceFactory
+    ) {
+        this.shards = shards;
+        this.executorServiceFactory = executorServiceFactory;
+    }
+
+    @PostConstruct
+    void start() {
+        if (rewriteValues) {
+            final MapDBValueFormat valueFormat = MapDBValueFormat.fromName(valueFormatName);
+            executorServiceFactory.createSingleThreadExecutor(new Key.Builder(getClass()).build())
+                .submit(() -> rewriteAllTables(valueFormat));
+        }
+    }
+
+    @VisibleForTesting
+    void rewriteAllTables(final MapDBValueFormat valueFormat) {
+        shards.getAll().forEach(mapDB -> mapDB.getAllNames().forEach(name -> {
+            final Object namedObject = mapDB.get(name);
+            if (namedObject instanceof BTreeMap || namedObject instanceof HTreeMap) {
+                final long rewriteCount = rewriteTable((ConcurrentMap<?, ?>) namedObject, valueFormat);
+                LOGGER.info("Rewrote {} values in MapDB table {} to {}", rewriteCount, name, valueFormat);
+            }
+        }));
+    }
+
+    /**
+     * Re-encodes every value of the given table which is in
+     * a different format. Values are swapped in with a
+     * compare-and-set, so concurrent writes always win.
+     *
+     * @return the number of values rewritten
+     */
+    @VisibleForTesting
+    static long rewriteTable(
+        final ConcurrentMap<?, ?> table,
+        final MapDBValueFormat valueFormat
+    ) {
+        @SuppressWarnings("unchecked")
+        final ConcurrentMap<Object, Object> rawTable = (ConcurrentMap<Object, Object>) table;
+
+        long rewriteCount = 0L;
+        for (final Map.Entry<Object, Object> entry : rawTable.entrySet()) {
+            if (entry.getValue() instanceof byte[] && !valueFormat.isEncoded((byte[]) entry.getValue())) {
+                final byte[] rewrittenValue = valueFormat.encode(MapDBValueFormat.decode((byte[]) entry.getValue()));
+                if (rawTable.replace(entry.getKey(), entry.getValue(), rewrittenValue)) {
+                    rewriteCount++;
+                }
+            }
+        }
+        return rewriteCount;
+    }
+}
@@ -0,0 +1,388 @@
+package net.spals.appbuilder.mapstore.core.memory;
+
+import com.google.common.collect.Iterators;
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.Order;
+import net.spals.appbuilder.mapstore.core.model.MapRangeKey;
+import net.spals.appbuilder.mapstore.core.model.MapRangeOperator;
+import net.spals.appbuilder.mapstore.core.model.MapRangeOperator.Extended;
+import net.spals.appbuilder.mapstore.core.model.MapRangeOperator.Standard;
+import net.spals.appbuilder.mapstore.core.model.MapStoreKey;
+import net.spals.appbuilder.mapstore.core.model.MapStoreTableKey;
+import net.spals.appbuilder.mapstore.core.model.MultiValueMapRangeKey.ListValueHolder;
+import net.spals.appbuilder.mapstore.core.model.TwoValueMapRangeKey.TwoValueHolder;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+/**
+ * A single table of the {@link InMemoryMapStorePlugin}.
+ *
+ * Items are held as immutable maps, so reads hand out
+ * the stored items directly and writes swap in a new item
+ * (i.e. copy-on-write). Reads never lock. Writes lock only
+ * the hash partition which they modify.
+ *
+ * Table entries are keyed by an array of the hash value
+ * and, for tables with a range key, the range value. Walks
+ * over the whole table visit partitions in hash key order.
+ *
+ * @author tkral
+ */
+abstract class InMemoryTable {
+
+    private final List<Class<?>> keyTypes;
+
+    private InMemoryTable(final List<Class<?>> keyTypes) {
+        this.keyTypes = keyTypes;
+    }
+
+    static InMemoryTable create(final MapStoreTableKey tableKey) {
+        final List<Class<?>> keyTypes = keyTypes(tableKey.getHashFieldType(), tableKey.getRangeFieldType());
+        return tableKey.getRangeField().isPresent() ? new RangeTable(keyTypes) : new HashTable(keyTypes);
+    }
+
+    /**
+     * Creates a table from the key of an item which
+     * is written before the table was created.
+     */
+    static InMemoryTable create(final MapStoreKey key) {
+        final List<Class<?>> keyTypes = keyTypes(key.getHashValue().getClass(),
+            key.getRangeField().map(rangeField -> key.getRangeKey().getValue().getClass()));
+        return key.getRangeField().isPresent() ? new RangeTable(keyTypes) : new HashTable(keyTypes);
+    }
+
+    /**
+     * The types of this table's key array values,
+     * to which continuation tokens are decoded.
+     */
+    List<Class<?>> getKeyTypes() {
+        return keyTypes;
+    }
+
+    abstract void clear();
+
+    /**
+     * Walks over all entries of this table in the given
+     * order, resuming strictly after the given key array.
+     */
+    abstract Iterator<Map.Entry<Object[], Map<String, Object>>> entries(
+        Order order,
+        Optional<Object[]> afterKeyArray
+    );
+
+    /**
+     * Walks over all entries of this table which match the given
+     * key's range operator, in the given order, resuming strictly
+     * after the given key array.
+     */
+    abstract Iterator<Map.Entry<Object[], Map<String, Object>>> entries(
+        MapStoreKey key,
+        Order order,
+        Optional<Object[]> afterKeyArray
+    );
+
+    abstract Optional<Map<String, Object>> get(MapStoreKey key);
+
+    abstract void put(MapStoreKey key, Map<String, Object> item);
+
+    abstract void remove(MapStoreKey key);
+
+    /**
+     * Atomically replaces the item under the given key (or null,
+     * if there is none) with the result of the given function.
+     *
+     * @return the new item
+     */
+    abstract Map<String, Object> update(MapStoreKey key, UnaryOperator<Map<String, Object>> updater);
+
+    /**
+     * Sorts a snapshot of the given hash values in the given
+     * order, starting at the hash value of the given key array.
+     */
+    static NavigableSet<Object> orderedHashValues(
+        final Set<Object> hashValues,
+        final Order order,
+        final Optional<Object[]> afterKeyArray,
+        final boolean inclusive
+    ) {
+        final NavigableSet<Object> sortedHashValues = new TreeSet<>(hashValues);
+        final NavigableSet<Object> orderedHashValues = order == Order.DESC ?
+            sortedHashValues.descendingSet() : sortedHashValues;
+        return afterKeyArray.map(keyArray -> orderedHashValues.tailSet(keyArray[0], inclusive))
+            .orElse(orderedHashValues);
+    }
+
+    private static List<Class<?>> keyTypes(
+        final Class<?> hashFieldType,
+        final Optional<? extends Class<?>> rangeFieldType
+    ) {
+        final List<Class<?>> keyTypes = new ArrayList<>();
+        keyTypes.add(hashFieldType);
+        rangeFieldType.ifPresent(keyTypes::add);
+        return Collections.unmodifiableList(keyTypes);
+    }
+
+    /**
+     * A table without a range key, which holds
+     * exactly one item per hash partition.
+     */
+    private static class HashTable extends InMemoryTable {
+
+        private final ConcurrentMap<Object, Map<String, Object>> items = new ConcurrentHashMap<>();
+
+        private HashTable(final List<Class<?>> keyTypes) {
+            super(keyTypes);
+        }
+
+        @Override
+        void clear() {
+            items.clear();
+        }
+
+        @Override
+        Iterator<Map.Entry<Object[], Map<String, Object>>> entries(
+            final Order order,
+            final Optional<Object[]> afterKeyArray
+        ) {
+            final Iterator<Object> hashValues = orderedHashValues(items.keySet(), order, afterKeyArray, false)
+                .iterator();
+            // Skip any item which was removed after the hash values were sorted
+            return Iterators.filter(
+                Iterators.transform(hashValues, hashValue -> entry(hashValue, items.get(hashValue))),
+                entry -> entry.getValue() != null);
+        }
+
+        @Override
+        Iterator<Map.Entry<Object[], Map<String, Object>>> entries(
+            final MapStoreKey key,
+            final Order order,
+            final Optional<Object[]> afterKeyArray
+        ) {
+            // There is only ever one item to read, so nothing comes after it
+            final Map<String, Object> item = items.get(key.getHashValue());
+            if (item == null || afterKeyArray.isPresent()) {
+                return Collections.emptyIterator();
+            }
+            return Iterators.singletonIterator(entry(key.getHashValue(), item));
+        }
+
+        @Override
+        Optional<Map<String, Object>> get(final MapStoreKey key) {
+            return Optional.ofNullable(items.get(key.getHashValue()));
+        }
+
+        @Override
+        void put(
+            final MapStoreKey key,
+            final Map<String, Object> item
+        ) {
+            items.put(key.getHashValue(), item);
+        }
+
+        @Override
+        void remove(final MapStoreKey key) {
+            items.remove(key.getHashValue());
+        }
+
+        @Override
+        Map<String, Object> update(
+            final MapStoreKey key,
+            final UnaryOperator<Map<String, Object>> updater
+        ) {
+            return items.compute(key.getHashValue(), (hashValue, item) -> updater.apply(item));
+        }
+
+        private static Map.Entry<Object[], Map<String, Object>> entry(
+            final Object hashValue,
+            final Map<String, Object> item
+        ) {
+            return new SimpleImmutableEntry<>(new Object[]{hashValue}, item);
+        }
+    }
+
+    /**
+     * A table with a range key, which holds a sorted
+     * map of items per hash partition.
+     */
+    private static class RangeTable extends InMemoryTable {
+
+        private final ConcurrentMap<Object, ConcurrentNavigableMap<Object, Map<String, Object>>> partitions =
+            new ConcurrentHashMap<>();
+
+        private RangeTable(final List<Class<?>> keyTypes) {
+            super(keyTypes);
+        }
+
+        @Override
+        void clear() {
+            partitions.clear();
+        }
+
+        @Override
+        Iterator<Map.Entry<Object[], Map<String, Object>>> entries(
+            final Order order,
+            final Optional<Object[]> afterKeyArray
+        ) {
+            final Iterator<Object> hashValues = orderedHashValues(partitions.keySet(), order, afterKeyArray, true)
+                .iterator();
+            return Iterators.concat(Iterators.transform(hashValues, hashValue -> {
+                final NavigableMap<Object, Map<String, Object>> partition = orderedPartition(
+                    partitions.getOrDefault(hashValue, new ConcurrentSkipListMap<>()), order);
+                // Only the first partition is resumed part way through
+                final boolean resumedPartition = afterKeyArray.map(keyArray -> keyArray[0].equals(hashValue))
+                    .orElse(false);
+                return partitionEntries(hashValue, resumedPartition ?
+                    partition.tailMap(afterKeyArray.get()[1], false) : partition, value -> true);
+            }));
+        }
+
+        @Override
+        Iterator<Map.Entry<Object[], Map<String, Object>>> entries(
+            final MapStoreKey key,
+            final Order order,
+            final Optional<Object[]> afterKeyArray
+        ) {
+            final ConcurrentNavigableMap<Object, Map<String, Object>> partition =
+                partitions.get(key.getHashValue());
+            if (partition == null) {
+                return Collections.emptyIterator();
+            }
+
+            final NavigableMap<Object, Map<String, Object>> range =
+                orderedPartition(rangeMap(partition, key.getRangeKey()), order);
+            return partitionEntries(key.getHashValue(),
+                afterKeyArray.map(keyArray -> range.tailMap(keyArray[1], false)).orElse(range),
+                rangeFilter(key.getRangeKey()));
+        }
+
+        @Override
+        Optional<Map<String, Object>> get(final MapStoreKey key) {
+            return Optional.ofNullable(partitions.get(key.getHashValue()))
+                .map(partition -> partition.get(key.getRangeKey().getValue()));
+        }
+
+        @Override
+        void put(
+            final MapStoreKey key,
+            final Map<String, Object> item
+        ) {
+            // Partitions are only ever modified under the lock of their hash
+            // value, so that an emptied partition can be dropped safely.
+            partitions.compute(key.getHashValue(), (hashValue, partition) -> {
+                final ConcurrentNavigableMap<Object, Map<String, Object>> itemPartition =
+                    Optional.ofNullable(partition).orElseGet(ConcurrentSkipListMap::new);
+                itemPartition.put(key.getRangeKey().getValue(), item);
+                return itemPartition;
+            });
+        }
+
+        @Override
+        void remove(final MapStoreKey key) {
+            partitions.computeIfPresent(key.getHashValue(), (hashValue, partition) -> {
+                partition.remove(key.getRangeKey().getValue());
+                return partition.isEmpty() ? null : partition;
+            });
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        Map<String, Object> update(
+            final MapStoreKey key,
+            final UnaryOperator<Map<String, Object>> updater
+        ) {
+            final Map<String, Object>[] updatedItem = new Map[1];
+            partitions.compute(key.getHashValue(), (hashValue, partition) -> {
+                final ConcurrentNavigableMap<Object, Map<String, Object>> itemPartition =
+                    Optional.ofNullable(partition).orElseGet(ConcurrentSkipListMap::new);
+                updatedItem[0] = itemPartition.compute(key.getRangeKey().getValue(),
+                    (rangeValue, item) -> updater.apply(item));
+                return itemPartition;
+            });
+            return updatedItem[0];
+        }
+
+        private static NavigableMap<Object, Map<String, Object>> orderedPartition(
+            final NavigableMap<Object, Map<String, Object>> partition,
+            final Order order
+        ) {
+            return order == Order.DESC ? partition.descendingMap() : partition;
+        }
+
+        private static Iterator<Map.Entry<Object[], Map<String, Object>>> partitionEntries(
+            final Object hashValue,
+            final NavigableMap<Object, Map<String, Object>> range,
+            final Predicate<Object> rangeFilter
+        ) {
+            return Iterators.transform(Iterators.filter(range.entrySet().iterator(),
+                entry -> rangeFilter.test(entry.getKey())),
+                entry -> new SimpleImmutableEntry<>(new Object[]{hashValue, entry.getKey()}, entry.getValue()));
+        }
+
+        /**
+         * Finds the (live) sub-map of the given partition which
+         * bounds all items matching the given range key. Operators
+         * which can't be expressed as bounds are completed by
+         * {@link #rangeFilter(MapRangeKey)}.
+         */
+        private static ConcurrentNavigableMap<Object, Map<String, Object>> rangeMap(
+            final ConcurrentNavigableMap<Object, Map<String, Object>> partition,
+            final MapRangeKey<?> rangeKey
+        ) {
+            final MapRangeOperator op = rangeKey.getOperator();
+            if (op == Standard.ALL || op == Extended.LIKE) {
+                return partition;
+            } else if (op == Standard.BETWEEN) {
+                final TwoValueHolder<?> betweenValues = (TwoValueHolder<?>) rangeKey.getValue();
+                return partition.subMap(betweenValues.getValue1(), true, betweenValues.getValue2(), true);
+            } else if (op == Standard.EQUAL_TO) {
+                return partition.subMap(rangeKey.getValue(), true, rangeKey.getValue(), true);
+            } else if (op == Standard.GREATER_THAN || op == Standard.GREATER_THAN_OR_EQUAL_TO) {
+                return partition.tailMap(rangeKey.getValue(), op == Standard.GREATER_THAN_OR_EQUAL_TO);
+            } else if (op == Standard.LESS_THAN || op == Standard.LESS_THAN_OR_EQUAL_TO) {
+                return partition.headMap(rangeKey.getValue(), op == Standard.LESS_THAN_OR_EQUAL_TO);
+            } else if (op == Extended.IN) {
+                final NavigableSet<Object> inValues =
+                    new TreeSet<>(((ListValueHolder<?>) rangeKey.getValue()).getValues());
+                return partition.subMap(inValues.first(), true, inValues.last(), true);
+            } else if (op == Extended.STARTS_WITH) {
+                // All strings with the prefix sort between the prefix
+                // itself and the prefix followed by the highest character
+                final String prefix = (String) rangeKey.getValue();
+                return partition.subMap(prefix, true, prefix + Character.MAX_VALUE, true);
+            }
+            throw new IllegalArgumentException("In-memory map store cannot support the operator " + op);
+        }
+
+        private static Predicate<Object> rangeFilter(final MapRangeKey<?> rangeKey) {
+            final MapRangeOperator op = rangeKey.getOperator();
+            if (op == Extended.IN) {
+                final Set<Object> inValues = ((ListValueHolder<?>) rangeKey.getValue()).getValues().stream()
+                    .collect(Collectors.toSet());
+                return inValues::contains;
+            } else if (op == Extended.LIKE) {
+                final String likeValue = (String) rangeKey.getValue();
+                return rangeValue -> rangeValue instanceof String && ((String) rangeValue).contains(likeValue);
+            } else if (op == Extended.STARTS_WITH) {
+                final String prefix = (String) rangeKey.getValue();
+                return rangeValue -> ((String) rangeValue).startsWith(prefix);
+            }
+            return rangeValue -> true;
+        }
+    }
+}
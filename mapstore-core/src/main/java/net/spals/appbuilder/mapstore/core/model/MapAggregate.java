@@ -0,0 +1,102 @@
+package net.spals.appbuilder.mapstore.core.model;
+
+import com.google.auto.value.AutoValue;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.BinaryOperator;
+import java.util.stream.Stream;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A numeric aggregate over a single field of
+ * the items which match a query.
+ *
+ * Items which don't hold a number in the field
+ * are left out of the aggregate. The aggregate of
+ * no numbers at all is {@link Optional#empty()}.
+ *
+ * @author tkral
+ */
+@AutoValue
+public abstract class MapAggregate {
+
+    public static MapAggregate max(final String field) {
+        return create(field, Operator.MAX);
+    }
+
+    public static MapAggregate min(final String field) {
+        return create(field, Operator.MIN);
+    }
+
+    public static MapAggregate sum(final String field) {
+        return create(field, Operator.SUM);
+    }
+
+    private static MapAggregate create(
+        final String field,
+        final Operator operator
+    ) {
+        checkNotNull(field, "Aggregate field cannot be null");
+        return new AutoValue_MapAggregate(field, operator);
+    }
+
+    public abstract String getField();
+
+    public abstract Operator getOperator();
+
+    /**
+     * Aggregates the given items. Plugins which cannot
+     * aggregate natively use this to aggregate items
+     * after they are read.
+     */
+    public Optional<BigDecimal> aggregate(final Stream<Map<String, Object>> items) {
+        return items.map(item -> item.get(getField()))
+            .filter(value -> value instanceof Number)
+            .map(value -> toBigDecimal((Number) value))
+            .filter(Optional::isPresent)
+            .map(Optional::get)
+            .reduce(getOperator().combiner);
+    }
+
+    /**
+     * Converts a number of any type to a {@link BigDecimal},
+     * or returns {@link Optional#empty()} if the number isn't
+     * finite.
+     */
+    public static Optional<BigDecimal> toBigDecimal(final Number number) {
+        if (number instanceof BigDecimal) {
+            return Optional.of((BigDecimal) number);
+        }
+        if ((number instanceof Double || number instanceof Float) && !Double.isFinite(number.doubleValue())) {
+            return Optional.empty();
+        }
+        return Optional.of(new BigDecimal(number.toString()));
+    }
+
+    public enum Operator {
+        MAX(BigDecimal::max),
+        MIN(BigDecimal::min),
+        SUM(BigDecimal::add),
+        ;
+
+        private final BinaryOperator<BigDecimal> combiner;
+
+        Operator(final BinaryOperator<BigDecimal> combiner) {
+            this.combiner = combiner;
+        }
+
+        /**
+         * Combines two partial aggregates, such as
+         * the aggregates of two pages of items.
+         */
+        public BigDecimal combine(
+            final BigDecimal aggregate1,
+            final BigDecimal aggregate2
+        ) {
+            return combiner.apply(aggregate1, aggregate2);
+        }
+    }
+}
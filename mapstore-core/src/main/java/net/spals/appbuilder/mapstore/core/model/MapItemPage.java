@@ -0,0 +1,30 @@
+package net.spals.appbuilder.mapstore.core.model;
+
+import org.inferred.freebuilder.FreeBuilder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * A single page of items read from a map store.
+ *
+ * If more items are available, the page will carry a
+ * continuation token which can be set in {@link MapQueryOptions}
+ * to read the next page.
+ *
+ * @author tkral
+ */
+@FreeBuilder
+public interface MapItemPage {
+
+    static MapItemPage emptyPage() {
+        return new Builder().build();
+    }
+
+    List<Map<String, Object>> getItems();
+
+    Optional<String> getContinuationToken();
+
+    class Builder extends MapItemPage_Builder {  }
+}
@@ -0,0 +1,150 @@
+package net.spals.appbuilder.mapstore.core.model;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Predicate;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A predicate on a single (non-key) field of an item.
+ *
+ * Filters are given to a query via {@link MapQueryOptions}.
+ * Plugins push them down to the underlying store where they
+ * can, otherwise they {@link #test(Map)} each item after it
+ * is read.
+ *
+ * Numeric values are compared by value, regardless of
+ * their type, so that a filter on 1 matches an item which
+ * holds 1L. Values of different types never match, except
+ * under {@link Operator#NOT_EQUAL_TO}.
+ *
+ * @author tkral
+ */
+@AutoValue
+public abstract class MapQueryFilter implements Predicate<Map<String, Object>> {
+
+    public static MapQueryFilter beginsWith(final String field, final String prefix) {
+        return create(field, Operator.BEGINS_WITH, ImmutableList.of(prefix));
+    }
+
+    public static MapQueryFilter equalTo(final String field, final Object value) {
+        return create(field, Operator.EQUAL_TO, ImmutableList.of(value));
+    }
+
+    public static MapQueryFilter exists(final String field) {
+        return create(field, Operator.EXISTS, ImmutableList.of());
+    }
+
+    public static MapQueryFilter greaterThan(final String field, final Object value) {
+        return create(field, Operator.GREATER_THAN, ImmutableList.of(value));
+    }
+
+    public static MapQueryFilter in(final String field, final Collection<?> values) {
+        checkArgument(!values.isEmpty(), "IN filter on %s requires at least one value", field);
+        return create(field, Operator.IN, ImmutableList.copyOf(values));
+    }
+
+    public static MapQueryFilter lessThan(final String field, final Object value) {
+        return create(field, Operator.LESS_THAN, ImmutableList.of(value));
+    }
+
+    public static MapQueryFilter notEqualTo(final String field, final Object value) {
+        return create(field, Operator.NOT_EQUAL_TO, ImmutableList.of(value));
+    }
+
+    private static MapQueryFilter create(
+        final String field,
+        final Operator operator,
+        final List<Object> values
+    ) {
+        checkNotNull(field, "Filter field cannot be null");
+        return new AutoValue_MapQueryFilter(field, operator, values);
+    }
+
+    public abstract String getField();
+
+    public abstract Operator getOperator();
+
+    /**
+     * The values against which the field is compared.
+     * Empty for {@link Operator#EXISTS} and a single
+     * value for all operators other than {@link Operator#IN}.
+     */
+    public abstract List<Object> getValues();
+
+    /**
+     * The single value of a non-IN filter.
+     */
+    public Object getValue() {
+        checkArgument(getValues().size() == 1, "%s filter on %s has no single value",
+            getOperator(), getField());
+        return getValues().get(0);
+    }
+
+    @Override
+    public boolean test(final Map<String, Object> item) {
+        final Object fieldValue = item.get(getField());
+        switch (getOperator()) {
+            case BEGINS_WITH:
+                return fieldValue instanceof String && ((String) fieldValue).startsWith((String) getValue());
+            case EQUAL_TO:
+                return compare(fieldValue, getValue()).map(comparison -> comparison == 0).orElse(false);
+            case EXISTS:
+                return fieldValue != null;
+            case GREATER_THAN:
+                return compare(fieldValue, getValue()).map(comparison -> comparison > 0).orElse(false);
+            case IN:
+                return getValues().stream()
+                    .anyMatch(value -> compare(fieldValue, value).map(comparison -> comparison == 0).orElse(false));
+            case LESS_THAN:
+                return compare(fieldValue, getValue()).map(comparison -> comparison < 0).orElse(false);
+            case NOT_EQUAL_TO:
+                return !compare(fieldValue, getValue()).map(comparison -> comparison == 0).orElse(false);
+            default:
+                throw new IllegalArgumentException("Unknown filter operator " + getOperator());
+        }
+    }
+
+    /**
+     * Compares an item's field value to a filter value,
+     * or returns {@link Optional#empty()} if the two
+     * are not comparable.
+     */
+    @SuppressWarnings("unchecked")
+    private static Optional<Integer> compare(
+        final Object fieldValue,
+        final Object filterValue
+    ) {
+        if (fieldValue == null) {
+            return Optional.empty();
+        }
+        if (fieldValue instanceof Number && filterValue instanceof Number) {
+            return Optional.of(new BigDecimal(fieldValue.toString())
+                .compareTo(new BigDecimal(filterValue.toString())));
+        }
+        if (fieldValue instanceof Comparable && fieldValue.getClass().isInstance(filterValue)) {
+            return Optional.of(((Comparable<Object>) fieldValue).compareTo(filterValue));
+        }
+        return Objects.equals(fieldValue, filterValue) ? Optional.of(0) : Optional.empty();
+    }
+
+    public enum Operator {
+        BEGINS_WITH,
+        EQUAL_TO,
+        EXISTS,
+        GREATER_THAN,
+        IN,
+        LESS_THAN,
+        NOT_EQUAL_TO,
+        ;
+    }
+}
@@ -2,7 +2,11 @@ package net.spals.appbuilder.mapstore.core.model;
 
 import org.inferred.freebuilder.FreeBuilder;
 
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkState;
 
 /**
  * @author tkral
@@ -14,10 +18,45 @@ public interface MapQueryOptions {
         return new Builder().build();
     }
 
+    /**
+     * An opaque token, returned with a {@link MapItemPage},
+     * from which to resume reading items.
+     */
+    Optional<String> getContinuationToken();
+
+    /**
+     * The name of a store specific consistency level
+     * with which to read (e.g. Cassandra's LOCAL_QUORUM).
+     * Stores without tunable consistency ignore this.
+     */
+    Optional<String> getConsistencyLevel();
+
+    /**
+     * Predicates on non-key fields which all items must
+     * match (i.e. the filters are ANDed together). Stores
+     * evaluate filters before projection and limits, so
+     * filter fields need not be projected and the limit
+     * counts matching items only.
+     */
+    List<MapQueryFilter> getFilters();
+
     Optional<Integer> getLimit();
 
     Order getOrder();
 
+    /**
+     * The number of items to fetch from the
+     * underlying store in a single round trip.
+     */
+    Optional<Integer> getPageSize();
+
+    /**
+     * The fields to return with each item. Key fields
+     * are only returned if they are listed. All fields
+     * are returned if the projection is empty.
+     */
+    Set<String> getProjection();
+
     enum Order {
         ASC,
         DESC,
@@ -28,5 +67,12 @@ public interface MapQueryOptions {
         public Builder() {
             setOrder(Order.ASC);
         }
+
+        @Override
+        public MapQueryOptions build() {
+            checkState(getPageSize().map(pageSize -> pageSize > 0).orElse(true),
+                "Page size must be positive");
+            return super.build();
+        }
     }
 }
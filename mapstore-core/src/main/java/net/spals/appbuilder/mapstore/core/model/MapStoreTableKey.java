@@ -2,6 +2,7 @@ package net.spals.appbuilder.mapstore.core.model;
 
 import org.inferred.freebuilder.FreeBuilder;
 
+import java.util.Map;
 import java.util.Optional;
 
 import static com.google.common.base.Preconditions.checkState;
@@ -20,6 +21,15 @@ public interface MapStoreTableKey {
 
     Optional<Class<? extends Comparable>> getRangeFieldType();
 
+    /**
+     * The declared types of non-key attributes (if any).
+     *
+     * Stores which support typed schemas use these to
+     * create a native column per attribute. All other
+     * stores ignore them.
+     */
+    Map<String, Class<?>> getAttributeTypes();
+
     class Builder extends MapStoreTableKey_Builder {
 
         public Builder setHash(final String hashField, final Class<?> hashFieldType) {
@@ -32,6 +42,10 @@ public interface MapStoreTableKey {
             return setRangeFieldType(rangeFieldType);
         }
 
+        public Builder addAttribute(final String attributeField, final Class<?> attributeType) {
+            return putAttributeTypes(attributeField, attributeType);
+        }
+
         @Override
         public MapStoreTableKey build() {
             checkState(getRangeField().isPresent() == getRangeFieldType().isPresent());
@@ -0,0 +1,24 @@
+package net.spals.appbuilder.mapstore.dynamodb
+
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.is
+import org.testng.annotations.Test
+
+/**
+  * Unit tests for [[DefaultDynamoDBCapacityMetrics]]
+  *
+  * @author tkral
+  */
+class DefaultDynamoDBCapacityMetricsTest {
+
+  @Test def testRecordCapacity() {
+    val capacityMetrics = new DefaultDynamoDBCapacityMetrics
+    capacityMetrics.recordCapacity("myTable", DynamoDBCapacityType.Read, 0.5)
+    capacityMetrics.recordCapacity("myTable", DynamoDBCapacityType.Read, 1.0)
+    capacityMetrics.recordCapacity("myTable", DynamoDBCapacityType.Write, 2.0)
+    capacityMetrics.recordThrottle("myTable")
+
+    assertThat(capacityMetrics.getConsumedCapacity.get("myTable"), is(DynamoDBConsumedCapacity(1.5, 2.0, 1L)))
+    assertThat(capacityMetrics.getConsumedCapacity.containsKey("myOtherTable"), is(false))
+  }
+}
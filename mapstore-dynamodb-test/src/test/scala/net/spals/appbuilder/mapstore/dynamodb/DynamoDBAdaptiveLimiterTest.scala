@@ -0,0 +1,40 @@
+package net.spals.appbuilder.mapstore.dynamodb
+
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.closeTo
+import org.testng.annotations.Test
+
+/**
+  * Unit tests for [[DynamoDBAdaptiveLimiter]]
+  *
+  * @author tkral
+  */
+class DynamoDBAdaptiveLimiterTest {
+
+  @Test def testThrottleHalvesRate() {
+    val limiter = new DynamoDBAdaptiveLimiter(100.0)
+    limiter.onThrottle()
+    assertThat(rate(limiter), closeTo(50.0, 0.001))
+    limiter.onThrottle()
+    assertThat(rate(limiter), closeTo(25.0, 0.001))
+  }
+
+  @Test def testThrottleMinimumRate() {
+    val limiter = new DynamoDBAdaptiveLimiter(2.0)
+    (1 to 5).foreach(_ => limiter.onThrottle())
+    assertThat(rate(limiter), closeTo(1.0, 0.001))
+  }
+
+  @Test def testSuccessRecoversRate() {
+    val limiter = new DynamoDBAdaptiveLimiter(100.0)
+    limiter.onThrottle()
+    limiter.onSuccess()
+    assertThat(rate(limiter), closeTo(55.0, 0.001))
+
+    (1 to 20).foreach(_ => limiter.onSuccess())
+    assertThat(rate(limiter), closeTo(100.0, 0.001))
+  }
+
+  // RateLimiter stores its rate as an interval, so rates only round trip approximately
+  private def rate(limiter: DynamoDBAdaptiveLimiter): java.lang.Double = limiter.getRate
+}
@@ -1,9 +1,13 @@
 package net.spals.appbuilder.mapstore.dynamodb
 
 import java.util.Optional
+import java.util.concurrent.Executors
 
 import com.google.common.collect.ImmutableMap
+import com.typesafe.config.ConfigFactory
 import io.opentracing.mock.{MockSpan, MockTracer}
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory.Key
 import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.defaultOptions
 import net.spals.appbuilder.mapstore.core.model.MapStoreIndexName.indexName
 import net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.{equalTo => range_equalTo}
@@ -12,6 +16,8 @@ import net.spals.appbuilder.mapstore.dynamodb.DynamoDBSpanMatcher.dynamoDBSpan
 import org.hamcrest.Matcher
 import org.hamcrest.MatcherAssert.assertThat
 import org.hamcrest.Matchers._
+import org.mockito.ArgumentMatchers.{any => m_any}
+import org.mockito.Mockito.{mock, when}
 import org.slf4j.LoggerFactory
 import org.testng.annotations._
 
@@ -36,13 +42,23 @@ class DynamoDBMapStoreIndexPluginIT {
     dynamoDBClientProvider.get()
   }
 
+  private lazy val executorServiceFactory = {
+    val executorServiceFactory = mock(classOf[ExecutorServiceFactory])
+    when(executorServiceFactory.createCachedThreadPool(m_any(classOf[Key])))
+      .thenReturn(Executors.newCachedThreadPool())
+    executorServiceFactory
+  }
+
+  private val tableCapacityConfig = new DynamoDBTableCapacityConfig(ConfigFactory.empty())
+
   private lazy val mapStorePlugin = {
-    val plugin = new DynamoDBMapStorePlugin(dynamoDBClient)
+    val plugin = new DynamoDBMapStorePlugin(dynamoDBClient, executorServiceFactory, tableCapacityConfig,
+      new DefaultDynamoDBCapacityMetrics)
     plugin.synchronousDDL = true
     plugin
   }
   private lazy val mapStoreIndexPlugin = {
-    val plugin = new DynamoDBMapStoreIndexPlugin(dynamoDBClient)
+    val plugin = new DynamoDBMapStoreIndexPlugin(dynamoDBClient, tableCapacityConfig)
     plugin.synchronousDDL = true
     plugin
   }
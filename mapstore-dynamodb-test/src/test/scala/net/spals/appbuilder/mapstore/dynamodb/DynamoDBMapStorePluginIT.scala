@@ -1,16 +1,24 @@
 package net.spals.appbuilder.mapstore.dynamodb
 
 import java.util.Optional
+import java.util.concurrent.Executors
+import java.util.stream.Collectors
 
+import com.typesafe.config.ConfigFactory
 import io.opentracing.mock.{MockSpan, MockTracer}
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory.Key
+import net.spals.appbuilder.mapstore.core.MapStorePluginBatchContract.assertBatchItems
 import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.defaultOptions
 import net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.{equalTo => range_equalTo, greaterThan => range_greaterThan, greaterThanOrEqualTo => range_greaterThanOrEqualTo, lessThan => range_lessThan, lessThanOrEqualTo => range_lessThanOrEqualTo, startsWith => range_startsWith}
 import net.spals.appbuilder.mapstore.core.model.TwoValueMapRangeKey.between
 import net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey.all
-import net.spals.appbuilder.mapstore.core.model.{MapStoreKey, MapStoreTableKey}
+import net.spals.appbuilder.mapstore.core.model.{MapQueryOptions, MapStoreKey, MapStoreTableKey}
 import net.spals.appbuilder.mapstore.dynamodb.DynamoDBSpanMatcher.dynamoDBSpan
 import org.hamcrest.MatcherAssert.assertThat
 import org.hamcrest.Matchers._
+import org.mockito.ArgumentMatchers.{any => m_any}
+import org.mockito.Mockito.{mock, when}
 import org.slf4j.LoggerFactory
 import org.testng.annotations._
 
@@ -35,8 +43,18 @@ class DynamoDBMapStorePluginIT {
     dynamoDBClientProvider.get()
   }
 
+  private lazy val executorServiceFactory = {
+    val executorServiceFactory = mock(classOf[ExecutorServiceFactory])
+    when(executorServiceFactory.createCachedThreadPool(m_any(classOf[Key])))
+      .thenReturn(Executors.newCachedThreadPool())
+    executorServiceFactory
+  }
+
+  private val tableCapacityConfig = new DynamoDBTableCapacityConfig(ConfigFactory.empty())
+
   private lazy val mapStorePlugin = {
-    val plugin = new DynamoDBMapStorePlugin(dynamoDBClient)
+    val plugin = new DynamoDBMapStorePlugin(dynamoDBClient, executorServiceFactory, tableCapacityConfig,
+      new DefaultDynamoDBCapacityMetrics)
     plugin.synchronousDDL = true
     plugin
   }
@@ -178,8 +196,9 @@ class DynamoDBMapStorePluginIT {
 
     assertThat(mapStorePlugin.updateItem(rangeTableName, storeKey, payload.asJava), is(expectedResult.asJava))
     assertThat(mapStorePlugin.getItem(rangeTableName, storeKey), is(Optional.of(expectedResult.asJava)))
+    // UpdateItem returns ALL_NEW, so there's no follow-up read
     assertThat(dynamoDBTracer.finishedSpans(), contains[MockSpan](dynamoDBSpan(dynamoDBEndpoint, "POST"),
-      dynamoDBSpan(dynamoDBEndpoint, "POST"), dynamoDBSpan(dynamoDBEndpoint, "POST")))
+      dynamoDBSpan(dynamoDBEndpoint, "POST")))
   }
 
   @Test(
@@ -239,6 +258,37 @@ class DynamoDBMapStorePluginIT {
     assertThat(dynamoDBTracer.finishedSpans(), contains[MockSpan](dynamoDBSpan(dynamoDBEndpoint, "POST")))
   }
 
+  @Test(
+    groups = Array("DynamoDBMapStorePluginIT.get"),
+    dependsOnGroups = Array("DynamoDBMapStorePluginIT.put", "DynamoDBMapStorePluginIT.update")
+  )
+  def testGetItemsPage() {
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+      .setRange("myRangeField", all()).build
+    val options = new MapQueryOptions.Builder().setPageSize(2).build
+
+    val page1 = mapStorePlugin.getItemsPage(rangeTableName, storeKey, options)
+    assertThat(page1.getItems, contains[java.util.Map[String, AnyRef]](result(1).asJava, result(2).asJava))
+
+    val page2 = mapStorePlugin.getItemsPage(rangeTableName, storeKey,
+      new MapQueryOptions.Builder().mergeFrom(options).setContinuationToken(page1.getContinuationToken).build)
+    assertThat(page2.getItems, contains[java.util.Map[String, AnyRef]](result(3).asJava, result(4).asJava))
+  }
+
+  @Test(
+    dataProvider = "getItemsProvider",
+    groups = Array("DynamoDBMapStorePluginIT.get"),
+    dependsOnGroups = Array("DynamoDBMapStorePluginIT.put", "DynamoDBMapStorePluginIT.update")
+  )
+  def testStreamItems(
+    storeKey: MapStoreKey,
+    expectedResults: List[Map[String, AnyRef]]
+  ) {
+    val options = new MapQueryOptions.Builder().setPageSize(1).build
+    assertThat(mapStorePlugin.streamItems(rangeTableName, storeKey, options).collect(Collectors.toList()),
+      contains[java.util.Map[String, AnyRef]](expectedResults.map(_.asJava): _*))
+  }
+
   @Test(
     groups = Array("DynamoDBMapStorePluginIT.delete"),
     dependsOnGroups = Array("DynamoDBMapStorePluginIT.get")
@@ -256,6 +306,47 @@ class DynamoDBMapStorePluginIT {
     )
   }
 
+  @Test(
+    groups = Array("DynamoDBMapStorePluginIT.batch"),
+    dependsOnGroups = Array("DynamoDBMapStorePluginIT.delete")
+  )
+  def testBatchItems() {
+    assertBatchItems(mapStorePlugin, hashTableName, "myHashField", 100)
+  }
+
+  @Test(
+    groups = Array("DynamoDBMapStorePluginIT.batch"),
+    dependsOnGroups = Array("DynamoDBMapStorePluginIT.delete")
+  )
+  def testSegmentedScan() {
+    val scanTableName = "DynamoDBMapStorePluginIT_scanTable"
+    mapStorePlugin.createTable(scanTableName, hashTableKey)
+
+    val scanSize = 100
+    val scanItems = (1 to scanSize).map(i =>
+      (new MapStoreKey.Builder().setHash("myHashField", s"myScanHashValue$i").build,
+        Map[String, AnyRef]("key" -> "value").asJava)).toMap
+    mapStorePlugin.batchPutItems(scanTableName, scanItems.asJava)
+
+    val segmentedPlugin = new DynamoDBMapStorePlugin(dynamoDBClient, executorServiceFactory, tableCapacityConfig,
+      new DefaultDynamoDBCapacityMetrics)
+    segmentedPlugin.scanSegments = 4
+    segmentedPlugin.scanMaxReadCapacityPerSecond = 1000L
+    try {
+      assertThat(segmentedPlugin.getAllItems(scanTableName), hasSize[java.util.Map[String, AnyRef]](scanSize))
+
+      val options = new MapQueryOptions.Builder().setLimit(10).build
+      val itemStream = segmentedPlugin.streamAllItems(scanTableName, options)
+      try {
+        assertThat(itemStream.collect(Collectors.toList()), hasSize[java.util.Map[String, AnyRef]](10))
+      } finally {
+        itemStream.close()
+      }
+    } finally {
+      mapStorePlugin.dropTable(scanTableName)
+    }
+  }
+
   def result(i: Int): Map[String, AnyRef] = {
     Map("myHashField" -> "myHashValue", "myRangeField" -> s"myRangeValue$i", "key" -> "value")
   }
@@ -1,11 +1,16 @@
 package net.spals.appbuilder.mapstore.dynamodb
 
-import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType
-import net.spals.appbuilder.mapstore.dynamodb.DynamoDBMapStoreUtil.createAttributeType
+import com.amazonaws.services.dynamodbv2.document.Item
+import com.amazonaws.services.dynamodbv2.model.{AttributeValue, ScalarAttributeType}
+import net.spals.appbuilder.mapstore.core.model.{MapQueryFilter, MapQueryOptions, MapStoreKey}
+import net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.{equalTo, greaterThan}
+import net.spals.appbuilder.mapstore.dynamodb.DynamoDBMapStoreUtil._
 import org.hamcrest.MatcherAssert.assertThat
 import org.hamcrest.Matchers.is
 import org.testng.annotations.{DataProvider, Test}
 
+import scala.collection.JavaConverters._
+
 /**
   * Unit tests for [[DynamoDBMapStorePlugin]]
   *
@@ -43,4 +48,80 @@ class DynamoDBMapStoreUtilTest {
   def testCreateAttributeType(fieldType: Class[_], expectedAttributeType: ScalarAttributeType) {
     assertThat(createAttributeType(fieldType), is(expectedAttributeType))
   }
+
+  @Test def testCreateContinuationTokenEmpty() {
+    assertThat(createContinuationToken(null), is(Option.empty[String]))
+    assertThat(createContinuationToken(java.util.Collections.emptyMap[String, AttributeValue]()), is(Option.empty[String]))
+  }
+
+  @Test def testContinuationTokenRoundTrip() {
+    val lastEvaluatedKey = Map("myHashField" -> new AttributeValue().withS("myHashValue"),
+      "myRangeField" -> new AttributeValue().withN("1"))
+    val continuationToken = createContinuationToken(lastEvaluatedKey.asJava)
+
+    val exclusiveStartKey = createExclusiveStartKey(continuationToken.get)
+    assertThat(exclusiveStartKey.getComponents.asScala.map(keyAttr => (keyAttr.getName, keyAttr.getValue)).toMap,
+      is(Map[String, AnyRef]("myHashField" -> "myHashValue", "myRangeField" -> new java.math.BigDecimal(1))))
+  }
+
+  @Test def testCreateFilterExpressionEmpty() {
+    assertThat(createFilterExpression(MapQueryOptions.defaultOptions()), is(Option.empty[DynamoDBExpression]))
+  }
+
+  @Test def testCreateFilterExpression() {
+    val options = new MapQueryOptions.Builder()
+      .addFilters(MapQueryFilter.equalTo("status", "active"))
+      .addFilters(MapQueryFilter.in("size", java.util.Arrays.asList(1L, 2L)))
+      .addFilters(MapQueryFilter.exists("owner"))
+      .build()
+
+    assertThat(createFilterExpression(options), is(Option(DynamoDBExpression(
+      "#f0 = :f0 AND #f1 IN (:f1_0, :f1_1) AND attribute_exists(#f2)",
+      Map("#f0" -> "status", "#f1" -> "size", "#f2" -> "owner"),
+      Map[String, AnyRef](":f0" -> "active", ":f1_0" -> java.lang.Long.valueOf(1L),
+        ":f1_1" -> java.lang.Long.valueOf(2L))))))
+  }
+
+  @Test def testCreateKeyConditionExpression() {
+    val key = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+      .setRange("myRangeField", greaterThan[String]("myRangeValue")).build()
+
+    assertThat(createKeyConditionExpression(key), is(DynamoDBExpression("#k0 = :k0 AND #k1 > :k1",
+      Map("#k0" -> "myHashField", "#k1" -> "myRangeField"),
+      Map[String, AnyRef](":k0" -> "myHashValue", ":k1" -> "myRangeValue"))))
+  }
+
+  @DataProvider def createKeyValuesProvider(): Array[Array[AnyRef]] = {
+    Array(
+      Array(new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build(),
+        new Item().withString("myHashField", "myHashValue")),
+      Array(new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+        .setRange("myRangeField", equalTo[java.lang.Integer](1)).build(),
+        new Item().withString("myHashField", "myHashValue").withNumber("myRangeField", new java.math.BigDecimal(1))),
+      Array(new MapStoreKey.Builder().setHash("myHashField", java.lang.Long.valueOf(10L)).build(),
+        new Item().withNumber("myHashField", new java.math.BigDecimal("10.0")))
+    )
+  }
+
+  @Test(dataProvider = "createKeyValuesProvider")
+  def testCreateKeyValues(key: MapStoreKey, item: Item) {
+    // A key matches the item read back for it
+    assertThat(createKeyValues(key, item), is(createKeyValues(key)))
+  }
+
+  @Test def testCreateQuerySpecMergesPlaceholders() {
+    val key = new MapStoreKey.Builder().setHash("myHashField", "myHashValue").build()
+    val options = new MapQueryOptions.Builder()
+      .addFilters(MapQueryFilter.beginsWith("name", "my"))
+      .addProjection("name")
+      .build()
+    val querySpec = createQuerySpec(key, options)
+
+    assertThat(querySpec.getKeyConditionExpression, is("#k0 = :k0"))
+    assertThat(querySpec.getFilterExpression, is("begins_with(#f0, :f0)"))
+    assertThat(querySpec.getProjectionExpression, is("#p0"))
+    assertThat(querySpec.getNameMap.asScala.toMap,
+      is(Map("#k0" -> "myHashField", "#f0" -> "name", "#p0" -> "name")))
+    assertThat(querySpec.getValueMap.asScala.toMap, is(Map[String, AnyRef](":k0" -> "myHashValue", ":f0" -> "my")))
+  }
 }
@@ -0,0 +1,50 @@
+package net.spals.appbuilder.mapstore.dynamodb
+
+import com.amazonaws.services.dynamodbv2.model.{BillingMode, ProvisionedThroughput}
+import com.typesafe.config.{ConfigException, ConfigFactory}
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.is
+import org.testng.annotations.Test
+
+/**
+  * Unit tests for [[DynamoDBTableCapacityConfig]]
+  *
+  * @author tkral
+  */
+class DynamoDBTableCapacityConfigTest {
+
+  @Test def testDefaultCapacity() {
+    val tableCapacityConfig = new DynamoDBTableCapacityConfig(ConfigFactory.empty())
+
+    assertThat(tableCapacityConfig("myTable"), is(DynamoDBTableCapacity(BillingMode.PROVISIONED, 1L, 1L)))
+    assertThat(tableCapacityConfig("myTable").provisionedThroughput, is(Option(new ProvisionedThroughput(1L, 1L))))
+  }
+
+  @Test def testConfiguredCapacity() {
+    val tableCapacityConfig = new DynamoDBTableCapacityConfig(ConfigFactory.parseString(
+      """mapStore.dynamoDB.capacity {
+        |  readCapacityUnits = 5
+        |  writeCapacityUnits = 10
+        |  tables.myTable.readCapacityUnits = 20
+        |  tables.myOnDemandTable.billingMode = pay_per_request
+        |}""".stripMargin))
+
+    assertThat(tableCapacityConfig("myOtherTable"), is(DynamoDBTableCapacity(BillingMode.PROVISIONED, 5L, 10L)))
+    assertThat(tableCapacityConfig("myTable"), is(DynamoDBTableCapacity(BillingMode.PROVISIONED, 20L, 10L)))
+    assertThat(tableCapacityConfig("myOnDemandTable").provisionedThroughput, is(Option.empty[ProvisionedThroughput]))
+  }
+
+  @Test(expectedExceptions = Array(classOf[ConfigException.BadValue]))
+  def testUnknownBillingMode() {
+    val tableCapacityConfig = new DynamoDBTableCapacityConfig(
+      ConfigFactory.parseString("mapStore.dynamoDB.capacity.billingMode = free"))
+    tableCapacityConfig("myTable")
+  }
+
+  @Test(expectedExceptions = Array(classOf[ConfigException.BadValue]))
+  def testNonPositiveCapacityUnits() {
+    val tableCapacityConfig = new DynamoDBTableCapacityConfig(
+      ConfigFactory.parseString("mapStore.dynamoDB.capacity.tables.myTable.writeCapacityUnits = 0"))
+    tableCapacityConfig("myTable")
+  }
+}
@@ -0,0 +1,50 @@
+package net.spals.appbuilder.mapstore.dynamodb
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.{DoubleAdder, LongAdder}
+
+import com.google.inject.Inject
+import net.spals.appbuilder.annotations.service.AutoBindSingleton
+
+import scala.collection.JavaConverters._
+import scala.compat.java8.FunctionConverters._
+
+/**
+  * Default implementation of [[DynamoDBCapacityMetrics]]
+  * which keeps running totals in memory.
+  *
+  * @author tkral
+  */
+@AutoBindSingleton(baseClass = classOf[DynamoDBCapacityMetrics], includeImpl = true)
+private[dynamodb] class DefaultDynamoDBCapacityMetrics @Inject() () extends DynamoDBCapacityMetrics {
+
+  private val tableCapacities = new ConcurrentHashMap[String, TableCapacity]()
+
+  override def getConsumedCapacity: java.util.Map[String, DynamoDBConsumedCapacity] =
+    tableCapacities.asScala.mapValues(_.consumedCapacity).toMap.asJava
+
+  def recordCapacity(
+    tableName: String,
+    capacityType: DynamoDBCapacityType,
+    capacityUnits: Double
+  ): Unit = {
+    val tableCapacity = tableCapacities.computeIfAbsent(tableName, asJavaFunction((_: String) => new TableCapacity))
+    capacityType match {
+      case DynamoDBCapacityType.Read => tableCapacity.readCapacityUnits.add(capacityUnits)
+      case DynamoDBCapacityType.Write => tableCapacity.writeCapacityUnits.add(capacityUnits)
+    }
+  }
+
+  def recordThrottle(tableName: String): Unit =
+    tableCapacities.computeIfAbsent(tableName, asJavaFunction((_: String) => new TableCapacity))
+      .throttledRequests.increment()
+
+  private class TableCapacity {
+    val readCapacityUnits = new DoubleAdder
+    val writeCapacityUnits = new DoubleAdder
+    val throttledRequests = new LongAdder
+
+    def consumedCapacity: DynamoDBConsumedCapacity =
+      DynamoDBConsumedCapacity(readCapacityUnits.sum(), writeCapacityUnits.sum(), throttledRequests.sum())
+  }
+}
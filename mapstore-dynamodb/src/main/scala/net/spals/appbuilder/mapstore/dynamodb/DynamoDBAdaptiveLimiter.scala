@@ -0,0 +1,48 @@
+package net.spals.appbuilder.mapstore.dynamodb
+
+import com.google.common.util.concurrent.RateLimiter
+
+/**
+  * A client-side limit on the capacity units per second
+  * which are consumed within a single DynamoDB table.
+  *
+  * The limit starts at the table's provisioned capacity.
+  * It is halved each time DynamoDB throttles a request and
+  * then grows back by a fraction of the provisioned capacity
+  * with each successful request (i.e. AIMD), so that clients
+  * which share a table settle on their share of its capacity.
+  *
+  * @author tkral
+  */
+private[dynamodb] class DynamoDBAdaptiveLimiter(maxCapacityUnitsPerSecond: Double) {
+  import DynamoDBAdaptiveLimiter._
+
+  private val rateLimiter = RateLimiter.create(maxCapacityUnitsPerSecond)
+
+  /**
+    * Pays for capacity units consumed by a request, blocking
+    * until the limit allows them. Requests are only told what
+    * they consumed after the fact, so each request delays the
+    * request which follows it.
+    */
+  def acquire(capacityUnits: Double): Unit =
+    rateLimiter.acquire(math.max(math.ceil(capacityUnits).toInt, 1))
+
+  def getRate: Double = rateLimiter.getRate
+
+  def onSuccess(): Unit = {
+    val rate = rateLimiter.getRate
+    if (rate < maxCapacityUnitsPerSecond) {
+      rateLimiter.setRate(math.min(rate + maxCapacityUnitsPerSecond * INCREASE_FRACTION, maxCapacityUnitsPerSecond))
+    }
+  }
+
+  def onThrottle(): Unit =
+    rateLimiter.setRate(math.max(rateLimiter.getRate * DECREASE_FACTOR, MIN_CAPACITY_UNITS_PER_SECOND))
+}
+
+private[dynamodb] object DynamoDBAdaptiveLimiter {
+  private val DECREASE_FACTOR = 0.5
+  private val INCREASE_FRACTION = 0.05
+  private val MIN_CAPACITY_UNITS_PER_SECOND = 1.0
+}
@@ -0,0 +1,32 @@
+package net.spals.appbuilder.mapstore.dynamodb
+
+/**
+  * The capacity consumed by requests made
+  * through the DynamoDB map store.
+  *
+  * @author tkral
+  */
+trait DynamoDBCapacityMetrics {
+
+  /**
+    * Consumed capacity for each table which
+    * has been used, keyed by table name.
+    */
+  def getConsumedCapacity: java.util.Map[String, DynamoDBConsumedCapacity]
+}
+
+/**
+  * The capacity consumed within a single DynamoDB table.
+  *
+  * @param readCapacityUnits The total read capacity units consumed
+  * @param writeCapacityUnits The total write capacity units consumed
+  * @param throttledRequests The number of requests which DynamoDB rejected
+  *                          for exceeding the table's provisioned throughput
+  *
+  * @author tkral
+  */
+case class DynamoDBConsumedCapacity(
+  readCapacityUnits: Double,
+  writeCapacityUnits: Double,
+  throttledRequests: Long
+)
@@ -22,11 +22,15 @@ import scala.compat.java8.OptionConverters._
   * Implementation of [[MapStoreIndexPlugin]] which
   * uses AWS DynamoDB.
   *
+  * Indexes are created with the capacity configured
+  * for their table (see [[DynamoDBTableCapacityConfig]]).
+  *
   * @author tkral
   */
 @AutoBindInMap(baseClass = classOf[MapStoreIndexPlugin], key = "dynamoDB")
 private[dynamodb] class DynamoDBMapStoreIndexPlugin @Inject() (
-  dynamoDBClient: AmazonDynamoDB
+  dynamoDBClient: AmazonDynamoDB,
+  tableCapacityConfig: DynamoDBTableCapacityConfig
 ) extends MapStoreIndexPlugin {
 
   @NotNull
@@ -60,9 +64,10 @@ private[dynamodb] class DynamoDBMapStoreIndexPlugin @Inject() (
       createGSIAction.withKeySchema(rangeKeySchema)
     })
 
-    // Add minimal provisioned throughput to the index
-    val provisionedThroughput = new ProvisionedThroughput().withReadCapacityUnits(1L).withWriteCapacityUnits(1L)
-    createGSIAction.withProvisionedThroughput(provisionedThroughput)
+    // Indexes share the capacity settings of their table. Indexes
+    // of tables which are billed per request have no throughput.
+    tableCapacityConfig(indexName.getTableName).provisionedThroughput
+      .foreach(provisionedThroughput => createGSIAction.withProvisionedThroughput(provisionedThroughput))
 
     val table = dynamoDB.getTable(indexName.getTableName)
     val index = rangeKeyAttrDefOpt match {
@@ -1,43 +1,105 @@
 package net.spals.appbuilder.mapstore.dynamodb
 
 import java.util.Optional
+import java.util.concurrent.{ConcurrentHashMap, ThreadLocalRandom}
+import java.util.stream.Collectors
 import javax.annotation.PreDestroy
-import javax.validation.constraints.NotNull
+import javax.validation.constraints.{Min, NotNull}
 
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB
 import com.amazonaws.services.dynamodbv2.document._
-import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec
+import com.amazonaws.services.dynamodbv2.document.spec.{BatchWriteItemSpec, DeleteItemSpec, GetItemSpec, PutItemSpec,
+  UpdateItemSpec}
 import com.amazonaws.services.dynamodbv2.model._
 import com.amazonaws.services.dynamodbv2.util.TableUtils
+import com.google.common.util.concurrent.RateLimiter
 import com.google.inject.Inject
 import com.netflix.governator.annotations.Configuration
 import net.spals.appbuilder.annotations.service.AutoBindInMap
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory
+import net.spals.appbuilder.executor.core.ExecutorServiceFactory.Key
 import net.spals.appbuilder.mapstore.core.MapStorePlugin
-import net.spals.appbuilder.mapstore.core.MapStorePlugin.stripKey
-import net.spals.appbuilder.mapstore.core.model.{MapQueryOptions, MapStoreKey, MapStoreTableKey}
-import net.spals.appbuilder.mapstore.dynamodb.DynamoDBMapStoreUtil.{createAttributeType, createPrimaryKey, createQuerySpec}
+import net.spals.appbuilder.mapstore.core.MapStorePlugin.{aggregateOptions, matchesFilters, projectItem, stripKey}
+import net.spals.appbuilder.mapstore.core.model.{MapItemPage, MapQueryOptions, MapStoreKey, MapStoreTableKey}
+import net.spals.appbuilder.mapstore.dynamodb.DynamoDBMapStoreUtil.{createAttributeType, createGetItemSpec, createItemPage,
+  createItemStream, createKeyValues, createPrimaryKey, createQuerySpec, createScanSpec}
 import org.slf4j.LoggerFactory
 
+import scala.annotation.tailrec
 import scala.collection.JavaConverters._
+import scala.compat.java8.FunctionConverters._
 import scala.compat.java8.OptionConverters._
+import scala.util.{Failure, Success, Try}
 
 /**
   * Implementation of [[MapStorePlugin]] which
   * uses AWS DynamoDB.
   *
+  * Full table scans can be split into segments which
+  * are scanned in parallel (see mapStore.dynamoDB.scanSegments)
+  * and can be limited to a maximum read capacity per second
+  * (see mapStore.dynamoDB.scanMaxReadCapacityPerSecond).
+  *
+  * Tables are created with the capacity given by
+  * [[DynamoDBTableCapacityConfig]]. The capacity consumed
+  * by each request is recorded in [[DynamoDBCapacityMetrics]].
+  * Requests which DynamoDB throttles are retried with jittered
+  * exponential backoff and, with mapStore.dynamoDB.adaptiveThrottling,
+  * requests against provisioned tables are limited on the client
+  * by a [[DynamoDBAdaptiveLimiter]].
+  *
+  * There is no native asyncPlugin, so an AsyncMapStore runs
+  * these blocking calls on its own thread pool. The SDK's
+  * AmazonDynamoDBAsync client would not save any threads: it
+  * also runs each blocking call on a thread pool. It has no
+  * Document API either, so it would duplicate the item mapping,
+  * capacity metrics and retries here.
+  *
   * @author tkral
   */
 @AutoBindInMap(baseClass = classOf[MapStorePlugin], key = "dynamoDB")
 private[dynamodb] class DynamoDBMapStorePlugin @Inject() (
-  dynamoDBClient: AmazonDynamoDB
+  dynamoDBClient: AmazonDynamoDB,
+  executorServiceFactory: ExecutorServiceFactory,
+  tableCapacityConfig: DynamoDBTableCapacityConfig,
+  capacityMetrics: DefaultDynamoDBCapacityMetrics
 ) extends MapStorePlugin {
   private val LOGGER = LoggerFactory.getLogger(classOf[DynamoDBMapStorePlugin])
+  // Per-request item limits imposed by DynamoDB
+  private val BATCH_GET_LIMIT = 100
+  private val BATCH_WRITE_LIMIT = 25
 
   @NotNull
   @Configuration("mapStore.dynamoDB.synchronousDDL")
   private[dynamodb] var synchronousDDL: Boolean = false
 
+  @NotNull
+  @Configuration("mapStore.dynamoDB.adaptiveThrottling")
+  private[dynamodb] var adaptiveThrottling: Boolean = false
+
+  // Retry settings for both unprocessed batch items and throttled requests
+  @Min(0L)
+  @Configuration("mapStore.dynamoDB.batchMaxRetries")
+  private[dynamodb] var batchMaxRetries: Int = 10
+
+  @Min(1L)
+  @Configuration("mapStore.dynamoDB.batchRetryBackoffMillis")
+  private[dynamodb] var batchRetryBackoffMillis: Long = 50L
+
+  @Min(1L)
+  @Configuration("mapStore.dynamoDB.scanSegments")
+  private[dynamodb] var scanSegments: Int = 1
+
+  // A value of 0 leaves scans unlimited
+  @Min(0L)
+  @Configuration("mapStore.dynamoDB.scanMaxReadCapacityPerSecond")
+  private[dynamodb] var scanMaxReadCapacityPerSecond: Long = 0L
+
   private val dynamoDB = new DynamoDB(dynamoDBClient)
+  private val adaptiveLimiters =
+    new ConcurrentHashMap[(String, DynamoDBCapacityType), Option[DynamoDBAdaptiveLimiter]]()
+  private lazy val scanExecutor =
+    executorServiceFactory.createCachedThreadPool(new Key.Builder(getClass).addTags("scan").build())
 
   @PreDestroy
   override def close() = dynamoDBClient.shutdown()
@@ -65,9 +127,12 @@ private[dynamodb] class DynamoDBMapStorePlugin @Inject() (
         .withKeySchema(rangeKeySchema)
     })
 
-    // Add minimal provisioned throughput to the table
-    val provisionedThroughput = new ProvisionedThroughput().withReadCapacityUnits(1L).withWriteCapacityUnits(1L)
-    createTableRequest.withProvisionedThroughput(provisionedThroughput)
+    // Add the table's configured capacity to the create table request
+    val tableCapacity = tableCapacityConfig(tableName)
+    tableCapacity.provisionedThroughput match {
+      case Some(provisionedThroughput) => createTableRequest.withProvisionedThroughput(provisionedThroughput)
+      case None => createTableRequest.withBillingMode(tableCapacity.billingMode)
+    }
 
     try {
       TableUtils.createTableIfNotExists(dynamoDBClient, createTableRequest)
@@ -105,6 +170,74 @@ private[dynamodb] class DynamoDBMapStorePlugin @Inject() (
     }
   }
 
+  override def batchDeleteItems(
+    tableName: String,
+    keys: java.util.Collection[MapStoreKey]
+  ): Unit = {
+    // DynamoDB rejects a batch which holds the same key twice
+    keys.asScala.toList.distinct.grouped(BATCH_WRITE_LIMIT).foreach(keyGroup => {
+      val tableWriteItems = new TableWriteItems(tableName)
+        .withPrimaryKeysToDelete(keyGroup.map(createPrimaryKey).toSeq: _*)
+      batchWrite(tableName, writeBatch(tableName, new BatchWriteItemSpec().withTableWriteItems(tableWriteItems)),
+        attempt = 0)
+    })
+  }
+
+  override def batchGetItems(
+    tableName: String,
+    keys: java.util.Collection[MapStoreKey]
+  ): java.util.List[java.util.Map[String, AnyRef]] = {
+    // DynamoDB rejects a batch which holds the same key twice
+    val distinctKeys = keys.asScala.toList.distinct
+    val items = distinctKeys.grouped(BATCH_GET_LIMIT).flatMap(keyGroup => {
+      val tableKeysAndAttributes = new TableKeysAndAttributes(tableName)
+        .withPrimaryKeys(keyGroup.map(createPrimaryKey): _*)
+      val outcome = withCapacity(tableName, "batchGetItems", DynamoDBCapacityType.Read)(
+        dynamoDB.batchGetItem(ReturnConsumedCapacity.TOTAL, tableKeysAndAttributes))(
+        batchOutcome => consumedCapacities(batchOutcome.getBatchGetItemResult.getConsumedCapacity))
+      batchGet(tableName, outcome, List.empty[Item], attempt = 0)
+    }).toList
+
+    // DynamoDB returns the items in no particular order, so match
+    // them back to the requested keys (including any duplicates)
+    distinctKeys.headOption.map(firstKey => {
+      val itemsByKeyValues = items.map(item => (createKeyValues(firstKey, item), item)).toMap
+      keys.asScala.toList.flatMap(key => itemsByKeyValues.get(createKeyValues(key)).map(_.asMap()))
+    }).getOrElse(List.empty).asJava
+  }
+
+  override def batchPutItems(
+    tableName: String,
+    items: java.util.Map[MapStoreKey, java.util.Map[String, AnyRef]]
+  ): java.util.List[java.util.Map[String, AnyRef]] = {
+    val tableItems = items.asScala.map(item => {
+      stripKey(item._1, item._2)
+      Item.fromMap(item._2).withPrimaryKey(createPrimaryKey(item._1))
+    }).toList
+
+    tableItems.grouped(BATCH_WRITE_LIMIT).foreach(itemGroup => {
+      val tableWriteItems = new TableWriteItems(tableName).withItemsToPut(itemGroup: _*)
+      batchWrite(tableName, writeBatch(tableName, new BatchWriteItemSpec().withTableWriteItems(tableWriteItems)),
+        attempt = 0)
+    })
+    tableItems.map(_.asMap()).asJava
+  }
+
+  override def countItems(
+    tableName: String,
+    key: MapStoreKey,
+    options: MapQueryOptions
+  ): Long = {
+    val table = dynamoDB.getTable(tableName)
+    // Select.COUNT returns the number of matching items in each page, rather than the items themselves
+    val querySpec = createQuerySpec(key, aggregateOptions(options).build()).withSelect(Select.COUNT)
+
+    val queryPages = withCapacity(tableName, "countItems", DynamoDBCapacityType.Read)(
+      table.query(querySpec).pages().asScala.toList)(
+      _.flatMap(page => Option(page.getLowLevelResult.getQueryResult.getConsumedCapacity)))
+    queryPages.map(_.getLowLevelResult.getQueryResult.getCount.longValue).sum
+  }
+
   override def deleteItem(
     tableName: String,
     key: MapStoreKey
@@ -112,16 +245,31 @@ private[dynamodb] class DynamoDBMapStorePlugin @Inject() (
     val table = dynamoDB.getTable(tableName)
     val primaryKey = createPrimaryKey(key)
 
-    val deleteItemOutcome = table.deleteItem(primaryKey)
-    if (LOGGER.isTraceEnabled) {
-      LOGGER.trace(s"Capacity used for deleteItem on table $tableName: " +
-        s"${deleteItemOutcome.getDeleteItemResult.getConsumedCapacity}")
-    }
+    val deleteItemSpec = new DeleteItemSpec().withPrimaryKey(primaryKey)
+      .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)
+    withCapacity(tableName, "deleteItem", DynamoDBCapacityType.Write)(table.deleteItem(deleteItemSpec))(
+      outcome => Option(outcome.getDeleteItemResult.getConsumedCapacity).toList)
   }
 
   override def getAllItems(tableName: String): java.util.List[java.util.Map[String, AnyRef]] = {
+    val itemStream = streamAllItems(tableName, MapQueryOptions.defaultOptions())
+    try {
+      itemStream.collect(Collectors.toList[java.util.Map[String, AnyRef]])
+    } finally {
+      itemStream.close()
+    }
+  }
+
+  override def getAllItemsPage(
+    tableName: String,
+    options: MapQueryOptions
+  ): MapItemPage = {
     val table = dynamoDB.getTable(tableName)
-    table.scan(new ScanSpec).asScala.map(_.asMap()).toList.asJava
+    val scanPage = withCapacity(tableName, "getAllItemsPage", DynamoDBCapacityType.Read)(
+      table.scan(createScanSpec(options)).firstPage())(
+      page => Option(page.getLowLevelResult.getScanResult.getConsumedCapacity).toList)
+
+    createItemPage(scanPage, scanPage.getLowLevelResult.getScanResult.getLastEvaluatedKey)
   }
 
   override def getItem(
@@ -131,15 +279,31 @@ private[dynamodb] class DynamoDBMapStorePlugin @Inject() (
     val table = dynamoDB.getTable(tableName)
     val primaryKey = createPrimaryKey(key)
 
-    val getItemOutcome = table.getItemOutcome(primaryKey)
-    if (LOGGER.isTraceEnabled) {
-      LOGGER.trace(s"Capacity used for getItem on table $tableName: " +
-        s"${getItemOutcome.getGetItemResult.getConsumedCapacity}")
-    }
+    val getItemSpec = new GetItemSpec().withPrimaryKey(primaryKey)
+      .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)
+    val getItemOutcome = withCapacity(tableName, "getItem", DynamoDBCapacityType.Read)(
+      table.getItemOutcome(getItemSpec))(outcome => Option(outcome.getGetItemResult.getConsumedCapacity).toList)
 
     Option(getItemOutcome.getItem).map(_.asMap()).asJava
   }
 
+  override def getItem(
+    tableName: String,
+    key: MapStoreKey,
+    options: MapQueryOptions
+  ): Optional[java.util.Map[String, AnyRef]] = {
+    val table = dynamoDB.getTable(tableName)
+
+    val getItemOutcome = withCapacity(tableName, "getItem", DynamoDBCapacityType.Read)(
+      table.getItemOutcome(createGetItemSpec(key, options)))(
+      outcome => Option(outcome.getGetItemResult.getConsumedCapacity).toList)
+
+    // GetItem cannot filter (see createGetItemSpec)
+    Option(getItemOutcome.getItem).map(_.asMap())
+      .filter(item => matchesFilters(item, options))
+      .map(item => projectItem(item, options)).asJava
+  }
+
   override def getItems(
     tableName: String,
     key: MapStoreKey,
@@ -148,7 +312,23 @@ private[dynamodb] class DynamoDBMapStorePlugin @Inject() (
     val table = dynamoDB.getTable(tableName)
     val querySpec = createQuerySpec(key, options)
 
-    table.query(querySpec).asScala.map(_.asMap()).toList.asJava
+    val queryPages = withCapacity(tableName, "getItems", DynamoDBCapacityType.Read)(
+      table.query(querySpec).pages().asScala.toList)(
+      _.flatMap(page => Option(page.getLowLevelResult.getQueryResult.getConsumedCapacity)))
+    queryPages.flatMap(_.asScala.map(_.asMap())).asJava
+  }
+
+  override def getItemsPage(
+    tableName: String,
+    key: MapStoreKey,
+    options: MapQueryOptions
+  ): MapItemPage = {
+    val table = dynamoDB.getTable(tableName)
+    val queryPage = withCapacity(tableName, "getItemsPage", DynamoDBCapacityType.Read)(
+      table.query(createQuerySpec(key, options)).firstPage())(
+      page => Option(page.getLowLevelResult.getQueryResult.getConsumedCapacity).toList)
+
+    createItemPage(queryPage, queryPage.getLowLevelResult.getQueryResult.getLastEvaluatedKey)
   }
 
   override def putItem(
@@ -161,15 +341,48 @@ private[dynamodb] class DynamoDBMapStorePlugin @Inject() (
 
     stripKey(key, payload)
     val item = Item.fromMap(payload).withPrimaryKey(primaryKey)
-    val putItemOutcome = table.putItem(item)
-    if (LOGGER.isTraceEnabled) {
-      LOGGER.trace(s"Capacity used for putItem on table $tableName: " +
-        s"${putItemOutcome.getPutItemResult.getConsumedCapacity}")
-    }
+    val putItemSpec = new PutItemSpec().withItem(item).withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)
+    val putItemOutcome = withCapacity(tableName, "putItem", DynamoDBCapacityType.Write)(
+      table.putItem(putItemSpec))(outcome => Option(outcome.getPutItemResult.getConsumedCapacity).toList)
 
     Option(putItemOutcome.getItem).map(_.asMap()).getOrElse(item.asMap())
   }
 
+  override def streamAllItems(
+    tableName: String,
+    options: MapQueryOptions
+  ): java.util.stream.Stream[java.util.Map[String, AnyRef]] = {
+    val table = dynamoDB.getTable(tableName)
+    // A continued scan picks up where a single (sequential) scan
+    // left off, so it cannot be split into segments
+    val segmentedScan = (scanSegments > 1 || scanMaxReadCapacityPerSecond > 0L) &&
+      !options.getContinuationToken.isPresent
+    segmentedScan match {
+      case true => {
+        val segmentScanSpecs = (0 until scanSegments).map(segment =>
+          createScanSpec(options).withSegment(segment).withTotalSegments(scanSegments))
+        val rateLimiter = Option(scanMaxReadCapacityPerSecond).filter(_ > 0L)
+          .map(maxReadCapacity => RateLimiter.create(maxReadCapacity.toDouble))
+
+        new DynamoDBSegmentedScan(table, segmentScanSpecs, options.getLimit.asScala.map(_.intValue()), rateLimiter,
+          capacityUnits => capacityMetrics.recordCapacity(tableName, DynamoDBCapacityType.Read, capacityUnits),
+          scanExecutor).stream()
+      }
+      case false => createItemStream(table.scan(createScanSpec(options)))
+    }
+  }
+
+  override def streamItems(
+    tableName: String,
+    key: MapStoreKey,
+    options: MapQueryOptions
+  ): java.util.stream.Stream[java.util.Map[String, AnyRef]] = {
+    val table = dynamoDB.getTable(tableName)
+    createItemStream(table.query(createQuerySpec(key, options)))
+  }
+
+  override def supportsUpsert(): Boolean = true
+
   override def updateItem(
     tableName: String,
     key: MapStoreKey,
@@ -189,13 +402,155 @@ private[dynamodb] class DynamoDBMapStorePlugin @Inject() (
         }
       }).toArray
 
-    val updateItemOutcome = table.updateItem(primaryKey, attrUpdates: _*)
+    // UpdateItem creates missing items, and ALL_NEW returns the
+    // full item so that no follow-up read is needed
+    val updateItemSpec = new UpdateItemSpec().withPrimaryKey(primaryKey)
+      .withAttributeUpdate(attrUpdates: _*)
+      .withReturnValues(ReturnValue.ALL_NEW)
+      .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)
+    val updateItemOutcome = withCapacity(tableName, "updateItem", DynamoDBCapacityType.Write)(
+      table.updateItem(updateItemSpec))(outcome => Option(outcome.getUpdateItemResult.getConsumedCapacity).toList)
+
+    updateItemOutcome.getItem.asMap()
+  }
+
+  @tailrec
+  private def batchGet(
+    tableName: String,
+    outcome: BatchGetItemOutcome,
+    items: List[Item],
+    attempt: Int
+  ): List[Item] = {
+    val allItems = items ++ Option(outcome.getTableItems.get(tableName)).map(_.asScala).getOrElse(List.empty[Item])
+    outcome.getUnprocessedKeys.isEmpty match {
+      case true => allItems
+      case false => {
+        // DynamoDB may not process all keys (e.g. due to throttling)
+        // so retry the remainder with exponential backoff
+        throttled(tableName, DynamoDBCapacityType.Read)
+        backoff(tableName, "batchGetItems", attempt)
+        val unprocessedOutcome = withCapacity(tableName, "batchGetItems", DynamoDBCapacityType.Read)(
+          dynamoDB.batchGetItemUnprocessed(ReturnConsumedCapacity.TOTAL, outcome.getUnprocessedKeys))(
+          unprocessed => consumedCapacities(unprocessed.getBatchGetItemResult.getConsumedCapacity))
+        batchGet(tableName, unprocessedOutcome, allItems, attempt + 1)
+      }
+    }
+  }
+
+  @tailrec
+  private def batchWrite(
+    tableName: String,
+    outcome: BatchWriteItemOutcome,
+    attempt: Int
+  ): Unit = {
+    if (!outcome.getUnprocessedItems.isEmpty) {
+      // DynamoDB may not process all items (e.g. due to throttling)
+      // so retry the remainder with exponential backoff
+      throttled(tableName, DynamoDBCapacityType.Write)
+      backoff(tableName, "batchWriteItems", attempt)
+      batchWrite(tableName, writeBatch(tableName,
+        new BatchWriteItemSpec().withUnprocessedItems(outcome.getUnprocessedItems)), attempt + 1)
+    }
+  }
+
+  private def writeBatch(
+    tableName: String,
+    batchWriteItemSpec: BatchWriteItemSpec
+  ): BatchWriteItemOutcome = {
+    withCapacity(tableName, "batchWriteItems", DynamoDBCapacityType.Write)(
+      dynamoDB.batchWriteItem(batchWriteItemSpec.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)))(
+      outcome => consumedCapacities(outcome.getBatchWriteItemResult.getConsumedCapacity))
+  }
+
+  /**
+    * Makes the given request against the given table.
+    *
+    * The request is retried with backoff while DynamoDB throttles
+    * it. Once it succeeds, the capacity which it consumed is recorded
+    * and, with adaptive throttling, paid for by the table's limiter.
+    */
+  private def withCapacity[R](
+    tableName: String,
+    operation: String,
+    capacityType: DynamoDBCapacityType
+  )(request: => R)(consumedCapacity: R => List[ConsumedCapacity]): R = {
+    val result = retryThrottled(tableName, operation, capacityType, attempt = 0)(request)
+
+    val capacities = consumedCapacity(result)
     if (LOGGER.isTraceEnabled) {
-      LOGGER.trace(s"Capacity used for updateItem on table $tableName: " +
-        s"${updateItemOutcome.getUpdateItemResult.getConsumedCapacity}")
+      LOGGER.trace(s"Capacity used for $operation on table $tableName: $capacities")
+    }
+    val limiter = adaptiveLimiter(tableName, capacityType)
+    capacities.foreach(capacity => {
+      capacityMetrics.recordCapacity(Option(capacity.getTableName).getOrElse(tableName), capacityType,
+        capacity.getCapacityUnits)
+      limiter.foreach(_.acquire(capacity.getCapacityUnits))
+    })
+    limiter.foreach(_.onSuccess())
+    result
+  }
+
+  @tailrec
+  private def retryThrottled[R](
+    tableName: String,
+    operation: String,
+    capacityType: DynamoDBCapacityType,
+    attempt: Int
+  )(request: => R): R = {
+    Try(request) match {
+      case Success(result) => result
+      case Failure(_: ProvisionedThroughputExceededException) => {
+        throttled(tableName, capacityType)
+        backoff(tableName, operation, attempt)
+        retryThrottled(tableName, operation, capacityType, attempt + 1)(request)
+      }
+      case Failure(e) => throw e
+    }
+  }
+
+  private def throttled(
+    tableName: String,
+    capacityType: DynamoDBCapacityType
+  ): Unit = {
+    capacityMetrics.recordThrottle(tableName)
+    adaptiveLimiter(tableName, capacityType).foreach(_.onThrottle())
+  }
+
+  /**
+    * The client-side limiter for the given table, if adaptive
+    * throttling is enabled and the table has provisioned capacity.
+    */
+  private def adaptiveLimiter(
+    tableName: String,
+    capacityType: DynamoDBCapacityType
+  ): Option[DynamoDBAdaptiveLimiter] = {
+    adaptiveThrottling match {
+      case false => None
+      case true => adaptiveLimiters.computeIfAbsent((tableName, capacityType),
+        asJavaFunction((_: (String, DynamoDBCapacityType)) => {
+          val tableCapacity = tableCapacityConfig(tableName)
+          tableCapacity.provisionedThroughput
+            .map(_ => new DynamoDBAdaptiveLimiter(tableCapacity.capacityUnits(capacityType).toDouble))
+        }))
     }
+  }
+
+  private def consumedCapacities(capacities: java.util.List[ConsumedCapacity]): List[ConsumedCapacity] =
+    Option(capacities).map(_.asScala.toList).getOrElse(List.empty[ConsumedCapacity])
 
-    Option(updateItemOutcome.getItem).map(_.asMap())
-      .getOrElse(table.getItem(primaryKey).asMap())
+  private def backoff(
+    tableName: String,
+    operation: String,
+    attempt: Int
+  ): Unit = {
+    if (attempt >= batchMaxRetries) {
+      throw new IllegalStateException(s"Unable to complete $operation on table $tableName " +
+        s"after $batchMaxRetries retries")
+    }
+    // Wait for a random time between half and all of the exponential
+    // backoff, so that clients which were throttled together don't
+    // all retry together
+    val backoffMillis = batchRetryBackoffMillis << math.min(attempt, 10)
+    Thread.sleep(backoffMillis / 2 + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1))
   }
 }
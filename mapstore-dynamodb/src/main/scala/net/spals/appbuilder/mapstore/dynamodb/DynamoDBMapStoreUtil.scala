@@ -1,13 +1,20 @@
 package net.spals.appbuilder.mapstore.dynamodb
 
-import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec
-import com.amazonaws.services.dynamodbv2.document.{PrimaryKey, RangeKeyCondition}
-import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType
+import java.nio.charset.StandardCharsets
+import java.util.Spliterator
+import java.util.Spliterators
+import java.util.stream.{Stream, StreamSupport}
+
+import com.amazonaws.services.dynamodbv2.document.spec.{GetItemSpec, QuerySpec, ScanSpec}
+import com.amazonaws.services.dynamodbv2.document.{Item, ItemCollection, ItemUtils, PrimaryKey}
+import com.amazonaws.services.dynamodbv2.model.{AttributeValue, ReturnConsumedCapacity, ScalarAttributeType}
 import com.google.common.annotations.VisibleForTesting
+import com.google.common.io.BaseEncoding
 import net.spals.appbuilder.mapstore.core.model.MapRangeOperator.{Extended, Standard}
-import net.spals.appbuilder.mapstore.core.model.{MapQueryOptions, MapStoreKey}
+import net.spals.appbuilder.mapstore.core.model.{MapItemPage, MapQueryFilter, MapQueryOptions, MapStoreKey}
 import net.spals.appbuilder.mapstore.core.model.TwoValueMapRangeKey.TwoValueHolder
 
+import scala.collection.JavaConverters._
 import scala.compat.java8.OptionConverters._
 
 /**
@@ -33,6 +40,63 @@ private[dynamodb] object DynamoDBMapStoreUtil {
     }
   }
 
+  /**
+    * Encodes a DynamoDB LastEvaluatedKey as an opaque
+    * continuation token. No token is created if the
+    * given key is empty (i.e. there are no more pages).
+    */
+  @VisibleForTesting
+  private[dynamodb] def createContinuationToken(
+    lastEvaluatedKey: java.util.Map[String, AttributeValue]
+  ): Option[String] = {
+    Option(lastEvaluatedKey).filterNot(_.isEmpty).map(keyAttrs => {
+      val keyJson = ItemUtils.toItem(keyAttrs).toJSON
+      BaseEncoding.base64Url().encode(keyJson.getBytes(StandardCharsets.UTF_8))
+    })
+  }
+
+  /**
+    * Decodes a continuation token created by [[createContinuationToken]]
+    * into an ExclusiveStartKey.
+    */
+  @VisibleForTesting
+  private[dynamodb] def createExclusiveStartKey(continuationToken: String): PrimaryKey = {
+    val keyItem = try {
+      Item.fromJSON(new String(BaseEncoding.base64Url().decode(continuationToken), StandardCharsets.UTF_8))
+    } catch {
+      case e: RuntimeException =>
+        throw new IllegalArgumentException(s"Invalid DynamoDB continuation token: $continuationToken", e)
+    }
+
+    val primaryKey = new PrimaryKey()
+    keyItem.asMap().asScala.foreach(keyAttr => primaryKey.addComponent(keyAttr._1, keyAttr._2))
+    primaryKey
+  }
+
+  private[dynamodb] def createItemPage(
+    items: java.lang.Iterable[Item],
+    lastEvaluatedKey: java.util.Map[String, AttributeValue]
+  ): MapItemPage = {
+    val pageBuilder = new MapItemPage.Builder()
+    items.asScala.foreach(item => pageBuilder.addItems(item.asMap()))
+    createContinuationToken(lastEvaluatedKey).foreach(token => pageBuilder.setContinuationToken(token))
+    pageBuilder.build()
+  }
+
+  /**
+    * Lazily streams the items in the given collection.
+    * The DynamoDB SDK fetches each page on demand as
+    * the collection is iterated.
+    */
+  private[dynamodb] def createItemStream[R](
+    itemCollection: ItemCollection[R]
+  ): Stream[java.util.Map[String, AnyRef]] = {
+    StreamSupport.stream(Spliterators.spliteratorUnknownSize(itemCollection.iterator(), Spliterator.ORDERED), false)
+      .map[java.util.Map[String, AnyRef]](new java.util.function.Function[Item, java.util.Map[String, AnyRef]] {
+        override def apply(item: Item): java.util.Map[String, AnyRef] = item.asMap()
+      })
+  }
+
   @VisibleForTesting
   private[dynamodb] def createPrimaryKey(key: MapStoreKey): PrimaryKey = {
     key.getRangeField.asScala
@@ -40,38 +104,215 @@ private[dynamodb] object DynamoDBMapStoreUtil {
       .getOrElse(new PrimaryKey(key.getHashField, key.getHashValue))
   }
 
+  /**
+    * The key values of the given key, in the form in which
+    * DynamoDB reads them back (i.e. numbers as BigDecimals).
+    * These can be matched against [[createKeyValues(MapStoreKey, Item)]].
+    */
   @VisibleForTesting
-  private[dynamodb] def createQuerySpec(
+  private[dynamodb] def createKeyValues(key: MapStoreKey): List[AnyRef] = {
+    (key.getHashValue :: key.getRangeField.asScala.map(_ => key.getRangeKey.getValue.asInstanceOf[AnyRef]).toList)
+      .map(createKeyValue)
+  }
+
+  /**
+    * The values of the given key's fields in the given item.
+    */
+  @VisibleForTesting
+  private[dynamodb] def createKeyValues(key: MapStoreKey, item: Item): List[AnyRef] = {
+    (key.getHashField :: key.getRangeField.asScala.toList).map(field => createKeyValue(item.get(field)))
+  }
+
+  private def createKeyValue(value: AnyRef): AnyRef = {
+    value match {
+      // Strip the scale, so that e.g. 1, 1L and 1.0 all match
+      case number: java.lang.Number => new java.math.BigDecimal(number.toString).stripTrailingZeros()
+      case _ => value
+    }
+  }
+
+  /**
+    * Creates a GetItemSpec for the given key.
+    *
+    * GetItem has no FilterExpression, so filters are evaluated
+    * after the item is read. Any filtered fields are added to
+    * the projection for that purpose, and must be projected
+    * out of the item again along with the filter.
+    */
+  @VisibleForTesting
+  private[dynamodb] def createGetItemSpec(
     key: MapStoreKey,
     options: MapQueryOptions
-  ): QuerySpec = {
-    val querySpec = new QuerySpec().withHashKey(key.getHashField, key.getHashValue)
-    createRangeKeyCondition(key).foreach(rangeKeyCondition => querySpec.withRangeKeyCondition(rangeKeyCondition))
+  ): GetItemSpec = {
+    val getItemSpec = new GetItemSpec().withPrimaryKey(createPrimaryKey(key))
+      .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)
+    val filterFields = options.getFilters.asScala.map(_.getField)
+    val getItemOptions = (options.getProjection.isEmpty || filterFields.isEmpty) match {
+      case true => options
+      case false => new MapQueryOptions.Builder().mergeFrom(options).addAllProjection(filterFields.asJava).build()
+    }
 
-    querySpec.withScanIndexForward(options.getOrder == MapQueryOptions.Order.ASC)
-    options.getLimit.asScala.foreach(limit => querySpec.withMaxResultSize(limit))
-    querySpec
+    createProjection(getItemOptions).foreach(projection =>
+      getItemSpec.withProjectionExpression(projection.expression).withNameMap(projection.nameMap.asJava))
+    getItemSpec
   }
 
+  /**
+    * Creates a FilterExpression from the filters in the given
+    * options. Filters are ANDed together and every field and
+    * value is referenced by a placeholder.
+    *
+    * NOTE: DynamoDB applies filters after it reads a page, so
+    * a page may hold fewer items than the page size (or none
+    * at all) and still have a continuation token.
+    */
   @VisibleForTesting
-  private[dynamodb] def createRangeKeyCondition(key: MapStoreKey): Option[RangeKeyCondition] = {
-    key.getRangeField.asScala.flatMap(rangeField => {
-      val rangeKeyCondition = new RangeKeyCondition(rangeField)
+  private[dynamodb] def createFilterExpression(
+    options: MapQueryOptions
+  ): Option[DynamoDBExpression] = {
+    Option(options.getFilters.asScala.toList).filterNot(_.isEmpty).map(filters => {
+      val filterExpressions = filters.zipWithIndex.map(filterWithIndex => {
+        val (filter, index) = filterWithIndex
+        val name = s"#f$index"
+        val value = s":f$index"
+        val nameMap = Map(name -> filter.getField)
+
+        filter.getOperator match {
+          case MapQueryFilter.Operator.BEGINS_WITH =>
+            DynamoDBExpression(s"begins_with($name, $value)", nameMap, Map(value -> filter.getValue))
+          case MapQueryFilter.Operator.EQUAL_TO =>
+            DynamoDBExpression(s"$name = $value", nameMap, Map(value -> filter.getValue))
+          case MapQueryFilter.Operator.EXISTS =>
+            DynamoDBExpression(s"attribute_exists($name)", nameMap, Map.empty)
+          case MapQueryFilter.Operator.GREATER_THAN =>
+            DynamoDBExpression(s"$name > $value", nameMap, Map(value -> filter.getValue))
+          case MapQueryFilter.Operator.IN =>
+            val valueMap = filter.getValues.asScala.zipWithIndex
+              .map(valueWithIndex => (s"${value}_${valueWithIndex._2}", valueWithIndex._1)).toMap
+            DynamoDBExpression(s"$name IN (${valueMap.keys.toList.sorted.mkString(", ")})", nameMap, valueMap)
+          case MapQueryFilter.Operator.LESS_THAN =>
+            DynamoDBExpression(s"$name < $value", nameMap, Map(value -> filter.getValue))
+          case MapQueryFilter.Operator.NOT_EQUAL_TO =>
+            DynamoDBExpression(s"$name <> $value", nameMap, Map(value -> filter.getValue))
+        }
+      })
+
+      DynamoDBExpression(filterExpressions.map(_.expression).mkString(" AND "),
+        filterExpressions.flatMap(_.nameMap).toMap, filterExpressions.flatMap(_.valueMap).toMap)
+    })
+  }
+
+  /**
+    * Creates a KeyConditionExpression from the given key.
+    *
+    * Queries use key condition expressions rather than (legacy)
+    * key conditions because DynamoDB won't mix legacy parameters
+    * with the projection and filter expressions of a query.
+    */
+  @VisibleForTesting
+  private[dynamodb] def createKeyConditionExpression(key: MapStoreKey): DynamoDBExpression = {
+    val hashCondition = DynamoDBExpression("#k0 = :k0", Map("#k0" -> key.getHashField),
+      Map(":k0" -> key.getHashValue))
+
+    val rangeCondition = key.getRangeField.asScala.flatMap(rangeField => {
+      val nameMap = Map("#k1" -> rangeField)
       (key.getRangeKey.getOperator, key.getRangeKey.getValue) match {
-        case (Standard.ALL, _) => Option.empty[RangeKeyCondition]
-        case (Standard.NONE, _) => Option.empty[RangeKeyCondition]
+        case (Standard.ALL, _) => Option.empty[DynamoDBExpression]
+        case (Standard.NONE, _) => Option.empty[DynamoDBExpression]
         case (Standard.BETWEEN, rValue) =>
-          Option(rangeKeyCondition.between(rValue.asInstanceOf[TwoValueHolder[_]].getValue1,
-            rValue.asInstanceOf[TwoValueHolder[_]].getValue2))
-        case (Standard.EQUAL_TO, rValue) => Option(rangeKeyCondition.eq(rValue))
-        case (Standard.GREATER_THAN, rValue) => Option(rangeKeyCondition.gt(rValue))
-        case (Standard.GREATER_THAN_OR_EQUAL_TO, rValue) => Option(rangeKeyCondition.ge(rValue))
-        case (Standard.LESS_THAN, rValue) => Option(rangeKeyCondition.lt(rValue))
-        case (Standard.LESS_THAN_OR_EQUAL_TO, rValue) => Option(rangeKeyCondition.le(rValue))
-        case (Extended.STARTS_WITH, rValue) => Option(rangeKeyCondition.beginsWith(rValue.asInstanceOf[String]))
+          Option(DynamoDBExpression("#k1 BETWEEN :k1 AND :k2", nameMap,
+            Map(":k1" -> rValue.asInstanceOf[TwoValueHolder[_]].getValue1.asInstanceOf[AnyRef],
+              ":k2" -> rValue.asInstanceOf[TwoValueHolder[_]].getValue2.asInstanceOf[AnyRef])))
+        case (Standard.EQUAL_TO, rValue) => Option(DynamoDBExpression("#k1 = :k1", nameMap, Map(":k1" -> rValue)))
+        case (Standard.GREATER_THAN, rValue) => Option(DynamoDBExpression("#k1 > :k1", nameMap, Map(":k1" -> rValue)))
+        case (Standard.GREATER_THAN_OR_EQUAL_TO, rValue) =>
+          Option(DynamoDBExpression("#k1 >= :k1", nameMap, Map(":k1" -> rValue)))
+        case (Standard.LESS_THAN, rValue) => Option(DynamoDBExpression("#k1 < :k1", nameMap, Map(":k1" -> rValue)))
+        case (Standard.LESS_THAN_OR_EQUAL_TO, rValue) =>
+          Option(DynamoDBExpression("#k1 <= :k1", nameMap, Map(":k1" -> rValue)))
+        case (Extended.STARTS_WITH, rValue) =>
+          Option(DynamoDBExpression("begins_with(#k1, :k1)", nameMap, Map(":k1" -> rValue)))
         case (operator, _) =>
           throw new IllegalArgumentException(s"DynamoDB cannot support the operator $operator")
       }
     })
+
+    rangeCondition.map(condition => DynamoDBExpression(s"${hashCondition.expression} AND ${condition.expression}",
+      hashCondition.nameMap ++ condition.nameMap, hashCondition.valueMap ++ condition.valueMap))
+      .getOrElse(hashCondition)
+  }
+
+  /**
+    * Creates a ProjectionExpression from the projection in the
+    * given options. Every field is referenced by a placeholder
+    * so that reserved words and special characters are safe to use.
+    */
+  @VisibleForTesting
+  private[dynamodb] def createProjection(
+    options: MapQueryOptions
+  ): Option[DynamoDBExpression] = {
+    Option(options.getProjection).filterNot(_.isEmpty).map(projection => {
+      val nameMap = projection.asScala.zipWithIndex.map(field => (s"#p${field._2}", field._1)).toMap
+      DynamoDBExpression(nameMap.keys.toList.sorted.mkString(","), nameMap, Map.empty)
+    })
+  }
+
+  @VisibleForTesting
+  private[dynamodb] def createQuerySpec(
+    key: MapStoreKey,
+    options: MapQueryOptions
+  ): QuerySpec = {
+    val querySpec = new QuerySpec().withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)
+    val keyConditionExpression = createKeyConditionExpression(key)
+    val filterExpression = createFilterExpression(options)
+    val projection = createProjection(options)
+
+    querySpec.withKeyConditionExpression(keyConditionExpression.expression)
+    filterExpression.foreach(filter => querySpec.withFilterExpression(filter.expression))
+    projection.foreach(projection => querySpec.withProjectionExpression(projection.expression))
+    val expressions = keyConditionExpression :: filterExpression.toList ++ projection.toList
+    querySpec.withNameMap(expressions.flatMap(_.nameMap).toMap.asJava)
+    querySpec.withValueMap(expressions.flatMap(_.valueMap).toMap.asJava)
+
+    querySpec.withScanIndexForward(options.getOrder == MapQueryOptions.Order.ASC)
+    options.getLimit.asScala.foreach(limit => querySpec.withMaxResultSize(limit))
+    options.getPageSize.asScala.foreach(pageSize => querySpec.withMaxPageSize(pageSize))
+    options.getContinuationToken.asScala
+      .foreach(token => querySpec.withExclusiveStartKey(createExclusiveStartKey(token)))
+    querySpec
+  }
+
+  @VisibleForTesting
+  private[dynamodb] def createScanSpec(options: MapQueryOptions): ScanSpec = {
+    val scanSpec = new ScanSpec().withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)
+    val filterExpression = createFilterExpression(options)
+    val projection = createProjection(options)
+
+    options.getLimit.asScala.foreach(limit => scanSpec.withMaxResultSize(limit))
+    options.getPageSize.asScala.foreach(pageSize => scanSpec.withMaxPageSize(pageSize))
+    options.getContinuationToken.asScala
+      .foreach(token => scanSpec.withExclusiveStartKey(createExclusiveStartKey(token)))
+    filterExpression.foreach(filter => scanSpec.withFilterExpression(filter.expression))
+    projection.foreach(projection => scanSpec.withProjectionExpression(projection.expression))
+
+    // DynamoDB rejects empty name and value maps
+    val expressions = filterExpression.toList ++ projection.toList
+    Option(expressions.flatMap(_.nameMap).toMap).filterNot(_.isEmpty)
+      .foreach(nameMap => scanSpec.withNameMap(nameMap.asJava))
+    Option(expressions.flatMap(_.valueMap).toMap).filterNot(_.isEmpty)
+      .foreach(valueMap => scanSpec.withValueMap(valueMap.asJava))
+    scanSpec
   }
 }
+
+/**
+  * A DynamoDB expression along with the attribute name
+  * and value placeholders which it references.
+  *
+  * @author tkral
+  */
+private[dynamodb] case class DynamoDBExpression(
+  expression: String,
+  nameMap: Map[String, String],
+  valueMap: Map[String, AnyRef]
+)
@@ -0,0 +1,133 @@
+package net.spals.appbuilder.mapstore.dynamodb
+
+import java.util.concurrent.{ExecutorService, Future, LinkedBlockingQueue, TimeUnit}
+import java.util.stream.{Stream, StreamSupport}
+import java.util.{NoSuchElementException, Spliterator, Spliterators}
+
+import com.amazonaws.services.dynamodbv2.document.Table
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec
+import com.google.common.util.concurrent.RateLimiter
+import net.spals.appbuilder.mapstore.dynamodb.DynamoDBSegmentedScan._
+
+import scala.collection.JavaConverters._
+
+/**
+  * A parallel scan of a DynamoDB table.
+  *
+  * The table is split into segments (see DynamoDB's Segment
+  * and TotalSegments) which are each scanned by their own
+  * worker. Workers hand their items over to the scan's stream
+  * through a bounded queue, so a slow consumer slows down the
+  * scan rather than buffering the table in memory.
+  *
+  * The read capacity consumed by each page is reported to the
+  * given callback and, optionally, charged against a rate
+  * limit, so that a full table scan doesn't starve the table's
+  * other reads.
+  *
+  * NOTE: A stream which is not read to the end must be closed,
+  * otherwise its workers keep scanning.
+  *
+  * @author tkral
+  */
+private[dynamodb] class DynamoDBSegmentedScan(
+  table: Table,
+  segmentScanSpecs: Seq[ScanSpec],
+  limit: Option[Int],
+  rateLimiter: Option[RateLimiter],
+  consumedCapacity: Double => Unit,
+  executorService: ExecutorService
+) {
+
+  private val queue = new LinkedBlockingQueue[ScanElement](segmentScanSpecs.size * QUEUE_CAPACITY_PER_SEGMENT)
+  @volatile private var closed = false
+  private var workers = List.empty[Future[_]]
+
+  def stream(): Stream[java.util.Map[String, AnyRef]] = {
+    workers = segmentScanSpecs.toList.map(scanSpec => executorService.submit(new Runnable {
+      override def run(): Unit = scanSegment(scanSpec)
+    }))
+
+    StreamSupport.stream(Spliterators.spliteratorUnknownSize(new ScanIterator, Spliterator.NONNULL), false)
+      .onClose(new Runnable {
+        override def run(): Unit = close()
+      })
+  }
+
+  private def close(): Unit = {
+    closed = true
+    workers.foreach(_.cancel(true))
+    queue.clear()
+  }
+
+  /**
+    * Puts the given element on the queue, unless the scan is
+    * closed before there is room for it.
+    */
+  private def handOver(element: ScanElement): Unit = {
+    while (!closed && !queue.offer(element, HAND_OVER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {}
+  }
+
+  private def scanSegment(scanSpec: ScanSpec): Unit = {
+    try {
+      table.scan(scanSpec).pages().iterator().asScala.takeWhile(_ => !closed).foreach(page => {
+        page.asScala.foreach(item => handOver(ScanItem(item.asMap())))
+        Option(page.getLowLevelResult.getScanResult.getConsumedCapacity).foreach(capacity => {
+          consumedCapacity(capacity.getCapacityUnits)
+          // Pay for each page before reading the next one
+          rateLimiter.foreach(_.acquire(math.max(math.ceil(capacity.getCapacityUnits).toInt, 1)))
+        })
+      })
+      handOver(SegmentDone)
+    } catch {
+      case _: InterruptedException => // The scan was closed
+      case e: RuntimeException => handOver(ScanFailure(e))
+    }
+  }
+
+  private class ScanIterator extends java.util.Iterator[java.util.Map[String, AnyRef]] {
+    private var remainingSegments = segmentScanSpecs.size
+    private var remainingItems = limit.getOrElse(Int.MaxValue)
+    private var nextItem = Option.empty[java.util.Map[String, AnyRef]]
+
+    override def hasNext: Boolean = {
+      advance()
+      nextItem.isDefined
+    }
+
+    override def next(): java.util.Map[String, AnyRef] = {
+      advance()
+      val item = nextItem.getOrElse(throw new NoSuchElementException)
+      nextItem = None
+      remainingItems -= 1
+      item
+    }
+
+    private def advance(): Unit = {
+      while (nextItem.isEmpty && remainingSegments > 0 && remainingItems > 0 && !closed) {
+        queue.take() match {
+          case ScanItem(item) => nextItem = Option(item)
+          case SegmentDone => remainingSegments -= 1
+          case ScanFailure(cause) => {
+            close()
+            throw cause
+          }
+        }
+      }
+      // Stop any remaining workers as soon as the scan is complete
+      if (nextItem.isEmpty && !closed) {
+        close()
+      }
+    }
+  }
+}
+
+private[dynamodb] object DynamoDBSegmentedScan {
+  private val HAND_OVER_TIMEOUT_MS = 100L
+  private val QUEUE_CAPACITY_PER_SEGMENT = 1000
+
+  private sealed trait ScanElement
+  private case class ScanItem(item: java.util.Map[String, AnyRef]) extends ScanElement
+  private case class ScanFailure(cause: RuntimeException) extends ScanElement
+  private case object SegmentDone extends ScanElement
+}
@@ -0,0 +1,112 @@
+package net.spals.appbuilder.mapstore.dynamodb
+
+import com.amazonaws.services.dynamodbv2.model.{BillingMode, ProvisionedThroughput}
+import com.google.inject.Inject
+import com.typesafe.config.{Config, ConfigException, ConfigUtil}
+import net.spals.appbuilder.annotations.config.ServiceConfig
+
+import scala.util.Try
+
+/**
+  * The capacity with which a DynamoDB table
+  * (and its indexes) is created.
+  *
+  * @author tkral
+  */
+private[dynamodb] case class DynamoDBTableCapacity(
+  billingMode: BillingMode,
+  readCapacityUnits: Long,
+  writeCapacityUnits: Long
+) {
+
+  /**
+    * The throughput to provision for the table,
+    * or None if the table is billed per request.
+    */
+  def provisionedThroughput: Option[ProvisionedThroughput] = billingMode match {
+    case BillingMode.PROVISIONED => Option(new ProvisionedThroughput(readCapacityUnits, writeCapacityUnits))
+    case _ => None
+  }
+
+  def capacityUnits(capacityType: DynamoDBCapacityType): Long = capacityType match {
+    case DynamoDBCapacityType.Read => readCapacityUnits
+    case DynamoDBCapacityType.Write => writeCapacityUnits
+  }
+}
+
+/**
+  * Reads [[DynamoDBTableCapacity]]s from the service configuration.
+  *
+  * Defaults apply to all tables and can be overridden per table:
+  *
+  * <pre>
+  * mapStore.dynamoDB.capacity.billingMode = PROVISIONED
+  * mapStore.dynamoDB.capacity.readCapacityUnits = 1
+  * mapStore.dynamoDB.capacity.writeCapacityUnits = 1
+  * mapStore.dynamoDB.capacity.tables.myTable.billingMode = PAY_PER_REQUEST
+  * </pre>
+  *
+  * @author tkral
+  */
+private[dynamodb] class DynamoDBTableCapacityConfig @Inject() (
+  @ServiceConfig serviceConfig: Config
+) {
+  import DynamoDBTableCapacityConfig._
+
+  private val capacityConfig = Option(serviceConfig).filter(_.hasPath(CAPACITY_CONFIG_PATH))
+    .map(_.getConfig(CAPACITY_CONFIG_PATH))
+
+  def apply(tableName: String): DynamoDBTableCapacity = {
+    val tableConfigPath = s"tables.${ConfigUtil.quoteString(tableName)}"
+    val tableConfigs = capacityConfig.toList.flatMap(config =>
+      Option(config).filter(_.hasPath(tableConfigPath)).map(_.getConfig(tableConfigPath)).toList :+ config)
+
+    val billingMode = configValue(tableConfigs, "billingMode", _.getString(_)).map(billingModeName =>
+      Try(BillingMode.fromValue(billingModeName.toUpperCase)).getOrElse(
+        throw new ConfigException.BadValue(s"$CAPACITY_CONFIG_PATH.billingMode",
+          s"No DynamoDB billing mode found for : $billingModeName")))
+    DynamoDBTableCapacity(billingMode.getOrElse(BillingMode.PROVISIONED),
+      capacityUnits(tableConfigs, "readCapacityUnits"), capacityUnits(tableConfigs, "writeCapacityUnits"))
+  }
+
+  private def capacityUnits(
+    tableConfigs: List[Config],
+    capacityUnitsPath: String
+  ): Long = {
+    val capacityUnits = configValue(tableConfigs, capacityUnitsPath, _.getLong(_))
+      .getOrElse(DEFAULT_CAPACITY_UNITS)
+    if (capacityUnits < 1L) {
+      throw new ConfigException.BadValue(s"$CAPACITY_CONFIG_PATH.$capacityUnitsPath",
+        s"DynamoDB capacity units must be positive : $capacityUnits")
+    }
+    capacityUnits
+  }
+
+  /**
+    * The value at the given path in the first of
+    * the given configs which has one.
+    */
+  private def configValue[T](
+    tableConfigs: List[Config],
+    path: String,
+    getValue: (Config, String) => T
+  ): Option[T] = tableConfigs.find(_.hasPath(path)).map(config => getValue(config, path))
+}
+
+private[dynamodb] object DynamoDBTableCapacityConfig {
+  private val CAPACITY_CONFIG_PATH = "mapStore.dynamoDB.capacity"
+  private val DEFAULT_CAPACITY_UNITS = 1L
+}
+
+/**
+  * The kinds of capacity which DynamoDB
+  * requests consume.
+  *
+  * @author tkral
+  */
+private[dynamodb] sealed trait DynamoDBCapacityType
+
+private[dynamodb] object DynamoDBCapacityType {
+  case object Read extends DynamoDBCapacityType
+  case object Write extends DynamoDBCapacityType
+}
@@ -1,14 +1,17 @@
 package net.spals.appbuilder.mapstore.mongodb
 
 import java.util.Optional
+import java.util.stream.Collectors
 
 import io.opentracing.mock.{MockSpan, MockTracer}
-import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.defaultOptions
+import net.spals.appbuilder.mapstore.core.MapStorePluginBatchContract.assertBatchItems
+import net.spals.appbuilder.mapstore.core.model.MapAggregate.{max, min, sum}
+import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.{Order, defaultOptions}
 import net.spals.appbuilder.mapstore.core.model.MultiValueMapRangeKey.in
 import net.spals.appbuilder.mapstore.core.model.SingleValueMapRangeKey.{equalTo => range_equalTo, greaterThan => range_greaterThan, greaterThanOrEqualTo => range_greaterThanOrEqualTo, lessThan => range_lessThan, lessThanOrEqualTo => range_lessThanOrEqualTo}
 import net.spals.appbuilder.mapstore.core.model.TwoValueMapRangeKey.between
 import net.spals.appbuilder.mapstore.core.model.ZeroValueMapRangeKey.all
-import net.spals.appbuilder.mapstore.core.model.{MapStoreKey, MapStoreTableKey}
+import net.spals.appbuilder.mapstore.core.model.{MapQueryOptions, MapStoreKey, MapStoreTableKey}
 import net.spals.appbuilder.mapstore.mongodb.MongoDBSpanMatcher.mongoDBSpan
 import org.bson.Document
 import org.hamcrest.MatcherAssert.assertThat
@@ -74,6 +77,26 @@ class MongoDBMapStorePluginIT {
     assertThat(mapStorePlugin.createTable(hashTableName, hashTableKey), is(true))
   }
 
+  @DataProvider def primaryIndexProvider(): Array[Array[AnyRef]] = {
+    Array(
+      Array(hashTableName, new Document("myHashField", Int.box(1))),
+      Array(rangeTableName, new Document("myHashField", Int.box(1)).append("myRangeField", Int.box(1)))
+    )
+  }
+
+  @Test(dataProvider = "primaryIndexProvider")
+  def testCreateTablePrimaryIndex(
+    tableName: String,
+    expectedIndexKey: Document
+  ) {
+    val indexes = mongoDatabase.getCollection(tableName).listIndexes()
+      .into(new java.util.ArrayList[Document]()).asScala
+    val primaryIndex = indexes.find(index => "primary".equals(index.getString("name")))
+
+    assertThat(primaryIndex.map(_.get("key", classOf[Document])), is(Option(expectedIndexKey)))
+    assertThat(primaryIndex.map(_.getBoolean("unique")), is(Option(java.lang.Boolean.TRUE)))
+  }
+
   @DataProvider def emptyGetProvider(): Array[Array[AnyRef]] = {
     Array(
       // Case: Hash-only key
@@ -157,7 +180,7 @@ class MongoDBMapStorePluginIT {
     assertThat(mapStorePlugin.getItem(tableName, storeKey).asInstanceOf[Optional[Document]],
       is(Optional.of(expectedResult)))
     assertThat(mongoDBTracer.finishedSpans(),
-      contains[MockSpan](mongoDBSpan("insert"), mongoDBSpan("find")))
+      contains[MockSpan](mongoDBSpan("update"), mongoDBSpan("find")))
   }
 
   @DataProvider def updateItemProvider(): Array[Array[AnyRef]] = {
@@ -249,6 +272,95 @@ class MongoDBMapStorePluginIT {
     assertThat(mongoDBTracer.finishedSpans(), contains[MockSpan](mongoDBSpan("find")))
   }
 
+  @Test(
+    groups = Array("MongoDBMapStorePluginIT.get"),
+    dependsOnGroups = Array("MongoDBMapStorePluginIT.put", "MongoDBMapStorePluginIT.update")
+  )
+  def testGetItemsPage() {
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+      .setRange("myRangeField", all()).build
+    val options = new MapQueryOptions.Builder().setPageSize(2).build
+
+    val page1 = mapStorePlugin.getItemsPage(rangeTableName, storeKey, options)
+    assertThat(page1.getItems.asInstanceOf[java.util.List[Document]], contains[Document](result(1), result(2)))
+
+    val page2 = mapStorePlugin.getItemsPage(rangeTableName, storeKey,
+      new MapQueryOptions.Builder().mergeFrom(options).setContinuationToken(page1.getContinuationToken).build)
+    assertThat(page2.getItems.asInstanceOf[java.util.List[Document]], contains[Document](result(3), result(4)))
+  }
+
+  @Test(
+    groups = Array("MongoDBMapStorePluginIT.get"),
+    dependsOnGroups = Array("MongoDBMapStorePluginIT.put", "MongoDBMapStorePluginIT.update")
+  )
+  def testGetItemsPageDescending() {
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+      .setRange("myRangeField", all()).build
+    val options = new MapQueryOptions.Builder().setOrder(Order.DESC).setPageSize(3).build
+
+    val page1 = mapStorePlugin.getItemsPage(rangeTableName, storeKey, options)
+    assertThat(page1.getItems.asInstanceOf[java.util.List[Document]],
+      contains[Document](result(4), result(3), result(2)))
+
+    val page2 = mapStorePlugin.getItemsPage(rangeTableName, storeKey,
+      new MapQueryOptions.Builder().mergeFrom(options).setContinuationToken(page1.getContinuationToken).build)
+    assertThat(page2.getItems.asInstanceOf[java.util.List[Document]], contains[Document](result(1)))
+    assertThat(page2.getContinuationToken, is(Optional.empty[String]()))
+  }
+
+  @Test(
+    groups = Array("MongoDBMapStorePluginIT.get"),
+    dependsOnGroups = Array("MongoDBMapStorePluginIT.put", "MongoDBMapStorePluginIT.update")
+  )
+  def testGetAllItemsPage() {
+    val options = new MapQueryOptions.Builder().setPageSize(3).build
+
+    val page1 = mapStorePlugin.getAllItemsPage(rangeTableName, options)
+    assertThat(page1.getItems.asInstanceOf[java.util.List[Document]],
+      contains[Document](result(1), result(2), result(3)))
+
+    val page2 = mapStorePlugin.getAllItemsPage(rangeTableName,
+      new MapQueryOptions.Builder().mergeFrom(options).setContinuationToken(page1.getContinuationToken).build)
+    assertThat(page2.getItems.asInstanceOf[java.util.List[Document]], contains[Document](result(4)))
+    assertThat(page2.getContinuationToken, is(Optional.empty[String]()))
+  }
+
+  @Test(expectedExceptions = Array(classOf[IllegalArgumentException]))
+  def testGetItemsPageInvalidToken() {
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+      .setRange("myRangeField", all()).build
+    val options = new MapQueryOptions.Builder().setContinuationToken("2").build
+
+    mapStorePlugin.getItemsPage(rangeTableName, storeKey, options)
+  }
+
+  @Test(
+    dataProvider = "getItemsProvider",
+    groups = Array("MongoDBMapStorePluginIT.get"),
+    dependsOnGroups = Array("MongoDBMapStorePluginIT.put", "MongoDBMapStorePluginIT.update")
+  )
+  def testStreamItems(
+    storeKey: MapStoreKey,
+    expectedResults: List[Document]
+  ) {
+    val options = new MapQueryOptions.Builder().setPageSize(1).build
+    assertThat(mapStorePlugin.streamItems(rangeTableName, storeKey, options).collect(Collectors.toList())
+      .asInstanceOf[java.util.List[Document]], contains[Document](expectedResults: _*))
+  }
+
+  @Test(
+    dataProvider = "getItemsProvider",
+    groups = Array("MongoDBMapStorePluginIT.get"),
+    dependsOnGroups = Array("MongoDBMapStorePluginIT.put", "MongoDBMapStorePluginIT.update")
+  )
+  def testCountItems(
+    storeKey: MapStoreKey,
+    expectedResults: List[Document]
+  ) {
+    assertThat(mapStorePlugin.countItems(rangeTableName, storeKey, defaultOptions()), is(expectedResults.size.toLong))
+    assertThat(mongoDBTracer.finishedSpans(), contains[MockSpan](mongoDBSpan("count")))
+  }
+
   @Test(
     groups = Array("MongoDBMapStorePluginIT.delete"),
     dependsOnGroups = Array("MongoDBMapStorePluginIT.get")
@@ -264,6 +376,71 @@ class MongoDBMapStorePluginIT {
     assertThat(mongoDBTracer.finishedSpans(), contains[MockSpan](mongoDBSpan("delete"), mongoDBSpan("find")))
   }
 
+  @Test(
+    groups = Array("MongoDBMapStorePluginIT.batch"),
+    dependsOnGroups = Array("MongoDBMapStorePluginIT.delete")
+  )
+  def testBatchItems() {
+    assertBatchItems(mapStorePlugin, hashTableName, "myHashField", 100)
+  }
+
+  @Test(
+    groups = Array("MongoDBMapStorePluginIT.batch"),
+    dependsOnGroups = Array("MongoDBMapStorePluginIT.delete")
+  )
+  def testPutItemIdempotent() {
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myHashValue")
+      .setRange("myRangeField", range_equalTo[String]("myRangeValue5")).build
+    mapStorePlugin.putItem(rangeTableName, storeKey, Map[String, AnyRef]("key" -> "value1").asJava)
+    mapStorePlugin.putItem(rangeTableName, storeKey, Map[String, AnyRef]("key" -> "value2").asJava)
+
+    val filter = mapStorePlugin.createFilter(storeKey)
+    assertThat(mongoDatabase.getCollection(rangeTableName).count(filter), is(1L))
+    assertThat(mapStorePlugin.getItem(rangeTableName, storeKey).get().get("key"), is[AnyRef]("value2"))
+
+    mapStorePlugin.deleteItem(rangeTableName, storeKey)
+  }
+
+  @Test(
+    groups = Array("MongoDBMapStorePluginIT.batch"),
+    dependsOnGroups = Array("MongoDBMapStorePluginIT.delete")
+  )
+  def testPutHashItemIdempotent() {
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myIdempotentHashValue").build
+    mapStorePlugin.putItem(hashTableName, storeKey, Map[String, AnyRef]("key" -> "value1").asJava)
+    mapStorePlugin.putItem(hashTableName, storeKey, Map[String, AnyRef]("key" -> "value2").asJava)
+
+    val filter = mapStorePlugin.createFilter(storeKey)
+    assertThat(mongoDatabase.getCollection(hashTableName).count(filter), is(1L))
+    assertThat(mapStorePlugin.getItem(hashTableName, storeKey).get().get("key"), is[AnyRef]("value2"))
+
+    mapStorePlugin.deleteItem(hashTableName, storeKey)
+  }
+
+  @Test(
+    groups = Array("MongoDBMapStorePluginIT.batch"),
+    dependsOnGroups = Array("MongoDBMapStorePluginIT.delete")
+  )
+  def testAggregateItems() {
+    val storeKeys = (1 to 3).map(i => new MapStoreKey.Builder().setHash("myHashField", "myAggregateHashValue")
+      .setRange("myRangeField", range_equalTo[String](s"myRangeValue$i")).build).toList
+    storeKeys.zipWithIndex.foreach(keyWithIndex => mapStorePlugin.putItem(rangeTableName, keyWithIndex._1,
+      Map[String, AnyRef]("size" -> Int.box(keyWithIndex._2 + 1)).asJava))
+    val storeKey = new MapStoreKey.Builder().setHash("myHashField", "myAggregateHashValue")
+      .setRange("myRangeField", all()).build
+
+    assertThat(mapStorePlugin.aggregateItems(rangeTableName, storeKey, sum("size"), defaultOptions()),
+      is(Optional.of(new java.math.BigDecimal(6))))
+    assertThat(mapStorePlugin.aggregateItems(rangeTableName, storeKey, max("size"), defaultOptions()),
+      is(Optional.of(new java.math.BigDecimal(3))))
+    assertThat(mapStorePlugin.aggregateItems(rangeTableName, storeKey, min("size"), defaultOptions()),
+      is(Optional.of(new java.math.BigDecimal(1))))
+    assertThat(mapStorePlugin.aggregateItems(rangeTableName, storeKey, sum("missing"), defaultOptions()),
+      is(Optional.empty[java.math.BigDecimal]()))
+
+    mapStorePlugin.batchDeleteItems(rangeTableName, storeKeys.asJava)
+  }
+
   private def result(i: Int): Document = {
     new Document(Map("myHashField" -> "myHashValue",
       "myRangeField" -> s"myRangeValue$i", "key" -> "value").toMap[String, AnyRef].asJava)
@@ -12,6 +12,8 @@ import net.spals.appbuilder.annotations.service.AutoBindInMap
 import net.spals.appbuilder.mapstore.core.model.{MapQueryOptions, MapStoreIndexName, MapStoreKey, MapStoreTableKey}
 import net.spals.appbuilder.mapstore.core.{MapStore, MapStoreIndexPlugin}
 
+import scala.compat.java8.OptionConverters._
+
 /**
   * Implementation of [[MapStoreIndexPlugin]] which
   * uses MongoDB.
@@ -43,12 +45,16 @@ private[mongodb] class MongoDBMapStoreIndexPlugin @Inject()(
     indexName: MapStoreIndexName,
     indexKey: MapStoreTableKey
   ): Boolean = {
-    // From MongoDB: Currently only single field hashed index supported.
-    val hashIndex = Indexes.hashed(indexKey.getHashField)
+    val index = indexKey.getRangeField.asScala match {
+      // From MongoDB: Currently only single field hashed index supported.
+      case None => Indexes.hashed(indexKey.getHashField)
+      // Range queries and range ordering need an ordered index
+      case Some(rangeField) => Indexes.ascending(indexKey.getHashField, rangeField)
+    }
 
     val collection = mongoDatabase.getCollection(indexName.getTableName)
     val indexOptions = new IndexOptions().name(indexName.getIndexName)
-    indexName.getIndexName.equals(collection.createIndex(hashIndex, indexOptions))
+    indexName.getIndexName.equals(collection.createIndex(index, indexOptions))
   }
 
 
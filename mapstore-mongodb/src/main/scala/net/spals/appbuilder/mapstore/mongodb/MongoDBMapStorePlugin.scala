@@ -1,13 +1,17 @@
 package net.spals.appbuilder.mapstore.mongodb
 
-import java.io.Closeable
-import java.util.Optional
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.ConcurrentHashMap
+import java.util.regex.Pattern
+import java.util.stream.{Stream, StreamSupport}
+import java.util.{Optional, Spliterator, Spliterators}
 import javax.annotation.PreDestroy
 
 import com.google.common.annotations.VisibleForTesting
+import com.google.common.io.BaseEncoding
 import com.google.inject.Inject
 import com.mongodb.MongoClient
-import com.mongodb.client.MongoDatabase
+import com.mongodb.client.{FindIterable, MongoCollection, MongoDatabase}
 import com.mongodb.client.model._
 import net.spals.appbuilder.annotations.service.AutoBindInMap
 import net.spals.appbuilder.mapstore.core.MapStorePlugin.stripKey
@@ -15,12 +19,14 @@ import net.spals.appbuilder.mapstore.core.model.MapQueryOptions.Order
 import net.spals.appbuilder.mapstore.core.model.MapRangeOperator.{Extended, Standard}
 import net.spals.appbuilder.mapstore.core.model.MultiValueMapRangeKey.ListValueHolder
 import net.spals.appbuilder.mapstore.core.model.TwoValueMapRangeKey.TwoValueHolder
-import net.spals.appbuilder.mapstore.core.model.{MapQueryOptions, MapStoreKey, MapStoreTableKey}
+import net.spals.appbuilder.mapstore.core.model.{MapAggregate, MapItemPage, MapQueryFilter, MapQueryOptions, MapStoreKey,
+  MapStoreTableKey}
 import net.spals.appbuilder.mapstore.core.{MapStore, MapStorePlugin}
 import org.bson.Document
 import org.bson.conversions.Bson
 
 import scala.collection.JavaConverters._
+import scala.compat.java8.FunctionConverters._
 import scala.compat.java8.OptionConverters._
 
 /**
@@ -39,6 +45,16 @@ import scala.compat.java8.OptionConverters._
   * the [[MongoClient]] and [[MongoDatabase]] directly
   * into their own custom services.
   *
+  * Tables are indexed by a unique, ascending (hash) or compound
+  * (hash, range) index, which serves both range filters and
+  * range ordering. Queries are hinted to use that index. Items
+  * are written as upserts on their key, so writing the same key
+  * twice replaces the item instead of duplicating it. A hashed
+  * index is only needed to shard a collection, and can be added
+  * alongside the primary index.
+  * Pages are read by key: a continuation token holds the key of the
+  * last item of its page, and the next page seeks past it on the index.
+  *
   * @author tkral
   */
 @AutoBindInMap(baseClass = classOf[MapStorePlugin], key = "mongoDB")
@@ -47,7 +63,12 @@ private[mongodb] class MongoDBMapStorePlugin @Inject() (
   mongoDatabase: MongoDatabase
 ) extends MapStorePlugin {
 
+  private val AGGREGATE_FIELD_NAME = "aggregate"
   private val ID_FIELD_NAME = "_id"
+  private val PRIMARY_INDEX_NAME = "primary"
+
+  // The ascending (hash) or (hash, range) index of each table, if it has one
+  private val primaryIndexes = new ConcurrentHashMap[String, Option[Document]]()
 
   @PreDestroy
   override def close(): Unit = mongoClient.close()
@@ -56,23 +77,30 @@ private[mongodb] class MongoDBMapStorePlugin @Inject() (
     tableName: String,
     tableKey: MapStoreTableKey
   ): Boolean = {
+    val collection = mongoDatabase.getCollection(tableName)
+    // Forget any index found for a previous table of the same name
+    primaryIndexes.remove(tableName)
+
     // Collection creation in MongoDB is not idempotent so we need to check that the tableName
     // doesn't already exist in the collection name list
     mongoDatabase.listCollectionNames().into(new java.util.ArrayList[String]()).contains(tableName) match {
       // Case: Collection already exists
-      case true => true
+      case true => {
+        primaryIndex(tableName, collection)
+        true
+      }
       // Case: Collection does not already exist
       case false => {
         // Turn off auto-indexing as we'll create our own explicit index
         val collectionOptions = new CreateCollectionOptions().autoIndex(false)
         mongoDatabase.createCollection(tableName, collectionOptions)
 
-        // From MongoDB: Currently only single field hashed index supported.
-        val hashIndex = Indexes.hashed(tableKey.getHashField)
-
-        val collection = mongoDatabase.getCollection(tableName)
-        val indexOptions = new IndexOptions().name("primary")
-        "primary".equals(collection.createIndex(hashIndex, indexOptions))
+        // Items are upserted by key, so the key must be unique. Range queries
+        // and range ordering need an ordered index, as does key paging.
+        val primaryIndexKey = createPrimaryIndexKey(tableKey)
+        primaryIndexes.put(tableName, Option(primaryIndexKey))
+        PRIMARY_INDEX_NAME.equals(collection.createIndex(primaryIndexKey,
+          new IndexOptions().name(PRIMARY_INDEX_NAME).unique(true)))
       }
     }
   }
@@ -80,10 +108,105 @@ private[mongodb] class MongoDBMapStorePlugin @Inject() (
   override def dropTable(tableName: String): Boolean = {
     val collection = mongoDatabase.getCollection(tableName)
     collection.drop()
+    primaryIndexes.remove(tableName)
 
     true
   }
 
+  override def aggregateItems(
+    tableName: String,
+    key: MapStoreKey,
+    aggregate: MapAggregate,
+    options: MapQueryOptions
+  ): Optional[java.math.BigDecimal] = {
+    val collection = mongoDatabase.getCollection(tableName)
+
+    val fieldExpression = s"$$${aggregate.getField}"
+    val accumulator = aggregate.getOperator match {
+      case MapAggregate.Operator.MAX => Accumulators.max(AGGREGATE_FIELD_NAME, fieldExpression)
+      case MapAggregate.Operator.MIN => Accumulators.min(AGGREGATE_FIELD_NAME, fieldExpression)
+      case MapAggregate.Operator.SUM => Accumulators.sum(AGGREGATE_FIELD_NAME, fieldExpression)
+    }
+    // $min and $max compare across types, so only group numbers
+    val numberFilter = new Document(aggregate.getField, new Document("$type", "number"))
+    val pipeline = List(
+      Aggregates.`match`(Filters.and(createOptionsFilter(createFilter(key), options), numberFilter)),
+      Aggregates.group(null, accumulator)
+    )
+
+    Option(collection.aggregate(pipeline.asJava).first())
+      .flatMap(result => Option(result.get(AGGREGATE_FIELD_NAME)))
+      .collect { case number: Number => number }
+      .flatMap(number => MapAggregate.toBigDecimal(number).asScala)
+      .asJava
+  }
+
+  override def batchDeleteItems(
+    tableName: String,
+    keys: java.util.Collection[MapStoreKey]
+  ): Unit = {
+    if (!keys.isEmpty) {
+      val collection = mongoDatabase.getCollection(tableName)
+
+      val deletes = keys.asScala.map(key => new DeleteOneModel[Document](createFilter(key))).toList
+      collection.bulkWrite(deletes.asJava, new BulkWriteOptions().ordered(false))
+    }
+  }
+
+  override def batchGetItems(
+    tableName: String,
+    keys: java.util.Collection[MapStoreKey]
+  ): java.util.List[java.util.Map[String, AnyRef]] = {
+    keys.isEmpty match {
+      case true => java.util.Collections.emptyList[java.util.Map[String, AnyRef]]()
+      case false => {
+        val collection = mongoDatabase.getCollection(tableName)
+
+        val filter = Filters.or(keys.asScala.map(createFilter).toList.asJava)
+        val items = new java.util.ArrayList[java.util.Map[String, AnyRef]]()
+        collection.find(filter).into(items)
+
+        items.asScala.map(item => {
+          item.remove(ID_FIELD_NAME)
+          item
+        }).asJava
+      }
+    }
+  }
+
+  override def batchPutItems(
+    tableName: String,
+    items: java.util.Map[MapStoreKey, java.util.Map[String, AnyRef]]
+  ): java.util.List[java.util.Map[String, AnyRef]] = {
+    items.isEmpty match {
+      case true => java.util.Collections.emptyList[java.util.Map[String, AnyRef]]()
+      case false => {
+        val collection = mongoDatabase.getCollection(tableName)
+
+        val documents = items.asScala.toList.map(item => (createFilter(item._1), createDocument(item._1, item._2)))
+        val upserts = documents.map(document =>
+          new ReplaceOneModel[Document](document._1, document._2, new UpdateOptions().upsert(true)))
+        // Since we're treating MongoDB like a key-value store here,
+        // we can just skip any document validation
+        collection.bulkWrite(upserts.asJava, new BulkWriteOptions().ordered(false).bypassDocumentValidation(true))
+
+        documents.map(document => {
+          document._2.remove(ID_FIELD_NAME) // Remove any automatic _id field from the record
+          document._2.asInstanceOf[java.util.Map[String, AnyRef]]
+        }).asJava
+      }
+    }
+  }
+
+  override def countItems(
+    tableName: String,
+    key: MapStoreKey,
+    options: MapQueryOptions
+  ): Long = {
+    val collection = mongoDatabase.getCollection(tableName)
+    collection.count(createOptionsFilter(createFilter(key), options))
+  }
+
   override def deleteItem(
     tableName: String,
     key: MapStoreKey
@@ -108,6 +231,16 @@ private[mongodb] class MongoDBMapStorePlugin @Inject() (
     }).asJava
   }
 
+  override def getAllItemsPage(
+    tableName: String,
+    options: MapQueryOptions
+  ): MapItemPage = {
+    val collection = mongoDatabase.getCollection(tableName)
+    val (pageFields, pinnedFields) = tablePageFields(tableName, collection)
+    readPage(pageFields, pinnedFields, options)(seekFilter =>
+      project(collection.find(createOptionsFilter(seekFilter, options)), options))
+  }
+
   override def getItem(
     tableName: String,
     key: MapStoreKey
@@ -123,25 +256,32 @@ private[mongodb] class MongoDBMapStorePlugin @Inject() (
     }).asJava
   }
 
-  override def getItems(
+  override def getItem(
     tableName: String,
     key: MapStoreKey,
     options: MapQueryOptions
-  ): java.util.List[java.util.Map[String, AnyRef]] = {
+  ): Optional[java.util.Map[String, AnyRef]] = {
     val collection = mongoDatabase.getCollection(tableName)
 
-    val findOptions = new FindOptions()
-    key.getRangeField.asScala.foreach(rangeField => {
-      options.getOrder match {
-        case Order.ASC => findOptions.sort(Sorts.ascending(rangeField))
-        case Order.DESC => findOptions.sort(Sorts.descending(rangeField))
-      }
-    })
-    options.getLimit.asScala.foreach(limit => findOptions.limit(limit))
+    val filter = createOptionsFilter(createFilter(key), options)
+    val result = project(collection.find(filter), options).first()
+
+    Option(result).map(r => {
+      r.remove(ID_FIELD_NAME)
+      r.asInstanceOf[java.util.Map[String, AnyRef]]
+    }).asJava
+  }
+
+  override def getItems(
+    tableName: String,
+    key: MapStoreKey,
+    options: MapQueryOptions
+  ): java.util.List[java.util.Map[String, AnyRef]] = {
+    val findIterable = findItems(tableName, key, options)
+    options.getLimit.asScala.foreach(limit => findIterable.limit(limit))
 
-    val filter = createFilter(key)
     val items = new java.util.ArrayList[java.util.Map[String, AnyRef]]()
-    collection.find(filter).limit(findOptions.getLimit).sort(findOptions.getSort).into(items)
+    findIterable.into(items)
 
     items.asScala.map(item => {
       item.remove(ID_FIELD_NAME)
@@ -149,6 +289,15 @@ private[mongodb] class MongoDBMapStorePlugin @Inject() (
     }).asJava
   }
 
+  override def getItemsPage(
+    tableName: String,
+    key: MapStoreKey,
+    options: MapQueryOptions
+  ): MapItemPage = {
+    val (pageFields, pinnedFields) = keyPageFields(key, options)
+    readPage(pageFields, pinnedFields, options)(seekFilter => findItems(tableName, key, options, seekFilter))
+  }
+
   override def putItem(
     tableName: String,
     key: MapStoreKey,
@@ -158,19 +307,39 @@ private[mongodb] class MongoDBMapStorePlugin @Inject() (
 
     // Since we're treating MongoDB like a key-value store here,
     // we can just skip any document validation
-    val insertOptions = new InsertOneOptions().bypassDocumentValidation(true)
-
-    stripKey(key, payload)
-    val document = new Document(payload)
-    document.append(key.getHashField, key.getHashValue)
-    key.getRangeField.asScala
-      .foreach(rangeField => document.append(rangeField, key.getRangeKey.getValue.asInstanceOf[AnyRef]))
+    val updateOptions = new UpdateOptions().upsert(true).bypassDocumentValidation(true)
 
-    collection.insertOne(document, insertOptions)
-    document.remove(ID_FIELD_NAME) // Remove the automatic _id field from the record
+    // Replace any existing item with the same key so
+    // that repeated writes never duplicate the item
+    val document = createDocument(key, payload)
+    collection.replaceOne(createFilter(key), document, updateOptions)
+    document.remove(ID_FIELD_NAME) // Remove any automatic _id field from the record
     document
   }
 
+  override def streamAllItems(
+    tableName: String,
+    options: MapQueryOptions
+  ): Stream[java.util.Map[String, AnyRef]] = {
+    val collection = mongoDatabase.getCollection(tableName)
+    val (pageFields, pinnedFields) = tablePageFields(tableName, collection)
+    val seekFilter = createSeekFilter(pageFields, pinnedFields, options)
+    streamDocuments(project(collection.find(createOptionsFilter(seekFilter, options)), options),
+      pageFields.drop(pinnedFields), options)
+  }
+
+  override def streamItems(
+    tableName: String,
+    key: MapStoreKey,
+    options: MapQueryOptions
+  ): Stream[java.util.Map[String, AnyRef]] = {
+    val (pageFields, pinnedFields) = keyPageFields(key, options)
+    val seekFilter = createSeekFilter(pageFields, pinnedFields, options)
+    streamDocuments(findItems(tableName, key, options, seekFilter), pageFields.drop(pinnedFields), options)
+  }
+
+  override def supportsUpsert(): Boolean = true
+
   override def updateItem(
     tableName: String,
     key: MapStoreKey,
@@ -183,16 +352,265 @@ private[mongodb] class MongoDBMapStorePlugin @Inject() (
       case null | "" => Updates.unset(field._1)
       case _ => Updates.set(field._1, field._2)
     }).toList
-    val fullUpdate = Updates.combine(updates.asJava)
+    // The key fields are copied over from the filter on insert. Setting the
+    // hash field again keeps the update non-empty for an empty payload.
+    val fullUpdate = Updates.combine((Updates.setOnInsert(key.getHashField, key.getHashValue) :: updates).asJava)
 
+    // Upsert so that a missing item is created by this same request
     val filter = createFilter(key)
-    val updateOptions = new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER)
+    val updateOptions = new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER).upsert(true)
 
     val document = collection.findOneAndUpdate(filter, fullUpdate, updateOptions)
     document.remove(ID_FIELD_NAME)
     document
   }
 
+  private[mongodb] def createDocument(
+    key: MapStoreKey,
+    payload: java.util.Map[String, AnyRef]
+  ): Document = {
+    stripKey(key, payload)
+    val document = new Document(payload)
+    document.append(key.getHashField, key.getHashValue)
+    key.getRangeField.asScala
+      .foreach(rangeField => document.append(rangeField, key.getRangeKey.getValue.asInstanceOf[AnyRef]))
+    document
+  }
+
+  private def findItems(
+    tableName: String,
+    key: MapStoreKey,
+    options: MapQueryOptions,
+    seekFilter: Bson = new Document()
+  ): FindIterable[Document] = {
+    val collection = mongoDatabase.getCollection(tableName)
+    val findIterable = collection.find(createOptionsFilter(Filters.and(createFilter(key), seekFilter), options))
+
+    key.getRangeField.asScala.foreach(rangeField => options.getOrder match {
+      case Order.ASC => findIterable.sort(Sorts.ascending(rangeField))
+      case Order.DESC => findIterable.sort(Sorts.descending(rangeField))
+    })
+    // Secondary indexes share this path, so only hint
+    // the primary index when the key fields match it
+    val keyFields = key.getHashField :: key.getRangeField.asScala.toList
+    primaryIndex(tableName, collection).filter(_.keySet.asScala.toList == keyFields)
+      .foreach(index => findIterable.hint(index))
+    project(findIterable, options)
+  }
+
+  /**
+    * The unique, ascending (hash) or (hash, range)
+    * index key of a table with the given key.
+    */
+  @VisibleForTesting
+  private[mongodb] def createPrimaryIndexKey(tableKey: MapStoreTableKey): Document = {
+    val indexKey = new Document(tableKey.getHashField, Int.box(1))
+    tableKey.getRangeField.asScala.foreach(rangeField => indexKey.append(rangeField, Int.box(1)))
+    indexKey
+  }
+
+  /**
+    * Finds the ascending primary index of the given table. Tables
+    * created before primary indexes were ascending (with a hashed
+    * or non-compound index) have none and go unhinted.
+    */
+  private def primaryIndex(
+    tableName: String,
+    collection: MongoCollection[Document]
+  ): Option[Document] = {
+    primaryIndexes.computeIfAbsent(tableName, asJavaFunction((_: String) => {
+      collection.listIndexes().into(new java.util.ArrayList[Document]()).asScala
+        .find(index => PRIMARY_INDEX_NAME.equals(index.getString("name")))
+        .map(index => index.get("key", classOf[Document]))
+        .filter(_.values.asScala.forall {
+          case order: Number => order.intValue == 1
+          case _ => false
+        })
+    }))
+  }
+
+  /**
+    * Asks MongoDB to return only the projected fields
+    * (if any) so that the rest of each document never
+    * leaves the server.
+    */
+  @VisibleForTesting
+  private[mongodb] def project(
+    findIterable: FindIterable[Document],
+    options: MapQueryOptions
+  ): FindIterable[Document] = {
+    options.getProjection.isEmpty match {
+      case true => findIterable
+      case false => findIterable.projection(
+        Projections.fields(Projections.include(options.getProjection.asScala.toList.asJava), Projections.excludeId()))
+    }
+  }
+
+  /**
+    * The fields which order the pages of a whole table (each with
+    * its order), and how many of them are pinned to a single value.
+    * These follow the table's primary index, or else the unique
+    * _id field for tables without one.
+    */
+  private def tablePageFields(
+    tableName: String,
+    collection: MongoCollection[Document]
+  ): (List[(String, Order)], Int) = {
+    val indexFields = primaryIndex(tableName, collection).map(_.keySet.asScala.toList).getOrElse(List(ID_FIELD_NAME))
+    (indexFields.map(field => (field, Order.ASC)), 0)
+  }
+
+  /**
+    * The fields which order the pages of the given key (each with
+    * its order), and how many of them are pinned to a single value.
+    * The key pins the hash field, so items are ordered by their range
+    * field alone. Keys without a range field page by the _id field.
+    */
+  private def keyPageFields(
+    key: MapStoreKey,
+    options: MapQueryOptions
+  ): (List[(String, Order)], Int) = {
+    key.getRangeField.asScala match {
+      case Some(rangeField) => (List((key.getHashField, Order.ASC), (rangeField, options.getOrder)), 1)
+      case None => (List((ID_FIELD_NAME, Order.ASC)), 0)
+    }
+  }
+
+  /**
+    * Encodes the page field values of the given document
+    * as an opaque continuation token.
+    */
+  @VisibleForTesting
+  private[mongodb] def createContinuationToken(
+    pageFields: List[(String, Order)],
+    document: Document
+  ): String = {
+    val lastKey = new Document()
+    pageFields.foreach(pageField => lastKey.append(pageField._1, document.get(pageField._1)))
+    BaseEncoding.base64Url().encode(lastKey.toJson.getBytes(StandardCharsets.UTF_8))
+  }
+
+  /**
+    * Decodes a continuation token created by [[createContinuationToken]]
+    * into the page field values of the last document of a page.
+    */
+  @VisibleForTesting
+  private[mongodb] def parseContinuationToken(
+    pageFields: List[(String, Order)],
+    continuationToken: String
+  ): Document = {
+    val lastKey = try {
+      Document.parse(new String(BaseEncoding.base64Url().decode(continuationToken), StandardCharsets.UTF_8))
+    } catch {
+      case e: RuntimeException =>
+        throw new IllegalArgumentException(s"Invalid MongoDB continuation token: $continuationToken", e)
+    }
+    if (!pageFields.forall(pageField => lastKey.containsKey(pageField._1))) {
+      throw new IllegalArgumentException(s"Invalid MongoDB continuation token: $continuationToken")
+    }
+    lastKey
+  }
+
+  /**
+    * Filters for the documents after the one which the continuation
+    * token (if any) in the given options was taken from. That is,
+    * (a > x) OR (a = x AND b > y) OR ... over the unpinned page fields,
+    * which seeks along their index rather than skipping documents.
+    */
+  @VisibleForTesting
+  private[mongodb] def createSeekFilter(
+    pageFields: List[(String, Order)],
+    pinnedFields: Int,
+    options: MapQueryOptions
+  ): Bson = {
+    options.getContinuationToken.asScala.map(token => {
+      val lastKey = parseContinuationToken(pageFields, token)
+      val equalTo = (pageField: (String, Order)) => Filters.eq(pageField._1, lastKey.get(pageField._1))
+      val after = (pageField: (String, Order)) => pageField._2 match {
+        case Order.ASC => Filters.gt(pageField._1, lastKey.get(pageField._1))
+        case Order.DESC => Filters.lt(pageField._1, lastKey.get(pageField._1))
+      }
+
+      val seekFields = pageFields.drop(pinnedFields)
+      val seekFilters = seekFields.indices.toList
+        .map(i => Filters.and((seekFields.take(i).map(equalTo) :+ after(seekFields(i))).asJava))
+      Filters.and((pageFields.take(pinnedFields).map(equalTo) :+ Filters.or(seekFilters.asJava)).asJava)
+    }).getOrElse(new Document())
+  }
+
+  private def createSort(sortFields: List[(String, Order)]): Bson = {
+    Sorts.orderBy(sortFields.map(sortField => sortField._2 match {
+      case Order.ASC => Sorts.ascending(sortField._1)
+      case Order.DESC => Sorts.descending(sortField._1)
+    }).asJava)
+  }
+
+  /**
+    * Reads a single page of documents, ordered by the given page
+    * fields. MongoDB cursors cannot outlive a request, so the
+    * continuation token holds the page field values of the last
+    * document, and the next page seeks past them.
+    */
+  private def readPage(
+    pageFields: List[(String, Order)],
+    pinnedFields: Int,
+    options: MapQueryOptions
+  )(find: Bson => FindIterable[Document]): MapItemPage = {
+    val pageSize = (options.getPageSize.asScala ++ options.getLimit.asScala).map(_.intValue).reduceOption(_ min _)
+
+    val findIterable = find(createSeekFilter(pageFields, pinnedFields, options))
+      .sort(createSort(pageFields.drop(pinnedFields)))
+    // The token needs the page fields, even when they aren't projected
+    val unprojectedFields = options.getProjection.isEmpty match {
+      case true => List.empty[String]
+      case false => pageFields.map(_._1).filterNot(options.getProjection.contains)
+    }
+    if (unprojectedFields.nonEmpty) {
+      findIterable.projection(Projections.include((options.getProjection.asScala.toList ++ unprojectedFields).asJava))
+    }
+    // Read one document past the page to find out whether another page follows
+    pageSize.foreach(size => findIterable.limit(size + 1))
+    val documents = new java.util.ArrayList[Document]()
+    findIterable.into(documents)
+
+    val pageBuilder = new MapItemPage.Builder()
+    pageSize.filter(_ < documents.size)
+      .foreach(size => pageBuilder.setContinuationToken(createContinuationToken(pageFields, documents.get(size - 1))))
+    documents.asScala.take(pageSize.getOrElse(documents.size)).foreach(document => {
+      document.remove(ID_FIELD_NAME)
+      unprojectedFields.foreach(document.remove)
+      pageBuilder.addItems(document)
+    })
+    pageBuilder.build()
+  }
+
+  /**
+    * Lazily streams documents from a cursor which fetches
+    * batches of the configured page size on demand. Streams
+    * which continue a page follow the order of its sort fields.
+    */
+  private def streamDocuments(
+    findIterable: FindIterable[Document],
+    sortFields: List[(String, Order)],
+    options: MapQueryOptions
+  ): Stream[java.util.Map[String, AnyRef]] = {
+    options.getContinuationToken.asScala.foreach(_ => findIterable.sort(createSort(sortFields)))
+    options.getLimit.asScala.foreach(limit => findIterable.limit(limit))
+    options.getPageSize.asScala.foreach(pageSize => findIterable.batchSize(pageSize))
+
+    val cursor = findIterable.iterator()
+    StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED), false)
+      .onClose(new Runnable {
+        override def run(): Unit = cursor.close()
+      })
+      .map[java.util.Map[String, AnyRef]](new java.util.function.Function[Document, java.util.Map[String, AnyRef]] {
+        override def apply(document: Document): java.util.Map[String, AnyRef] = {
+          document.remove(ID_FIELD_NAME)
+          document
+        }
+      })
+  }
+
   @VisibleForTesting
   private[mongodb] def createFilter(key: MapStoreKey): Bson = {
     val hashFilter = Filters.eq(key.getHashField, key.getHashValue)
@@ -200,6 +618,36 @@ private[mongodb] class MongoDBMapStorePlugin @Inject() (
       .getOrElse(hashFilter)
   }
 
+  /**
+    * ANDs the filters in the given options onto the given
+    * filter so that non-matching documents never leave
+    * the server.
+    */
+  @VisibleForTesting
+  private[mongodb] def createOptionsFilter(
+    filter: Bson,
+    options: MapQueryOptions
+  ): Bson = {
+    options.getFilters.isEmpty match {
+      case true => filter
+      case false => Filters.and((filter :: options.getFilters.asScala.toList.map(createFieldFilter)).asJava)
+    }
+  }
+
+  @VisibleForTesting
+  private[mongodb] def createFieldFilter(filter: MapQueryFilter): Bson = {
+    filter.getOperator match {
+      case MapQueryFilter.Operator.BEGINS_WITH =>
+        Filters.regex(filter.getField, s"^${Pattern.quote(filter.getValue.toString)}")
+      case MapQueryFilter.Operator.EQUAL_TO => Filters.eq(filter.getField, filter.getValue)
+      case MapQueryFilter.Operator.EXISTS => Filters.exists(filter.getField)
+      case MapQueryFilter.Operator.GREATER_THAN => Filters.gt(filter.getField, filter.getValue)
+      case MapQueryFilter.Operator.IN => Filters.in(filter.getField, filter.getValues)
+      case MapQueryFilter.Operator.LESS_THAN => Filters.lt(filter.getField, filter.getValue)
+      case MapQueryFilter.Operator.NOT_EQUAL_TO => Filters.ne(filter.getField, filter.getValue)
+    }
+  }
+
   @VisibleForTesting
   private[mongodb] def createRangeFilter(key: MapStoreKey): Option[Bson] = {
     key.getRangeField.asScala.flatMap(rangeField => {